@@ -0,0 +1,81 @@
+/*
+ * File: Benchmark.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Simple benchmark driver for MyPL scripts. Each script is
+ *       compiled once per optimization level and then run repeatedly (with
+ *       its output discarded), reporting the average run time and the
+ *       number of VM instructions dispatched and heap objects
+ *       allocated per run.
+ *
+ *       Usage: bazel run //:bench -- [-n runs] script.mypl ...
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+
+public class Benchmark {
+
+  // number of untimed runs before measuring
+  private static final int WARMUP_RUNS = 3;
+
+  // compile the given source into a fresh VM
+  private static VM compile(byte[] source, int optLevel) throws Exception {
+    ASTParser parser = new ASTParser(new Lexer(new ByteArrayInputStream(source)));
+    Program program = parser.parse();
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    return MyPL.compile(program, typeInfo, optLevel);
+  }
+
+  // run the script, returning the average time per run in ms
+  private static void measure(String name, byte[] source, int optLevel,
+                              int runs) throws Exception {
+    PrintStream stdout = System.out;
+    PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+    VM vm = compile(source, optLevel);
+    long dispatches = 0;
+    long allocs = 0;
+    long elapsed = 0;
+    try {
+      System.setOut(sink);
+      for (int i = 0; i < WARMUP_RUNS; ++i)
+        vm.run();
+      long start = System.nanoTime();
+      for (int i = 0; i < runs; ++i)
+        vm.run();
+      elapsed = System.nanoTime() - start;
+      dispatches = vm.dispatchCount();
+      allocs = vm.allocCount();
+    }
+    finally {
+      System.setOut(stdout);
+    }
+    System.out.printf("%-28s %-10s %10.2f ms/run %12d dispatches/run %8d allocs/run%n",
+                      name, "-O" + optLevel, elapsed / 1e6 / runs, dispatches, allocs);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int runs = 10;
+    int i = 0;
+    if (args.length > 1 && args[0].equals("-n")) {
+      runs = Integer.parseInt(args[1]);
+      i = 2;
+    }
+    if (i >= args.length) {
+      System.out.println("Usage: bench [-n runs] script.mypl ...");
+      System.exit(1);
+    }
+    for (; i < args.length; ++i) {
+      byte[] source = Files.readAllBytes(Paths.get(args[i]));
+      String name = Paths.get(args[i]).getFileName().toString();
+      for (int level = 0; level <= MyPL.MAX_OPT_LEVEL; ++level)
+        measure(name, source, level, runs);
+    }
+  }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * File: LexerBenchmark.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Lexer throughput benchmark. Lexes a generated source of the
+ *       given size (a mix of functions, comments, string literals, and
+ *       numbers, as in large generated MyPL programs), or the given
+ *       scripts, repeatedly and reports the tokens and megabytes
+ *       lexed per second. Each source is lexed with the scalar scanner
+ *       and (if the JVM has the jdk.incubator.vector module) the vector
+ *       scanner. A generated source with long comments and strings and
+ *       deep indentation (where skipping text dominates) is measured
+ *       too.
+ *
+ *       Usage: bazel run //:lexer-bench -- [-n runs] [-mb size] [script.mypl ...]
+ */
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class LexerBenchmark {
+
+  // number of untimed runs before measuring
+  private static final int WARMUP_RUNS = 3;
+
+  // a generated source of about the given number of bytes
+  static byte[] generate(int size) {
+    StringBuilder s = new StringBuilder();
+    for (int i = 0; s.length() < size; ++i) {
+      s.append("# function ").append(i).append(" of the generated program\n");
+      s.append("fun int f").append(i).append("(int x, double y) {\n");
+      s.append("  // scale the input\n");
+      s.append("  var s = \"value of f").append(i).append(" is not yet known\"\n");
+      s.append("  var d = y * 2.5 + ").append(i).append(".25\n");
+      s.append("  if (x >= ").append(i % 100).append(") and (x != 42) {\n");
+      s.append("    return x - ").append(i).append("\n");
+      s.append("  }\n");
+      s.append("  while x < 1000 {\n");
+      s.append("    x = x * 3 + 1\n");
+      s.append("  }\n");
+      s.append("  return x % 7\n");
+      s.append("}\n\n");
+    }
+    return s.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  // a generated source of about the given number of bytes, mostly
+  // comments, string literals, and indentation
+  static byte[] generateSparse(int size) {
+    String pad = " ".repeat(24);
+    String text = "the quick brown fox jumps over the lazy dog ".repeat(3);
+    StringBuilder s = new StringBuilder();
+    for (int i = 0; s.length() < size; ++i) {
+      s.append("#").append(text).append(i).append("\n");
+      s.append("fun string g").append(i).append("() {\n");
+      s.append(pad).append("// ").append(text).append("\n");
+      s.append(pad).append("/* ").append(text).append("*/\n\n\n");
+      s.append(pad).append("var s = \"").append(text).append(i).append("\"\n");
+      s.append(pad).append("return s\n");
+      s.append("}\n\n");
+    }
+    return s.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  // the number of tokens in the source (including the EOS)
+  private static long lex(byte[] source, CharScanner scanner) throws Exception {
+    Lexer lexer = new Lexer(new ByteArrayInputStream(source));
+    lexer.setScanner(scanner);
+    long count = 1;
+    while (lexer.nextToken().type() != TokenType.EOS)
+      ++count;
+    return count;
+  }
+
+  private static void measure(String name, byte[] source, int runs, CharScanner scanner)
+    throws Exception
+  {
+    for (int i = 0; i < WARMUP_RUNS; ++i)
+      lex(source, scanner);
+    long tokens = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < runs; ++i)
+      tokens = lex(source, scanner);
+    double seconds = (System.nanoTime() - start) / 1e9 / runs;
+    System.out.printf("%-28s %-9s %8.2f MB %10d tokens %8.2f ms/run %8.2f Mtokens/s %8.2f MB/s%n",
+                      name, scanner.name(), source.length / 1e6, tokens, seconds * 1e3,
+                      tokens / seconds / 1e6, source.length / seconds / 1e6);
+  }
+
+  // measure the source with each scanner
+  private static void measure(String name, byte[] source, int runs, List<CharScanner> scanners)
+    throws Exception
+  {
+    for (CharScanner scanner : scanners)
+      measure(name, source, runs, scanner);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int runs = 10;
+    int size = 4;
+    int i = 0;
+    while (i + 1 < args.length && args[i].startsWith("-")) {
+      if (args[i].equals("-n"))
+        runs = Integer.parseInt(args[i + 1]);
+      else if (args[i].equals("-mb"))
+        size = Integer.parseInt(args[i + 1]);
+      else {
+        System.out.println("Usage: lexer-bench [-n runs] [-mb size] [script.mypl ...]");
+        System.exit(1);
+      }
+      i += 2;
+    }
+    List<CharScanner> scanners = new ArrayList<>();
+    scanners.add(new CharScanner());
+    CharScanner best = CharScanner.best();
+    if (best.getClass() != CharScanner.class)
+      scanners.add(best);
+    else
+      System.out.println("(no vector scanner: run with --add-modules jdk.incubator.vector)");
+    if (i == args.length) {
+      measure("(generated)", generate(size * 1000000), runs, scanners);
+      measure("(generated, sparse)", generateSparse(size * 1000000), runs, scanners);
+    }
+    for (; i < args.length; ++i)
+      measure(Paths.get(args[i]).getFileName().toString(),
+              Files.readAllBytes(Paths.get(args[i])), runs, scanners);
+  }
+
+}
@@ -0,0 +1,727 @@
+/*
+ * File: AOTCompiler.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Ahead-of-time compiler from a statically checked program to a
+ *       standalone JAR. The program is translated to one Java class
+ *       (MyPLProgram): each function becomes a static method over
+ *       primitive ints, doubles and bools, each record type becomes a
+ *       nested class with a field per component (and a method that
+ *       allocates and initializes one), and the built-ins and
+ *       VM-specific operations are calls into AOTRuntime. The class
+ *       is compiled in memory with the JDK's compiler and written,
+ *       with AOTRuntime, to a JAR that runs under "java -jar" without
+ *       lexing, parsing, checking, or interpreting anything.
+ *
+ *       Values follow the VM's representation where they can: nil is
+ *       null, and chars are one-character strings. A nil int, double
+ *       or bool has no primitive form, so a program storing one is
+ *       rejected. Strings compare by reference, as in the VM, so each
+ *       string or char literal is a constant of its own, made with new
+ *       String (Java would intern equal literals into one object).
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+
+public class AOTCompiler implements Visitor {
+
+  /**
+   * The name of the generated class (the JAR's main class).
+   */
+  public static final String MAIN_CLASS = "MyPLProgram";
+
+  // the name of the run-time support class
+  private static final String RUNTIME = "AOTRuntime";
+
+  // the user-defined type and function type information
+  private TypeInfo typeInfo = null;
+
+  // the generated source
+  private StringBuilder out = new StringBuilder();
+
+  // current indent level (number of spaces)
+  private int indent = 0;
+
+  // the code and type of the last expression visited (types are MyPL
+  // type names, with "void" for nil)
+  private String currCode = null;
+  private String currType = null;
+
+  // the string and char literals (as Java literals), each the value
+  // of a constant s_<index>
+  private List<String> literals = new ArrayList<>();
+
+  // false once the current expression reads a variable or calls a
+  // function (so it is not a constant)
+  private boolean constant = true;
+
+  // the function being translated
+  private FunDecl currFun = null;
+
+  // the variables in scope (innermost last), and the number of
+  // variables declared so far in the function under each name
+  private Deque<Map<String,Var>> scopes = new ArrayDeque<>();
+  private Map<String,Integer> declCounts = new HashMap<>();
+
+  private static class Var {
+    String name;
+    String type;
+
+    Var(String name, String type) {
+      this.name = name;
+      this.type = type;
+    }
+  }
+
+  // an in-memory source file
+  private static class Source extends SimpleJavaFileObject {
+    String code;
+
+    Source(String className, String code) {
+      super(URI.create("string:///" + className + ".java"), Kind.SOURCE);
+      this.code = code;
+    }
+
+    @Override
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+      return code;
+    }
+  }
+
+  // an in-memory class file
+  private static class ClassFile extends SimpleJavaFileObject {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    ClassFile(String className) {
+      super(URI.create("bytes:///" + className + ".class"), Kind.CLASS);
+    }
+
+    @Override
+    public OutputStream openOutputStream() {
+      return bytes;
+    }
+  }
+
+  // keeps the compiler's class files in memory (by class name)
+  private static class ClassFiles extends ForwardingJavaFileManager<StandardJavaFileManager> {
+    Map<String,ClassFile> files = new LinkedHashMap<>();
+
+    ClassFiles(StandardJavaFileManager manager) {
+      super(manager);
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput(JavaFileManager.Location location,
+                                               String className,
+                                               JavaFileObject.Kind kind,
+                                               FileObject sibling) {
+      ClassFile file = new ClassFile(className);
+      files.put(className, file);
+      return file;
+    }
+  }
+
+
+  //----------------------------------------------------------------------
+  // Constructor
+  //----------------------------------------------------------------------
+
+  public AOTCompiler(TypeInfo typeInfo) {
+    this.typeInfo = typeInfo;
+  }
+
+  /**
+   * Translates the program to the source of the generated class.
+   * @param program the statically checked program
+   */
+  public String generate(Program program) throws MyPLException {
+    out = new StringBuilder();
+    indent = 0;
+    literals.clear();
+    program.accept(this);
+    return out.toString();
+  }
+
+  /**
+   * Compiles the program to class files.
+   * @param program the statically checked program
+   * @return the class files by class name (the generated classes and
+   *         the run-time support class)
+   */
+  public Map<String,byte[]> compile(Program program) throws MyPLException {
+    String code = generate(program);
+    JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    if (javac == null)
+      throw MyPLException.StaticError("ahead-of-time compilation needs a JDK " +
+                                      "(no Java compiler found)");
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+    ClassFiles files = new ClassFiles(javac.getStandardFileManager(diagnostics, null,
+                                                                  StandardCharsets.UTF_8));
+    List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"),
+                                         "-nowarn");
+    boolean ok = javac.getTask(null, files, diagnostics, options, null,
+                               Arrays.asList(new Source(MAIN_CLASS, code))).call();
+    if (!ok) {
+      String msg = "ahead-of-time compilation failed";
+      for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics())
+        if (d.getKind() == Diagnostic.Kind.ERROR)
+          msg += "\n  line " + d.getLineNumber() + ": " + d.getMessage(null);
+      throw MyPLException.StaticError(msg);
+    }
+    Map<String,byte[]> classes = new LinkedHashMap<>();
+    for (Map.Entry<String,ClassFile> e : files.files.entrySet())
+      classes.put(e.getKey(), e.getValue().bytes.toByteArray());
+    classes.put(RUNTIME, runtimeClass());
+    return classes;
+  }
+
+  /**
+   * Compiles the program to a runnable JAR (replacing the file if it
+   * exists).
+   * @param program the statically checked program
+   * @param jar the JAR file to write
+   */
+  public void writeJar(Program program, Path jar) throws MyPLException, IOException {
+    Map<String,byte[]> classes = compile(program);
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, MAIN_CLASS);
+    // write alongside the target and then move it into place, so a
+    // failed write does not leave a partial JAR
+    Path dir = jar.toAbsolutePath().getParent();
+    Path tmp = Files.createTempFile(dir, jar.getFileName().toString(), ".tmp");
+    try {
+      try (JarOutputStream stream = new JarOutputStream(Files.newOutputStream(tmp), manifest)) {
+        for (Map.Entry<String,byte[]> e : classes.entrySet()) {
+          stream.putNextEntry(new JarEntry(e.getKey().replace('.', '/') + ".class"));
+          stream.write(e.getValue());
+          stream.closeEntry();
+        }
+      }
+      Files.move(tmp, jar, StandardCopyOption.REPLACE_EXISTING);
+    }
+    finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // the run-time support class's class file
+  private static byte[] runtimeClass() throws MyPLException {
+    try (InputStream in = AOTRuntime.class.getResourceAsStream(RUNTIME + ".class")) {
+      if (in == null)
+        throw MyPLException.StaticError("unable to find " + RUNTIME + ".class");
+      return in.readAllBytes();
+    }
+    catch (IOException e) {
+      throw MyPLException.StaticError("unable to read " + RUNTIME + ".class");
+    }
+  }
+
+  private void error(String msg, Token token) throws MyPLException {
+    String s = msg;
+    if (token != null)
+      s += " near line " + token.line() + ", column " + token.column();
+    throw MyPLException.StaticError(s);
+  }
+
+  private void emit(String line) {
+    if (!line.isEmpty())
+      out.append(" ".repeat(indent));
+    out.append(line).append("\n");
+  }
+
+  // MyPL names are prefixed so they cannot clash with Java keywords
+  // (and a module's "@" becomes "$")
+  private static String javaName(String prefix, String name) {
+    return prefix + name.replace('@', '$');
+  }
+
+  private static String funName(String name) {
+    return javaName("f_", name);
+  }
+
+  private static String className(String type) {
+    return javaName("R_", type);
+  }
+
+  private static String fieldName(String field) {
+    return javaName("v_", field);
+  }
+
+  private static boolean isPrimitive(String type) {
+    return type.equals("int") || type.equals("double") || type.equals("bool");
+  }
+
+  private static boolean isString(String type) {
+    return type.equals("string") || type.equals("char");
+  }
+
+  // the Java type for a MyPL type
+  private static String javaType(String type) {
+    switch (type) {
+      case "int": return "int";
+      case "double": return "double";
+      case "bool": return "boolean";
+      case "char": case "string": return "String";
+      case "void": return "Object";
+      default: return className(type);
+    }
+  }
+
+  // a Java string literal
+  private static String quote(String s) {
+    StringBuilder lit = new StringBuilder("\"");
+    for (char c : s.toCharArray()) {
+      if (c == '"' || c == '\\')
+        lit.append('\\').append(c);
+      else if (c < ' ')
+        lit.append(String.format("\\%03o", (int)c));
+      else
+        lit.append(c);
+    }
+    return lit.append('"').toString();
+  }
+
+  private static String call(String fun, String... args) {
+    return RUNTIME + "." + fun + "(" + String.join(", ", args) + ")";
+  }
+
+  // check a value of the given type can be stored where values of the
+  // target type go
+  private void checkStore(String target, String type, Token token) throws MyPLException {
+    if (type.equals("void") && isPrimitive(target))
+      error("a nil " + target + " cannot be compiled ahead of time", token);
+  }
+
+  private void pushScope() {
+    scopes.push(new HashMap<>());
+  }
+
+  private void popScope() {
+    scopes.pop();
+  }
+
+  // declare a variable in the current scope, returning its Java name
+  // (unique within the function, since Java does not allow a nested
+  // block to redeclare a name)
+  private String declare(String name, String type) {
+    int count = declCounts.merge(name, 1, Integer::sum);
+    String jname = javaName("v_", name) + (count > 1 ? "$" + count : "");
+    scopes.peek().put(name, new Var(jname, type));
+    return jname;
+  }
+
+  private Var lookup(String name) {
+    for (Map<String,Var> scope : scopes)
+      if (scope.containsKey(name))
+        return scope.get(name);
+    return null;
+  }
+
+  // set currCode and currType to the given variable or field path
+  private void genPath(List<Token> path) throws MyPLException {
+    Var var = lookup(path.get(0).lexeme());
+    if (var == null)
+      error("'" + path.get(0).lexeme() + "' is undefined", path.get(0));
+    String code = var.name;
+    String type = var.type;
+    for (Token field : path.subList(1, path.size())) {
+      code += "." + fieldName(field.lexeme());
+      type = typeInfo.get(type, field.lexeme());
+      if (type == null)
+        error("'" + field.lexeme() + "' is not a field", field);
+    }
+    currCode = code;
+    currType = type;
+    constant = false;
+  }
+
+  private void genStmts(List<Stmt> stmts) throws MyPLException {
+    pushScope();
+    indent += 2;
+    for (Stmt stmt : stmts) {
+      stmt.accept(this);
+      if (stmt instanceof CallExpr)
+        emit(currCode + ";");
+    }
+    indent -= 2;
+    popScope();
+  }
+
+  // the code for a binary operation (following the VM, both operands
+  // of "and" and "or" are evaluated)
+  private String genBinary(String lhs, String lhsType, Token op, String rhs,
+                           String rhsType) throws MyPLException {
+    switch (op.lexeme()) {
+      case "+":
+        if (isString(lhsType) || isString(rhsType)) {
+          currType = "string";
+          return call("add", lhs, rhs);
+        }
+        currType = lhsType;
+        return "(" + lhs + " + " + rhs + ")";
+      case "-":
+        currType = lhsType;
+        return call("sub", lhs, rhs);
+      case "*": case "/": case "%":
+        currType = lhsType;
+        return "(" + lhs + " " + op.lexeme() + " " + rhs + ")";
+      case "and":
+        currType = "bool";
+        return "(" + lhs + " & " + rhs + ")";
+      case "or":
+        currType = "bool";
+        return "(" + lhs + " | " + rhs + ")";
+      case "<": case "<=": case ">": case ">=":
+        currType = "bool";
+        if (isString(lhsType))
+          return "(" + lhs + ".compareTo(" + rhs + ") " + op.lexeme() + " 0)";
+        return "(" + lhs + " " + op.lexeme() + " " + rhs + ")";
+      case "==": case "!=": {
+        currType = "bool";
+        boolean eq = op.lexeme().equals("==");
+        if (lhsType.equals("bool") && rhsType.equals("bool"))
+          return call(eq ? "eq" : "ne", lhs, rhs);
+        if (isPrimitive(lhsType) || isPrimitive(rhsType)) {
+          if (lhsType.equals(rhsType))
+            return "(" + lhs + " " + op.lexeme() + " " + rhs + ")";
+          String same = call("same", "(Object)" + lhs, "(Object)" + rhs);
+          return eq ? same : "!" + same;
+        }
+        // strings (as in the VM) and records compare by reference
+        return "(" + lhs + " " + op.lexeme() + " " + rhs + ")";
+      }
+      default:
+        error("unexpected operator '" + op.lexeme() + "'", op);
+        return null;
+    }
+  }
+
+  // the code for a call to a built-in function (or null if the call
+  // is not to a built-in)
+  private String genBuiltIn(String fun, List<String> args) {
+    switch (fun) {
+      case "print":
+        currType = "void";
+        return call("print", args.get(0));
+      case "read":
+        currType = "string";
+        return call("read");
+      case "length": case "stoi": case "dtoi":
+        currType = "int";
+        return call(fun, args.get(0));
+      case "stod": case "itod":
+        currType = "double";
+        return call(fun, args.get(0));
+      case "itos": case "dtos":
+        currType = "string";
+        return call(fun, args.get(0));
+      case "get":
+        currType = "char";
+        return call("get", args.get(0), args.get(1));
+      default:
+        return null;
+    }
+  }
+
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  public void visit(Program node) throws MyPLException {
+    emit("// Generated by mypl --aot");
+    emit("public final class " + MAIN_CLASS + " {");
+    indent += 2;
+    for (TypeDecl tdecl : node.tdecls)
+      tdecl.accept(this);
+    for (FunDecl fdecl : node.fdecls)
+      fdecl.accept(this);
+    emit("");
+    emit("public static void run() {");
+    emit("  " + funName("main") + "();");
+    emit("}");
+    emit("");
+    emit("public static void main(String[] args) {");
+    emit("  try {");
+    emit("    run();");
+    emit("  }");
+    emit("  catch (RuntimeException e) {");
+    emit("    " + call("fail", "e") + ";");
+    emit("  }");
+    emit("}");
+    if (!literals.isEmpty())
+      emit("");
+    for (int i = 0; i < literals.size(); ++i)
+      emit("private static final String s_" + i + " = new String(" + literals.get(i) + ");");
+    indent -= 2;
+    emit("}");
+  }
+
+  public void visit(TypeDecl node) throws MyPLException {
+    String type = node.typeName.lexeme();
+    String cls = className(type);
+    emit("");
+    emit("static final class " + cls + " {");
+    for (VarDeclStmt vdecl : node.vdecls) {
+      String field = vdecl.varName.lexeme();
+      emit("  " + javaType(typeInfo.get(type, field)) + " " + fieldName(field) + ";");
+    }
+    emit("}");
+    // allocate and initialize a record (in field order, as the VM does)
+    emit("");
+    emit("static " + cls + " " + javaName("new_", type) + "() {");
+    indent += 2;
+    emit(cls + " r = new " + cls + "();");
+    scopes.clear();
+    pushScope();
+    for (VarDeclStmt vdecl : node.vdecls) {
+      vdecl.expr.accept(this);
+      checkStore(typeInfo.get(type, vdecl.varName.lexeme()), currType, vdecl.varName);
+      emit("r." + fieldName(vdecl.varName.lexeme()) + " = " + currCode + ";");
+    }
+    popScope();
+    emit("return r;");
+    indent -= 2;
+    emit("}");
+  }
+
+  public void visit(FunDecl node) throws MyPLException {
+    currFun = node;
+    scopes.clear();
+    declCounts.clear();
+    pushScope();
+    String returnType = node.returnType.lexeme();
+    List<String> params = new ArrayList<>();
+    for (FunParam param : node.params) {
+      String type = param.paramType.lexeme();
+      params.add(javaType(type) + " " + declare(param.paramName.lexeme(), type));
+    }
+    emit("");
+    emit("static " + (returnType.equals("void") ? "void" : javaType(returnType)) + " " +
+         funName(node.funName.lexeme()) + "(" + String.join(", ", params) + ") {");
+    genStmts(node.stmts);
+    // a function that runs off its end returns nil (each return is
+    // written as "if (true) return" so that the Java compiler does not
+    // reject the statements that follow it as unreachable)
+    if (!returnType.equals("void")) {
+      if (isPrimitive(returnType))
+        emit("  throw " + call("error", quote("missing return value in " +
+                                               node.funName.lexeme())) + ";");
+      else
+        emit("  return null;");
+    }
+    emit("}");
+    popScope();
+  }
+
+  public void visit(VarDeclStmt node) throws MyPLException {
+    node.expr.accept(this);
+    String type = node.typeName != null ? node.typeName.lexeme() : currType;
+    checkStore(type, currType, node.varName);
+    String code = currCode;
+    emit(javaType(type) + " " + declare(node.varName.lexeme(), type) + " = " + code + ";");
+  }
+
+  public void visit(AssignStmt node) throws MyPLException {
+    node.expr.accept(this);
+    String code = currCode;
+    String type = currType;
+    genPath(node.lvalue);
+    checkStore(currType, type, node.lvalue.get(0));
+    emit(currCode + " = " + code + ";");
+  }
+
+  public void visit(CondStmt node) throws MyPLException {
+    node.ifPart.cond.accept(this);
+    emit("if (" + currCode + ") {");
+    genStmts(node.ifPart.stmts);
+    for (BasicIf elif : node.elifs) {
+      elif.cond.accept(this);
+      emit("}");
+      emit("else if (" + currCode + ") {");
+      genStmts(elif.stmts);
+    }
+    if (node.elseStmts != null) {
+      emit("}");
+      emit("else {");
+      genStmts(node.elseStmts);
+    }
+    emit("}");
+  }
+
+  public void visit(WhileStmt node) throws MyPLException {
+    constant = true;
+    node.cond.accept(this);
+    emit("while (" + (constant ? call("test", currCode) : currCode) + ") {");
+    genStmts(node.stmts);
+    emit("}");
+  }
+
+  public void visit(ForStmt node) throws MyPLException {
+    node.start.accept(this);
+    String start = currCode;
+    pushScope();
+    String var = declare(node.varName.lexeme(), "int");
+    node.end.accept(this);
+    String end = currCode;
+    if (node.upto)
+      emit("for (int " + var + " = " + start + "; " + var + " <= " + end + "; " +
+           var + " = " + var + " + 1) {");
+    else
+      emit("for (int " + var + " = " + start + "; " + var + " >= " + end + "; " +
+           var + " = " + call("sub", var, "1") + ") {");
+    genStmts(node.stmts);
+    emit("}");
+    popScope();
+  }
+
+  public void visit(ReturnStmt node) throws MyPLException {
+    String returnType = currFun.returnType.lexeme();
+    if (returnType.equals("void")) {
+      emit("if (true) return;");
+      return;
+    }
+    if (node.expr == null) {
+      currCode = "null";
+      currType = "void";
+    }
+    else
+      node.expr.accept(this);
+    checkStore(returnType, currType, currFun.returnType);
+    emit("if (true) return " + currCode + ";");
+  }
+
+  public void visit(DeleteStmt node) throws MyPLException {
+    List<Token> path = new ArrayList<>();
+    path.add(node.varName);
+    genPath(path);
+    emit(currCode + " = null;");
+  }
+
+  public void visit(CallExpr node) throws MyPLException {
+    String fun = node.funName.lexeme();
+    List<String> args = new ArrayList<>();
+    List<String> types = new ArrayList<>();
+    for (Expr arg : node.args) {
+      arg.accept(this);
+      args.add(currCode);
+      types.add(currType);
+    }
+    String code = genBuiltIn(fun, args);
+    if (code == null) {
+      List<String> params = new ArrayList<>(typeInfo.components(fun));
+      for (int i = 0; i < args.size(); ++i)
+        checkStore(typeInfo.get(fun, params.get(i)), types.get(i), node.funName);
+      code = funName(fun) + "(" + String.join(", ", args) + ")";
+      currType = typeInfo.get(fun, "return");
+    }
+    currCode = code;
+    constant = false;
+  }
+
+  public void visit(SimpleRValue node) throws MyPLException {
+    String s = node.value.lexeme();
+    switch (node.value.type()) {
+      case INT_VAL:
+        currCode = Integer.toString(Integer.parseInt(s));
+        currType = "int";
+        break;
+      case DOUBLE_VAL:
+        currCode = Double.toString(Double.parseDouble(s));
+        currType = "double";
+        break;
+      case BOOL_VAL:
+        currCode = s.equals("true") ? "true" : "false";
+        currType = "bool";
+        break;
+      case CHAR_VAL: case STRING_VAL:
+        s = s.replace("\\n", "\n");
+        s = s.replace("\\t", "\t");
+        s = s.replace("\\r", "\r");
+        s = s.replace("\\\\", "\\");
+        currCode = "s_" + literals.size();
+        literals.add(quote(s));
+        currType = node.value.type() == TokenType.CHAR_VAL ? "char" : "string";
+        break;
+      default:
+        currCode = "null";
+        currType = "void";
+        break;
+    }
+  }
+
+  public void visit(NewRValue node) throws MyPLException {
+    currCode = javaName("new_", node.typeName.lexeme()) + "()";
+    currType = node.typeName.lexeme();
+    constant = false;
+  }
+
+  public void visit(IDRValue node) throws MyPLException {
+    genPath(node.path);
+  }
+
+  public void visit(NegatedRValue node) throws MyPLException {
+    node.expr.accept(this);
+    currCode = "(-(" + currCode + "))";
+  }
+
+  public void visit(Expr node) throws MyPLException {
+    node.first.accept(this);
+    if (node.rest != null) {
+      String lhs = currCode;
+      String lhsType = currType;
+      node.rest.accept(this);
+      currCode = genBinary(lhs, lhsType, node.op, currCode, currType);
+    }
+    if (node.logicallyNegated) {
+      currCode = "(!" + currCode + ")";
+      currType = "bool";
+    }
+  }
+
+  public void visit(SimpleTerm node) throws MyPLException {
+    node.rvalue.accept(this);
+  }
+
+  public void visit(ComplexTerm node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+}
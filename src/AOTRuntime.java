@@ -0,0 +1,172 @@
+/*
+ * File: AOTRuntime.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: The run-time support for programs compiled ahead of time (see
+ *       AOTCompiler): MyPL's built-in functions, and the operations
+ *       whose VM behavior differs from Java's. Each follows what the
+ *       VM does (subtraction gives the distance between its
+ *       operands, bool values never compare equal, nil prints and
+ *       concatenates as "nil"), so a program prints the same compiled
+ *       as interpreted. This class is copied into each generated JAR,
+ *       so it only uses the Java library.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+
+public class AOTRuntime {
+
+  // standard input (shared by calls to read)
+  private static BufferedReader in = null;
+
+
+  //----------------------------------------------------------------------
+  // Built-in functions
+  //----------------------------------------------------------------------
+
+  public static void print(int value) {
+    System.out.print(value);
+  }
+
+  public static void print(double value) {
+    System.out.print(value);
+  }
+
+  public static void print(boolean value) {
+    System.out.print(value);
+  }
+
+  public static void print(Object value) {
+    System.out.print(value == null ? "nil" : value);
+  }
+
+  public static String read() {
+    try {
+      if (in == null)
+        in = new BufferedReader(new InputStreamReader(System.in));
+      String line = in.readLine();
+      if (line == null)
+        throw error("no input to read");
+      return line;
+    }
+    catch (IOException e) {
+      throw error("unable to read input");
+    }
+  }
+
+  public static int length(String s) {
+    return s.length();
+  }
+
+  public static String get(int index, String s) {
+    if (index >= s.length() || index < 0)
+      throw error("index out of range");
+    return String.valueOf(s.charAt(index));
+  }
+
+  public static int stoi(String s) {
+    try {
+      return Integer.parseInt(s);
+    }
+    catch (NumberFormatException e) {
+      throw error("error converting string to int");
+    }
+  }
+
+  public static double stod(String s) {
+    try {
+      return Double.parseDouble(s);
+    }
+    catch (NumberFormatException e) {
+      throw error("error converting string to double");
+    }
+  }
+
+  public static String itos(int value) {
+    return Integer.toString(value);
+  }
+
+  public static double itod(int value) {
+    return value;
+  }
+
+  public static String dtos(double value) {
+    return Double.toString(value);
+  }
+
+  public static int dtoi(double value) {
+    return (int)value;
+  }
+
+
+  //----------------------------------------------------------------------
+  // Operations
+  //----------------------------------------------------------------------
+
+  public static String add(String x, String y) {
+    return (x == null ? "nil" : x) + (y == null ? "nil" : y);
+  }
+
+  public static int sub(int x, int y) {
+    return x < y ? y - x : x - y;
+  }
+
+  public static double sub(double x, double y) {
+    return x < y ? y - x : x - y;
+  }
+
+  public static boolean eq(boolean x, boolean y) {
+    return false;
+  }
+
+  public static boolean ne(boolean x, boolean y) {
+    return true;
+  }
+
+  // compare a value with nil (or values of different kinds)
+  public static boolean same(Object x, Object y) {
+    return x == y;
+  }
+
+  // a loop condition (so that a constant condition is not treated as
+  // one by the Java compiler)
+  public static boolean test(boolean cond) {
+    return cond;
+  }
+
+
+  //----------------------------------------------------------------------
+  // Errors
+  //----------------------------------------------------------------------
+
+  /**
+   * Returns the run-time error to throw for the given message.
+   */
+  public static RuntimeException error(String message) {
+    return new IllegalStateException("VM_ERROR: " + message);
+  }
+
+  /**
+   * Returns the message reported for an error thrown by a program.
+   */
+  public static String message(RuntimeException e) {
+    if (e instanceof IllegalStateException)
+      return e.getMessage();
+    if (e instanceof NullPointerException)
+      return "VM_ERROR: Nil reference";
+    return "VM_ERROR: " + e;
+  }
+
+  /**
+   * Reports an error thrown by a program and exits.
+   */
+  public static void fail(RuntimeException e) {
+    System.out.flush();
+    System.err.println(message(e));
+    System.exit(1);
+  }
+
+}
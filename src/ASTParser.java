@@ -15,22 +15,64 @@ public class ASTParser {
   private Token currToken = null;
   private final boolean DEBUG = false;
 
+  // the token buffer parsed instead of the lexer's tokens (if any),
+  // the index of its next token, and the index the part parsed ends
+  // at
+  private TokenBuffer buffer = null;
+  private int next = 0;
+  private int end = 0;
+
+  // skip function bodies (parsing each when first visited)
+  private boolean lazyBodies = false;
+
   /** 
    */
   public ASTParser(Lexer lexer) {
     this.lexer = lexer;
   }
 
+  /**
+   * Creates a parser of the tokens in the buffer (see Lexer.tokenize).
+   */
+  public ASTParser(TokenBuffer buffer) {
+    this(buffer, 0, buffer.size());
+  }
+
+  // a parser of part of the buffer (such as a skipped function body)
+  private ASTParser(TokenBuffer buffer, int start, int end) {
+    this.buffer = buffer;
+    this.next = start;
+    this.end = end;
+  }
+
+  /**
+   * Turns lazy parsing of function bodies on or off (off by default).
+   * When on, a function body is only pre-scanned (up to the matching
+   * closing brace, keeping the range of its tokens in the token
+   * buffer), and it is parsed when the function is first visited. A
+   * parser reading from a lexer first lexes the whole input into a
+   * buffer. A syntax error in a body is then reported when the body
+   * is parsed, and not at all for a body that is never visited.
+   */
+  public void setLazyBodies(boolean lazy) {
+    lazyBodies = lazy;
+  }
+
   /**
    */
   public Program parse() throws MyPLException
   {
     // <program> ::= (<tdecl> | <fdecl>)*
     Program progNode = new Program();
+    if (lazyBodies && buffer == null) {
+      buffer = lexer.tokenize();
+      end = buffer.size();
+    }
     advance();
     if(match(TokenType.IMPORT)) {
       advance();
       if(match(TokenType.ID)) {
+        progNode.imports.add(currToken);
         advance();
       }
       else {
@@ -44,6 +86,7 @@ public class ASTParser {
       else if (match(TokenType.IMPORT)) {
         advance();
         if(match(TokenType.ID)) {
+          progNode.imports.add(currToken);
           advance();
         }
         else {
@@ -65,7 +108,43 @@ public class ASTParser {
 
   // get next token
   private void advance() throws MyPLException {
-    currToken = lexer.nextToken();
+    if (buffer == null)
+      currToken = lexer.nextToken();
+    else if (next < end)
+      currToken = buffer.token(next++);
+    else
+      currToken = buffer.endAt(end - 1);
+  }
+
+  // skip a function body, from the current token up to and including
+  // the matching closing brace (matched by the buffered token types,
+  // without making tokens), returning the index just past the brace
+  private int skipBody() throws MyPLException {
+    int i = next - 1;
+    int depth = 1;
+    while (depth > 0) {
+      TokenType type = buffer.type(i);
+      if (type == TokenType.EOS) {
+        currToken = buffer.token(i);
+        error("Expected '}'");
+      }
+      if (type == TokenType.LBRACE)
+        ++depth;
+      else if (type == TokenType.RBRACE)
+        --depth;
+      ++i;
+    }
+    next = i;
+    advance();
+    return i;
+  }
+
+  // parse a skipped function body
+  private List<Stmt> body() throws MyPLException {
+    advance();
+    List<Stmt> stmts = stmts();
+    eat(TokenType.RBRACE, "Expected '}'");
+    return stmts;
   }
 
   // advance if current token is of given type, otherwise error
@@ -172,6 +251,13 @@ public class ASTParser {
     f.params = params();
     eat(TokenType.RPAREN, "Expected ')'");
     eat(TokenType.LBRACE, "Expected '{'");
+    if (lazyBodies) {
+      TokenBuffer tokens = buffer;
+      int start = next - 1;
+      int bodyEnd = skipBody();
+      f.setBodyParser(() -> new ASTParser(tokens, start, bodyEnd).body());
+      return f;
+    }
     f.stmts = stmts();
     eat(TokenType.RBRACE, "Expected '}'");
     return f;
@@ -225,10 +311,18 @@ public class ASTParser {
       Token n = currToken;
       eat(TokenType.ID, "Expected identifier");
       // -- add module case here 
-      // if id is part of a module, then it is a module call
+      // if id is part of a module, then it is a module call,
+      // otherwise it is an assignment to a field path
       if (match(TokenType.DOT)) {
-        CallExpr mc = module_call(n);
-        return mc;
+        List<Token> path = lvalue(n);
+        if (path.size() == 2 && match(TokenType.LPAREN)) {
+          return module_call(n, path.get(1));
+        }
+        AssignStmt stmt = new AssignStmt();
+        stmt.lvalue.addAll(path);
+        eat(TokenType.ASSIGN, "Expected '='");
+        stmt.expr = expr();
+        return stmt;
       }
       // -- add module case here
       if (match(TokenType.LPAREN)) { 
@@ -273,6 +367,15 @@ public class ASTParser {
     return mc;
   }
 
+  // a call of the form module.fun(...), named module@fun (the name
+  // given to imported functions)
+  private CallExpr module_call(Token module, Token fun) throws MyPLException {
+    CallExpr mc = module_call(module);
+    mc.funName = new Token(TokenType.ID, module.lexeme() + "@" + fun.lexeme(),
+                           fun.line(), fun.column());
+    return mc;
+  }
+
   private VarDeclStmt vdecl_stmt() throws MyPLException {
     VarDeclStmt stmt = new VarDeclStmt();
     eat(TokenType.VAR, "Expected 'variable'");
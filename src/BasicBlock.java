@@ -0,0 +1,95 @@
+/*
+ * File: BasicBlock.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: A basic block of the SSA intermediate representation: the
+ *       block's phis, followed by straight-line instructions ending in
+ *       a terminator (JMP, BR, or RET). The block's predecessors are
+ *       kept in the same order as the arguments of its phis.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+public class BasicBlock {
+
+  // number unique within the function
+  private int id;
+
+  private List<IRInstr> phis = new ArrayList<>();
+  private List<IRInstr> instrs = new ArrayList<>();
+  private List<BasicBlock> preds = new ArrayList<>();
+
+
+  public BasicBlock(int id) {
+    this.id = id;
+  }
+
+  public int id() {
+    return id;
+  }
+
+  public String name() {
+    return "b" + id;
+  }
+
+  public List<IRInstr> phis() {
+    return phis;
+  }
+
+  public List<IRInstr> instrs() {
+    return instrs;
+  }
+
+  public List<BasicBlock> preds() {
+    return preds;
+  }
+
+  /**
+   * Returns the block's terminator, or null if the block is not yet
+   * complete.
+   */
+  public IRInstr terminator() {
+    if (instrs.isEmpty())
+      return null;
+    IRInstr last = instrs.get(instrs.size() - 1);
+    return last.op().isTerminator() ? last : null;
+  }
+
+  /**
+   * Returns the blocks the terminator may transfer control to.
+   */
+  public List<BasicBlock> succs() {
+    IRInstr last = terminator();
+    return last == null ? Collections.emptyList() : last.targets();
+  }
+
+  public void add(IRInstr instr) {
+    instr.block = this;
+    instrs.add(instr);
+  }
+
+  public void addPhi(IRInstr phi) {
+    phi.block = this;
+    phis.add(phi);
+  }
+
+  public String toString() {
+    String s = name() + ":";
+    if (!preds.isEmpty()) {
+      List<String> names = new ArrayList<>();
+      for (BasicBlock pred : preds)
+        names.add(pred.name());
+      s += "  ; preds " + String.join(", ", names);
+    }
+    s += "\n";
+    for (IRInstr phi : phis)
+      s += "  " + phi + "\n";
+    for (IRInstr instr : instrs)
+      s += "  " + instr + "\n";
+    return s;
+  }
+
+}
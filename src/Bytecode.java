@@ -0,0 +1,135 @@
+/*
+ * File: Bytecode.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Static helper functions for the optimization passes that
+ *       rewrite VM instruction lists. Jump operands are absolute
+ *       instruction indexes, so any pass that inserts or removes
+ *       instructions must remap every jump target in the frame.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+
+public class Bytecode {
+
+  /**
+   * True if the instruction transfers control to one or more
+   * instruction addresses given by its operand.
+   */
+  public static boolean isJump(VMInstr instr) {
+    OpCode op = instr.opcode();
+    return op == OpCode.JMP || op == OpCode.JMPF || isSwitch(instr);
+  }
+
+  /**
+   * True if the instruction is a TABLESWITCH or LOOKUPSWITCH.
+   */
+  public static boolean isSwitch(VMInstr instr) {
+    OpCode op = instr.opcode();
+    return op == OpCode.TABLESWITCH || op == OpCode.LOOKUPSWITCH;
+  }
+
+  /**
+   * True if control never falls through to the next instruction.
+   */
+  public static boolean endsBlock(VMInstr instr) {
+    OpCode op = instr.opcode();
+    return op == OpCode.JMP || op == OpCode.VRET || isSwitch(instr);
+  }
+
+  /**
+   * Returns the jump addresses of the instruction (empty for
+   * non-jumps).
+   */
+  public static List<Integer> targets(VMInstr instr) {
+    List<Integer> targets = new ArrayList<>();
+    if (instr.opcode() == OpCode.JMP || instr.opcode() == OpCode.JMPF)
+      targets.add((int)instr.operand());
+    else if (isSwitch(instr)) {
+      SwitchTable table = (SwitchTable)instr.operand();
+      targets.addAll(table.cases().values());
+      targets.add(table.defaultTarget());
+    }
+    return targets;
+  }
+
+  /**
+   * Returns, for each instruction, whether it starts a basic block
+   * (the first instruction, jump targets, and instructions following
+   * a jump or return).
+   */
+  public static boolean[] leaders(List<VMInstr> instructions) {
+    boolean[] leaders = new boolean[instructions.size()];
+    if (leaders.length > 0)
+      leaders[0] = true;
+    for (int i = 0; i < instructions.size(); ++i) {
+      VMInstr instr = instructions.get(i);
+      for (int target : targets(instr))
+        if (target >= 0 && target < leaders.length)
+          leaders[target] = true;
+      if ((isJump(instr) || instr.opcode() == OpCode.VRET) && i + 1 < leaders.length)
+        leaders[i + 1] = true;
+    }
+    return leaders;
+  }
+
+  /**
+   * Returns a copy of the instruction with each jump address mapped
+   * through the given function (non-jumps are returned as is).
+   */
+  public static VMInstr retarget(VMInstr instr, IntUnaryOperator map) {
+    if (!isJump(instr))
+      return instr;
+    Object operand = null;
+    if (isSwitch(instr))
+      operand = ((SwitchTable)instr.operand()).remap(map);
+    else
+      operand = map.applyAsInt((int)instr.operand());
+    return copy(instr, operand);
+  }
+
+  /**
+   * Returns a copy of the instruction with its variable address
+   * shifted by the given offset (non LOAD/STORE instructions are
+   * returned as is).
+   */
+  public static VMInstr relocate(VMInstr instr, int offset) {
+    if (instr.opcode() != OpCode.LOAD && instr.opcode() != OpCode.STORE)
+      return instr;
+    return copy(instr, (int)instr.operand() + offset);
+  }
+
+  /**
+   * Returns the number of variable slots (one more than the highest
+   * LOAD/STORE address) used by the given instructions.
+   */
+  public static int localCount(List<VMInstr> instructions) {
+    int count = 0;
+    for (VMInstr instr : instructions)
+      if (instr.opcode() == OpCode.LOAD || instr.opcode() == OpCode.STORE)
+        count = Math.max(count, (int)instr.operand() + 1);
+    return count;
+  }
+
+  /**
+   * Returns the total number of instructions over all frames of the VM.
+   */
+  public static int size(VM vm) {
+    int size = 0;
+    for (VMFrame frame : vm.frames())
+      size += frame.instructions.size();
+    return size;
+  }
+
+  // copy the instruction (and its comment) with a new operand
+  private static VMInstr copy(VMInstr instr, Object operand) {
+    VMInstr newInstr = new VMInstr(instr.opcode(), operand);
+    if (instr.comment() != null)
+      newInstr.addComment(instr.comment());
+    return newInstr;
+  }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * File: CharScanner.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Finds the end of the runs of characters the lexer skips
+ *       (whitespace, comments, and string literals), one character at
+ *       a time. VectorCharScanner does the same many characters at a
+ *       time with the (incubating) Vector API, and is used when it is
+ *       built in (as for the lexer benchmark) and the
+ *       jdk.incubator.vector module is available (see best).
+ */
+
+
+public class CharScanner {
+
+  /**
+   * Returns the vector scanner if it is on the class path and the
+   * jdk.incubator.vector module is available (the JVM was started
+   * with --add-modules jdk.incubator.vector), and otherwise the
+   * scalar scanner.
+   */
+  public static CharScanner best() {
+    try {
+      Class<?> c = Class.forName("VectorCharScanner");
+      return (CharScanner)c.getDeclaredConstructor().newInstance();
+    }
+    catch (ReflectiveOperationException | LinkageError e) {
+      return new CharScanner();
+    }
+  }
+
+  /**
+   * Returns a name for the scanner (for benchmarks).
+   */
+  public String name() {
+    return "scalar";
+  }
+
+  /**
+   * Returns the index of the first character at or after from that is
+   * not ASCII whitespace (as Character.isWhitespace defines it), or
+   * the length of the array if there is none.
+   */
+  public int skipWhitespace(char[] s, int from) {
+    int i = from;
+    while (i < s.length && isWhitespace(s[i]))
+      ++i;
+    return i;
+  }
+
+  /**
+   * Returns the index of the first c at or after from, or the length
+   * of the array if there is none.
+   */
+  public int indexOf(char[] s, int from, char c) {
+    int i = from;
+    while (i < s.length && s[i] != c)
+      ++i;
+    return i;
+  }
+
+  /**
+   * Returns the index of the first a or b at or after from, or the
+   * length of the array if there is none.
+   */
+  public int indexOf(char[] s, int from, char a, char b) {
+    int i = from;
+    while (i < s.length && s[i] != a && s[i] != b)
+      ++i;
+    return i;
+  }
+
+  /**
+   * Returns the number of times c occurs from index from up to (but
+   * not including) index to.
+   */
+  public int count(char[] s, int from, int to, char c) {
+    int n = 0;
+    for (int i = from; i < to; ++i)
+      if (s[i] == c)
+        ++n;
+    return n;
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // true if the character is ASCII whitespace
+  static boolean isWhitespace(char ch) {
+    return ch == ' ' || (ch >= '\t' && ch <= '\r') || (ch >= 0x1c && ch <= 0x1f);
+  }
+
+}
@@ -6,9 +6,13 @@
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 
 public class CodeGenerator implements Visitor {
@@ -34,22 +38,188 @@ public class CodeGenerator implements Visitor {
   // used for checking if a return stmt exists
   private Boolean returnStmt = false;
 
+  // minimum number of if/elif branches for switch lowering
+  private static final int MIN_SWITCH_CASES = 3;
+
+  // lower if-elif chains over int constants to switch instructions
+  private boolean switchLowering = true;
+
+  // replace non-escaping records with one variable per field
+  private boolean scalarReplacement = false;
+
+  // the current function's scalar-replaced record declarations
+  private Set<VarDeclStmt> scalarVars = Collections.emptySet();
+
+  // generate each function's code on first use (instead of up front),
+  // and the rewrite run over each frame's code once generated
+  private boolean lazy = false;
+  private Consumer<VMFrame> framePass = null;
+
 
   //----------------------------------------------------------------------
   // HELPER FUNCTIONS
   //----------------------------------------------------------------------
   
-  // helper function to clean up uneeded NOP instructions
-  private void fixNoOp() {
-    int nextIndex = currFrame.instructions.size();
-    // check if there are any instructions
-    if (nextIndex == 0)
-      return;
-    // get the last instuction added
-    VMInstr instr = currFrame.instructions.get(nextIndex - 1);
-    // check if it is a NOP
-    if (instr.opcode() == OpCode.NOP)
-      currFrame.instructions.remove(nextIndex - 1);
+  // the frame variable holding field path.get(1) of a scalar-replaced
+  // record path.get(0), or null if the path is not over such a record
+  private Integer fieldVar(List<Token> path) {
+    if (path.size() < 2)
+      return null;
+    return varMap.get(path.get(0).lexeme() + "." + path.get(1).lexeme());
+  }
+
+  // initialize one variable per field instead of allocating the
+  // record (the field paths are mapped to the new variables)
+  private void genScalarRecord(VarDeclStmt node) throws MyPLException {
+    NewRValue newRValue = (NewRValue)((SimpleTerm)node.expr.first).rvalue;
+    TypeDecl tdecl = typeDecls.get(newRValue.typeName.lexeme());
+    for (VarDeclStmt vdecl : tdecl.vdecls) {
+      vdecl.expr.accept(this);
+      String field = node.varName.lexeme() + "." + vdecl.varName.lexeme();
+      varMap.put(field, currVarIndex);
+      emit(VMInstr.STORE(currVarIndex));
+      currVarIndex += 1;
+    }
+  }
+
+  // add an instruction to the current frame
+  private void emit(VMInstr instr) {
+    currFrame.instructions.add(instr);
+    currFrame.pc += 1;
+  }
+
+  // generate a statement, dropping the unused value of a call
+  // statement (print already cleans up after itself) so the operand
+  // stack has the same depth each time a loop comes around
+  private void genStmt(Stmt stmt) throws MyPLException {
+    stmt.accept(this);
+    if (stmt instanceof CallExpr &&
+        !((CallExpr)stmt).funName.lexeme().equals("print")) {
+      VMInstr instr = VMInstr.POP();
+      instr.addComment("clean up call return value");
+      emit(instr);
+    }
+  }
+
+  // If the given condition compares a variable against an int
+  // constant with == (in either order), returns the variable and
+  // constant tokens, otherwise returns null.
+  private Token[] switchOperands(Expr cond) {
+    // unwrap redundant parentheses
+    while (!cond.logicallyNegated && cond.op == null &&
+           cond.first instanceof ComplexTerm)
+      cond = ((ComplexTerm)cond.first).expr;
+    if (cond.logicallyNegated || cond.op == null || !cond.op.lexeme().equals("=="))
+      return null;
+    Expr rest = cond.rest;
+    if (rest.logicallyNegated || rest.op != null)
+      return null;
+    if (!(cond.first instanceof SimpleTerm) || !(rest.first instanceof SimpleTerm))
+      return null;
+    RValue lhs = ((SimpleTerm)cond.first).rvalue;
+    RValue rhs = ((SimpleTerm)rest.first).rvalue;
+    if (rhs instanceof IDRValue) {
+      RValue tmp = lhs;
+      lhs = rhs;
+      rhs = tmp;
+    }
+    if (!(lhs instanceof IDRValue) || ((IDRValue)lhs).path.size() != 1)
+      return null;
+    if (!(rhs instanceof SimpleRValue) ||
+        ((SimpleRValue)rhs).value.type() != TokenType.INT_VAL)
+      return null;
+    return new Token[] {((IDRValue)lhs).path.get(0), ((SimpleRValue)rhs).value};
+  }
+
+  // Generates a jump table for an if-elif chain whose conditions all
+  // compare the same local variable against int constants. Returns
+  // false (generating nothing) if the chain does not have this form.
+  // String and char cases are left as compare chains since CMPEQ
+  // compares those by reference.
+  private boolean genSwitch(CondStmt node, List<BasicIf> branches) throws MyPLException {
+    if (branches.size() < MIN_SWITCH_CASES)
+      return false;
+    String varName = null;
+    List<Integer> keys = new ArrayList<>();
+    for (BasicIf branch : branches) {
+      Token[] operands = switchOperands(branch.cond);
+      if (operands == null)
+        return false;
+      String name = operands[0].lexeme();
+      if (!varMap.containsKey(name) || (varName != null && !varName.equals(name)))
+        return false;
+      varName = name;
+      try {
+        keys.add(Integer.parseInt(operands[1].lexeme()));
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+    emit(VMInstr.LOAD(varMap.get(varName)));
+    int switchIndex = currFrame.instructions.size();
+    emit(VMInstr.NOP());
+    // the first branch for a key wins (later duplicates are unreachable)
+    Map<Integer,Integer> cases = new HashMap<>();
+    List<Integer> jmpIndexes = new ArrayList<>();
+    for (int i = 0; i < branches.size(); ++i) {
+      if (cases.containsKey(keys.get(i)))
+        continue;
+      cases.put(keys.get(i), currFrame.instructions.size());
+      for (Stmt stmt : branches.get(i).stmts) {
+        genStmt(stmt);
+      }
+      jmpIndexes.add(currFrame.instructions.size());
+      emit(VMInstr.JMP(-1));
+    }
+    int defaultIndex = currFrame.instructions.size();
+    if (node.elseStmts != null) {
+      for (Stmt stmt : node.elseStmts) {
+        genStmt(stmt);
+      }
+    }
+    int endIndex = currFrame.instructions.size();
+    emit(VMInstr.NOP());
+    for (int i : jmpIndexes) {
+      currFrame.instructions.set(i, VMInstr.JMP(endIndex));
+    }
+    // use a dense table unless more than half of it would be empty
+    int low = Collections.min(cases.keySet());
+    int high = Collections.max(cases.keySet());
+    long range = (long)high - low + 1;
+    if (range <= 2L * cases.size()) {
+      int[] targets = new int[(int)range];
+      Arrays.fill(targets, defaultIndex);
+      for (Map.Entry<Integer,Integer> e : cases.entrySet())
+        targets[e.getKey() - low] = e.getValue();
+      SwitchTable table = SwitchTable.dense(low, targets, defaultIndex);
+      currFrame.instructions.set(switchIndex, VMInstr.TABLESWITCH(table));
+    }
+    else {
+      SwitchTable table = SwitchTable.sparse(cases, defaultIndex);
+      currFrame.instructions.set(switchIndex, VMInstr.LOOKUPSWITCH(table));
+    }
+    return true;
+  }
+
+  // generate the function's code with a generator of its own (so a
+  // lazily generated frame can be generated on any thread, while
+  // another is), and run the frame pass over it
+  private List<VMInstr> generate(FunDecl fdecl) {
+    CodeGenerator generator = new CodeGenerator(typeInfo, new VM());
+    generator.typeDecls = typeDecls;
+    generator.switchLowering = switchLowering;
+    generator.scalarReplacement = scalarReplacement;
+    try {
+      fdecl.accept(generator);
+    }
+    catch (MyPLException e) {
+      // code generation reports no errors (the checker has)
+      throw new IllegalStateException(e);
+    }
+    VMFrame frame = generator.currFrame;
+    if (framePass != null)
+      framePass.accept(frame);
+    return frame.instructions;
   }
 
   private void fixCallStmt(Stmt s) {
@@ -58,6 +228,7 @@ public class CodeGenerator implements Visitor {
       VMInstr instr = VMInstr.POP();
       instr.addComment("clean up call return value");
       currFrame.instructions.add(instr);
+      currFrame.pc++;
     }
 
   }
@@ -71,6 +242,40 @@ public class CodeGenerator implements Visitor {
     this.vm = vm;
   }
 
+  /**
+   * Turn on/off lowering of if-elif chains that compare one variable
+   * against int constants into TABLESWITCH/LOOKUPSWITCH instructions.
+   * @param lower set to false to generate compare chains (by default true)
+   */
+  public void setSwitchLowering(boolean lower) {
+    switchLowering = lower;
+  }
+
+  /**
+   * Turns scalar replacement of non-escaping records on or off (off
+   * by default).
+   * @param replace true to replace non-escaping records
+   */
+  public void setScalarReplacement(boolean replace) {
+    scalarReplacement = replace;
+  }
+
+  /**
+   * Turns lazy code generation on or off (off by default). When on,
+   * each function gets a stub frame whose code is generated when the
+   * frame is first decoded: by the VM on the first CALL of the
+   * function, or by anything asking for all of the VM's frames (such
+   * as a bytecode pass). Functions a run never calls are never
+   * generated.
+   * @param lazy true to generate code on first use
+   * @param framePass a rewrite of each frame's code once generated (or
+   *                  null for none)
+   */
+  public void setLazy(boolean lazy, Consumer<VMFrame> framePass) {
+    this.lazy = lazy;
+    this.framePass = framePass;
+  }
+
   
   //----------------------------------------------------------------------
   // VISITOR FUNCTIONS
@@ -84,8 +289,15 @@ public class CodeGenerator implements Visitor {
       typeDecls.put(tdecl.typeName.lexeme(), tdecl);
     }
     // only need to translate the function declarations
-    for (FunDecl fdecl : node.fdecls)
-      fdecl.accept(this);
+    for (FunDecl fdecl : node.fdecls) {
+      if (lazy) {
+        VMFrame stub = new VMFrame(fdecl.funName.lexeme(), fdecl.params.size());
+        stub.setDecoder(() -> generate(fdecl));
+        vm.add(stub);
+      }
+      else
+        fdecl.accept(this);
+    }
   }
 
   public void visit(TypeDecl node) throws MyPLException {
@@ -98,6 +310,9 @@ public class CodeGenerator implements Visitor {
     vm.add(currFrame);
     currVarIndex = 0;
     varMap = new HashMap<>();
+    scalarVars = Collections.emptySet();
+    if (scalarReplacement)
+      scalarVars = new EscapeAnalysis(typeDecls).nonEscaping(node);
 
     for (FunParam param : node.params) {
       varMap.put(param.paramName.lexeme(), currVarIndex);
@@ -108,7 +323,7 @@ public class CodeGenerator implements Visitor {
   
     if (node.stmts.size() > 0) {
       for (Stmt stmt : node.stmts) {
-        stmt.accept(this);
+        genStmt(stmt);
       }
 
       if (!(node.stmts.get(node.stmts.size() - 1) instanceof ReturnStmt)) {
@@ -128,6 +343,10 @@ public class CodeGenerator implements Visitor {
   
   public void visit(VarDeclStmt node) throws MyPLException {
     // TODO
+    if (scalarVars.contains(node)) {
+      genScalarRecord(node);
+      return;
+    }
     node.expr.accept(this); 
     varMap.put(node.varName.lexeme(), currVarIndex);
     currVarIndex += 1;
@@ -138,10 +357,20 @@ public class CodeGenerator implements Visitor {
   public void visit(AssignStmt node) throws MyPLException {
     // TODO
     node.expr.accept(this);
-    if (node.lvalue.size() >= 2) {
-      currFrame.instructions.add(VMInstr.LOAD(varMap.get(node.lvalue.get(0).lexeme())));
-      currFrame.pc += 1;
-      for (int i = 1; i < node.lvalue.size() - 1; ++i) {
+    Integer field = fieldVar(node.lvalue);
+    if (field != null && node.lvalue.size() == 2) {
+      emit(VMInstr.STORE(field));
+    }
+    else if (node.lvalue.size() >= 2) {
+      int first = 1;
+      if (field != null) {
+        emit(VMInstr.LOAD(field));
+        first = 2;
+      }
+      else {
+        emit(VMInstr.LOAD(varMap.get(node.lvalue.get(0).lexeme())));
+      }
+      for (int i = first; i < node.lvalue.size() - 1; ++i) {
         currFrame.instructions.add(VMInstr.GETFLD(node.lvalue.get(i).lexeme())); 
         currFrame.pc += 1;
       }
@@ -156,36 +385,36 @@ public class CodeGenerator implements Visitor {
   }
   
   public void visit(CondStmt node) throws MyPLException {
-    // TODO
-    List<Integer> jmpfIndexes = new ArrayList<>(); 
-    node.ifPart.cond.accept(this);
-    int index = currFrame.instructions.size();
-    currFrame.instructions.add(VMInstr.JMPF(-1));
-    currFrame.pc += 1;
-    for (Stmt stmt : node.ifPart.stmts) {
-      stmt.accept(this);
-    }
-    if (node.elifs.size() > 0) {
-      for (BasicIf elifStmt : node.elifs) {
-        elifStmt.cond.accept(this);
-        jmpfIndexes.add(currFrame.instructions.size());
-        currFrame.instructions.add(VMInstr.JMPF(-1));
-        currFrame.pc += 1;
-        for (Stmt stmt : elifStmt.stmts) {
-          stmt.accept(this);
-        }
+    List<BasicIf> branches = new ArrayList<>();
+    branches.add(node.ifPart);
+    branches.addAll(node.elifs);
+    if (switchLowering && genSwitch(node, branches))
+      return;
+    // each branch jumps past the remaining branches when it finishes
+    List<Integer> jmpIndexes = new ArrayList<>();
+    for (int i = 0; i < branches.size(); ++i) {
+      BasicIf branch = branches.get(i);
+      branch.cond.accept(this);
+      int jmpfIndex = currFrame.instructions.size();
+      emit(VMInstr.JMPF(-1));
+      for (Stmt stmt : branch.stmts) {
+        genStmt(stmt);
       }
+      if (i < branches.size() - 1 || node.elseStmts != null) {
+        jmpIndexes.add(currFrame.instructions.size());
+        emit(VMInstr.JMP(-1));
+      }
+      currFrame.instructions.set(jmpfIndex, VMInstr.JMPF(currFrame.instructions.size()));
     }
-    if(node.elseStmts != null) {
+    if (node.elseStmts != null) {
       for (Stmt stmt : node.elseStmts) {
-        stmt.accept(this);
+        genStmt(stmt);
       }
     }
-    currFrame.instructions.add(VMInstr.NOP());
-    currFrame.pc++;
-    currFrame.instructions.set(index, VMInstr.JMPF(currFrame.pc - 1));
-    for (int i : jmpfIndexes) {
-      currFrame.instructions.set(i, VMInstr.JMPF(currFrame.pc - 1));
+    int endIndex = currFrame.instructions.size();
+    emit(VMInstr.NOP());
+    for (int i : jmpIndexes) {
+      currFrame.instructions.set(i, VMInstr.JMP(endIndex));
     }
   }
 
@@ -197,7 +426,7 @@ public class CodeGenerator implements Visitor {
     currFrame.instructions.add(VMInstr.JMPF(-1));
     currFrame.pc++;
     for (Stmt stmt : node.stmts) {
-      stmt.accept(this);
+      genStmt(stmt);
     }
     currFrame.instructions.add(VMInstr.JMP(startIndex));
     currFrame.pc++;
@@ -236,7 +465,7 @@ public class CodeGenerator implements Visitor {
     currFrame.pc++;
     if(node.stmts != null) {
       for (Stmt stmt : node.stmts) {
-        stmt.accept(this);
+        genStmt(stmt);
       }
     }
     currFrame.instructions.add(VMInstr.LOAD(c));
@@ -334,9 +563,10 @@ public class CodeGenerator implements Visitor {
       currFrame.pc++;
     }
     // user-defined functions
-    else
+    else {
       currFrame.instructions.add(VMInstr.CALL(node.funName.lexeme()));
       currFrame.pc++;
+    }
   }
   
   public void visit(SimpleRValue node) throws MyPLException {
@@ -407,9 +637,16 @@ public class CodeGenerator implements Visitor {
 
   public void visit(IDRValue node) throws MyPLException {
     // TODO
-    currFrame.instructions.add(VMInstr.LOAD(varMap.get(node.path.get(0).lexeme())));
-    currFrame.pc += 1;
-    for (Token i : node.path.subList(1, node.path.size())) {
+    Integer field = fieldVar(node.path);
+    int first = 1;
+    if (field != null) {
+      emit(VMInstr.LOAD(field));
+      first = 2;
+    }
+    else {
+      emit(VMInstr.LOAD(varMap.get(node.path.get(0).lexeme())));
+    }
+    for (Token i : node.path.subList(first, node.path.size())) {
       if(VMInstr.GETFLD(i.lexeme()) != null) {
       currFrame.instructions.add(VMInstr.GETFLD(i.lexeme()));
       currFrame.pc += 1;
@@ -0,0 +1,320 @@
+/*
+ * File: CompileCache.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: On-disk cache of compiled programs, so rerunning an unchanged
+ *       script skips the front end (lexing, parsing, checking, and
+ *       code generation). An entry is a compiled (.myplc) file named
+ *       by a SHA-256 hash of everything the compiled code depends on:
+ *       the source of the script and of each module it imports, the
+ *       passes run, the file format version, and the compiler itself
+ *       (a hash of its class files, so a rebuilt or upgraded mypl
+ *       does not run code an older one generated). A changed source
+ *       therefore gets a new entry rather than a stale one.
+ *
+ *       Entries are written to a temporary file and renamed into
+ *       place, so concurrent runs never see a partial entry (and two
+ *       runs writing one entry write the same bytes). Each hit updates
+ *       the entry's modification time, and once the cache grows past
+ *       its size bound the least recently used entries are deleted.
+ *       Cache errors never fail a run: an entry that cannot be read
+ *       or written is treated as a miss. Reading an entry checks its
+ *       checksum and all of its code (see CompiledFile.read) before it
+ *       is used, and a damaged entry is deleted, so the next run
+ *       compiles the script again rather than failing part way.
+ *
+ *       An entry for a separately compiled module (see ModuleCompiler)
+ *       also has an interface summary (a .mypli file beside its
+ *       code), which is written first and evicted with it.
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+
+public class CompileCache {
+
+  /**
+   * The default bound on the cache's total size (in bytes).
+   */
+  public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+  // the environment variable naming the cache directory
+  private static final String DIR_VARIABLE = "MYPL_CACHE_DIR";
+
+  // the extension of a module entry's interface summary
+  private static final String SUMMARY_EXTENSION = ".mypli";
+
+  // age after which a temporary file is from a failed write
+  private static final Duration STALE_TEMP = Duration.ofHours(1);
+
+  // a hash of the compiler's class files (found on first use)
+  private static String implementation = null;
+
+  // the cache directory and its size bound (in bytes)
+  private Path dir;
+  private long maxSize;
+
+
+  public CompileCache(Path dir, long maxSize) {
+    this.dir = dir;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Returns the cache in the directory named by MYPL_CACHE_DIR (or
+   * else ~/.cache/mypl) with the default size bound.
+   */
+  public static CompileCache defaultCache() {
+    String dir = System.getenv(DIR_VARIABLE);
+    Path path = dir != null ? Paths.get(dir) :
+      Paths.get(System.getProperty("user.home"), ".cache", "mypl");
+    return new CompileCache(path, DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Returns the cache key for compiled code.
+   * @param config how the code is compiled (such as the passes run)
+   * @param sources the source of the script and of each module it
+   *                imports, in import order
+   */
+  public static String key(String config, List<byte[]> sources) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      update(digest, ("myplc " + CompiledFile.VERSION + "\n" + implementation() + "\n" + config)
+             .getBytes(StandardCharsets.UTF_8));
+      for (byte[] source : sources)
+        update(digest, source);
+      return hex(digest.digest());
+    }
+    catch (NoSuchAlgorithmException e) {
+      // every Java platform provides SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns a hash identifying the compiler: of the JAR it was loaded
+   * from, or of the class files in its class directory (or "unknown"
+   * if neither can be read).
+   */
+  public static synchronized String implementation() {
+    if (implementation == null) {
+      try {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        Path location = Paths.get(CompileCache.class.getProtectionDomain()
+                                  .getCodeSource().getLocation().toURI());
+        List<Path> files = new ArrayList<>();
+        if (Files.isDirectory(location)) {
+          try (Stream<Path> paths = Files.walk(location)) {
+            paths.filter(p -> p.toString().endsWith(".class")).sorted().forEach(files::add);
+          }
+        }
+        else
+          files.add(location);
+        for (Path file : files)
+          update(digest, Files.readAllBytes(file));
+        implementation = hex(digest.digest());
+      }
+      catch (Exception e) {
+        // no code source (or an unreadable one)
+        implementation = "unknown";
+      }
+    }
+    return implementation;
+  }
+
+  /**
+   * Returns the program cached under the key (or null if there is no
+   * usable entry).
+   */
+  public VM get(String key) {
+    Path entry = entry(key);
+    VM vm;
+    try {
+      vm = CompiledFile.read(entry, true);
+    }
+    catch (NoSuchFileException e) {
+      return null;
+    }
+    catch (IOException | MyPLException e) {
+      // a damaged entry (deleted, so the script is compiled again)
+      try {
+        Files.deleteIfExists(entry);
+        Files.deleteIfExists(summaryOf(entry));
+      }
+      catch (IOException deleteError) {
+        // the next put replaces it
+      }
+      return null;
+    }
+    try {
+      Files.setLastModifiedTime(entry, FileTime.from(Instant.now()));
+    }
+    catch (IOException e) {
+      // still a hit (e.g., another user's entry in a shared cache),
+      // though it may be evicted sooner
+    }
+    return vm;
+  }
+
+  /**
+   * Caches the program under the key, then evicts the least recently
+   * used entries if the cache is over its size bound.
+   */
+  public void put(String key, VM vm) {
+    try {
+      Files.createDirectories(dir);
+      CompiledFile.write(vm, entry(key));
+      evict();
+    }
+    catch (IOException e) {
+      // caching is best effort
+    }
+  }
+
+  /**
+   * Returns the interface summary of the module cached under the key
+   * (or null if there is no usable entry).
+   */
+  public String summary(String key) {
+    try {
+      return new String(Files.readAllBytes(summaryFile(key)), StandardCharsets.UTF_8);
+    }
+    catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Caches a separately compiled module under the key: its code, and
+   * the interface summary its importers are compiled against.
+   */
+  public void putModule(String key, VM vm, String summary) {
+    try {
+      Files.createDirectories(dir);
+      CompiledFile.writeAtomically(summaryFile(key), summary.getBytes(StandardCharsets.UTF_8));
+    }
+    catch (IOException e) {
+      // caching is best effort
+      return;
+    }
+    put(key, vm);
+  }
+
+  /**
+   * Returns the cache's entries, least recently used first.
+   */
+  public List<Path> entries() throws IOException {
+    List<Path> entries = new ArrayList<>();
+    if (!Files.isDirectory(dir))
+      return entries;
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + CompiledFile.EXTENSION)) {
+      for (Path entry : stream)
+        entries.add(entry);
+    }
+    // read each time once (a concurrent hit may change it mid-sort)
+    Map<Path,FileTime> times = new HashMap<>();
+    for (Path entry : entries)
+      times.put(entry, lastUsed(entry));
+    entries.sort(Comparator.comparing(times::get));
+    return entries;
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  private Path entry(String key) {
+    return dir.resolve(key + CompiledFile.EXTENSION);
+  }
+
+  private Path summaryFile(String key) {
+    return dir.resolve(key + SUMMARY_EXTENSION);
+  }
+
+  // the summary file beside an entry
+  private static Path summaryOf(Path entry) {
+    String name = entry.getFileName().toString();
+    return entry.resolveSibling(name.substring(0, name.length() - CompiledFile.EXTENSION.length()) +
+                                SUMMARY_EXTENSION);
+  }
+
+  // the size of a file (or 0 if it does not exist)
+  private static long size(Path file) throws IOException {
+    try {
+      return Files.readAttributes(file, BasicFileAttributes.class).size();
+    }
+    catch (NoSuchFileException e) {
+      return 0;
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder s = new StringBuilder();
+    for (byte b : bytes)
+      s.append(String.format("%02x", b));
+    return s.toString();
+  }
+
+  // add the bytes to the digest, prefixed by their length (so that
+  // moving bytes from one source to the next changes the key)
+  private static void update(MessageDigest digest, byte[] bytes) {
+    for (int shift = 24; shift >= 0; shift -= 8)
+      digest.update((byte)(bytes.length >>> shift));
+    digest.update(bytes);
+  }
+
+  // an entry's modification time (or the epoch if it was just removed)
+  private static FileTime lastUsed(Path entry) {
+    try {
+      return Files.getLastModifiedTime(entry);
+    }
+    catch (IOException e) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  // delete least recently used entries until the cache fits its bound
+  // (entries another run removes first are skipped), and temporary
+  // files left by runs that failed mid-write
+  private void evict() throws IOException {
+    FileTime stale = FileTime.from(Instant.now().minus(STALE_TEMP));
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.tmp")) {
+      for (Path tmp : stream)
+        if (lastUsed(tmp).compareTo(stale) < 0)
+          Files.deleteIfExists(tmp);
+    }
+    List<Path> entries = entries();
+    long[] sizes = new long[entries.size()];
+    long total = 0;
+    for (int i = 0; i < entries.size(); ++i) {
+      sizes[i] = size(entries.get(i)) + size(summaryOf(entries.get(i)));
+      total += sizes[i];
+    }
+    for (int i = 0; i < entries.size() && total > maxSize; ++i) {
+      Files.deleteIfExists(entries.get(i));
+      Files.deleteIfExists(summaryOf(entries.get(i)));
+      total -= sizes[i];
+    }
+  }
+
+}
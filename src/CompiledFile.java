@@ -0,0 +1,533 @@
+/*
+ * File: CompiledFile.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Reads and writes compiled programs (.myplc files), so a
+ *       script can be run without lexing, parsing, checking, or
+ *       generating code again. A file holds:
+ *
+ *         header     "MYPC", format version (u2), and the length
+ *                    (u4) and CRC-32 checksum (u4) of the rest of
+ *                    the file
+ *         constants  count, then each constant's tag and value
+ *         functions  count, then each function's name (a constant),
+ *                    argument count, instruction count, and the
+ *                    offset and length of its code
+ *         code       each function's instructions
+ *
+ *       Counts and indexes are unsigned LEB128 varints. An
+ *       instruction is its opcode (one byte) followed by 0 if it has
+ *       no operand, or else by 1 + the constant pool index of its
+ *       operand. Constants are ints, doubles, bools, strings, nil,
+ *       record layouts (the field names of an ALLOC), and switch
+ *       tables; jump addresses and variable indexes are int constants.
+ *       String constants are shared only by instructions that shared
+ *       the string, since the VM compares strings by reference.
+ *
+ *       A file is read by memory-mapping it: the constants and the
+ *       function table are decoded up front, and each function's code
+ *       when the VM first calls the function (see VMFrame.decode), so
+ *       only the pages of the code that runs are read. The code is
+ *       checked as it is decoded (each opcode exists, each operand is
+ *       a pool index of the kind of constant the opcode takes, and the
+ *       instruction count is right), so damaged code is reported as an
+ *       error when its function is called. A reader that must know
+ *       the whole file is intact before running any of it (such as
+ *       the compile cache) can instead have the checksum and every
+ *       function's code checked when the file is read.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+
+public class CompiledFile {
+
+  /**
+   * The file extension of compiled programs.
+   */
+  public static final String EXTENSION = ".myplc";
+
+  /**
+   * The format version (changed whenever the format changes).
+   */
+  public static final int VERSION = 2;
+
+  // the first bytes of a compiled file ("MYPC")
+  private static final int MAGIC = 0x4D595043;
+
+  // constant tags
+  private static final int INT = 1;
+  private static final int DOUBLE = 2;
+  private static final int BOOL = 3;
+  private static final int STRING = 4;
+  private static final int NIL = 5;
+  private static final int LAYOUT = 6;
+  private static final int TABLE = 7;
+  private static final int LOOKUP = 8;
+
+  private static final OpCode[] OPCODES = OpCode.values();
+
+  // the constant tags of the operands each opcode takes (see
+  // operandTags)
+  private static final int[] OPERANDS = operandTags();
+
+  // the constant pool being written: the constants in order, and the
+  // index of each (strings by reference, other constants by value)
+  private List<Object> constants = new ArrayList<>();
+  private Map<Object,Integer> indexes = new HashMap<>();
+  private Map<Object,Integer> stringIndexes = new IdentityHashMap<>();
+
+  // the switch tables of TABLESWITCH instructions
+  private Set<SwitchTable> denseTables = Collections.newSetFromMap(new IdentityHashMap<>());
+
+
+  private CompiledFile() {
+  }
+
+  /**
+   * Returns true if the file name names a compiled program.
+   */
+  public static boolean isCompiled(String fileName) {
+    return fileName.endsWith(EXTENSION);
+  }
+
+  /**
+   * Writes the VM's program to the given file (replacing it if it
+   * exists). Quickened instructions are written in their generic form.
+   * @param vm the VM holding the program's frames
+   * @param file the file to write
+   */
+  public static void write(VM vm, Path file) throws IOException {
+    CompiledFile writer = new CompiledFile();
+    List<VMFrame> frames = new ArrayList<>(vm.frames());
+    // encode the code first (which fills in the constant pool)
+    ByteArrayOutputStream code = new ByteArrayOutputStream();
+    int[] offsets = new int[frames.size()];
+    int[] lengths = new int[frames.size()];
+    int[] names = new int[frames.size()];
+    for (int i = 0; i < frames.size(); ++i) {
+      VMFrame frame = frames.get(i);
+      names[i] = writer.constant(frame.functionName());
+      offsets[i] = code.size();
+      for (VMInstr instr : frame.instructions) {
+        if (instr.generic() != null)
+          instr = instr.generic();
+        if (instr.opcode() == OpCode.TABLESWITCH)
+          writer.denseTables.add((SwitchTable)instr.operand());
+        code.write(instr.opcode().ordinal());
+        writeVarint(code, instr.operand() == null ? 0 :
+                    1 + writer.operand(instr.operand()));
+      }
+      lengths[i] = code.size() - offsets[i];
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    writeVarint(out, writer.constants.size());
+    for (Object value : writer.constants)
+      writer.writeConstant(out, value);
+    writeVarint(out, frames.size());
+    for (int i = 0; i < frames.size(); ++i) {
+      VMFrame frame = frames.get(i);
+      writeVarint(out, names[i]);
+      writeVarint(out, frame.argCount());
+      writeVarint(out, frame.instructions.size());
+      writeVarint(out, offsets[i]);
+      writeVarint(out, lengths[i]);
+    }
+    code.writeTo(out);
+    out.flush();
+    byte[] body = bytes.toByteArray();
+    CRC32 checksum = new CRC32();
+    checksum.update(body);
+    ByteArrayOutputStream fileBytes = new ByteArrayOutputStream();
+    DataOutputStream header = new DataOutputStream(fileBytes);
+    header.writeInt(MAGIC);
+    header.writeShort(VERSION);
+    header.writeInt(body.length);
+    header.writeInt((int)checksum.getValue());
+    header.write(body);
+    header.flush();
+    writeAtomically(file, fileBytes.toByteArray());
+  }
+
+  /**
+   * Writes the bytes alongside the file and then renames them into
+   * place, so a failed write does not leave a partial file (and a
+   * concurrent reader sees the old file or the new one).
+   */
+  static void writeAtomically(Path file, byte[] bytes) throws IOException {
+    Path dir = file.toAbsolutePath().getParent();
+    Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+    try {
+      Files.write(tmp, bytes);
+      try {
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Reads a compiled program into a new VM. Each function's code is
+   * checked and decoded when the function is first called.
+   * @param file the compiled file
+   * @return the VM holding the program
+   */
+  public static VM read(Path file) throws IOException, MyPLException {
+    return read(file, false);
+  }
+
+  /**
+   * Reads a compiled program into a new VM. Each function's code is
+   * decoded when the function is first called.
+   * @param file the compiled file
+   * @param check true if the checksum and every function's code are
+   *              checked now (reading the whole file), rather than
+   *              each function's code when it is decoded
+   * @return the VM holding the program
+   */
+  public static VM read(Path file, boolean check) throws IOException, MyPLException {
+    ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    try {
+      if (buffer.getInt() != MAGIC)
+        throw error(file, "not a compiled MyPL program");
+      if (buffer.getShort() != VERSION)
+        throw error(file, "unsupported format version");
+      int length = buffer.getInt();
+      int expected = buffer.getInt();
+      if (length != buffer.remaining())
+        throw error(file, length > buffer.remaining() ? "file is truncated" : "file is corrupt");
+      if (check) {
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.duplicate());
+        if ((int)checksum.getValue() != expected)
+          throw error(file, "file is corrupt");
+      }
+      Object[] constants = new Object[readVarint(buffer)];
+      byte[] tags = new byte[constants.length];
+      for (int i = 0; i < constants.length; ++i) {
+        tags[i] = buffer.get(buffer.position());
+        constants[i] = readConstant(buffer);
+      }
+      // a layout's fields are string constants
+      for (Object value : constants)
+        if (value instanceof int[])
+          for (int field : (int[])value)
+            if (tags[field] != STRING)
+              throw error(file, "file is corrupt");
+      VM vm = new VM();
+      int count = readVarint(buffer);
+      int[] offsets = new int[count];
+      VMFrame[] frames = new VMFrame[count];
+      int[] sizes = new int[count];
+      int[] lengths = new int[count];
+      for (int i = 0; i < count; ++i) {
+        String name = (String)constants[readVarint(buffer)];
+        frames[i] = new VMFrame(name, readVarint(buffer));
+        sizes[i] = readVarint(buffer);
+        offsets[i] = readVarint(buffer);
+        lengths[i] = readVarint(buffer);
+      }
+      int codeStart = buffer.position();
+      for (int i = 0; i < count; ++i) {
+        if (offsets[i] < 0 || lengths[i] < 0)
+          throw error(file, "file is corrupt");
+        if (codeStart + offsets[i] + lengths[i] > buffer.limit())
+          throw error(file, "code of '" + frames[i].functionName() + "' is truncated");
+        int size = sizes[i];
+        ByteBuffer code = buffer.duplicate();
+        code.position(codeStart + offsets[i]);
+        code.limit(codeStart + offsets[i] + lengths[i]);
+        if (check && !valid(code, size, tags))
+          throw error(file, "file is corrupt");
+        frames[i].setDecoder(() -> {
+            // reported as an error by VM.load
+            if (!check && !valid(code, size, tags))
+              throw new IllegalStateException(error(file, "file is corrupt"));
+            return decode(code, size, constants);
+          });
+        vm.add(frames[i]);
+      }
+      return vm;
+    }
+    catch (BufferUnderflowException | ClassCastException | IndexOutOfBoundsException |
+           NegativeArraySizeException e) {
+      throw error(file, "file is corrupt");
+    }
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  private static MyPLException error(Path file, String msg) {
+    return MyPLException.VMError("unable to load '" + file + "': " + msg);
+  }
+
+  // the pool index of a constant, adding it if it is new
+  private int constant(Object value) {
+    Map<Object,Integer> index = value instanceof String ? stringIndexes : indexes;
+    Integer i = index.get(value);
+    if (i == null) {
+      i = constants.size();
+      constants.add(value);
+      index.put(value, i);
+    }
+    return i;
+  }
+
+  // the pool index of an instruction operand (a layout's field names
+  // are themselves constants)
+  private int operand(Object value) {
+    if (value instanceof List) {
+      List<Integer> fields = new ArrayList<>();
+      for (Object field : (List<?>)value)
+        fields.add(constant(field));
+      return constant(new Layout(fields));
+    }
+    return constant(value);
+  }
+
+  // the field names of an ALLOC, by pool index
+  private static class Layout {
+    List<Integer> fields;
+
+    Layout(List<Integer> fields) {
+      this.fields = fields;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Layout && fields.equals(((Layout)other).fields);
+    }
+
+    @Override
+    public int hashCode() {
+      return fields.hashCode();
+    }
+  }
+
+  private void writeConstant(DataOutputStream out, Object value) throws IOException {
+    if (value instanceof Integer) {
+      out.writeByte(INT);
+      out.writeInt((Integer)value);
+    }
+    else if (value instanceof Double) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double)value);
+    }
+    else if (value instanceof Boolean) {
+      out.writeByte(BOOL);
+      out.writeByte((Boolean)value ? 1 : 0);
+    }
+    else if (value == VM.NIL_OBJ)
+      out.writeByte(NIL);
+    else if (value instanceof String) {
+      byte[] utf8 = ((String)value).getBytes(StandardCharsets.UTF_8);
+      out.writeByte(STRING);
+      writeVarint(out, utf8.length);
+      out.write(utf8);
+    }
+    else if (value instanceof Layout) {
+      List<Integer> fields = ((Layout)value).fields;
+      out.writeByte(LAYOUT);
+      writeVarint(out, fields.size());
+      for (int field : fields)
+        writeVarint(out, field);
+    }
+    else if (value instanceof SwitchTable) {
+      SwitchTable table = (SwitchTable)value;
+      Map<Integer,Integer> cases = table.cases();
+      out.writeByte(denseTables.contains(table) ? TABLE : LOOKUP);
+      out.writeInt(table.defaultTarget());
+      writeVarint(out, cases.size());
+      for (Map.Entry<Integer,Integer> e : cases.entrySet()) {
+        out.writeInt(e.getKey());
+        out.writeInt(e.getValue());
+      }
+    }
+    else
+      throw new IOException("unable to write operand '" + value + "'");
+  }
+
+  private static Object readConstant(ByteBuffer in) throws MyPLException {
+    int tag = in.get();
+    switch (tag) {
+      case INT:
+        return in.getInt();
+      case DOUBLE:
+        return in.getDouble();
+      case BOOL:
+        return in.get() != 0;
+      case NIL:
+        return VM.NIL_OBJ;
+      case STRING: {
+        byte[] utf8 = new byte[readVarint(in)];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+      }
+      case LAYOUT: {
+        int[] fields = new int[readVarint(in)];
+        for (int i = 0; i < fields.length; ++i)
+          fields[i] = readVarint(in);
+        return fields;
+      }
+      case TABLE: case LOOKUP: {
+        int defaultTarget = in.getInt();
+        TreeMap<Integer,Integer> cases = new TreeMap<>();
+        int count = readVarint(in);
+        for (int i = 0; i < count; ++i)
+          cases.put(in.getInt(), in.getInt());
+        if (tag == LOOKUP)
+          return SwitchTable.sparse(cases, defaultTarget);
+        // a dense table covers its lowest to highest case
+        if (cases.isEmpty())
+          return SwitchTable.dense(0, new int[0], defaultTarget);
+        int low = cases.firstKey();
+        int[] targets = new int[cases.lastKey() - low + 1];
+        Arrays.fill(targets, defaultTarget);
+        for (Map.Entry<Integer,Integer> e : cases.entrySet())
+          targets[e.getKey() - low] = e.getValue();
+        return SwitchTable.dense(low, targets, defaultTarget);
+      }
+      default:
+        throw MyPLException.VMError("unknown constant tag " + tag);
+    }
+  }
+
+  // true if the code (from its position to its limit) is the given
+  // number of instructions, each with an opcode that exists and an
+  // operand of the kind it takes
+  private static boolean valid(ByteBuffer code, int size, byte[] tags) {
+    int count = 0;
+    int i = code.position();
+    int end = code.limit();
+    while (i < end) {
+      int op = code.get(i++) & 0xFF;
+      if (op >= OPERANDS.length || i == end)
+        return false;
+      // the operand (a varint)
+      int operand = 0;
+      for (int shift = 0; ; shift += 7) {
+        if (i == end || shift > 28)
+          return false;
+        byte b = code.get(i++);
+        operand |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0)
+          break;
+      }
+      if (operand < 0 || operand > tags.length)
+        return false;
+      int tag = operand == 0 ? 0 : tags[operand - 1];
+      if ((OPERANDS[op] & (1 << tag)) == 0)
+        return false;
+      ++count;
+    }
+    return count == size;
+  }
+
+  // the operands each opcode takes, as a bit per constant tag (bit 0
+  // for no operand)
+  private static int[] operandTags() {
+    int[] operands = new int[OPCODES.length];
+    for (OpCode opcode : OPCODES) {
+      int tags;
+      switch (opcode) {
+        case PUSH:
+          tags = 1 << INT | 1 << DOUBLE | 1 << BOOL | 1 << STRING | 1 << NIL;
+          break;
+        case LOAD: case STORE: case JMP: case JMPF:
+          tags = 1 << INT;
+          break;
+        case TABLESWITCH: case LOOKUPSWITCH:
+          tags = 1 << TABLE | 1 << LOOKUP;
+          break;
+        case CALL: case SETFLD: case GETFLD:
+          tags = 1 << STRING;
+          break;
+        case ALLOC:
+          tags = 1 << LAYOUT;
+          break;
+        default:
+          tags = 1;
+          break;
+      }
+      operands[opcode.ordinal()] = tags;
+    }
+    return operands;
+  }
+
+  // decode a function's (checked) instructions
+  private static List<VMInstr> decode(ByteBuffer code, int size, Object[] constants) {
+    ByteBuffer in = code.duplicate();
+    List<VMInstr> instructions = new ArrayList<>(size);
+    while (in.hasRemaining()) {
+      OpCode opcode = OPCODES[in.get() & 0xFF];
+      int operand = readVarint(in);
+      if (operand == 0) {
+        instructions.add(new VMInstr(opcode));
+        continue;
+      }
+      Object value = constants[operand - 1];
+      if (value instanceof int[]) {
+        // a layout: the ALLOC gets its own list of field names
+        List<String> fields = new ArrayList<>();
+        for (int field : (int[])value)
+          fields.add((String)constants[field]);
+        value = fields;
+      }
+      instructions.add(new VMInstr(opcode, value));
+    }
+    return instructions;
+  }
+
+  private static void writeVarint(OutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static int readVarint(ByteBuffer in) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = in.get();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+  }
+
+}
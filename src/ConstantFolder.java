@@ -0,0 +1,403 @@
+/*
+ * File: ConstantFolder.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: AST optimization pass run between the static checker and the
+ *       code generator. Folds constant arithmetic, comparisons,
+ *       boolean operators, and negation; propagates int, double, and
+ *       bool locals that are defined exactly once from a constant; and
+ *       prunes if/elif/else branches and while loops whose conditions
+ *       are statically known. Folding follows the VM's semantics, so
+ *       expressions the VM evaluates unusually (e.g., == over strings
+ *       and bools, which compares references) are left for run time.
+ *       For the same reason string concatenation is not folded: each
+ *       run of a concatenation builds a new string, which a folded
+ *       literal (one object per occurrence) would not.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class ConstantFolder implements Visitor {
+
+  // the literal value of the last visited expression, or null if the
+  // expression is not a constant
+  private Token currConst = null;
+
+  // number of definitions (params, var decls, assignments, for
+  // variables) of each variable name in the current function
+  private Map<String,Integer> defCounts = new HashMap<>();
+
+  // variables known to hold a constant value
+  private Map<String,Token> constVars = new HashMap<>();
+
+  // number of expressions and statements simplified
+  private int foldCount = 0;
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  /**
+   * Returns the number of expressions and statements simplified.
+   */
+  public int foldCount() {
+    return foldCount;
+  }
+
+  // true if the token is an int, double, or bool literal
+  private static boolean isScalar(Token t) {
+    return t != null && (t.type() == TokenType.INT_VAL ||
+                         t.type() == TokenType.DOUBLE_VAL ||
+                         t.type() == TokenType.BOOL_VAL);
+  }
+
+  private static boolean isType(Token t, TokenType type) {
+    return t != null && t.type() == type;
+  }
+
+  private static Token intToken(int val, Token pos) {
+    return new Token(TokenType.INT_VAL, Integer.toString(val), pos.line(), pos.column());
+  }
+
+  private static Token boolToken(boolean val, Token pos) {
+    return new Token(TokenType.BOOL_VAL, Boolean.toString(val), pos.line(), pos.column());
+  }
+
+  // returns null for results that have no literal form
+  private static Token doubleToken(double val, Token pos) {
+    if (Double.isNaN(val) || Double.isInfinite(val))
+      return null;
+    return new Token(TokenType.DOUBLE_VAL, Double.toString(val), pos.line(), pos.column());
+  }
+
+  // compare two numeric literals of the same type
+  private static int compare(Token y, Token x) {
+    if (y.type() == TokenType.INT_VAL)
+      return Integer.compare(Integer.parseInt(y.lexeme()), Integer.parseInt(x.lexeme()));
+    return Double.compare(Double.parseDouble(y.lexeme()), Double.parseDouble(x.lexeme()));
+  }
+
+  // Evaluate (y op x) over two literals. Returns null if the result
+  // cannot be (or should not be) computed at compile time.
+  private static Token fold(Token y, Token op, Token x) {
+    String o = op.lexeme();
+    boolean ints = isType(y, TokenType.INT_VAL) && isType(x, TokenType.INT_VAL);
+    boolean dbls = isType(y, TokenType.DOUBLE_VAL) && isType(x, TokenType.DOUBLE_VAL);
+    boolean bools = isType(y, TokenType.BOOL_VAL) && isType(x, TokenType.BOOL_VAL);
+    if (ints) {
+      int a = Integer.parseInt(y.lexeme());
+      int b = Integer.parseInt(x.lexeme());
+      if (o.equals("+"))
+        return intToken(a + b, op);
+      // the VM's SUB yields |a - b|, so only fold when both agree
+      if (o.equals("-") && a >= b)
+        return intToken(a - b, op);
+      if (o.equals("*"))
+        return intToken(a * b, op);
+      if (o.equals("/") && b != 0)
+        return intToken(a / b, op);
+      if (o.equals("%") && b != 0)
+        return intToken(a % b, op);
+    }
+    if (dbls) {
+      double a = Double.parseDouble(y.lexeme());
+      double b = Double.parseDouble(x.lexeme());
+      if (o.equals("+"))
+        return doubleToken(a + b, op);
+      if (o.equals("-") && a >= b)
+        return doubleToken(a - b, op);
+      if (o.equals("*"))
+        return doubleToken(a * b, op);
+      if (o.equals("/") && b != 0)
+        return doubleToken(a / b, op);
+    }
+    if (ints || dbls) {
+      int c = compare(y, x);
+      if (o.equals("<"))
+        return boolToken(c < 0, op);
+      if (o.equals("<="))
+        return boolToken(c <= 0, op);
+      if (o.equals(">"))
+        return boolToken(c > 0, op);
+      if (o.equals(">="))
+        return boolToken(c >= 0, op);
+      if (o.equals("=="))
+        return boolToken(c == 0, op);
+      if (o.equals("!="))
+        return boolToken(c != 0, op);
+    }
+    if (bools) {
+      boolean a = Boolean.parseBoolean(y.lexeme());
+      boolean b = Boolean.parseBoolean(x.lexeme());
+      if (o.equals("and"))
+        return boolToken(a && b, op);
+      if (o.equals("or"))
+        return boolToken(a || b, op);
+    }
+    return null;
+  }
+
+  // replace the expression with the given literal
+  private void replace(Expr node, Token literal) {
+    SimpleRValue rvalue = new SimpleRValue();
+    rvalue.value = literal;
+    SimpleTerm term = new SimpleTerm();
+    term.rvalue = rvalue;
+    node.first = term;
+    node.op = null;
+    node.rest = null;
+    node.logicallyNegated = false;
+  }
+
+  // returns the literal value of the given condition (or null)
+  private Token condValue(Expr cond) throws MyPLException {
+    cond.accept(this);
+    return isType(currConst, TokenType.BOOL_VAL) ? currConst : null;
+  }
+
+  // fold each statement, splicing in the remaining statements of
+  // branches and loops whose conditions are statically known
+  private List<Stmt> foldStmts(List<Stmt> stmts) throws MyPLException {
+    List<Stmt> result = new ArrayList<>();
+    for (Stmt stmt : stmts) {
+      if (stmt instanceof CondStmt)
+        foldCond((CondStmt)stmt, result);
+      else if (stmt instanceof WhileStmt) {
+        WhileStmt w = (WhileStmt)stmt;
+        Token cond = condValue(w.cond);
+        if (cond != null && cond.lexeme().equals("false")) {
+          ++foldCount;
+          continue;
+        }
+        w.stmts = foldStmts(w.stmts);
+        result.add(w);
+      }
+      else {
+        stmt.accept(this);
+        result.add(stmt);
+      }
+    }
+    return result;
+  }
+
+  // fold a conditional statement, adding what remains of it to result
+  private void foldCond(CondStmt node, List<Stmt> result) throws MyPLException {
+    List<BasicIf> branches = new ArrayList<>();
+    branches.add(node.ifPart);
+    branches.addAll(node.elifs);
+    List<BasicIf> kept = new ArrayList<>();
+    List<Stmt> elseStmts = node.elseStmts;
+    for (BasicIf branch : branches) {
+      Token cond = condValue(branch.cond);
+      branch.stmts = foldStmts(branch.stmts);
+      if (cond == null)
+        kept.add(branch);
+      else if (cond.lexeme().equals("true")) {
+        // this branch always runs if reached, so it becomes the else
+        ++foldCount;
+        elseStmts = branch.stmts;
+        break;
+      }
+      else
+        ++foldCount;
+    }
+    if (elseStmts != null && elseStmts == node.elseStmts)
+      elseStmts = foldStmts(elseStmts);
+    if (kept.isEmpty()) {
+      if (elseStmts != null)
+        result.addAll(elseStmts);
+      return;
+    }
+    node.ifPart = kept.get(0);
+    node.elifs = new ArrayList<>(kept.subList(1, kept.size()));
+    node.elseStmts = elseStmts;
+    result.add(node);
+  }
+
+  // count the definitions of each variable in the statements
+  private void countDefs(List<Stmt> stmts) {
+    for (Stmt stmt : stmts) {
+      if (stmt instanceof VarDeclStmt)
+        addDef(((VarDeclStmt)stmt).varName);
+      else if (stmt instanceof AssignStmt) {
+        AssignStmt a = (AssignStmt)stmt;
+        if (a.lvalue.size() == 1)
+          addDef(a.lvalue.get(0));
+      }
+      else if (stmt instanceof CondStmt) {
+        CondStmt c = (CondStmt)stmt;
+        countDefs(c.ifPart.stmts);
+        for (BasicIf elif : c.elifs)
+          countDefs(elif.stmts);
+        if (c.elseStmts != null)
+          countDefs(c.elseStmts);
+      }
+      else if (stmt instanceof WhileStmt)
+        countDefs(((WhileStmt)stmt).stmts);
+      else if (stmt instanceof ForStmt) {
+        addDef(((ForStmt)stmt).varName);
+        countDefs(((ForStmt)stmt).stmts);
+      }
+    }
+  }
+
+  private void addDef(Token name) {
+    defCounts.merge(name.lexeme(), 1, Integer::sum);
+  }
+
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  public void visit(Program node) throws MyPLException {
+    for (TypeDecl tdecl : node.tdecls)
+      tdecl.accept(this);
+    for (FunDecl fdecl : node.fdecls)
+      fdecl.accept(this);
+  }
+
+  public void visit(TypeDecl node) throws MyPLException {
+    // field initializers are folded, but never propagated
+    defCounts = new HashMap<>();
+    constVars = new HashMap<>();
+    for (VarDeclStmt vdecl : node.vdecls)
+      vdecl.expr.accept(this);
+  }
+
+  public void visit(FunDecl node) throws MyPLException {
+    defCounts = new HashMap<>();
+    constVars = new HashMap<>();
+    for (FunParam param : node.params)
+      addDef(param.paramName);
+    countDefs(node.stmts);
+    node.stmts = foldStmts(node.stmts);
+  }
+
+  public void visit(VarDeclStmt node) throws MyPLException {
+    node.expr.accept(this);
+    String name = node.varName.lexeme();
+    if (isScalar(currConst) && defCounts.getOrDefault(name, 0) == 1)
+      constVars.put(name, currConst);
+    currConst = null;
+  }
+
+  public void visit(AssignStmt node) throws MyPLException {
+    node.expr.accept(this);
+    currConst = null;
+  }
+
+  public void visit(CondStmt node) throws MyPLException {
+    // branches are only pruned from within a statement list (see
+    // foldStmts), here the conditions and bodies are just folded
+    node.ifPart.cond.accept(this);
+    node.ifPart.stmts = foldStmts(node.ifPart.stmts);
+    for (BasicIf elif : node.elifs) {
+      elif.cond.accept(this);
+      elif.stmts = foldStmts(elif.stmts);
+    }
+    if (node.elseStmts != null)
+      node.elseStmts = foldStmts(node.elseStmts);
+    currConst = null;
+  }
+
+  public void visit(WhileStmt node) throws MyPLException {
+    node.cond.accept(this);
+    node.stmts = foldStmts(node.stmts);
+    currConst = null;
+  }
+
+  public void visit(ForStmt node) throws MyPLException {
+    node.start.accept(this);
+    node.end.accept(this);
+    node.stmts = foldStmts(node.stmts);
+    currConst = null;
+  }
+
+  public void visit(ReturnStmt node) throws MyPLException {
+    if (node.expr != null)
+      node.expr.accept(this);
+    currConst = null;
+  }
+
+  public void visit(DeleteStmt node) throws MyPLException {
+    currConst = null;
+  }
+
+  public void visit(CallExpr node) throws MyPLException {
+    for (Expr arg : node.args)
+      arg.accept(this);
+    currConst = null;
+  }
+
+  public void visit(SimpleRValue node) throws MyPLException {
+    TokenType type = node.value.type();
+    if (type == TokenType.NIL)
+      currConst = null;
+    else
+      currConst = node.value;
+  }
+
+  public void visit(NewRValue node) throws MyPLException {
+    currConst = null;
+  }
+
+  public void visit(IDRValue node) throws MyPLException {
+    currConst = null;
+    if (node.path.size() == 1)
+      currConst = constVars.get(node.path.get(0).lexeme());
+  }
+
+  public void visit(NegatedRValue node) throws MyPLException {
+    node.expr.accept(this);
+    Token val = currConst;
+    currConst = null;
+    if (isType(val, TokenType.INT_VAL))
+      currConst = intToken(-Integer.parseInt(val.lexeme()), val);
+    else if (isType(val, TokenType.DOUBLE_VAL))
+      currConst = doubleToken(-Double.parseDouble(val.lexeme()), val);
+  }
+
+  public void visit(Expr node) throws MyPLException {
+    node.first.accept(this);
+    Token val = currConst;
+    if (node.rest != null) {
+      node.rest.accept(this);
+      Token rest = currConst;
+      val = (val != null && rest != null) ? fold(val, node.op, rest) : null;
+    }
+    if (node.logicallyNegated) {
+      if (isType(val, TokenType.BOOL_VAL))
+        val = boolToken(!Boolean.parseBoolean(val.lexeme()), val);
+      else
+        val = null;
+    }
+    if (val != null && (node.rest != null || node.logicallyNegated ||
+                        !(node.first instanceof SimpleTerm))) {
+      replace(node, val);
+      ++foldCount;
+    }
+    currConst = val;
+  }
+
+  public void visit(SimpleTerm node) throws MyPLException {
+    node.rvalue.accept(this);
+    // replace propagated variables and negated constants by literals
+    if (currConst != null && !(node.rvalue instanceof SimpleRValue)) {
+      SimpleRValue rvalue = new SimpleRValue();
+      rvalue.value = currConst;
+      node.rvalue = rvalue;
+      ++foldCount;
+    }
+  }
+
+  public void visit(ComplexTerm node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+}
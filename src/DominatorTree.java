@@ -0,0 +1,157 @@
+/*
+ * File: DominatorTree.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: The dominator tree of an SSA function's control-flow graph.
+ *       Block a dominates block b if every path from the entry block
+ *       to b goes through a. Immediate dominators are computed with
+ *       the iterative algorithm of Cooper, Harvey, and Kennedy ("A
+ *       Simple, Fast Dominance Algorithm"), which also gives each
+ *       block's dominance frontier: the blocks where a's dominance
+ *       ends, which is where values defined in a may need phis.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class DominatorTree {
+
+  // the reachable blocks in reverse postorder
+  private List<BasicBlock> order;
+
+  // each block's position in order
+  private Map<BasicBlock,Integer> index = new HashMap<>();
+
+  // each block's immediate dominator (the entry block's is itself)
+  private Map<BasicBlock,BasicBlock> idom = new HashMap<>();
+
+  private Map<BasicBlock,List<BasicBlock>> children = new HashMap<>();
+  private Map<BasicBlock,Set<BasicBlock>> frontiers = new HashMap<>();
+
+
+  /**
+   * Computes the dominator tree of the function's reachable blocks.
+   */
+  public DominatorTree(IRFunction function) {
+    order = function.reversePostorder();
+    for (int i = 0; i < order.size(); ++i) {
+      BasicBlock block = order.get(i);
+      index.put(block, i);
+      children.put(block, new ArrayList<>());
+      frontiers.put(block, new HashSet<>());
+    }
+    computeIdoms();
+    for (BasicBlock block : order.subList(1, order.size()))
+      children.get(idom.get(block)).add(block);
+    computeFrontiers();
+  }
+
+  /**
+   * Returns the block's immediate dominator (null for the entry block).
+   */
+  public BasicBlock idom(BasicBlock block) {
+    BasicBlock parent = idom.get(block);
+    return parent == block ? null : parent;
+  }
+
+  /**
+   * Returns the blocks the given block immediately dominates.
+   */
+  public List<BasicBlock> children(BasicBlock block) {
+    return children.get(block);
+  }
+
+  /**
+   * Returns the block's dominance frontier: the blocks with a
+   * predecessor the block dominates, that the block does not strictly
+   * dominate.
+   */
+  public Set<BasicBlock> frontier(BasicBlock block) {
+    return frontiers.get(block);
+  }
+
+  /**
+   * True if every path from the entry to b goes through a (so a block
+   * dominates itself).
+   */
+  public boolean dominates(BasicBlock a, BasicBlock b) {
+    while (b != null && b != a)
+      b = idom(b);
+    return b == a;
+  }
+
+  /**
+   * Returns the blocks in dominator tree preorder (each block before
+   * the blocks it dominates).
+   */
+  public List<BasicBlock> preorder() {
+    List<BasicBlock> result = new ArrayList<>();
+    List<BasicBlock> work = new ArrayList<>();
+    work.add(order.get(0));
+    while (!work.isEmpty()) {
+      BasicBlock block = work.remove(work.size() - 1);
+      result.add(block);
+      List<BasicBlock> kids = children.get(block);
+      for (int i = kids.size() - 1; i >= 0; --i)
+        work.add(kids.get(i));
+    }
+    return result;
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  private void computeIdoms() {
+    BasicBlock entry = order.get(0);
+    idom.put(entry, entry);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (BasicBlock block : order.subList(1, order.size())) {
+        BasicBlock newIdom = null;
+        for (BasicBlock pred : block.preds()) {
+          if (!idom.containsKey(pred))
+            continue;
+          newIdom = newIdom == null ? pred : intersect(pred, newIdom);
+        }
+        if (newIdom != idom.get(block)) {
+          idom.put(block, newIdom);
+          changed = true;
+        }
+      }
+    }
+  }
+
+  // the nearest common dominator of the two blocks
+  private BasicBlock intersect(BasicBlock a, BasicBlock b) {
+    while (a != b) {
+      while (index.get(a) > index.get(b))
+        a = idom.get(a);
+      while (index.get(b) > index.get(a))
+        b = idom.get(b);
+    }
+    return a;
+  }
+
+  private void computeFrontiers() {
+    for (BasicBlock block : order) {
+      if (block.preds().size() < 2)
+        continue;
+      for (BasicBlock pred : block.preds()) {
+        BasicBlock runner = pred;
+        while (index.containsKey(runner) && runner != idom.get(block)) {
+          frontiers.get(runner).add(block);
+          runner = idom.get(runner);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * File: EscapeAnalysis.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Finds the record variables of a function whose object never
+ *       escapes the function. A variable qualifies if it is declared
+ *       once as `var p = new T` and is otherwise only used through
+ *       field paths (p.x, p.x = e, p.x.y). Any other use of the
+ *       variable itself (passing it to a call, returning it, storing
+ *       it in a field or another variable, comparing it, reassigning
+ *       it, or deleting it) may let the object escape. The code
+ *       generator replaces each such object with one local variable
+ *       per field (scalar replacement), so no heap object is created.
+ */
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+public class EscapeAnalysis implements Visitor {
+
+  // the user-defined types (by name)
+  private Map<String,TypeDecl> typeDecls;
+
+  // record variables initialized to a new object (by name)
+  private Map<String,VarDeclStmt> candidates = new HashMap<>();
+
+  // variables that are declared more than once, are parameters, or
+  // whose object may escape
+  private Set<String> escaped = new HashSet<>();
+
+
+  /**
+   * Creates an analysis for functions of a program with the given
+   * user-defined types.
+   */
+  public EscapeAnalysis(Map<String,TypeDecl> typeDecls) {
+    this.typeDecls = typeDecls;
+  }
+
+  /**
+   * Returns the declarations of the function's non-escaping record
+   * variables.
+   * @param fdecl the function to analyze
+   */
+  public Set<VarDeclStmt> nonEscaping(FunDecl fdecl) throws MyPLException {
+    candidates.clear();
+    escaped.clear();
+    fdecl.accept(this);
+    Set<VarDeclStmt> result = new HashSet<>();
+    for (String name : candidates.keySet())
+      if (!escaped.contains(name))
+        result.add(candidates.get(name));
+    return result;
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // the new expression of `new T` (with T a known type), or null
+  private NewRValue newRecord(Expr expr) {
+    if (expr == null || expr.logicallyNegated || expr.op != null ||
+        !(expr.first instanceof SimpleTerm))
+      return null;
+    RValue rvalue = ((SimpleTerm)expr.first).rvalue;
+    if (!(rvalue instanceof NewRValue))
+      return null;
+    NewRValue newRValue = (NewRValue)rvalue;
+    return typeDecls.containsKey(newRValue.typeName.lexeme()) ? newRValue : null;
+  }
+
+  private void visitStmts(Iterable<Stmt> stmts) throws MyPLException {
+    for (Stmt stmt : stmts)
+      stmt.accept(this);
+  }
+
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  public void visit(Program node) throws MyPLException {
+    for (FunDecl fdecl : node.fdecls)
+      fdecl.accept(this);
+  }
+
+  public void visit(TypeDecl node) throws MyPLException {
+    // field defaults are not part of a function body
+  }
+
+  public void visit(FunDecl node) throws MyPLException {
+    for (FunParam param : node.params)
+      escaped.add(param.paramName.lexeme());
+    visitStmts(node.stmts);
+  }
+
+  public void visit(VarDeclStmt node) throws MyPLException {
+    node.expr.accept(this);
+    String name = node.varName.lexeme();
+    if (candidates.containsKey(name))
+      escaped.add(name);
+    else if (newRecord(node.expr) != null)
+      candidates.put(name, node);
+    else
+      escaped.add(name);
+  }
+
+  public void visit(AssignStmt node) throws MyPLException {
+    node.expr.accept(this);
+    if (node.lvalue.size() == 1)
+      escaped.add(node.lvalue.get(0).lexeme());
+  }
+
+  public void visit(CondStmt node) throws MyPLException {
+    node.ifPart.cond.accept(this);
+    visitStmts(node.ifPart.stmts);
+    for (BasicIf elif : node.elifs) {
+      elif.cond.accept(this);
+      visitStmts(elif.stmts);
+    }
+    if (node.elseStmts != null)
+      visitStmts(node.elseStmts);
+  }
+
+  public void visit(WhileStmt node) throws MyPLException {
+    node.cond.accept(this);
+    visitStmts(node.stmts);
+  }
+
+  public void visit(ForStmt node) throws MyPLException {
+    escaped.add(node.varName.lexeme());
+    node.start.accept(this);
+    node.end.accept(this);
+    visitStmts(node.stmts);
+  }
+
+  public void visit(ReturnStmt node) throws MyPLException {
+    if (node.expr != null)
+      node.expr.accept(this);
+  }
+
+  public void visit(DeleteStmt node) throws MyPLException {
+    escaped.add(node.varName.lexeme());
+  }
+
+  public void visit(CallExpr node) throws MyPLException {
+    for (Expr arg : node.args)
+      arg.accept(this);
+  }
+
+  public void visit(SimpleRValue node) throws MyPLException {
+    // nothing to do here
+  }
+
+  public void visit(NewRValue node) throws MyPLException {
+    // nothing to do here
+  }
+
+  public void visit(IDRValue node) throws MyPLException {
+    // only field accesses keep the object local
+    if (node.path.size() == 1)
+      escaped.add(node.path.get(0).lexeme());
+  }
+
+  public void visit(NegatedRValue node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+  public void visit(Expr node) throws MyPLException {
+    node.first.accept(this);
+    if (node.rest != null)
+      node.rest.accept(this);
+  }
+
+  public void visit(SimpleTerm node) throws MyPLException {
+    node.rvalue.accept(this);
+  }
+
+  public void visit(ComplexTerm node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+}
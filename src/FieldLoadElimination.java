@@ -0,0 +1,189 @@
+/*
+ * File: FieldLoadElimination.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Bytecode optimization pass that removes repeated field loads
+ *       using local value numbering within basic blocks. A path such
+ *       as a.b.c is generated as LOAD a, GETFLD b, GETFLD c. When the
+ *       same path, a prefix of it (a.b), or a path extending it
+ *       (a.b.c.d) is loaded again in the block, and no STORE to a,
+ *       SETFLD, FREE, or CALL (which may change the objects) came in
+ *       between, the shared prefix's value is kept in a new variable
+ *       (DUP, STORE) and later loads start from it. Values are only
+ *       kept if enough GETFLDs are saved to pay for the extra DUP and
+ *       STORE.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class FieldLoadElimination {
+
+  // fewest GETFLDs a kept value must save
+  private static final int MIN_SAVINGS = 2;
+
+  // number of GETFLD instructions removed
+  private int eliminatedCount = 0;
+
+  // a LOAD followed by one or more GETFLDs
+  private static class Chain {
+    int var;
+    List<String> fields = new ArrayList<>();
+    // the earlier chain with the longest shared prefix (or null), and
+    // the number of fields shared
+    Chain reuse = null;
+    int reuseLength = 0;
+    // GETFLDs saved by later chains reusing each prefix (by length)
+    Map<Integer,Integer> savings = new HashMap<>();
+    // variables holding kept prefix values (by prefix length)
+    Map<Integer,Integer> slots = new HashMap<>();
+
+    int length() {
+      return 1 + fields.size();
+    }
+
+    String key(int fieldCount) {
+      String key = "" + var;
+      for (int i = 0; i < fieldCount; ++i)
+        key += "." + fields.get(i);
+      return key;
+    }
+  }
+
+
+  /**
+   * Returns the number of GETFLD instructions removed.
+   */
+  public int eliminatedCount() {
+    return eliminatedCount;
+  }
+
+  /**
+   * Removes repeated field loads in each frame of the given VM.
+   * @param vm the VM whose frames are rewritten
+   */
+  public void optimize(VM vm) {
+    for (VMFrame frame : vm.frames())
+      optimize(frame);
+  }
+
+  /**
+   * Removes repeated field loads in the given frame.
+   */
+  public void optimize(VMFrame frame) {
+    List<VMInstr> code = frame.instructions;
+    boolean[] leaders = Bytecode.leaders(code);
+    Map<Integer,Chain> chains = findChains(code, leaders);
+    // give each prefix value worth keeping a new variable
+    int nextSlot = Bytecode.localCount(code);
+    for (Chain chain : chains.values())
+      for (Map.Entry<Integer,Integer> e : chain.savings.entrySet())
+        if (e.getValue() >= MIN_SAVINGS)
+          chain.slots.put(e.getKey(), nextSlot++);
+    if (nextSlot > Bytecode.localCount(code))
+      rewrite(frame, chains);
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // find the chains (by start address), linking each chain to the
+  // earlier chain in its block it shares the longest prefix with
+  private Map<Integer,Chain> findChains(List<VMInstr> code, boolean[] leaders) {
+    Map<Integer,Chain> chains = new HashMap<>();
+    // the first chain (in the block) loading each prefix
+    Map<String,Chain> available = new HashMap<>();
+    int i = 0;
+    while (i < code.size()) {
+      if (leaders[i])
+        available.clear();
+      VMInstr instr = code.get(i);
+      OpCode op = instr.opcode();
+      Chain chain = chainAt(code, leaders, i);
+      if (chain != null) {
+        chains.put(i, chain);
+        for (int n = chain.fields.size(); n > 0 && chain.reuse == null; --n) {
+          Chain prev = available.get(chain.key(n));
+          if (prev != null) {
+            chain.reuse = prev;
+            chain.reuseLength = n;
+            prev.savings.merge(n, n, Integer::sum);
+          }
+        }
+        for (int n = 1; n <= chain.fields.size(); ++n)
+          available.putIfAbsent(chain.key(n), chain);
+        i += chain.length();
+        continue;
+      }
+      if (op == OpCode.STORE) {
+        String prefix = instr.operand() + ".";
+        available.keySet().removeIf(key -> key.startsWith(prefix));
+      }
+      else if (op == OpCode.SETFLD || op == OpCode.FREE || op == OpCode.CALL)
+        available.clear();
+      ++i;
+    }
+    return chains;
+  }
+
+  // the chain starting at the address (within its block), or null
+  private Chain chainAt(List<VMInstr> code, boolean[] leaders, int addr) {
+    if (code.get(addr).opcode() != OpCode.LOAD)
+      return null;
+    Chain chain = new Chain();
+    chain.var = (int)code.get(addr).operand();
+    int i = addr + 1;
+    while (i < code.size() && !leaders[i] && code.get(i).opcode() == OpCode.GETFLD) {
+      chain.fields.add((String)code.get(i).operand());
+      ++i;
+    }
+    return chain.fields.isEmpty() ? null : chain;
+  }
+
+  // replace reused loads and keep values, remapping jumps
+  private void rewrite(VMFrame frame, Map<Integer,Chain> chains) {
+    List<VMInstr> code = frame.instructions;
+    List<VMInstr> result = new ArrayList<>();
+    int[] newAddr = new int[code.size() + 1];
+    int i = 0;
+    while (i < code.size()) {
+      newAddr[i] = result.size();
+      Chain chain = chains.get(i);
+      if (chain == null) {
+        result.add(code.get(i));
+        ++i;
+        continue;
+      }
+      // start from the longest kept prefix of the earlier chain
+      int first = chain.reuseLength;
+      while (first > 0 && !chain.reuse.slots.containsKey(first))
+        --first;
+      if (first > 0) {
+        result.add(VMInstr.LOAD(chain.reuse.slots.get(first)));
+        eliminatedCount += first;
+      }
+      else
+        result.add(code.get(i));
+      for (int j = first; j < chain.fields.size(); ++j) {
+        result.add(code.get(i + 1 + j));
+        if (chain.slots.containsKey(j + 1)) {
+          result.add(VMInstr.DUP());
+          result.add(VMInstr.STORE(chain.slots.get(j + 1)));
+        }
+      }
+      for (int j = 1; j < chain.length(); ++j)
+        newAddr[i + j] = newAddr[i];
+      i += chain.length();
+    }
+    newAddr[code.size()] = result.size();
+    for (int j = 0; j < result.size(); ++j)
+      result.set(j, Bytecode.retarget(result.get(j), addr -> newAddr[addr]));
+    frame.instructions = result;
+  }
+
+}
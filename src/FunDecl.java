@@ -15,9 +15,50 @@ public class FunDecl implements ASTNode {
   public Token funName = null;
   public List<FunParam> params = new ArrayList<>();
   public List<Stmt> stmts = new ArrayList<>();
-  
+
+  /**
+   * Parses a function body the parser skipped (see
+   * ASTParser.setLazyBodies).
+   */
+  public interface BodyParser {
+    List<Stmt> parse() throws MyPLException;
+  }
+
+  // for a function whose body was skipped, parses the body (null once
+  // parsed, see parseBody)
+  private BodyParser bodyParser = null;
+
+  /**
+   * Sets the function's body to be parsed (by the given parser) when
+   * first visited, instead of up front.
+   */
+  public void setBodyParser(BodyParser bodyParser) {
+    this.bodyParser = bodyParser;
+  }
+
+  /**
+   * Returns the parser of the function's skipped body, or null if the
+   * body has been parsed.
+   */
+  public BodyParser bodyParser() {
+    return bodyParser;
+  }
+
+  /**
+   * Parses the function's body if it has not been yet (see
+   * setBodyParser).
+   */
+  public void parseBody() throws MyPLException {
+    if (bodyParser != null) {
+      stmts = bodyParser.parse();
+      bodyParser = null;
+    }
+  }
+
+  // the body is parsed before it is first visited
   @Override
   public void accept(Visitor visitor) throws MyPLException {
+    parseBody();
     visitor.visit(this);
   }
 
@@ -0,0 +1,484 @@
+/*
+ * File: IRBuilder.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Builds the SSA intermediate representation of a statically
+ *       checked program: one control-flow graph of basic blocks per
+ *       function, with each variable assignment creating a new value
+ *       and phis merging values where control flow joins. SSA form is
+ *       built directly from the AST using the algorithm of Braun et
+ *       al. ("Simple and Efficient Construction of Static Single
+ *       Assignment Form"): a variable read looks back through the
+ *       predecessors of the current block for the variable's value,
+ *       adding phis at joins. Phis are added to loop headers before
+ *       the loop body (and so all of the header's predecessors) is
+ *       known, and completed once it is ("sealing" the header). Phis
+ *       whose arguments are all the same value are removed.
+ *
+ *       Expressions are evaluated in the same order as in the code
+ *       generator. Variables follow the language's block scoping (so
+ *       a variable declared in a nested block is a different variable
+ *       than one of the same name outside of it).
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class IRBuilder implements Visitor {
+
+  // the built-in functions computed by a single operation (print is
+  // handled separately since it has no value)
+  private static final Map<String,IROp> BUILTINS = new HashMap<>();
+
+  // binary operators (by lexeme)
+  private static final Map<String,IROp> OPERATORS = new HashMap<>();
+
+  static {
+    BUILTINS.put("read", IROp.READ);
+    BUILTINS.put("get", IROp.GETCHR);
+    BUILTINS.put("length", IROp.LEN);
+    BUILTINS.put("stoi", IROp.TOINT);
+    BUILTINS.put("stod", IROp.TODBL);
+    BUILTINS.put("itos", IROp.TOSTR);
+    BUILTINS.put("dtos", IROp.TOSTR);
+    BUILTINS.put("dtoi", IROp.TOINT);
+    OPERATORS.put("+", IROp.ADD);
+    OPERATORS.put("-", IROp.SUB);
+    OPERATORS.put("*", IROp.MUL);
+    OPERATORS.put("/", IROp.DIV);
+    OPERATORS.put("%", IROp.MOD);
+    OPERATORS.put("and", IROp.AND);
+    OPERATORS.put("or", IROp.OR);
+    OPERATORS.put("<", IROp.CMPLT);
+    OPERATORS.put("<=", IROp.CMPLE);
+    OPERATORS.put(">", IROp.CMPGT);
+    OPERATORS.put(">=", IROp.CMPGE);
+    OPERATORS.put("==", IROp.CMPEQ);
+    OPERATORS.put("!=", IROp.CMPNE);
+  }
+
+  // the user-defined types (by name)
+  private Map<String,TypeDecl> typeDecls = new HashMap<>();
+
+  // the functions built so far
+  private List<IRFunction> functions = new ArrayList<>();
+
+  private IRFunction currFunction = null;
+
+  // the block instructions are added to
+  private BasicBlock currBlock = null;
+
+  // the value of the last expression visited
+  private IRInstr currValue = null;
+
+  // the variables in scope (innermost scope first), mapping each
+  // source name to a name unique within the function
+  private Deque<Map<String,String>> scopes = new ArrayDeque<>();
+
+  // number of declarations of each source name in the function
+  private Map<String,Integer> declCounts = new HashMap<>();
+
+  // each variable's value at the end of each block (by unique name)
+  private Map<String,Map<BasicBlock,IRInstr>> currentDefs = new HashMap<>();
+
+  // blocks whose predecessors are all known
+  private Set<BasicBlock> sealed = new HashSet<>();
+
+  // phis added to blocks before they were sealed (by block, then
+  // variable)
+  private Map<BasicBlock,Map<String,IRInstr>> incompletePhis = new HashMap<>();
+
+  // phis removed as trivial, and the values that replaced them
+  private Map<IRInstr,IRInstr> replaced = new HashMap<>();
+
+
+  /**
+   * Returns the functions built (in declaration order).
+   */
+  public List<IRFunction> functions() {
+    return functions;
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // add an instruction to the current block
+  private IRInstr emit(IROp op, Object operand, IRInstr... args) {
+    IRInstr instr = new IRInstr(op, operand, args);
+    currBlock.add(instr);
+    return instr;
+  }
+
+  // end the current block, adding it to its successors' predecessors
+  private void terminate(IRInstr terminator) {
+    currBlock.add(terminator);
+    for (BasicBlock target : terminator.targets())
+      target.preds().add(currBlock);
+  }
+
+  private void jump(BasicBlock target) {
+    IRInstr jmp = new IRInstr(IROp.JMP, null);
+    jmp.targets().add(target);
+    terminate(jmp);
+  }
+
+  private void branch(IRInstr cond, BasicBlock ifTrue, BasicBlock ifFalse) {
+    IRInstr br = new IRInstr(IROp.BR, null, cond);
+    br.targets().add(ifTrue);
+    br.targets().add(ifFalse);
+    terminate(br);
+  }
+
+  // continue in a new block with no predecessors (for code following
+  // a return, which is removed once the function is complete)
+  private void startUnreachable() {
+    currBlock = currFunction.newBlock();
+    seal(currBlock);
+  }
+
+  private static IRInstr nil() {
+    return IRInstr.constant(VM.NIL_OBJ);
+  }
+
+  // add a variable to the innermost scope, returning its unique name
+  private String declare(String name) {
+    int count = declCounts.merge(name, 1, Integer::sum);
+    String var = count == 1 ? name : name + "." + (count - 1);
+    scopes.peek().put(name, var);
+    return var;
+  }
+
+  // the unique name of the variable in scope
+  private String lookup(String name) {
+    for (Map<String,String> scope : scopes)
+      if (scope.containsKey(name))
+        return scope.get(name);
+    return name;
+  }
+
+  private void visitBlock(List<Stmt> stmts) throws MyPLException {
+    scopes.push(new HashMap<>());
+    for (Stmt stmt : stmts)
+      stmt.accept(this);
+    scopes.pop();
+  }
+
+  // the value a removed phi was (eventually) replaced by
+  private IRInstr resolve(IRInstr value) {
+    while (replaced.containsKey(value))
+      value = replaced.get(value);
+    return value;
+  }
+
+  private void writeVariable(String var, BasicBlock block, IRInstr value) {
+    currentDefs.computeIfAbsent(var, k -> new HashMap<>()).put(block, value);
+  }
+
+  private IRInstr readVariable(String var, BasicBlock block) {
+    IRInstr value = currentDefs.computeIfAbsent(var, k -> new HashMap<>()).get(block);
+    if (value != null)
+      return resolve(value);
+    return readVariableRecursive(var, block);
+  }
+
+  // find the variable's value at the start of the block
+  private IRInstr readVariableRecursive(String var, BasicBlock block) {
+    IRInstr value;
+    if (!sealed.contains(block)) {
+      // not all predecessors known, so complete the phi when sealed
+      value = newPhi(var, block);
+      incompletePhis.computeIfAbsent(block, k -> new HashMap<>()).put(var, value);
+    }
+    else if (block.preds().isEmpty())
+      // undefined (only possible in unreachable code)
+      value = nil();
+    else if (block.preds().size() == 1)
+      value = readVariable(var, block.preds().get(0));
+    else {
+      // record the phi first to stop the search at loops
+      value = newPhi(var, block);
+      writeVariable(var, block, value);
+      value = addPhiArgs(var, value);
+    }
+    writeVariable(var, block, value);
+    return value;
+  }
+
+  private IRInstr newPhi(String var, BasicBlock block) {
+    IRInstr phi = new IRInstr(IROp.PHI, var);
+    block.addPhi(phi);
+    return phi;
+  }
+
+  private IRInstr addPhiArgs(String var, IRInstr phi) {
+    for (BasicBlock pred : phi.block().preds())
+      phi.addArg(readVariable(var, pred));
+    return removeTrivialPhi(phi);
+  }
+
+  // replace a phi whose arguments are all the same value (or the phi
+  // itself) by that value
+  private IRInstr removeTrivialPhi(IRInstr phi) {
+    IRInstr same = null;
+    for (IRInstr arg : phi.args()) {
+      if (arg == same || arg == phi)
+        continue;
+      if (same != null)
+        return phi;
+      same = arg;
+    }
+    if (same == null)
+      same = nil();
+    List<IRInstr> users = new ArrayList<>(phi.users());
+    users.removeIf(user -> user == phi);
+    phi.replaceWith(same);
+    phi.dropArgs();
+    phi.block().phis().remove(phi);
+    replaced.put(phi, same);
+    // removing the phi may make the phis using it trivial
+    for (IRInstr user : users)
+      if (user.op() == IROp.PHI && user.block().phis().contains(user))
+        removeTrivialPhi(user);
+    return same;
+  }
+
+  // mark that all of the block's predecessors are known
+  private void seal(BasicBlock block) {
+    Map<String,IRInstr> phis = incompletePhis.remove(block);
+    if (phis != null)
+      for (Map.Entry<String,IRInstr> e : phis.entrySet())
+        addPhiArgs(e.getKey(), e.getValue());
+    sealed.add(block);
+  }
+
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  public void visit(Program node) throws MyPLException {
+    for (TypeDecl tdecl : node.tdecls)
+      typeDecls.put(tdecl.typeName.lexeme(), tdecl);
+    for (FunDecl fdecl : node.fdecls)
+      fdecl.accept(this);
+  }
+
+  public void visit(TypeDecl node) throws MyPLException {
+    // Intentionally left blank -- nothing to do here
+  }
+
+  public void visit(FunDecl node) throws MyPLException {
+    currFunction = new IRFunction(node.funName.lexeme(), node.params.size());
+    functions.add(currFunction);
+    scopes.clear();
+    declCounts.clear();
+    currentDefs.clear();
+    sealed.clear();
+    incompletePhis.clear();
+    replaced.clear();
+    scopes.push(new HashMap<>());
+    currBlock = currFunction.newBlock();
+    seal(currBlock);
+    for (int i = 0; i < node.params.size(); ++i) {
+      IRInstr param = emit(IROp.PARAM, i);
+      writeVariable(declare(node.params.get(i).paramName.lexeme()), currBlock, param);
+    }
+    visitBlock(node.stmts);
+    // falling off the end returns nil
+    terminate(new IRInstr(IROp.RET, null, nil()));
+    currFunction.removeUnreachable();
+  }
+
+  public void visit(VarDeclStmt node) throws MyPLException {
+    node.expr.accept(this);
+    writeVariable(declare(node.varName.lexeme()), currBlock, currValue);
+  }
+
+  public void visit(AssignStmt node) throws MyPLException {
+    node.expr.accept(this);
+    IRInstr value = currValue;
+    String var = lookup(node.lvalue.get(0).lexeme());
+    if (node.lvalue.size() == 1) {
+      writeVariable(var, currBlock, value);
+      return;
+    }
+    IRInstr obj = readVariable(var, currBlock);
+    for (int i = 1; i < node.lvalue.size() - 1; ++i)
+      obj = emit(IROp.GETFLD, node.lvalue.get(i).lexeme(), obj);
+    String field = node.lvalue.get(node.lvalue.size() - 1).lexeme();
+    emit(IROp.SETFLD, field, obj, value);
+  }
+
+  public void visit(CondStmt node) throws MyPLException {
+    List<BasicIf> branches = new ArrayList<>();
+    branches.add(node.ifPart);
+    branches.addAll(node.elifs);
+    BasicBlock end = currFunction.newBlock();
+    for (BasicIf branch : branches) {
+      branch.cond.accept(this);
+      BasicBlock then = currFunction.newBlock();
+      BasicBlock next = currFunction.newBlock();
+      branch(currValue, then, next);
+      seal(then);
+      currBlock = then;
+      visitBlock(branch.stmts);
+      jump(end);
+      seal(next);
+      currBlock = next;
+    }
+    if (node.elseStmts != null)
+      visitBlock(node.elseStmts);
+    jump(end);
+    seal(end);
+    currBlock = end;
+  }
+
+  public void visit(WhileStmt node) throws MyPLException {
+    BasicBlock header = currFunction.newBlock();
+    jump(header);
+    currBlock = header;
+    node.cond.accept(this);
+    BasicBlock body = currFunction.newBlock();
+    BasicBlock exit = currFunction.newBlock();
+    branch(currValue, body, exit);
+    seal(body);
+    currBlock = body;
+    visitBlock(node.stmts);
+    jump(header);
+    seal(header);
+    seal(exit);
+    currBlock = exit;
+  }
+
+  public void visit(ForStmt node) throws MyPLException {
+    node.start.accept(this);
+    scopes.push(new HashMap<>());
+    String var = declare(node.varName.lexeme());
+    writeVariable(var, currBlock, currValue);
+    BasicBlock header = currFunction.newBlock();
+    jump(header);
+    currBlock = header;
+    IRInstr counter = readVariable(var, header);
+    node.end.accept(this);
+    IRInstr cond = emit(node.upto ? IROp.CMPLE : IROp.CMPGE, null, counter, currValue);
+    BasicBlock body = currFunction.newBlock();
+    BasicBlock exit = currFunction.newBlock();
+    branch(cond, body, exit);
+    seal(body);
+    currBlock = body;
+    visitBlock(node.stmts);
+    IRInstr step = emit(node.upto ? IROp.ADD : IROp.SUB, null,
+                        readVariable(var, currBlock), IRInstr.constant(1));
+    writeVariable(var, currBlock, step);
+    jump(header);
+    seal(header);
+    seal(exit);
+    currBlock = exit;
+    scopes.pop();
+  }
+
+  public void visit(ReturnStmt node) throws MyPLException {
+    IRInstr value = nil();
+    if (node.expr != null) {
+      node.expr.accept(this);
+      value = currValue;
+    }
+    terminate(new IRInstr(IROp.RET, null, value));
+    startUnreachable();
+  }
+
+  public void visit(DeleteStmt node) throws MyPLException {
+    String var = lookup(node.varName.lexeme());
+    emit(IROp.FREE, null, readVariable(var, currBlock));
+    writeVariable(var, currBlock, nil());
+  }
+
+  public void visit(CallExpr node) throws MyPLException {
+    IRInstr[] args = new IRInstr[node.args.size()];
+    for (int i = 0; i < args.length; ++i) {
+      node.args.get(i).accept(this);
+      args[i] = currValue;
+    }
+    String name = node.funName.lexeme();
+    if (name.equals("print")) {
+      emit(IROp.WRITE, null, args);
+      currValue = nil();
+    }
+    else if (BUILTINS.containsKey(name))
+      currValue = emit(BUILTINS.get(name), null, args);
+    else
+      currValue = emit(IROp.CALL, name, args);
+  }
+
+  public void visit(SimpleRValue node) throws MyPLException {
+    TokenType type = node.value.type();
+    String lexeme = node.value.lexeme();
+    if (type == TokenType.INT_VAL)
+      currValue = IRInstr.constant(Integer.parseInt(lexeme));
+    else if (type == TokenType.DOUBLE_VAL)
+      currValue = IRInstr.constant(Double.parseDouble(lexeme));
+    else if (type == TokenType.BOOL_VAL)
+      currValue = IRInstr.constant(lexeme.equals("true"));
+    else if (type == TokenType.CHAR_VAL || type == TokenType.STRING_VAL) {
+      String s = lexeme.replace("\\n", "\n").replace("\\t", "\t")
+        .replace("\\r", "\r").replace("\\\\", "\\");
+      currValue = IRInstr.constant(s);
+    }
+    else
+      currValue = nil();
+  }
+
+  public void visit(NewRValue node) throws MyPLException {
+    TypeDecl tdecl = typeDecls.get(node.typeName.lexeme());
+    List<String> fields = new ArrayList<>();
+    for (VarDeclStmt vdecl : tdecl.vdecls)
+      fields.add(vdecl.varName.lexeme());
+    IRInstr obj = emit(IROp.ALLOC, fields);
+    for (VarDeclStmt vdecl : tdecl.vdecls) {
+      vdecl.expr.accept(this);
+      emit(IROp.SETFLD, vdecl.varName.lexeme(), obj, currValue);
+    }
+    currValue = obj;
+  }
+
+  public void visit(IDRValue node) throws MyPLException {
+    IRInstr value = readVariable(lookup(node.path.get(0).lexeme()), currBlock);
+    for (Token field : node.path.subList(1, node.path.size()))
+      value = emit(IROp.GETFLD, field.lexeme(), value);
+    currValue = value;
+  }
+
+  public void visit(NegatedRValue node) throws MyPLException {
+    node.expr.accept(this);
+    currValue = emit(IROp.NEG, null, currValue);
+  }
+
+  public void visit(Expr node) throws MyPLException {
+    node.first.accept(this);
+    if (node.rest != null) {
+      IRInstr lhs = currValue;
+      node.rest.accept(this);
+      currValue = emit(OPERATORS.get(node.op.lexeme()), null, lhs, currValue);
+    }
+    if (node.logicallyNegated)
+      currValue = emit(IROp.NOT, null, currValue);
+  }
+
+  public void visit(SimpleTerm node) throws MyPLException {
+    node.rvalue.accept(this);
+  }
+
+  public void visit(ComplexTerm node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+}
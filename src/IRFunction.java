@@ -0,0 +1,169 @@
+/*
+ * File: IRFunction.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: A function of the SSA intermediate representation: its
+ *       control-flow graph of basic blocks, starting at the entry
+ *       block. Also provides the graph utilities shared by the passes
+ *       over the representation.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+public class IRFunction {
+
+  private String name;
+  private int paramCount;
+
+  // the blocks (the first is the entry block)
+  private List<BasicBlock> blocks = new ArrayList<>();
+
+  // next unused block number
+  private int blockCount = 0;
+
+
+  public IRFunction(String name, int paramCount) {
+    this.name = name;
+    this.paramCount = paramCount;
+  }
+
+  public String name() {
+    return name;
+  }
+
+  public int paramCount() {
+    return paramCount;
+  }
+
+  public List<BasicBlock> blocks() {
+    return blocks;
+  }
+
+  public BasicBlock entry() {
+    return blocks.get(0);
+  }
+
+  public BasicBlock newBlock() {
+    BasicBlock block = new BasicBlock(blockCount++);
+    blocks.add(block);
+    return block;
+  }
+
+  /**
+   * Returns the blocks reachable from the entry block in reverse
+   * postorder (so each block comes before its successors, except
+   * along loop back edges).
+   */
+  public List<BasicBlock> reversePostorder() {
+    List<BasicBlock> order = new ArrayList<>();
+    postorder(entry(), new HashSet<>(), order);
+    Collections.reverse(order);
+    return order;
+  }
+
+  /**
+   * Removes the blocks not reachable from the entry block (and the
+   * phi arguments coming from them).
+   */
+  public void removeUnreachable() {
+    Set<BasicBlock> reachable = new HashSet<>(reversePostorder());
+    for (BasicBlock block : blocks) {
+      if (reachable.contains(block))
+        continue;
+      for (BasicBlock succ : block.succs())
+        if (reachable.contains(succ))
+          removePred(succ, block);
+      for (IRInstr instr : block.instrs())
+        instr.dropArgs();
+      for (IRInstr phi : block.phis())
+        phi.dropArgs();
+    }
+    blocks.retainAll(reachable);
+  }
+
+  /**
+   * Splits each edge from a block with several successors to a block
+   * with phis by placing a new block (containing just a jump) on the
+   * edge. Values for the phis can then be moved on the new block
+   * without affecting the other successors.
+   */
+  public void splitCriticalEdges() {
+    for (BasicBlock block : new ArrayList<>(blocks)) {
+      if (block.phis().isEmpty())
+        continue;
+      for (int i = 0; i < block.preds().size(); ++i) {
+        BasicBlock pred = block.preds().get(i);
+        if (pred.succs().size() < 2)
+          continue;
+        BasicBlock edge = newBlock();
+        IRInstr jmp = new IRInstr(IROp.JMP, null);
+        jmp.targets().add(block);
+        edge.add(jmp);
+        edge.preds().add(pred);
+        List<BasicBlock> targets = pred.terminator().targets();
+        targets.set(targets.indexOf(block), edge);
+        block.preds().set(i, edge);
+      }
+    }
+  }
+
+  public String toString() {
+    number();
+    String s = "fun " + name + "(" + paramCount + "):\n";
+    for (BasicBlock block : blocks)
+      s += block;
+    return s;
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  private void postorder(BasicBlock block, Set<BasicBlock> visited, List<BasicBlock> order) {
+    if (!visited.add(block))
+      return;
+    for (BasicBlock succ : block.succs())
+      postorder(succ, visited, order);
+    order.add(block);
+  }
+
+  // remove each edge from pred to the block, simplifying phis left
+  // with a single distinct argument
+  private void removePred(BasicBlock block, BasicBlock pred) {
+    int i = block.preds().indexOf(pred);
+    while (i >= 0) {
+      block.preds().remove(i);
+      for (IRInstr phi : block.phis())
+        phi.removeArg(i);
+      i = block.preds().indexOf(pred);
+    }
+    for (IRInstr phi : new ArrayList<>(block.phis())) {
+      Set<IRInstr> distinct = new HashSet<>(phi.args());
+      distinct.remove(phi);
+      if (distinct.size() == 1) {
+        phi.replaceWith(distinct.iterator().next());
+        phi.dropArgs();
+        block.phis().remove(phi);
+      }
+    }
+  }
+
+  // give the values consecutive numbers (in block order)
+  private void number() {
+    int next = 0;
+    for (BasicBlock block : blocks) {
+      for (IRInstr phi : block.phis())
+        phi.id = next++;
+      for (IRInstr instr : block.instrs())
+        if (instr.op().hasValue())
+          instr.id = next++;
+    }
+  }
+
+}
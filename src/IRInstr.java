@@ -0,0 +1,155 @@
+/*
+ * File: IRInstr.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: An instruction of the SSA intermediate representation. Each
+ *       instruction that produces a value is also that value: its
+ *       arguments are the instructions computing them. Constants are
+ *       values that belong to no block. Each instruction keeps its
+ *       users so that a value can be replaced everywhere it is used.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class IRInstr {
+
+  // the operation
+  private IROp op;
+
+  // the constant, parameter index, field name(s), function name, or
+  // (for phis) source variable name, depending on the operation
+  private Object operand;
+
+  // the argument values (for phis, one per predecessor, in order)
+  private List<IRInstr> args = new ArrayList<>();
+
+  // the instructions using this value
+  private List<IRInstr> users = new ArrayList<>();
+
+  // the successor blocks (for JMP and BR)
+  private List<BasicBlock> targets = new ArrayList<>();
+
+  // the containing block (null for constants)
+  BasicBlock block = null;
+
+  // number unique within the function (for printing)
+  int id = 0;
+
+
+  public IRInstr(IROp op, Object operand) {
+    this.op = op;
+    this.operand = operand;
+  }
+
+  public IRInstr(IROp op, Object operand, IRInstr... args) {
+    this(op, operand);
+    for (IRInstr arg : args)
+      addArg(arg);
+  }
+
+  /**
+   * Creates a constant value.
+   */
+  public static IRInstr constant(Object value) {
+    return new IRInstr(IROp.CONST, value);
+  }
+
+  public IROp op() {
+    return op;
+  }
+
+  public Object operand() {
+    return operand;
+  }
+
+  public List<IRInstr> args() {
+    return args;
+  }
+
+  public List<IRInstr> users() {
+    return users;
+  }
+
+  public List<BasicBlock> targets() {
+    return targets;
+  }
+
+  public BasicBlock block() {
+    return block;
+  }
+
+  public int id() {
+    return id;
+  }
+
+  public void addArg(IRInstr arg) {
+    args.add(arg);
+    arg.users.add(this);
+  }
+
+  public void removeArg(int index) {
+    IRInstr arg = args.remove(index);
+    arg.users.remove(this);
+  }
+
+  /**
+   * Replaces each use of this value with the given value.
+   */
+  public void replaceWith(IRInstr value) {
+    for (IRInstr user : users) {
+      for (int i = 0; i < user.args.size(); ++i)
+        if (user.args.get(i) == this)
+          user.args.set(i, value);
+      value.users.add(user);
+    }
+    users.clear();
+  }
+
+  /**
+   * Removes this instruction's uses of its arguments (before the
+   * instruction is deleted).
+   */
+  public void dropArgs() {
+    for (IRInstr arg : args)
+      arg.users.remove(this);
+    args.clear();
+  }
+
+  /**
+   * Returns the value as it appears as an argument (%n for
+   * instructions, the value itself for constants).
+   */
+  public String name() {
+    if (op != IROp.CONST)
+      return "%" + id;
+    if (operand == VM.NIL_OBJ)
+      return "nil";
+    if (operand instanceof String)
+      return "\"" + ((String)operand).replace("\n", "\\n") + "\"";
+    return "" + operand;
+  }
+
+  public String toString() {
+    String s = op.hasValue() ? name() + " = " : "";
+    s += op.toString().toLowerCase();
+    if (op == IROp.PHI) {
+      for (int i = 0; i < args.size(); ++i)
+        s += (i == 0 ? " " : ", ") + "[" + block.preds().get(i).name() + ": " +
+          args.get(i).name() + "]";
+      return s + "  ; " + operand;
+    }
+    if (operand != null)
+      s += " " + operand;
+    List<String> parts = new ArrayList<>();
+    for (IRInstr arg : args)
+      parts.add(arg.name());
+    for (BasicBlock target : targets)
+      parts.add(target.name());
+    if (!parts.isEmpty())
+      s += " " + String.join(", ", parts);
+    return s;
+  }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * File: IRLowering.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Translates SSA functions into VM frames. Blocks are laid out
+ *       in reverse postorder (so jumps to the next block are left
+ *       out), and each value that is used gets its own variable
+ *       (parameters keep the variables the VM's calling convention
+ *       gives them). Constants are pushed where they are used, and a
+ *       value used once, by an instruction that directly follows the
+ *       computation of the value (and of its other such arguments),
+ *       is left on the operand stack instead of stored. A phi
+ *       is translated into moves on each incoming edge: the edge's
+ *       arguments are all pushed before any is stored, so phis that
+ *       use each other's values (e.g. a swap in a loop) get the values
+ *       from before the edge. Critical edges are split first so these
+ *       moves never run on the way to another block.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class IRLowering {
+
+  // the VM frames are added to
+  private VM vm;
+
+  // the frame being generated
+  private VMFrame currFrame = null;
+
+  // the variable holding each value
+  private Map<IRInstr,Integer> slots = new HashMap<>();
+
+  // values left on the operand stack for their user
+  private Set<IRInstr> stacked = new HashSet<>();
+
+  // the address of each block
+  private Map<BasicBlock,Integer> labels = new HashMap<>();
+
+  // jumps to patch once all blocks are placed (by address, with their
+  // target blocks)
+  private Map<Integer,BasicBlock> jumps = new HashMap<>();
+
+
+  public IRLowering(VM vm) {
+    this.vm = vm;
+  }
+
+  /**
+   * Adds a frame for each of the functions to the VM.
+   */
+  public void lower(List<IRFunction> functions) {
+    for (IRFunction function : functions)
+      lower(function);
+  }
+
+  /**
+   * Adds a frame for the function to the VM. Critical edges of the
+   * function are split as a side effect.
+   */
+  public void lower(IRFunction function) {
+    function.splitCriticalEdges();
+    List<BasicBlock> order = function.reversePostorder();
+    stacked.clear();
+    for (BasicBlock block : order)
+      findStacked(block);
+    currFrame = new VMFrame(function.name(), function.paramCount());
+    vm.add(currFrame);
+    assignSlots(function, order);
+    labels.clear();
+    jumps.clear();
+    // the arguments are on the stack, the first on top
+    for (int i = 0; i < function.paramCount(); ++i)
+      emit(VMInstr.STORE(i));
+    for (int i = 0; i < order.size(); ++i) {
+      BasicBlock next = i + 1 < order.size() ? order.get(i + 1) : null;
+      labels.put(order.get(i), currFrame.instructions.size());
+      for (IRInstr instr : order.get(i).instrs())
+        lower(instr, next);
+    }
+    for (Map.Entry<Integer,BasicBlock> e : jumps.entrySet()) {
+      int addr = e.getKey();
+      int target = labels.get(e.getValue());
+      if (currFrame.instructions.get(addr).opcode() == OpCode.JMP)
+        currFrame.instructions.set(addr, VMInstr.JMP(target));
+      else
+        currFrame.instructions.set(addr, VMInstr.JMPF(target));
+    }
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  private void emit(VMInstr instr) {
+    currFrame.instructions.add(instr);
+    currFrame.pc += 1;
+  }
+
+  // find the values of the block that can stay on the stack: for an
+  // instruction with arguments a0..an, the longest prefix a0..ak that
+  // are used only by the instruction and were computed (with their
+  // own stacked arguments) just before it, in order
+  private void findStacked(BasicBlock block) {
+    List<IRInstr> instrs = block.instrs();
+    // the first instruction of each instruction's stacked arguments
+    Map<IRInstr,Integer> start = new HashMap<>();
+    for (int i = 0; i < instrs.size(); ++i) {
+      IRInstr instr = instrs.get(i);
+      List<IRInstr> args = instr.args();
+      int first = i;
+      for (int k = args.size(); k > 0; --k) {
+        int cursor = i - 1;
+        for (int j = k - 1; j >= 0 && cursor >= 0; --j) {
+          IRInstr arg = args.get(j);
+          if (instrs.get(cursor) != arg || arg.users().size() != 1 || !arg.op().hasValue() ||
+              arg.op() == IROp.PARAM)
+            break;
+          cursor = start.get(arg) - 1;
+          if (j == 0)
+            first = cursor + 1;
+        }
+        if (first < i) {
+          stacked.addAll(args.subList(0, k));
+          break;
+        }
+      }
+      start.put(instr, first);
+    }
+  }
+
+  // give each used value (after the parameters) a variable
+  private void assignSlots(IRFunction function, List<BasicBlock> order) {
+    slots.clear();
+    int next = function.paramCount();
+    for (BasicBlock block : order) {
+      for (IRInstr phi : block.phis())
+        if (!phi.users().isEmpty())
+          slots.put(phi, next++);
+      for (IRInstr instr : block.instrs()) {
+        if (instr.op() == IROp.PARAM)
+          slots.put(instr, (Integer)instr.operand());
+        else if (instr.op().hasValue() && !instr.users().isEmpty() && !stacked.contains(instr))
+          slots.put(instr, next++);
+      }
+    }
+  }
+
+  private void push(IRInstr value) {
+    if (stacked.contains(value))
+      return;
+    if (value.op() == IROp.CONST)
+      emit(VMInstr.PUSH(value.operand()));
+    else
+      emit(VMInstr.LOAD(slots.get(value)));
+  }
+
+  // a jump to be patched with the block's address
+  private void jump(OpCode opcode, BasicBlock target) {
+    jumps.put(currFrame.instructions.size(), target);
+    emit(opcode == OpCode.JMP ? VMInstr.JMP(-1) : VMInstr.JMPF(-1));
+  }
+
+  // set the target's (used) phis for the edge from the block
+  private void moves(BasicBlock block, BasicBlock target) {
+    int pred = target.preds().indexOf(block);
+    List<IRInstr> moved = new ArrayList<>();
+    for (IRInstr phi : target.phis()) {
+      IRInstr arg = phi.args().get(pred);
+      if (slots.containsKey(phi) && arg != phi) {
+        push(arg);
+        moved.add(phi);
+      }
+    }
+    for (int i = moved.size() - 1; i >= 0; --i)
+      emit(VMInstr.STORE(slots.get(moved.get(i))));
+  }
+
+  private void lower(IRInstr instr, BasicBlock next) {
+    IROp op = instr.op();
+    if (op == IROp.PARAM)
+      return;
+    if (op == IROp.JMP) {
+      BasicBlock target = instr.targets().get(0);
+      moves(instr.block(), target);
+      if (target != next)
+        jump(OpCode.JMP, target);
+      return;
+    }
+    if (op == IROp.BR) {
+      // critical edges are split, so the targets have no phis
+      push(instr.args().get(0));
+      jump(OpCode.JMPF, instr.targets().get(1));
+      if (instr.targets().get(0) != next)
+        jump(OpCode.JMP, instr.targets().get(0));
+      return;
+    }
+    for (IRInstr arg : instr.args())
+      push(arg);
+    if (op == IROp.RET) {
+      emit(VMInstr.VRET());
+      return;
+    }
+    if (instr.operand() == null)
+      emit(new VMInstr(op.opcode()));
+    else
+      emit(new VMInstr(op.opcode(), instr.operand()));
+    if (slots.containsKey(instr))
+      emit(VMInstr.STORE(slots.get(instr)));
+    else if (op.hasValue() && !stacked.contains(instr))
+      emit(VMInstr.POP());
+  }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * File: IROp.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Operations of the SSA intermediate representation. Most
+ *       operations have the semantics of the VM instruction with the
+ *       same name, taking their arguments in the order the VM pushes
+ *       them (so SUB a b computes a - b).
+ */
+
+public enum IROp {
+  // values
+  CONST(null, true),          // a constant (the instruction's operand)
+  PARAM(null, true),          // the i-th function argument
+  PHI(null, true),            // the argument from the predecessor taken
+  // arithmetic, logic, and comparison
+  ADD(OpCode.ADD, true),
+  SUB(OpCode.SUB, true),
+  MUL(OpCode.MUL, true),
+  DIV(OpCode.DIV, true),
+  MOD(OpCode.MOD, true),
+  AND(OpCode.AND, true),
+  OR(OpCode.OR, true),
+  NOT(OpCode.NOT, true),
+  NEG(OpCode.NEG, true),
+  CMPLT(OpCode.CMPLT, true),
+  CMPLE(OpCode.CMPLE, true),
+  CMPGT(OpCode.CMPGT, true),
+  CMPGE(OpCode.CMPGE, true),
+  CMPEQ(OpCode.CMPEQ, true),
+  CMPNE(OpCode.CMPNE, true),
+  // built-ins
+  WRITE(OpCode.WRITE, false),
+  READ(OpCode.READ, true),
+  LEN(OpCode.LEN, true),
+  GETCHR(OpCode.GETCHR, true),
+  TOINT(OpCode.TOINT, true),
+  TODBL(OpCode.TODBL, true),
+  TOSTR(OpCode.TOSTR, true),
+  // heap (the operand is the field name, or ALLOC's field list)
+  ALLOC(OpCode.ALLOC, true),
+  FREE(OpCode.FREE, false),
+  SETFLD(OpCode.SETFLD, false),
+  GETFLD(OpCode.GETFLD, true),
+  // user-defined function call (the operand is the function name)
+  CALL(OpCode.CALL, true),
+  // block terminators
+  JMP(null, false),           // jump to the block's single successor
+  BR(null, false),            // to the first successor if true, else second
+  RET(null, false)            // return the argument
+  ;
+
+  // the VM instruction computing the operation (if any)
+  private final OpCode opcode;
+
+  // true if the operation produces a value
+  private final boolean hasValue;
+
+  private IROp(OpCode opcode, boolean hasValue) {
+    this.opcode = opcode;
+    this.hasValue = hasValue;
+  }
+
+  public OpCode opcode() {
+    return opcode;
+  }
+
+  public boolean hasValue() {
+    return hasValue;
+  }
+
+  public boolean isTerminator() {
+    return this == JMP || this == BR || this == RET;
+  }
+}
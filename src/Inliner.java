@@ -0,0 +1,206 @@
+/*
+ * File: Inliner.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Bytecode optimization pass that replaces CALLs to small,
+ *       non-recursive user-defined functions with the body of the
+ *       called function. The callee's parameter STOREs consume the
+ *       caller's arguments, its variables are moved past the caller's
+ *       variables, and each VRET becomes a jump past the inlined body
+ *       (leaving the return value on the caller's operand stack).
+ *       Functions are inlined callees-first, so a callee's own calls
+ *       are already inlined when it is copied into its callers. A
+ *       callee size limit and a caller growth limit keep code size in
+ *       check, and functions on a call-graph cycle are never inlined.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class Inliner {
+
+  // default largest callee (in instructions) that is inlined
+  public static final int DEFAULT_MAX_CALLEE_SIZE = 40;
+
+  // default largest a caller may grow to through inlining
+  public static final int DEFAULT_MAX_CALLER_SIZE = 2000;
+
+  private int maxCalleeSize = DEFAULT_MAX_CALLEE_SIZE;
+  private int maxCallerSize = DEFAULT_MAX_CALLER_SIZE;
+
+  // number of call sites replaced
+  private int inlineCount = 0;
+
+  // the frames being optimized
+  private Map<String,VMFrame> frames = new HashMap<>();
+
+  // names of functions each function calls
+  private Map<String,Set<String>> callGraph = new HashMap<>();
+
+  // functions that (directly or indirectly) call themselves
+  private Set<String> recursive = new HashSet<>();
+
+
+  public Inliner() {
+  }
+
+  /**
+   * Creates an inliner with the given size limits.
+   * @param maxCalleeSize the largest function (in instructions) to inline
+   * @param maxCallerSize the size a caller may not grow past
+   */
+  public Inliner(int maxCalleeSize, int maxCallerSize) {
+    this.maxCalleeSize = maxCalleeSize;
+    this.maxCallerSize = maxCallerSize;
+  }
+
+  /**
+   * Returns the number of call sites replaced by function bodies.
+   */
+  public int inlineCount() {
+    return inlineCount;
+  }
+
+  /**
+   * Inlines eligible calls in each frame of the given VM.
+   * @param vm the VM whose frames are rewritten
+   */
+  public void optimize(VM vm) {
+    frames.clear();
+    callGraph.clear();
+    recursive.clear();
+    for (VMFrame frame : vm.frames())
+      frames.put(frame.functionName(), frame);
+    for (VMFrame frame : frames.values())
+      callGraph.put(frame.functionName(), callees(frame.instructions));
+    findRecursive();
+    // visit callees before their callers
+    Set<String> done = new HashSet<>();
+    for (String name : frames.keySet())
+      inlineCallees(name, done);
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // the user-defined functions called by the instructions
+  private Set<String> callees(List<VMInstr> instructions) {
+    Set<String> names = new HashSet<>();
+    for (VMInstr instr : instructions)
+      if (instr.opcode() == OpCode.CALL && frames.containsKey(instr.operand()))
+        names.add((String)instr.operand());
+    return names;
+  }
+
+  // mark each function that can reach itself in the call graph
+  private void findRecursive() {
+    for (String name : callGraph.keySet()) {
+      Set<String> seen = new HashSet<>();
+      List<String> work = new ArrayList<>(callGraph.get(name));
+      while (!work.isEmpty()) {
+        String callee = work.remove(work.size() - 1);
+        if (callee.equals(name)) {
+          recursive.add(name);
+          break;
+        }
+        if (seen.add(callee))
+          work.addAll(callGraph.get(callee));
+      }
+    }
+  }
+
+  // post-order walk of the call graph (cycles are cut at the
+  // recursive functions, which are never inlined)
+  private void inlineCallees(String name, Set<String> done) {
+    if (!done.add(name))
+      return;
+    for (String callee : callGraph.get(name))
+      inlineCallees(callee, done);
+    inlineCalls(frames.get(name));
+  }
+
+  // true if the callee can be inlined into the caller
+  private boolean canInline(VMFrame caller, VMFrame callee) {
+    List<VMInstr> code = callee.instructions;
+    if (recursive.contains(callee.functionName()) || code.size() > maxCalleeSize)
+      return false;
+    if (caller.instructions.size() + code.size() > maxCallerSize)
+      return false;
+    // must end in a return, and must start by storing its arguments
+    // (as generated by the code generator)
+    if (code.size() <= callee.argCount() || code.get(code.size() - 1).opcode() != OpCode.VRET)
+      return false;
+    for (int i = 0; i < callee.argCount(); ++i) {
+      VMInstr instr = code.get(i);
+      if (instr.opcode() != OpCode.STORE || (int)instr.operand() != i)
+        return false;
+    }
+    return true;
+  }
+
+  // replace each eligible call in the frame
+  private void inlineCalls(VMFrame caller) {
+    // callee variables are placed after the caller's own; since
+    // inlined bodies never overlap in time, each call site reuses
+    // the same base
+    int base = Bytecode.localCount(caller.instructions);
+    int i = 0;
+    while (i < caller.instructions.size()) {
+      VMInstr instr = caller.instructions.get(i);
+      VMFrame callee = instr.opcode() == OpCode.CALL ? frames.get(instr.operand()) : null;
+      if (callee != null && callee != caller && canInline(caller, callee)) {
+        List<VMInstr> body = inlineBody(callee, base, i);
+        splice(caller, i, body);
+        ++inlineCount;
+        i += body.size();
+      }
+      else
+        ++i;
+    }
+  }
+
+  // build the callee's code to be placed at the given address
+  private List<VMInstr> inlineBody(VMFrame callee, int base, int start) {
+    List<VMInstr> code = callee.instructions;
+    int argCount = callee.argCount();
+    // the last VRET is dropped, so returns jump to the next address
+    int end = start + code.size() - 1;
+    List<VMInstr> body = new ArrayList<>();
+    // the last argument is on top of the caller's stack
+    for (int i = argCount - 1; i >= 0; --i)
+      body.add(VMInstr.STORE(base + i));
+    for (int i = argCount; i < code.size() - 1; ++i) {
+      VMInstr instr = code.get(i);
+      if (instr.opcode() == OpCode.VRET) {
+        VMInstr jmp = VMInstr.JMP(end);
+        jmp.addComment("return from " + callee.functionName());
+        body.add(jmp);
+      }
+      else
+        body.add(Bytecode.retarget(Bytecode.relocate(instr, base), addr -> start + addr));
+    }
+    return body;
+  }
+
+  // replace the instruction at the address with the given code
+  private void splice(VMFrame frame, int addr, List<VMInstr> code) {
+    int shift = code.size() - 1;
+    List<VMInstr> instructions = new ArrayList<>();
+    for (int i = 0; i < frame.instructions.size(); ++i) {
+      if (i == addr)
+        instructions.addAll(code);
+      else
+        instructions.add(Bytecode.retarget(frame.instructions.get(i),
+                                           a -> a > addr ? a + shift : a));
+    }
+    frame.instructions = instructions;
+  }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * File: JumpThreading.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Bytecode cleanup pass. The code generator lands every if,
+ *       while, and for statement on a NOP, which leads to chains such
+ *       as JMPF -> NOP -> JMP that cost a dispatch per link. This pass
+ *       threads each jump (and switch table entry) through NOPs and
+ *       unconditional jumps to its final destination, turns a JMP to
+ *       a VRET into a VRET, removes jumps to the next instruction (a
+ *       JMPF there just pops its condition), and then deletes NOPs
+ *       and unreachable instructions (such as code after a VRET),
+ *       renumbering the remaining jump addresses. This repeats until
+ *       nothing changes.
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+public class JumpThreading {
+
+  // number of instructions removed
+  private int removedCount = 0;
+
+  // number of jump addresses changed to a later destination
+  private int threadedCount = 0;
+
+
+  /**
+   * Returns the number of instructions removed.
+   */
+  public int removedCount() {
+    return removedCount;
+  }
+
+  /**
+   * Returns the number of jumps threaded past NOPs and jumps.
+   */
+  public int threadedCount() {
+    return threadedCount;
+  }
+
+  /**
+   * Cleans up the jumps in each frame of the given VM.
+   * @param vm the VM whose frames are rewritten
+   */
+  public void optimize(VM vm) {
+    for (VMFrame frame : vm.frames())
+      optimize(frame);
+  }
+
+  /**
+   * Cleans up the jumps in the given frame.
+   */
+  public void optimize(VMFrame frame) {
+    boolean changed = true;
+    while (changed) {
+      frame.instructions = thread(frame.instructions);
+      changed = removeDead(frame);
+    }
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // the address control finally reaches from the given address,
+  // passing over NOPs and unconditional jumps
+  private static int destination(List<VMInstr> code, int addr) {
+    Set<Integer> seen = new HashSet<>();
+    while (addr < code.size() && seen.add(addr)) {
+      VMInstr instr = code.get(addr);
+      if (instr.opcode() == OpCode.NOP)
+        addr += 1;
+      else if (instr.opcode() == OpCode.JMP)
+        addr = (int)instr.operand();
+      else
+        break;
+    }
+    return addr;
+  }
+
+  // retarget each jump to its final destination
+  private List<VMInstr> thread(List<VMInstr> code) {
+    List<VMInstr> result = new ArrayList<>();
+    for (VMInstr instr : code) {
+      if (!Bytecode.isJump(instr)) {
+        result.add(instr);
+        continue;
+      }
+      if (instr.opcode() == OpCode.JMP) {
+        int dest = destination(code, (int)instr.operand());
+        if (dest < code.size() && code.get(dest).opcode() == OpCode.VRET) {
+          result.add(VMInstr.VRET());
+          ++threadedCount;
+          continue;
+        }
+      }
+      VMInstr threaded = Bytecode.retarget(instr, addr -> destination(code, addr));
+      if (!Bytecode.targets(threaded).equals(Bytecode.targets(instr)))
+        ++threadedCount;
+      result.add(threaded);
+    }
+    return result;
+  }
+
+  // the instructions reachable from the first one
+  private static boolean[] reachable(List<VMInstr> code) {
+    boolean[] reached = new boolean[code.size()];
+    List<Integer> work = new ArrayList<>();
+    work.add(0);
+    while (!work.isEmpty()) {
+      int addr = work.remove(work.size() - 1);
+      if (addr < 0 || addr >= code.size() || reached[addr])
+        continue;
+      reached[addr] = true;
+      VMInstr instr = code.get(addr);
+      work.addAll(Bytecode.targets(instr));
+      if (!Bytecode.endsBlock(instr))
+        work.add(addr + 1);
+    }
+    return reached;
+  }
+
+  // remove NOPs, unreachable instructions, and jumps to the next
+  // instruction, returning true if any were removed
+  private boolean removeDead(VMFrame frame) {
+    List<VMInstr> code = frame.instructions;
+    boolean[] reached = reachable(code);
+    boolean[] keep = new boolean[code.size()];
+    // the first kept address at or after each address
+    int[] nextKept = new int[code.size() + 1];
+    nextKept[code.size()] = code.size();
+    for (int i = code.size() - 1; i >= 0; --i) {
+      VMInstr instr = code.get(i);
+      keep[i] = reached[i] && instr.opcode() != OpCode.NOP;
+      if (keep[i] && instr.opcode() == OpCode.JMP &&
+          nextKept[(int)instr.operand()] == nextKept[i + 1])
+        keep[i] = false;
+      else if (keep[i] && instr.opcode() == OpCode.JMPF &&
+               nextKept[(int)instr.operand()] == nextKept[i + 1])
+        code.set(i, VMInstr.POP());
+      nextKept[i] = keep[i] ? i : nextKept[i + 1];
+    }
+    // new address of each (old) address
+    int[] newAddr = new int[code.size() + 1];
+    List<VMInstr> result = new ArrayList<>();
+    for (int i = 0; i < code.size(); ++i) {
+      newAddr[i] = result.size();
+      if (keep[i])
+        result.add(code.get(i));
+    }
+    newAddr[code.size()] = result.size();
+    if (result.size() == code.size())
+      return false;
+    removedCount += code.size() - result.size();
+    for (int i = 0; i < result.size(); ++i)
+      result.set(i, Bytecode.retarget(result.get(i), addr -> newAddr[addr]));
+    frame.instructions = result;
+    return true;
+  }
+
+}
@@ -2,44 +2,49 @@
  * File: Lexer.java
  * Date: Spring 2022
  * Auth: Ahmad Moltafet
- * Desc: The lexical analyzer for MyPL.
+ * Desc: The lexical analyzer for MyPL. The input is read whole into a
+ *       char array on the first call to nextToken, and scanned with an
+ *       index into it (peeking is an array load, not a mark, read, and
+ *       reset of a synchronized reader). The tokens are either
+ *       returned one at a time, or all added to a compact token buffer
+ *       (see TokenBuffer).
  */
 
-import java.io.BufferedReader;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.text.CollationKey;
-import java.util.regex.Pattern;
 import java.io.IOException;
 
 
 public class Lexer {
 
-  private BufferedReader buffer; // handle to input stream
+  private InputStream instream;  // handle to input stream (until read)
+  private char[] chars = null;   // the input
+  private int pos = 0;           // index of the next character
   private int line = 1;          // current line number
   private int column = 0;        // current column number
-  String[] words = {
-    "and", "or", "not", "neg", "int", "double", "char", "string",
-    "bool", "void", "var", "type", "while", "for", "from", "upto",
-    "downto", "if", "elif", "else", "fun", "new", "delete",
-    "return", "nil", "true", "false"};
-
-  TokenType[] types = {
-      TokenType.AND, TokenType.OR, TokenType.NOT, TokenType.NEG,
-      TokenType.INT_TYPE, TokenType.DOUBLE_TYPE, TokenType.CHAR_TYPE,
-      TokenType.STRING_TYPE, TokenType.BOOL_TYPE, TokenType.VOID_TYPE,
-      TokenType.VAR, TokenType.TYPE, TokenType.WHILE, TokenType.FOR,
-      TokenType.FROM, TokenType.UPTO, TokenType.DOWNTO,
-      TokenType.IF, TokenType.ELIF, TokenType.ELSE, TokenType.FUN,
-      TokenType.NEW, TokenType.DELETE, TokenType.RETURN,
-      TokenType.NIL};
+  private int start = 0;         // index of the current token's text
+
+  // the buffer tokens are added to (in a tokenize)
+  private TokenBuffer buffer = null;
+
+  // finds the ends of whitespace, comments, and strings (vectorized
+  // if the vector scanner is built in and the JVM has its module)
+  private static final CharScanner BEST_SCANNER = CharScanner.best();
+  private CharScanner scanner = BEST_SCANNER;
 
   //--------------------------------------------------------------------
   // Constructor
   //--------------------------------------------------------------------
   
   public Lexer(InputStream instream) {
-    buffer = new BufferedReader(new InputStreamReader(instream));
+    this.instream = instream;
+  }
+
+  /**
+   * Sets the scanner used to skip whitespace, comments, and strings
+   * (for comparing the scalar and vector scanners).
+   */
+  public void setScanner(CharScanner scanner) {
+    this.scanner = scanner;
   }
 
 
@@ -47,27 +52,25 @@ public class Lexer {
   // Private helper methods
   //--------------------------------------------------------------------
 
-  // Returns next character in the stream. Returns -1 if end of file.
-  private int read() throws MyPLException {
+  // Reads the whole input (on first use).
+  private void load() throws MyPLException {
     try {
-      return buffer.read();
+      chars = new String(instream.readAllBytes()).toCharArray();
     } catch(IOException e) {
+      chars = new char[0];
       error("read error", line, column + 1);
     }
-    return -1;
+    instream = null;
+  }
+
+  // Returns next character in the stream. Returns -1 if end of file.
+  private int read() {
+    return pos < chars.length ? chars[pos++] : -1;
   }
 
   // Returns next character without removing it from the stream.
-  private int peek() throws MyPLException {
-    int ch = -1;
-    try {
-      buffer.mark(1);
-      ch = read();
-      buffer.reset();
-    } catch(IOException e) {
-      error("read error", line, column + 1);
-    }
-    return ch;
+  private int peek() {
+    return pos < chars.length ? chars[pos] : -1;
   }
 
   // Print an error message and exit the program.
@@ -76,24 +79,40 @@ public class Lexer {
     throw MyPLException.LexerError(msg);
   }
 
-  // Checks for whitespace 
+  // Returns the column after reading the input from index from
+  // through index (from the current column).
+  private int columnAt(int from, int index) {
+    int i = index;
+    while(i >= from && chars[i] != '\n') {
+      i--;
+    }
+    return i >= from ? index - i : column + index - from + 1;
+  }
+
+  // Checks for whitespace (ASCII first, the common case)
   public static boolean isWhitespace(int ch) {
+    if (ch < 128)
+      return ch == ' ' || (ch >= '\t' && ch <= '\r') || (ch >= 0x1c && ch <= 0x1f);
     return Character.isWhitespace((char)ch);
   }
 
   // Checks for digit
   private static boolean isDigit(int ch) {
+    if (ch < 128)
+      return ch >= '0' && ch <= '9';
     return Character.isDigit((char)ch);
   }
 
   // Checks for letter
   private static boolean isLetter(int ch) {
+    if (ch < 128)
+      return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z');
     return Character.isLetter((char)ch);
   }
 
   // Checks if given symbol
   private static boolean isSymbol(int ch, char symbol) {
-    return (char)ch == symbol;
+    return ch == symbol;
   }
 
   // Checks if end-of-file
@@ -101,21 +120,142 @@ public class Lexer {
     return ch == -1;
   }
 
+  // Returns the type of the keyword (import, true, and false
+  // included), or null if the word is not a keyword. The word is
+  // picked out by its length and first character, so it is compared
+  // with at most four keywords.
+  private static TokenType keyword(String word) {
+    switch (word.length()) {
+    case 2:
+      if (word.equals("or"))
+        return TokenType.OR;
+      return word.equals("if") ? TokenType.IF : null;
+    case 3:
+      switch (word.charAt(0)) {
+      case 'a':
+        return word.equals("and") ? TokenType.AND : null;
+      case 'n':
+        if (word.equals("not"))
+          return TokenType.NOT;
+        if (word.equals("neg"))
+          return TokenType.NEG;
+        if (word.equals("new"))
+          return TokenType.NEW;
+        return word.equals("nil") ? TokenType.NIL : null;
+      case 'i':
+        return word.equals("int") ? TokenType.INT_TYPE : null;
+      case 'v':
+        return word.equals("var") ? TokenType.VAR : null;
+      case 'f':
+        if (word.equals("for"))
+          return TokenType.FOR;
+        return word.equals("fun") ? TokenType.FUN : null;
+      default:
+        return null;
+      }
+    case 4:
+      switch (word.charAt(0)) {
+      case 'c':
+        return word.equals("char") ? TokenType.CHAR_TYPE : null;
+      case 'b':
+        return word.equals("bool") ? TokenType.BOOL_TYPE : null;
+      case 'v':
+        return word.equals("void") ? TokenType.VOID_TYPE : null;
+      case 't':
+        if (word.equals("type"))
+          return TokenType.TYPE;
+        return word.equals("true") ? TokenType.BOOL_VAL : null;
+      case 'f':
+        return word.equals("from") ? TokenType.FROM : null;
+      case 'u':
+        return word.equals("upto") ? TokenType.UPTO : null;
+      case 'e':
+        if (word.equals("elif"))
+          return TokenType.ELIF;
+        return word.equals("else") ? TokenType.ELSE : null;
+      default:
+        return null;
+      }
+    case 5:
+      if (word.equals("while"))
+        return TokenType.WHILE;
+      return word.equals("false") ? TokenType.BOOL_VAL : null;
+    case 6:
+      switch (word.charAt(0)) {
+      case 'd':
+        if (word.equals("double"))
+          return TokenType.DOUBLE_TYPE;
+        if (word.equals("downto"))
+          return TokenType.DOWNTO;
+        return word.equals("delete") ? TokenType.DELETE : null;
+      case 's':
+        return word.equals("string") ? TokenType.STRING_TYPE : null;
+      case 'r':
+        return word.equals("return") ? TokenType.RETURN : null;
+      case 'i':
+        return word.equals("import") ? TokenType.IMPORT : null;
+      default:
+        return null;
+      }
+    default:
+      return null;
+    }
+  }
+
   //--------------------------------------------------------------------
   // Public next_token function
   //--------------------------------------------------------------------
   
+  /**
+   * Lexes the whole input into a token buffer (ending with an EOS).
+   */
+  public TokenBuffer tokenize() throws MyPLException {
+    if (chars == null)
+      load();
+    buffer = new TokenBuffer(chars);
+    try {
+      do {
+        nextToken();
+      } while (buffer.type(buffer.size() - 1) != TokenType.EOS);
+      buffer.finish();
+      return buffer;
+    }
+    finally {
+      buffer = null;
+    }
+  }
+
   // Returns next token in input stream
   public Token nextToken() throws MyPLException {
+    if (chars == null)
+      load();
+    start = pos;
     int ch = peek();
     int starting_col = 1;
+    // skip a run of ASCII whitespace at once, counting the lines it
+    // ends; the loop below reads any other whitespace
+    int end = scanner.skipWhitespace(chars, pos);
+    if(end > pos) {
+      int newlines = scanner.count(chars, pos, end, '\n');
+      int last = end - 1;
+      while(last >= pos && chars[last] == '\n') {
+        last--;
+      }
+      if(last >= pos) {
+        starting_col = newlines == 0 ? column + last - pos + 1 : columnAt(pos, last);
+      }
+      column = chars[end - 1] == '\n' ? 0 : starting_col;
+      line += newlines;
+      pos = end;
+      ch = peek();
+    }
     while(isWhitespace(ch)) {
       if(ch == '\n') {
         line++;
         column = 0;
         ch = peek();
         if(isEOF(ch)) {
-          return new Token(TokenType.EOS, "-1", line, column);
+          return token(TokenType.EOS, "-1", line, column);
        }
         ch = read();
       } else {
@@ -126,11 +266,11 @@ public class Lexer {
       
       ch = peek();
     }
+    start = pos;
 
     if(ch == '#') {
-      while(ch != '\n') {
-        ch = read();
-      }
+      end = scanner.indexOf(chars, pos, '\n');
+      pos = end < chars.length ? end + 1 : end;
       column = 0;
       line++;
       return nextToken();
@@ -141,18 +281,14 @@ public class Lexer {
       column++;
       ch = peek();
       if(ch == '/') {
-        do {
-          ch = read();
-          column++;
-          ch = peek();
-        } while(ch != '\n' && !isEOF(ch));
-        return new Token(TokenType.MODULO, "/", line, starting_col);
+        end = scanner.indexOf(chars, pos, '\n');
+        column += end - pos;
+        pos = end;
+        return token(TokenType.MODULO, "/", line, starting_col);
       } else if(ch == '*') {
-        do {
-          ch = read();
-          column++;
-          ch = peek();
-        } while(ch != '*' && !isEOF(ch));
+        end = scanner.indexOf(chars, pos + 1, '*');
+        column += end - pos;
+        pos = end;
         ch = read();
         column++;
         ch = peek();
@@ -162,141 +298,132 @@ public class Lexer {
           error("invalid comment", line, column);
         }
       } else {
-        return new Token(TokenType.DIVIDE, "/", line, column);
+        return token(TokenType.DIVIDE, "/", line, column);
       }
     }
     
     // read numbers
     if(isDigit(ch)) {
-      boolean flag = false;
       // Reads digits
-      StringBuilder sb = new StringBuilder();
       starting_col = column + 1;
       if(column == 0) {
         starting_col = 1;
       }
       do {
         ch = read();
-        sb.append((char)ch);
         column++;
-        if(sb.charAt(0) == '0' && sb.length()>1) {
-          flag = true;
-        }
         ch = peek();
       } while(isDigit(ch));
+      boolean flag = chars[start] == '0' && pos - start > 1;
       if(ch == '.') {
         ch = read();
-        sb.append((char)ch);
         ch = peek();
         if(!isDigit(ch)) {
-          String m = "missing decimal digit in double value '" + sb.toString() + "'";
-          error(m, line, (sb.length() - column));
+          String m = "missing decimal digit in double value '" + text(start) + "'";
+          error(m, line, (pos - start - column));
         }
         else {
           column++;
           do {
             ch = read();
-            sb.append((char)ch);
             column++;
             ch = peek();
           } while(isDigit(ch));
           if(ch == '.') {
-            String m = "too many decimal points in double value '" + sb.toString() + "'";
-            error(m, line, (sb.length() - column) + 1);
+            String m = "too many decimal points in double value '" + text(start) + "'";
+            error(m, line, (pos - start - column) + 1);
           }
           if(flag) {
-            String m = "leading zero in '" + String.valueOf(sb) + "'";
+            String m = "leading zero in '" + text(start) + "'";
             error(m, line, starting_col);
           }
-          return new Token(TokenType.DOUBLE_VAL, String.valueOf(sb), line, starting_col);
+          return token(TokenType.DOUBLE_VAL, text(start), line, starting_col);
 
         } 
 
       }
       if(flag) {
-        String m = "leading zero in '" + String.valueOf(sb) + "'";
+        String m = "leading zero in '" + text(start) + "'";
         error(m, line, column -1);
       }
-      return new Token(TokenType.INT_VAL, String.valueOf(sb), line, starting_col);
+      return token(TokenType.INT_VAL, text(start), line, starting_col);
     }
     
     // read end of file
     if(isEOF(ch)) {
       read();
       column++;
-      return new Token(TokenType.EOS, "-1", line, column);
+      return token(TokenType.EOS, "-1", line, column);
     }
 
     if(isSymbol(ch, '\"')) {
-      StringBuilder sb = new StringBuilder();
       starting_col = column + 1;
       if(column == 0) {
         starting_col = 1;
       }
       ch = read();
       column++;
+      int first = pos;
+      end = scanner.indexOf(chars, pos, '\"', '\'');
+      column += end - pos;
+      pos = end;
       ch = peek();
-      while(ch != '\"' && ch != '\'' && ch != -1) {
-        sb.append((char)ch);
-        ch = read();
-        column++;
-        ch = peek();
-      }
       
       if(isEOF(ch)) {
         error("found end-of-file in string", line, column);
       }
+      String str = text(first);
       String newline = System.getProperty("line.separator");
-      boolean hasNewline = sb.toString().contains(newline);
+      boolean hasNewline = str.contains(newline);
       if(hasNewline) {
         error("found newline within string", line, column);
       }
       ch = read();
       column++;
 
-      return new Token(TokenType.STRING_VAL, sb.toString(), line, starting_col);
+      return token(TokenType.STRING_VAL, str, line, starting_col);
     }
    
     if(isSymbol(ch, '_')) {
       ch = read();
       column++;
-      return new Token(TokenType.ID, "_", line, column);
+      return token(TokenType.ID, "_", line, column);
     }
     // read identifiers
     if(isSymbol(ch, '(')) {
       ch = read();
       column++;
-      return new Token(TokenType.LPAREN, "(", line, column);
+      return token(TokenType.LPAREN, "(", line, column);
     }
     if(isSymbol(ch, ')')) {
       ch = read();
       column++;
-      return new Token(TokenType.RPAREN, ")", line, column);
+      return token(TokenType.RPAREN, ")", line, column);
     }
     if(isSymbol(ch, ',')) {
       ch = read();
       column++;
-      return new Token(TokenType.COMMA, ",", line, column);
+      return token(TokenType.COMMA, ",", line, column);
     }
     if(isSymbol(ch, '.')) {
       ch = read();
       column++;
-      return new Token(TokenType.DOT, ".", line, column);
+      return token(TokenType.DOT, ".", line, column);
     }
     if(isSymbol(ch, '+')) {
       ch = read();
       column++;
-      return new Token(TokenType.PLUS, "+", line, column);
+      return token(TokenType.PLUS, "+", line, column);
     }
     if(isSymbol(ch, '-')) {
       ch = read();
       column++;
-      return new Token(TokenType.MINUS, "-", line, column);
+      return token(TokenType.MINUS, "-", line, column);
     }
     if(isSymbol(ch, '*')) {
       ch = read();
       column++;
-      return new Token(TokenType.MULTIPLY, "*", line, column);
+      return token(TokenType.MULTIPLY, "*", line, column);
     }
     if(isSymbol(ch, '=')) {
       starting_col = column;
@@ -305,9 +432,9 @@ public class Lexer {
       if(peek() == '=') {
         ch = read();
         column++;
-        return new Token(TokenType.EQUAL, "==", line, starting_col + 1);
+        return token(TokenType.EQUAL, "==", line, starting_col + 1);
       }
-      return new Token(TokenType.ASSIGN, "=", line, column);
+      return token(TokenType.ASSIGN, "=", line, column);
     }
     if(isSymbol(ch, '<')) {
       starting_col = column;
@@ -317,9 +444,9 @@ public class Lexer {
       if(peek() == '=') {
         ch = read();
         column++;
-        return new Token(TokenType.LESS_THAN_EQUAL, "<=", line, starting_col + 1);
+        return token(TokenType.LESS_THAN_EQUAL, "<=", line, starting_col + 1);
       } else {
-        return new Token(TokenType.LESS_THAN, "<", line, column);
+        return token(TokenType.LESS_THAN, "<", line, column);
       }
     }
     if(isSymbol(ch, '>')) {
@@ -329,47 +456,35 @@ public class Lexer {
       if(peek() == '=') {
         ch = read();
         column++;
-        return new Token(TokenType.GREATER_THAN_EQUAL, ">=", line, starting_col + 1);
+        return token(TokenType.GREATER_THAN_EQUAL, ">=", line, starting_col + 1);
       } else {
-        return new Token(TokenType.GREATER_THAN, ">", line, column);
+        return token(TokenType.GREATER_THAN, ">", line, column);
       }
     }
     if(isSymbol(ch, '&')) {
       ch = read();
       column++;
-      return new Token(TokenType.AND, "&", line, column);
+      return token(TokenType.AND, "&", line, column);
     }
     if(isSymbol(ch, '|')) {
       ch = read();
       column++;
-      return new Token(TokenType.OR, "|", line, column);
+      return token(TokenType.OR, "|", line, column);
     }
     if(isSymbol(ch, '{')) {
       ch = read();
       column++;
-      return new Token(TokenType.LBRACE, "{", line, column);
+      return token(TokenType.LBRACE, "{", line, column);
     }
     if(isSymbol(ch, '}')) {
       ch = read();
       column++;
-      return new Token(TokenType.RBRACE, "}", line, column);
-    }
-    if(isSymbol(ch, '"')) {
-      // Read string
-      StringBuffer str = new StringBuffer();
-      ch = read();
-      column++;
-      while(ch != '"') {
-        ch = read();
-        str.append((char)ch);
-        column++;
-      }
-      return new Token(TokenType.STRING_VAL, str.toString(), line, column);
+      return token(TokenType.RBRACE, "}", line, column);
     }
     if(isSymbol(ch, '%')) {
       ch = read();
       column++;
-      return new Token(TokenType.MODULO, "%", line, column);
+      return token(TokenType.MODULO, "%", line, column);
     }
     if(isSymbol(ch, '!')) {
         starting_col = column + 1;
@@ -382,9 +497,9 @@ public class Lexer {
         else if(isSymbol(ch2, '=')) {
           ch = read();
           column++;
-         return new Token(TokenType.NOT_EQUAL, "!=", line, column - 1);
+         return token(TokenType.NOT_EQUAL, "!=", line, column - 1);
         } else {
-          return new Token(TokenType.NOT, "!", line, column);
+          return token(TokenType.NOT, "!", line, column);
         }
               
         
@@ -396,45 +511,28 @@ public class Lexer {
         if(column == 0) {
           starting_col = 1;
         }
-        StringBuffer id = new StringBuffer();
         ch = read(); 
-        id.append((char)ch);
         column++;
         ch = peek();
         while(isLetter(ch) || isDigit(ch) || isSymbol(ch, '_') || isSymbol(ch, '@')) {
           ch = read();
-          id.append((char)ch);
           column++;
           ch = peek();
         }
-        while(isLetter(ch) || isSymbol(ch, '_') || isDigit(ch) || isSymbol(ch, '@')) {
-            ch = read();
-            id.append((char)ch);
-            column++;
-            if(peek() == '_' || peek() == '@') {
-                ch = read();
-                id.append('_');
-                column++;
-            }
-            if(isEOF(peek()) || !isLetter(peek()) && !isSymbol(peek(), '_') && !isSymbol(peek(), '@')) {
-                break;
-            }
+        String word = text(start);
+        TokenType type = keyword(word);
+        // a keyword's lexeme is the interned string (as the checker
+        // compares type names by reference)
+        if(type != null) {
+          word = word.intern();
         }
-        String tmp = id.toString().replaceAll("\\s", "");
-
-        if(tmp.equals("import")) {
-          return new Token(TokenType.IMPORT, "import", line, starting_col);
+        if(type == TokenType.IMPORT || type == TokenType.BOOL_VAL) {
+          return token(type, word, line, starting_col);
         }
-        
-        for(int i = 0; i < words.length; i++) {
-          if(words[i].equals(tmp)) {
-            if(words[i].equals("true") || words[i].equals("false")) {
-              return new Token(TokenType.BOOL_VAL, words[i], line, starting_col);
-            }
-            return new Token(types[i], words[i], line, column - words[i].length() + 1);
-          }
+        if(type != null) {
+          return token(type, word, line, column - word.length() + 1);
         }
-        return new Token(TokenType.ID, String.valueOf(tmp), line, starting_col);
+        return token(TokenType.ID, word, line, starting_col);
     }
     // read characters
     if(isSymbol(ch, '\'')) {
@@ -476,7 +574,7 @@ public class Lexer {
         }
         
         ch = read();
-        return new Token(TokenType.CHAR_VAL, c, line, starting_col + column - 1);
+        return token(TokenType.CHAR_VAL, c, line, starting_col + column - 1);
     } else {
       error("invalid symbol \'" + (char)ch + "\'", line, column + 1);
     }
@@ -484,8 +582,25 @@ public class Lexer {
     return null;
   }
 
-  
+  // the input from the given index up to the next character
+  private String text(int from) {
+    return new String(chars, from, pos - from);
+  }
 
+  // Returns the token, or in a tokenize adds it to the buffer instead
+  // (returning null). The text of a string or char literal includes
+  // its quotes, and that of a keyword or symbol is its lexeme.
+  private Token token(TokenType type, String lexeme, int line, int column) {
+    if (buffer == null)
+      return new Token(type, lexeme, line, column);
+    int length = lexeme.length();
+    if (type == TokenType.STRING_VAL || type == TokenType.CHAR_VAL)
+      length = pos - start;
+    else if (type == TokenType.EOS)
+      length = 0;
+    buffer.add(type, start, length, lexeme);
+    return null;
+  }
 
 }
 
@@ -0,0 +1,514 @@
+/*
+ * File: LoopInvariantMotion.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: AST optimization pass that hoists loop-invariant computations
+ *       out of while and for loops into temporary variables ($licm0,
+ *       $licm1, ...). An expression is invariant if none of the
+ *       variables it reads are assigned (or declared) in the loop, it
+ *       only calls pure built-ins, and any field loads it does are
+ *       through paths the loop cannot write (no field assignment,
+ *       delete, or user-defined call in the loop).
+ *
+ *       Expressions are only hoisted from places that are evaluated
+ *       whenever the loop is entered: the loop condition (or for-loop
+ *       bound), and the leading body statements up to the first
+ *       statement that may loop, return, or call an impure function.
+ *       Values hoisted from the body are computed inside a guard that
+ *       repeats the loop's entry test, so nothing is evaluated for
+ *       loops that never run. Expressions that build new strings are
+ *       left alone, since the VM compares strings by reference.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class LoopInvariantMotion implements Visitor {
+
+  // built-in functions without side effects
+  private static final Set<String> PURE_BUILTINS =
+    Set.of("get", "length", "stoi", "stod", "itos", "dtos", "dtoi");
+
+  // pure built-ins that return a new string
+  private static final Set<String> STRING_BUILTINS = Set.of("itos", "dtos");
+
+  // number of temporaries created (used for unique names)
+  private int tempCount = 0;
+
+  // number of expressions replaced by a temporary
+  private int hoistCount = 0;
+
+  // variables assigned or declared in the current loop
+  private Set<String> modified = new HashSet<>();
+
+  // true if the current loop may write heap objects
+  private boolean heapWrites = false;
+
+  // set when a visited node calls an impure function
+  private boolean impureCall = false;
+
+  // set when a visited node contains a loop or return
+  private boolean loopOrReturn = false;
+
+  // hoisted expressions (by key) of the current loop and their temps
+  private Map<String,String> hoisted = new HashMap<>();
+
+  // declarations of the temporaries being hoisted
+  private List<Stmt> decls = new ArrayList<>();
+
+
+  /**
+   * Returns the number of expressions replaced by a hoisted temporary.
+   */
+  public int hoistCount() {
+    return hoistCount;
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // optimize each loop in the statements (and nested statements)
+  private List<Stmt> optimize(List<Stmt> stmts) throws MyPLException {
+    List<Stmt> result = new ArrayList<>();
+    for (Stmt stmt : stmts) {
+      if (stmt instanceof WhileStmt)
+        result.addAll(optimizeWhile((WhileStmt)stmt));
+      else if (stmt instanceof ForStmt)
+        result.addAll(optimizeFor((ForStmt)stmt));
+      else {
+        if (stmt instanceof CondStmt) {
+          CondStmt c = (CondStmt)stmt;
+          c.ifPart.stmts = optimize(c.ifPart.stmts);
+          for (BasicIf elif : c.elifs)
+            elif.stmts = optimize(elif.stmts);
+          if (c.elseStmts != null)
+            c.elseStmts = optimize(c.elseStmts);
+        }
+        result.add(stmt);
+      }
+    }
+    return result;
+  }
+
+  private List<Stmt> optimizeWhile(WhileStmt node) throws MyPLException {
+    List<Stmt> result = new ArrayList<>();
+    beginLoop(node.stmts);
+    node.cond.accept(this);
+    if (pure(node.cond)) {
+      // the condition is evaluated whenever the loop is reached
+      hoistIn(node.cond);
+      result.addAll(decls);
+      decls = new ArrayList<>();
+      hoistInBody(node.stmts);
+    }
+    List<Stmt> bodyDecls = decls;
+    node.stmts = optimize(node.stmts);
+    result.add(guard(node.cond, bodyDecls, node));
+    return result;
+  }
+
+  private List<Stmt> optimizeFor(ForStmt node) throws MyPLException {
+    List<Stmt> result = new ArrayList<>();
+    beginLoop(node.stmts);
+    modified.add(node.varName.lexeme());
+    if (pure(node.start) && pure(node.end)) {
+      // the bound is evaluated whenever the loop is reached
+      hoistIn(node.end);
+      result.addAll(decls);
+      decls = new ArrayList<>();
+      hoistInBody(node.stmts);
+    }
+    List<Stmt> bodyDecls = decls;
+    node.stmts = optimize(node.stmts);
+    // the loop runs if start <= end (or start >= end for downto)
+    Expr cond = new Expr();
+    cond.first = parens(node.start);
+    cond.op = node.upto ? new Token(TokenType.LESS_THAN_EQUAL, "<=", 0, 0) :
+      new Token(TokenType.GREATER_THAN_EQUAL, ">=", 0, 0);
+    cond.rest = new Expr();
+    cond.rest.first = parens(node.end);
+    result.add(guard(cond, bodyDecls, node));
+    return result;
+  }
+
+  // the loop, preceded by the declarations in an if on the loop's
+  // entry condition (or just the loop if there are no declarations)
+  private Stmt guard(Expr cond, List<Stmt> bodyDecls, Stmt loop) {
+    if (bodyDecls.isEmpty())
+      return loop;
+    CondStmt stmt = new CondStmt();
+    stmt.ifPart = new BasicIf();
+    stmt.ifPart.cond = cond;
+    stmt.ifPart.stmts.addAll(bodyDecls);
+    stmt.ifPart.stmts.add(loop);
+    return stmt;
+  }
+
+  private static ComplexTerm parens(Expr expr) {
+    ComplexTerm term = new ComplexTerm();
+    term.expr = expr;
+    return term;
+  }
+
+  // find what the loop body modifies
+  private void beginLoop(List<Stmt> stmts) throws MyPLException {
+    modified = new HashSet<>();
+    heapWrites = false;
+    hoisted = new HashMap<>();
+    decls = new ArrayList<>();
+    for (Stmt stmt : stmts)
+      stmt.accept(this);
+  }
+
+  // true if the node does not call an impure function
+  private boolean pure(ASTNode node) throws MyPLException {
+    impureCall = false;
+    node.accept(this);
+    return !impureCall;
+  }
+
+  // hoist from the leading body statements that always run
+  private void hoistInBody(List<Stmt> stmts) throws MyPLException {
+    for (Stmt stmt : stmts) {
+      impureCall = false;
+      loopOrReturn = false;
+      stmt.accept(this);
+      if (impureCall || loopOrReturn)
+        return;
+      if (stmt instanceof VarDeclStmt)
+        hoistIn(((VarDeclStmt)stmt).expr);
+      else if (stmt instanceof AssignStmt)
+        hoistIn(((AssignStmt)stmt).expr);
+      else if (stmt instanceof CondStmt)
+        hoistIn(((CondStmt)stmt).ifPart.cond);
+    }
+  }
+
+  // hoist the largest invariant subexpressions of the expression
+  private void hoistIn(Expr expr) {
+    if (invariant(expr) && worthHoisting(expr) && !newString(expr)) {
+      hoist(expr);
+      return;
+    }
+    hoistIn(expr.first);
+    if (expr.rest != null)
+      hoistIn(expr.rest);
+  }
+
+  private void hoistIn(ExprTerm term) {
+    if (term instanceof ComplexTerm) {
+      hoistIn(((ComplexTerm)term).expr);
+      return;
+    }
+    SimpleTerm simpleTerm = (SimpleTerm)term;
+    RValue rvalue = simpleTerm.rvalue;
+    if (invariantRValue(rvalue) && worthHoistingRValue(rvalue) && !newStringRValue(rvalue)) {
+      Expr expr = new Expr();
+      expr.first = simpleTerm;
+      hoist(expr);
+    }
+    else if (rvalue instanceof CallExpr) {
+      for (Expr arg : ((CallExpr)rvalue).args)
+        hoistIn(arg);
+    }
+    else if (rvalue instanceof NegatedRValue)
+      hoistIn(((NegatedRValue)rvalue).expr);
+  }
+
+  // move the expression's computation to a temporary declaration and
+  // replace it (in place) with the temporary
+  private void hoist(Expr expr) {
+    String key = key(expr);
+    String temp = hoisted.get(key);
+    if (temp == null) {
+      temp = "$licm" + tempCount++;
+      Expr copy = new Expr();
+      copy.logicallyNegated = expr.logicallyNegated;
+      copy.first = copyTerm(expr.first);
+      copy.op = expr.op;
+      copy.rest = expr.rest;
+      VarDeclStmt decl = new VarDeclStmt();
+      decl.varName = new Token(TokenType.ID, temp, 0, 0);
+      decl.expr = copy;
+      decls.add(decl);
+      hoisted.put(key, temp);
+    }
+    IDRValue rvalue = new IDRValue();
+    rvalue.path.add(new Token(TokenType.ID, temp, 0, 0));
+    SimpleTerm term = new SimpleTerm();
+    term.rvalue = rvalue;
+    expr.logicallyNegated = false;
+    expr.op = null;
+    expr.rest = null;
+    if (expr.first instanceof SimpleTerm)
+      ((SimpleTerm)expr.first).rvalue = rvalue;
+    else
+      expr.first = term;
+    ++hoistCount;
+  }
+
+  // a term with the same contents (simple terms are updated in place
+  // when hoisted, so the hoisted copy needs its own)
+  private static ExprTerm copyTerm(ExprTerm term) {
+    if (!(term instanceof SimpleTerm))
+      return term;
+    SimpleTerm copy = new SimpleTerm();
+    copy.rvalue = ((SimpleTerm)term).rvalue;
+    return copy;
+  }
+
+  private boolean invariant(Expr expr) {
+    return invariantTerm(expr.first) && (expr.rest == null || invariant(expr.rest));
+  }
+
+  private boolean invariantTerm(ExprTerm term) {
+    if (term instanceof ComplexTerm)
+      return invariant(((ComplexTerm)term).expr);
+    return invariantRValue(((SimpleTerm)term).rvalue);
+  }
+
+  private boolean invariantRValue(RValue rvalue) {
+    if (rvalue instanceof SimpleRValue)
+      return true;
+    if (rvalue instanceof IDRValue) {
+      List<Token> path = ((IDRValue)rvalue).path;
+      return !modified.contains(path.get(0).lexeme()) && (path.size() == 1 || !heapWrites);
+    }
+    if (rvalue instanceof CallExpr) {
+      CallExpr call = (CallExpr)rvalue;
+      if (call.funName == null || !PURE_BUILTINS.contains(call.funName.lexeme()))
+        return false;
+      for (Expr arg : call.args)
+        if (!invariant(arg))
+          return false;
+      return true;
+    }
+    if (rvalue instanceof NegatedRValue)
+      return invariant(((NegatedRValue)rvalue).expr);
+    // new objects are different each time
+    return false;
+  }
+
+  // true if the expression does some work (not just a literal or a
+  // variable)
+  private static boolean worthHoisting(Expr expr) {
+    return expr.op != null || expr.logicallyNegated || worthHoistingTerm(expr.first);
+  }
+
+  private static boolean worthHoistingTerm(ExprTerm term) {
+    if (term instanceof ComplexTerm)
+      return worthHoisting(((ComplexTerm)term).expr);
+    return worthHoistingRValue(((SimpleTerm)term).rvalue);
+  }
+
+  private static boolean worthHoistingRValue(RValue rvalue) {
+    if (rvalue instanceof IDRValue)
+      return ((IDRValue)rvalue).path.size() > 1;
+    return rvalue instanceof CallExpr || rvalue instanceof NegatedRValue;
+  }
+
+  // true if the expression may create a new string
+  private static boolean newString(Expr expr) {
+    if (expr.logicallyNegated)
+      return false;
+    if (expr.op == null)
+      return newStringTerm(expr.first);
+    // + concatenates unless one of its operands is known not to be
+    // a string
+    return expr.op.lexeme().equals("+") && !notString(expr.first) && !notString(expr.rest);
+  }
+
+  private static boolean newStringTerm(ExprTerm term) {
+    if (term instanceof ComplexTerm)
+      return newString(((ComplexTerm)term).expr);
+    return newStringRValue(((SimpleTerm)term).rvalue);
+  }
+
+  private static boolean newStringRValue(RValue rvalue) {
+    return rvalue instanceof CallExpr &&
+      STRING_BUILTINS.contains(((CallExpr)rvalue).funName.lexeme());
+  }
+
+  // true if the expression's value is known not to be a string
+  private static boolean notString(Expr expr) {
+    if (expr.logicallyNegated || (expr.op != null && !expr.op.lexeme().equals("+")))
+      return true;
+    if (expr.op != null)
+      return notString(expr.first) || notString(expr.rest);
+    return notString(expr.first);
+  }
+
+  private static boolean notString(ExprTerm term) {
+    if (term instanceof ComplexTerm)
+      return notString(((ComplexTerm)term).expr);
+    RValue rvalue = ((SimpleTerm)term).rvalue;
+    if (rvalue instanceof SimpleRValue) {
+      TokenType type = ((SimpleRValue)rvalue).value.type();
+      return type == TokenType.INT_VAL || type == TokenType.DOUBLE_VAL ||
+        type == TokenType.BOOL_VAL;
+    }
+    if (rvalue instanceof CallExpr) {
+      CallExpr call = (CallExpr)rvalue;
+      return call.funName != null && PURE_BUILTINS.contains(call.funName.lexeme()) &&
+        !STRING_BUILTINS.contains(call.funName.lexeme());
+    }
+    return rvalue instanceof NegatedRValue;
+  }
+
+  // a string identifying the expression's computation
+  private static String key(Expr expr) {
+    String key = expr.logicallyNegated ? "not " : "";
+    key += key(expr.first);
+    if (expr.op != null)
+      key += " " + expr.op.lexeme() + " " + key(expr.rest);
+    return key;
+  }
+
+  private static String key(ExprTerm term) {
+    if (term instanceof ComplexTerm)
+      return "(" + key(((ComplexTerm)term).expr) + ")";
+    RValue rvalue = ((SimpleTerm)term).rvalue;
+    if (rvalue instanceof SimpleRValue) {
+      Token value = ((SimpleRValue)rvalue).value;
+      return value.type() + ":" + value.lexeme();
+    }
+    if (rvalue instanceof IDRValue) {
+      String key = "";
+      for (Token t : ((IDRValue)rvalue).path)
+        key += (key.isEmpty() ? "" : ".") + t.lexeme();
+      return key;
+    }
+    if (rvalue instanceof CallExpr) {
+      CallExpr call = (CallExpr)rvalue;
+      String key = call.funName.lexeme() + "(";
+      for (Expr arg : call.args)
+        key += key(arg) + ",";
+      return key + ")";
+    }
+    if (rvalue instanceof NegatedRValue)
+      return "neg " + key(((NegatedRValue)rvalue).expr);
+    return "new " + ((NewRValue)rvalue).typeName.lexeme();
+  }
+
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS (find what loops modify and call)
+  //----------------------------------------------------------------------
+
+  public void visit(Program node) throws MyPLException {
+    for (FunDecl fdecl : node.fdecls)
+      fdecl.accept(this);
+  }
+
+  public void visit(TypeDecl node) throws MyPLException {
+    // Intentionally left blank -- nothing to do here
+  }
+
+  public void visit(FunDecl node) throws MyPLException {
+    node.stmts = optimize(node.stmts);
+  }
+
+  public void visit(VarDeclStmt node) throws MyPLException {
+    modified.add(node.varName.lexeme());
+    node.expr.accept(this);
+  }
+
+  public void visit(AssignStmt node) throws MyPLException {
+    if (node.lvalue.size() == 1)
+      modified.add(node.lvalue.get(0).lexeme());
+    else
+      heapWrites = true;
+    node.expr.accept(this);
+  }
+
+  public void visit(CondStmt node) throws MyPLException {
+    node.ifPart.cond.accept(this);
+    for (Stmt stmt : node.ifPart.stmts)
+      stmt.accept(this);
+    for (BasicIf elif : node.elifs) {
+      elif.cond.accept(this);
+      for (Stmt stmt : elif.stmts)
+        stmt.accept(this);
+    }
+    if (node.elseStmts != null)
+      for (Stmt stmt : node.elseStmts)
+        stmt.accept(this);
+  }
+
+  public void visit(WhileStmt node) throws MyPLException {
+    loopOrReturn = true;
+    node.cond.accept(this);
+    for (Stmt stmt : node.stmts)
+      stmt.accept(this);
+  }
+
+  public void visit(ForStmt node) throws MyPLException {
+    loopOrReturn = true;
+    modified.add(node.varName.lexeme());
+    node.start.accept(this);
+    node.end.accept(this);
+    for (Stmt stmt : node.stmts)
+      stmt.accept(this);
+  }
+
+  public void visit(ReturnStmt node) throws MyPLException {
+    loopOrReturn = true;
+    if (node.expr != null)
+      node.expr.accept(this);
+  }
+
+  public void visit(DeleteStmt node) throws MyPLException {
+    modified.add(node.varName.lexeme());
+    heapWrites = true;
+  }
+
+  public void visit(CallExpr node) throws MyPLException {
+    if (node.funName == null || !PURE_BUILTINS.contains(node.funName.lexeme())) {
+      impureCall = true;
+      // print and read cannot change the heap
+      if (node.funName == null || (!node.funName.lexeme().equals("print") &&
+                                   !node.funName.lexeme().equals("read")))
+        heapWrites = true;
+    }
+    for (Expr arg : node.args)
+      arg.accept(this);
+  }
+
+  public void visit(SimpleRValue node) throws MyPLException {
+    // Intentionally left blank -- nothing to do here
+  }
+
+  public void visit(NewRValue node) throws MyPLException {
+    // Intentionally left blank -- nothing to do here
+  }
+
+  public void visit(IDRValue node) throws MyPLException {
+    // Intentionally left blank -- nothing to do here
+  }
+
+  public void visit(NegatedRValue node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+  public void visit(Expr node) throws MyPLException {
+    node.first.accept(this);
+    if (node.rest != null)
+      node.rest.accept(this);
+  }
+
+  public void visit(SimpleTerm node) throws MyPLException {
+    node.rvalue.accept(this);
+  }
+
+  public void visit(ComplexTerm node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+}
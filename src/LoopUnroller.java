@@ -0,0 +1,380 @@
+/*
+ * File: LoopUnroller.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: AST optimization pass for counted loops of the form
+ *
+ *         for i from s upto e { body }
+ *
+ *       where the body is small, has no loops or returns, and does not
+ *       assign i, and e is a literal or a variable the body does not
+ *       assign. The loop is rewritten as
+ *
+ *         var i = s
+ *         while (i + (n-1)) <= e { body; i = i + 1; ... (n times) }
+ *         while i <= e { body; i = i + 1 }
+ *
+ *       which runs n body copies per condition check, with the second
+ *       loop running the remaining iterations. Products i * k (or
+ *       k * i) for an int constant k that appear often enough in the
+ *       body are also strength reduced into a variable initialized to
+ *       s * k and increased by k whenever i is incremented.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class LoopUnroller implements Visitor {
+
+  // default number of body copies per unrolled iteration
+  public static final int DEFAULT_FACTOR = 4;
+
+  // largest body (number of statements, including nested ones) that
+  // is unrolled
+  private static final int MAX_BODY_STMTS = 8;
+
+  // fewest uses of i * k worth a strength-reduced variable (each use
+  // saves two instructions, each increment costs four)
+  private static final int MIN_REDUCED_USES = 3;
+
+  private int factor;
+
+  // number of loops unrolled and products strength reduced
+  private int unrollCount = 0;
+  private int reducedCount = 0;
+
+  // number of induction variables created (used for unique names)
+  private int tempCount = 0;
+
+  // the current loop's variable
+  private String loopVar = null;
+
+  // variables assigned or declared in the current loop body
+  private Set<String> modified = new HashSet<>();
+
+  // statements in the current loop body
+  private int stmtCount = 0;
+
+  // true if the current loop body contains a loop or return
+  private boolean loopOrReturn = false;
+
+  // the current loop's i * k products (by k)
+  private Map<Integer,List<Expr>> products = new HashMap<>();
+
+
+  public LoopUnroller() {
+    this(DEFAULT_FACTOR);
+  }
+
+  /**
+   * Creates an unroller with the given number of body copies per
+   * unrolled iteration.
+   */
+  public LoopUnroller(int factor) {
+    this.factor = factor;
+  }
+
+  /**
+   * Returns the number of loops unrolled.
+   */
+  public int unrollCount() {
+    return unrollCount;
+  }
+
+  /**
+   * Returns the number of products replaced by induction variables.
+   */
+  public int reducedCount() {
+    return reducedCount;
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // unroll the eligible loops in the statements (innermost first)
+  private List<Stmt> optimize(List<Stmt> stmts) throws MyPLException {
+    List<Stmt> result = new ArrayList<>();
+    for (Stmt stmt : stmts) {
+      if (stmt instanceof CondStmt) {
+        CondStmt c = (CondStmt)stmt;
+        c.ifPart.stmts = optimize(c.ifPart.stmts);
+        for (BasicIf elif : c.elifs)
+          elif.stmts = optimize(elif.stmts);
+        if (c.elseStmts != null)
+          c.elseStmts = optimize(c.elseStmts);
+      }
+      else if (stmt instanceof WhileStmt)
+        ((WhileStmt)stmt).stmts = optimize(((WhileStmt)stmt).stmts);
+      else if (stmt instanceof ForStmt) {
+        ForStmt f = (ForStmt)stmt;
+        f.stmts = optimize(f.stmts);
+        if (factor > 1 && canUnroll(f)) {
+          result.addAll(unroll(f));
+          continue;
+        }
+      }
+      result.add(stmt);
+    }
+    return result;
+  }
+
+  // true if the loop counts up to a fixed bound with a simple body
+  private boolean canUnroll(ForStmt node) throws MyPLException {
+    if (!node.upto)
+      return false;
+    loopVar = node.varName.lexeme();
+    modified = new HashSet<>();
+    stmtCount = 0;
+    loopOrReturn = false;
+    products = new HashMap<>();
+    visitStmts(node.stmts);
+    loopVar = null;
+    if (loopOrReturn || stmtCount > MAX_BODY_STMTS || modified.contains(node.varName.lexeme()))
+      return false;
+    // the bound must be a literal or an unassigned variable
+    Expr end = node.end;
+    if (end.logicallyNegated || end.op != null || !(end.first instanceof SimpleTerm))
+      return false;
+    RValue rvalue = ((SimpleTerm)end.first).rvalue;
+    if (rvalue instanceof SimpleRValue)
+      return ((SimpleRValue)rvalue).value.type() == TokenType.INT_VAL;
+    if (rvalue instanceof IDRValue) {
+      List<Token> path = ((IDRValue)rvalue).path;
+      return path.size() == 1 && !modified.contains(path.get(0).lexeme());
+    }
+    return false;
+  }
+
+  private List<Stmt> unroll(ForStmt node) {
+    Token var = node.varName;
+    List<Stmt> result = new ArrayList<>();
+    result.add(varDecl(var, node.start));
+    // each increment of the loop variable also steps the induction
+    // variables
+    List<Stmt> step = new ArrayList<>();
+    step.add(assign(var, binary(idExpr(var), "+", TokenType.PLUS, intExpr(1))));
+    for (Map.Entry<Integer,List<Expr>> e : products.entrySet()) {
+      if (e.getValue().size() < MIN_REDUCED_USES)
+        continue;
+      Token temp = new Token(TokenType.ID, "$iv" + tempCount++, var.line(), var.column());
+      int k = e.getKey();
+      result.add(varDecl(temp, binary(idExpr(var), "*", TokenType.MULTIPLY, intExpr(k))));
+      step.add(assign(temp, binary(idExpr(temp), "+", TokenType.PLUS, intExpr(k))));
+      for (Expr product : e.getValue()) {
+        Expr replacement = idExpr(temp);
+        product.first = replacement.first;
+        product.op = null;
+        product.rest = null;
+        ++reducedCount;
+      }
+    }
+    WhileStmt unrolled = new WhileStmt();
+    Expr last = binary(idExpr(var), "+", TokenType.PLUS, intExpr(factor - 1));
+    unrolled.cond = binary(last, "<=", TokenType.LESS_THAN_EQUAL, node.end);
+    for (int i = 0; i < factor; ++i) {
+      unrolled.stmts.addAll(node.stmts);
+      unrolled.stmts.addAll(step);
+    }
+    WhileStmt remainder = new WhileStmt();
+    remainder.cond = binary(idExpr(var), "<=", TokenType.LESS_THAN_EQUAL, node.end);
+    remainder.stmts.addAll(node.stmts);
+    remainder.stmts.addAll(step);
+    result.add(unrolled);
+    result.add(remainder);
+    ++unrollCount;
+    return result;
+  }
+
+  private static Expr idExpr(Token name) {
+    IDRValue rvalue = new IDRValue();
+    rvalue.path.add(name);
+    SimpleTerm term = new SimpleTerm();
+    term.rvalue = rvalue;
+    Expr expr = new Expr();
+    expr.first = term;
+    return expr;
+  }
+
+  private static Expr intExpr(int val) {
+    SimpleRValue rvalue = new SimpleRValue();
+    rvalue.value = new Token(TokenType.INT_VAL, "" + val, 0, 0);
+    SimpleTerm term = new SimpleTerm();
+    term.rvalue = rvalue;
+    Expr expr = new Expr();
+    expr.first = term;
+    return expr;
+  }
+
+  // the expression (lhs) op (rhs)
+  private static Expr binary(Expr lhs, String op, TokenType type, Expr rhs) {
+    Expr expr = new Expr();
+    if (lhs.op == null && !lhs.logicallyNegated)
+      expr.first = lhs.first;
+    else {
+      ComplexTerm term = new ComplexTerm();
+      term.expr = lhs;
+      expr.first = term;
+    }
+    expr.op = new Token(type, op, 0, 0);
+    expr.rest = rhs;
+    return expr;
+  }
+
+  private static VarDeclStmt varDecl(Token name, Expr expr) {
+    VarDeclStmt stmt = new VarDeclStmt();
+    stmt.varName = name;
+    stmt.expr = expr;
+    return stmt;
+  }
+
+  private static AssignStmt assign(Token name, Expr expr) {
+    AssignStmt stmt = new AssignStmt();
+    stmt.lvalue.add(name);
+    stmt.expr = expr;
+    return stmt;
+  }
+
+  private void visitStmts(List<Stmt> stmts) throws MyPLException {
+    for (Stmt stmt : stmts) {
+      ++stmtCount;
+      stmt.accept(this);
+    }
+  }
+
+  // the constant k if the expression is exactly i * k or k * i (for
+  // the loop variable i), otherwise null
+  private Integer product(Expr expr) {
+    if (expr.logicallyNegated || expr.op == null || !expr.op.lexeme().equals("*"))
+      return null;
+    Expr rest = expr.rest;
+    if (rest.logicallyNegated || rest.op != null)
+      return null;
+    Token lhs = simpleValue(expr.first);
+    Token rhs = simpleValue(rest.first);
+    if (lhs == null || rhs == null)
+      return null;
+    if (lhs.type() == TokenType.ID && lhs.lexeme().equals(loopVar) &&
+        rhs.type() == TokenType.INT_VAL)
+      return Integer.parseInt(rhs.lexeme());
+    if (rhs.type() == TokenType.ID && rhs.lexeme().equals(loopVar) &&
+        lhs.type() == TokenType.INT_VAL)
+      return Integer.parseInt(lhs.lexeme());
+    return null;
+  }
+
+  // the literal or (single) variable name of the term, or null
+  private static Token simpleValue(ExprTerm term) {
+    if (!(term instanceof SimpleTerm))
+      return null;
+    RValue rvalue = ((SimpleTerm)term).rvalue;
+    if (rvalue instanceof SimpleRValue)
+      return ((SimpleRValue)rvalue).value;
+    if (rvalue instanceof IDRValue && ((IDRValue)rvalue).path.size() == 1)
+      return ((IDRValue)rvalue).path.get(0);
+    return null;
+  }
+
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS (examine a loop body)
+  //----------------------------------------------------------------------
+
+  public void visit(Program node) throws MyPLException {
+    for (FunDecl fdecl : node.fdecls)
+      fdecl.accept(this);
+  }
+
+  public void visit(TypeDecl node) throws MyPLException {
+    // Intentionally left blank -- nothing to do here
+  }
+
+  public void visit(FunDecl node) throws MyPLException {
+    node.stmts = optimize(node.stmts);
+  }
+
+  public void visit(VarDeclStmt node) throws MyPLException {
+    modified.add(node.varName.lexeme());
+    node.expr.accept(this);
+  }
+
+  public void visit(AssignStmt node) throws MyPLException {
+    if (node.lvalue.size() == 1)
+      modified.add(node.lvalue.get(0).lexeme());
+    node.expr.accept(this);
+  }
+
+  public void visit(CondStmt node) throws MyPLException {
+    node.ifPart.cond.accept(this);
+    visitStmts(node.ifPart.stmts);
+    for (BasicIf elif : node.elifs) {
+      elif.cond.accept(this);
+      visitStmts(elif.stmts);
+    }
+    if (node.elseStmts != null)
+      visitStmts(node.elseStmts);
+  }
+
+  public void visit(WhileStmt node) throws MyPLException {
+    loopOrReturn = true;
+  }
+
+  public void visit(ForStmt node) throws MyPLException {
+    loopOrReturn = true;
+  }
+
+  public void visit(ReturnStmt node) throws MyPLException {
+    loopOrReturn = true;
+  }
+
+  public void visit(DeleteStmt node) throws MyPLException {
+    modified.add(node.varName.lexeme());
+  }
+
+  public void visit(CallExpr node) throws MyPLException {
+    for (Expr arg : node.args)
+      arg.accept(this);
+  }
+
+  public void visit(SimpleRValue node) throws MyPLException {
+    // Intentionally left blank -- nothing to do here
+  }
+
+  public void visit(NewRValue node) throws MyPLException {
+    // Intentionally left blank -- nothing to do here
+  }
+
+  public void visit(IDRValue node) throws MyPLException {
+    // Intentionally left blank -- nothing to do here
+  }
+
+  public void visit(NegatedRValue node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+  public void visit(Expr node) throws MyPLException {
+    Integer k = product(node);
+    if (k != null) {
+      products.computeIfAbsent(k, key -> new ArrayList<>()).add(node);
+      return;
+    }
+    node.first.accept(this);
+    if (node.rest != null)
+      node.rest.accept(this);
+  }
+
+  public void visit(SimpleTerm node) throws MyPLException {
+    node.rvalue.accept(this);
+  }
+
+  public void visit(ComplexTerm node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+}
@@ -1,5 +1,15 @@
+/*
+ * File: Module.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: An imported module: its parsed program (with its functions and
+ *       types renamed into the module's namespace) and its symbol
+ *       table, which maps each name the module declares to its
+ *       namespaced name (module@name).
+ */
 
 public class Module {
     public Token moduleName = null;
+    public Program program = null;
     public SymbolTable symbolTable = new SymbolTable();
 }
@@ -0,0 +1,224 @@
+/*
+ * File: ModuleCompiler.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Compiles a program's imported modules separately, so that an
+ *       edit recompiles only what it affects. Each module is compiled
+ *       on its own against the interface summaries of the modules it
+ *       imports, and its code and summary are kept in the compile
+ *       cache. A summary is MyPL source holding the module's record
+ *       types in full (since field initializers are compiled into the
+ *       code creating the record) and a stub of each function
+ *       signature, all with their namespaced (module@name) names.
+ *
+ *       A module's cache key covers its source and the summaries of
+ *       the modules it imports (directly or through other modules),
+ *       not their sources. A module is therefore recompiled only if it
+ *       changed or an imported interface did: changing a function body
+ *       recompiles that module alone. The program itself is compiled
+ *       against the summaries of all its modules, and the modules'
+ *       code added to it. Calls between separately compiled modules
+ *       are never inlined.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class ModuleCompiler {
+
+  // the linker loading modules, the cache compiled modules are kept
+  // in, and the passes run
+  private ModuleLinker linker;
+  private CompileCache cache;
+  private List<String> passes;
+
+  // the modules compiled (or found in the cache) by the last compile
+  private int compiledCount = 0;
+  private int cachedCount = 0;
+
+
+  public ModuleCompiler(ModuleLinker linker, CompileCache cache, List<String> passes) {
+    this.linker = linker;
+    this.cache = cache;
+    this.passes = passes;
+  }
+
+  /**
+   * Compiles the program, compiling each module it imports separately
+   * (or taking it from the cache).
+   * @param program the parsed (unlinked) program
+   * @param source the program's source
+   * @return a VM holding the program's and the modules' code, or null
+   *         if the modules cannot be compiled separately (when one is
+   *         missing or modules import each other, which linking the
+   *         program reports)
+   */
+  public VM compile(Program program, byte[] source) throws MyPLException {
+    compiledCount = 0;
+    cachedCount = 0;
+    Map<String,byte[]> sources;
+    try {
+      sources = linker.moduleSourceMap(source);
+    }
+    catch (IOException e) {
+      return null;
+    }
+    // the modules each module imports (directly or not), in the
+    // order modules are compiled
+    Map<String,Set<String>> imported = new HashMap<>();
+    List<String> order = new ArrayList<>();
+    for (String name : ModuleLinker.imports(source))
+      if (!visit(name, sources, imported, order, new HashSet<>()))
+        return null;
+    Map<String,String> summaries = new HashMap<>();
+    List<VMFrame> frames = new ArrayList<>();
+    for (String name : order) {
+      List<String> dependencies = new ArrayList<>();
+      for (String other : order)
+        if (imported.get(name).contains(other))
+          dependencies.add(other);
+      List<byte[]> keySources = new ArrayList<>();
+      keySources.add(sources.get(name));
+      for (String other : dependencies)
+        keySources.add(summaries.get(other).getBytes(StandardCharsets.UTF_8));
+      String key = CompileCache.key("module " + name + "\npasses=" + String.join(",", passes),
+                                    keySources);
+      String summary = cache.summary(key);
+      VM vm = summary == null ? null : cache.get(key);
+      if (vm == null) {
+        Token token = new Token(TokenType.ID, name, 0, 0);
+        Module module = linker.load(token, sources.get(name));
+        summary = summary(module.program);
+        vm = compile(module.program, true, dependencies, summaries);
+        cache.putModule(key, vm, summary);
+        ++compiledCount;
+      }
+      else
+        ++cachedCount;
+      summaries.put(name, summary);
+      frames.addAll(vm.frames());
+    }
+    VM vm = compile(program, false, order, summaries);
+    for (VMFrame frame : frames)
+      vm.add(frame);
+    return vm;
+  }
+
+  /**
+   * Returns the number of modules the last compile compiled.
+   */
+  public int compiledCount() {
+    return compiledCount;
+  }
+
+  /**
+   * Returns the number of modules the last compile took from the
+   * cache.
+   */
+  public int cachedCount() {
+    return cachedCount;
+  }
+
+  /**
+   * Returns the interface summary of a (renamed) module: its record
+   * types, and a stub of each function.
+   */
+  public static String summary(Program module) throws MyPLException {
+    Program stubs = new Program();
+    stubs.tdecls.addAll(module.tdecls);
+    for (FunDecl fdecl : module.fdecls) {
+      FunDecl stub = new FunDecl();
+      stub.returnType = fdecl.returnType;
+      stub.funName = fdecl.funName;
+      stub.params = fdecl.params;
+      stubs.fdecls.add(stub);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes, true, StandardCharsets.UTF_8);
+    stubs.accept(new PrintVisitor(out));
+    return bytes.toString(StandardCharsets.UTF_8);
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // add the module and the modules it imports (first) to the order,
+  // where path holds the modules importing it (false on a cycle)
+  private boolean visit(String name, Map<String,byte[]> sources, Map<String,Set<String>> imported,
+                        List<String> order, Set<String> path)
+  {
+    if (path.contains(name))
+      return false;
+    if (imported.containsKey(name))
+      return true;
+    path.add(name);
+    Set<String> names = new LinkedHashSet<>();
+    for (String other : ModuleLinker.imports(sources.get(name))) {
+      if (!visit(other, sources, imported, order, path))
+        return false;
+      names.add(other);
+      names.addAll(imported.get(other));
+    }
+    path.remove(name);
+    imported.put(name, names);
+    order.add(name);
+    return true;
+  }
+
+  // check and compile the program's (or a module's) code against the
+  // summaries of the given modules
+  private VM compile(Program program, boolean isModule, List<String> modules,
+                     Map<String,String> summaries)
+    throws MyPLException
+  {
+    Set<String> external = new HashSet<>();
+    List<TypeDecl> tdecls = new ArrayList<>();
+    List<FunDecl> fdecls = new ArrayList<>();
+    for (String name : modules) {
+      byte[] summary = summaries.get(name).getBytes(StandardCharsets.UTF_8);
+      Program stubs = new ASTParser(new Lexer(new ByteArrayInputStream(summary))).parse();
+      tdecls.addAll(stubs.tdecls);
+      for (FunDecl stub : stubs.fdecls) {
+        external.add(stub.funName.lexeme());
+        fdecls.add(stub);
+      }
+    }
+    tdecls.addAll(program.tdecls);
+    fdecls.addAll(program.fdecls);
+    // a module has no main of its own (its functions are renamed), but
+    // the checker requires one
+    if (isModule) {
+      FunDecl main = new FunDecl();
+      main.returnType = new Token(TokenType.VOID_TYPE, "void", 0, 0);
+      main.funName = new Token(TokenType.ID, "main", 0, 0);
+      external.add("main");
+      fdecls.add(main);
+    }
+    Program linked = new Program();
+    linked.tdecls = tdecls;
+    linked.fdecls = fdecls;
+    TypeInfo typeInfo = new TypeInfo();
+    linked.accept(new StaticChecker(typeInfo));
+    // a module's functions are used by its importers (not its main)
+    List<String> modulePasses = new ArrayList<>(passes);
+    if (isModule)
+      modulePasses.remove("shake");
+    PassManager passManager = new PassManager(modulePasses);
+    passManager.setExternal(external);
+    return passManager.run(linked, typeInfo);
+  }
+
+}
@@ -0,0 +1,307 @@
+/*
+ * File: ModuleLinker.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Resolves a program's imports in memory. Each imported module
+ *       (module m is the file m.mypl in the module directory) is
+ *       parsed once into its own program, with each function and type
+ *       it declares renamed to m@name (see ModuleRenamer). Linking
+ *       adds the renamed declarations of every module the program
+ *       imports, directly or through other modules, to the program,
+ *       so the checker and code generator see one program.
+ *
+ *       Modules are loaded in parallel on a fork/join pool: loading a
+ *       module forks a load of each module it imports that no other
+ *       load has started, so independent modules are read, lexed,
+ *       parsed, and renamed at the same time. Only the link itself
+ *       (walking the import graph, which must have no cycles, and
+ *       collecting the declarations) runs on the calling thread. A
+ *       linker keeps no state between links other than the modules it
+ *       has loaded, so separate compilations (each with its own
+ *       linker) can also run at the same time.
+ *
+ *       Checking is not part of a load. A module can be checked on its
+ *       own, against the modules it imports and with a stand-in main
+ *       (as ModuleCompiler does), but the code generator needs the
+ *       type information of the whole linked program, which still has
+ *       to be checked as one. Checking each module here as well would
+ *       add work rather than spread it.
+ *
+ *       A lazy linker has the parser skip module function bodies (see
+ *       ASTParser.setLazyBodies), and keeps only the module functions
+ *       and types the program's own declarations use, so the bodies of
+ *       module functions the program never uses are never parsed (or
+ *       checked).
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+public class ModuleLinker {
+
+  /**
+   * The directory modules are found in by default.
+   */
+  public static final Path DEFAULT_DIR = Paths.get("examples");
+
+  // an import line (for finding imports without parsing)
+  private static final Pattern IMPORT = Pattern.compile("^\\s*import\\s+([A-Za-z0-9_@]+)",
+                                                        Pattern.MULTILINE);
+
+  // the directory modules are found in, and the pool they are loaded on
+  private Path dir;
+  private ForkJoinPool pool;
+
+  // the modules loaded so far, and the errors loading others (by name)
+  private Map<String,Module> modules = new ConcurrentHashMap<>();
+  private Map<String,Exception> failures = new ConcurrentHashMap<>();
+
+  // the modules whose load has started
+  private Set<String> started = ConcurrentHashMap.newKeySet();
+
+  // true if module function bodies are parsed only if used
+  private boolean lazy = false;
+
+
+  /**
+   * Creates a linker loading modules on the common fork/join pool.
+   */
+  public ModuleLinker(Path dir) {
+    this(dir, ForkJoinPool.commonPool());
+  }
+
+  public ModuleLinker(Path dir, ForkJoinPool pool) {
+    this.dir = dir;
+    this.pool = pool;
+  }
+
+  /**
+   * Turns lazy linking on or off (off by default). Only modules
+   * loaded after it is set are parsed lazily.
+   */
+  public void setLazy(boolean lazy) {
+    this.lazy = lazy;
+  }
+
+  /**
+   * Adds the declarations of each module the program imports
+   * (directly or through other modules) to the program, with each
+   * module's declarations before those of the modules importing it.
+   * @param program the parsed program (which is modified)
+   * @return the linked program
+   * @throws MyPLException if a module cannot be loaded, or modules
+   *                       import each other
+   */
+  public Program link(Program program) throws MyPLException, IOException {
+    if (program.imports.isEmpty())
+      return program;
+    List<LoadAction> loads = loads(program.imports);
+    for (LoadAction load : loads)
+      pool.execute(load);
+    for (LoadAction load : loads)
+      load.join();
+    List<Module> order = new ArrayList<>();
+    Set<String> visited = new HashSet<>();
+    List<Token> path = new ArrayList<>();
+    for (Token name : program.imports)
+      visit(name, visited, path, order);
+    // the program's own declarations
+    Set<String> funNames = new HashSet<>();
+    for (FunDecl fdecl : program.fdecls)
+      funNames.add(fdecl.funName.lexeme());
+    Set<String> typeNames = new HashSet<>();
+    for (TypeDecl tdecl : program.tdecls)
+      typeNames.add(tdecl.typeName.lexeme());
+    List<FunDecl> fdecls = new ArrayList<>();
+    List<TypeDecl> tdecls = new ArrayList<>();
+    for (Module m : order) {
+      fdecls.addAll(m.program.fdecls);
+      tdecls.addAll(m.program.tdecls);
+    }
+    fdecls.addAll(program.fdecls);
+    tdecls.addAll(program.tdecls);
+    program.fdecls = fdecls;
+    program.tdecls = tdecls;
+    if (lazy)
+      program.accept(new TreeShaker(funNames, typeNames));
+    return program;
+  }
+
+  /**
+   * Returns the named module, parsing and renaming it (on the calling
+   * thread) on first use.
+   * @param name the module name, as imported
+   */
+  public Module load(Token name) throws MyPLException, IOException {
+    Module m = modules.get(name.lexeme());
+    if (m != null)
+      return m;
+    try {
+      return load(name, Files.readAllBytes(path(name.lexeme())));
+    }
+    catch (NoSuchFileException e) {
+      throw MyPLException.StaticError("module '" + name.lexeme() + "' not found (no file " +
+                                      path(name.lexeme()) + ") near line " + name.line() +
+                                      ", column " + name.column());
+    }
+  }
+
+  /**
+   * Returns the named module, parsing and renaming the given source
+   * on first use.
+   * @param name the module name, as imported
+   * @param source the module's source
+   */
+  public Module load(Token name, byte[] source) throws MyPLException {
+    Module m = modules.get(name.lexeme());
+    if (m != null)
+      return m;
+    m = new Module();
+    m.moduleName = name;
+    ASTParser parser = new ASTParser(new Lexer(new ByteArrayInputStream(source)));
+    parser.setLazyBodies(lazy);
+    m.program = parser.parse();
+    new ModuleRenamer(m).rename();
+    Module loaded = modules.putIfAbsent(name.lexeme(), m);
+    return loaded != null ? loaded : m;
+  }
+
+  /**
+   * Returns the sources of the modules a program imports (directly
+   * or through other modules), found from their import lines without
+   * parsing, in the order first imported.
+   * @param source the program's source
+   * @throws IOException if a module cannot be read
+   */
+  public List<byte[]> moduleSources(byte[] source) throws IOException {
+    return new ArrayList<>(moduleSourceMap(source).values());
+  }
+
+  /**
+   * Returns the sources of the modules a program imports (as
+   * moduleSources does) by module name.
+   */
+  public Map<String,byte[]> moduleSourceMap(byte[] source) throws IOException {
+    Map<String,byte[]> sources = new LinkedHashMap<>();
+    List<String> pending = imports(source);
+    Set<String> seen = new HashSet<>(pending);
+    while (!pending.isEmpty()) {
+      String name = pending.remove(0);
+      byte[] moduleSource = Files.readAllBytes(path(name));
+      sources.put(name, moduleSource);
+      for (String imported : imports(moduleSource))
+        if (seen.add(imported))
+          pending.add(imported);
+    }
+    return sources;
+  }
+
+  /**
+   * Returns the names of the modules the source imports, found from
+   * its import lines without parsing.
+   */
+  public static List<String> imports(byte[] source) {
+    List<String> names = new ArrayList<>();
+    Matcher m = IMPORT.matcher(new String(source, StandardCharsets.UTF_8));
+    while (m.find())
+      names.add(m.group(1));
+    return names;
+  }
+
+
+  //----------------------------------------------------------------------
+  // Parallel loading
+  //----------------------------------------------------------------------
+
+  // loads a module, and then (in parallel) the modules it imports
+  private class LoadAction extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private Token name;
+
+    LoadAction(Token name) {
+      this.name = name;
+    }
+
+    protected void compute() {
+      try {
+        invokeAll(loads(load(name).program.imports));
+      }
+      catch (MyPLException | IOException e) {
+        // reported by the link (so that the first error in import
+        // order is reported, whichever load fails first)
+        failures.put(name.lexeme(), e);
+      }
+    }
+
+  }
+
+  // the loads of the named modules that no other load has started
+  private List<LoadAction> loads(List<Token> names) {
+    List<LoadAction> loads = new ArrayList<>();
+    for (Token name : names)
+      if (started.add(name.lexeme()))
+        loads.add(new LoadAction(name));
+    return loads;
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  private Path path(String moduleName) {
+    return dir.resolve(moduleName + ".mypl");
+  }
+
+  // add the (loaded) module and the modules it imports (first) to the
+  // order, where path holds the imports leading to the module
+  private void visit(Token name, Set<String> visited, List<Token> path, List<Module> order)
+    throws MyPLException, IOException
+  {
+    for (int i = 0; i < path.size(); ++i)
+      if (path.get(i).lexeme().equals(name.lexeme()))
+        cycle(path.subList(i, path.size()), name);
+    if (!visited.add(name.lexeme()))
+      return;
+    Exception failure = failures.get(name.lexeme());
+    if (failure instanceof MyPLException)
+      throw (MyPLException)failure;
+    if (failure instanceof IOException)
+      throw (IOException)failure;
+    Module m = load(name);
+    path.add(name);
+    for (Token imported : m.program.imports)
+      visit(imported, visited, path, order);
+    path.remove(path.size() - 1);
+    order.add(m);
+  }
+
+  // report the import cycle (the imports from the module back to it)
+  private void cycle(List<Token> path, Token name) throws MyPLException {
+    String s = "";
+    for (Token module : path)
+      s += module.lexeme() + " -> ";
+    throw MyPLException.StaticError("import cycle " + s + name.lexeme() + " near line " +
+                                    name.line() + ", column " + name.column());
+  }
+
+}
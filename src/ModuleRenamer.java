@@ -0,0 +1,176 @@
+/*
+ * File: ModuleRenamer.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Renames each function and type an imported module declares to
+ *       its namespaced name (module@name), along with every use of
+ *       the name in the module: calls, parameter, return, variable
+ *       and field types, and new expressions. Names the module does
+ *       not declare (variables, fields, built-in functions, and the
+ *       names of other modules) are left alone. A function body the
+ *       parser skipped is renamed when it is parsed.
+ */
+
+import java.util.List;
+
+
+public class ModuleRenamer implements Visitor {
+
+  // the module being renamed
+  private Module module;
+
+
+  /**
+   * Creates a renamer for the module, adding the namespaced name of
+   * each name the module declares to its symbol table.
+   */
+  public ModuleRenamer(Module module) {
+    this.module = module;
+    module.symbolTable.pushEnvironment();
+    String prefix = module.moduleName.lexeme() + "@";
+    for (TypeDecl tdecl : module.program.tdecls)
+      module.symbolTable.add(tdecl.typeName.lexeme(), prefix + tdecl.typeName.lexeme());
+    for (FunDecl fdecl : module.program.fdecls)
+      module.symbolTable.add(fdecl.funName.lexeme(), prefix + fdecl.funName.lexeme());
+  }
+
+  /**
+   * Renames the module's declarations and their uses.
+   */
+  public void rename() throws MyPLException {
+    module.program.accept(this);
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // the token renamed, if it is a name the module declares
+  private Token renamed(Token token) {
+    if (token == null)
+      return null;
+    String name = module.symbolTable.get(token.lexeme());
+    if (name == null)
+      return token;
+    return new Token(token.type(), name, token.line(), token.column());
+  }
+
+  private void visitStmts(Iterable<Stmt> stmts) throws MyPLException {
+    for (Stmt stmt : stmts)
+      stmt.accept(this);
+  }
+
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  public void visit(Program node) throws MyPLException {
+    for (TypeDecl tdecl : node.tdecls)
+      tdecl.accept(this);
+    // visited directly, since accept would parse a skipped body
+    for (FunDecl fdecl : node.fdecls)
+      visit(fdecl);
+  }
+
+  public void visit(TypeDecl node) throws MyPLException {
+    node.typeName = renamed(node.typeName);
+    for (VarDeclStmt vdecl : node.vdecls)
+      vdecl.accept(this);
+  }
+
+  public void visit(FunDecl node) throws MyPLException {
+    node.funName = renamed(node.funName);
+    node.returnType = renamed(node.returnType);
+    for (FunParam param : node.params)
+      param.paramType = renamed(param.paramType);
+    FunDecl.BodyParser parser = node.bodyParser();
+    if (parser == null) {
+      visitStmts(node.stmts);
+      return;
+    }
+    node.setBodyParser(() -> {
+      List<Stmt> stmts = parser.parse();
+      visitStmts(stmts);
+      return stmts;
+    });
+  }
+
+  public void visit(VarDeclStmt node) throws MyPLException {
+    node.typeName = renamed(node.typeName);
+    node.expr.accept(this);
+  }
+
+  public void visit(AssignStmt node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+  public void visit(CondStmt node) throws MyPLException {
+    node.ifPart.cond.accept(this);
+    visitStmts(node.ifPart.stmts);
+    for (BasicIf elif : node.elifs) {
+      elif.cond.accept(this);
+      visitStmts(elif.stmts);
+    }
+    if (node.elseStmts != null)
+      visitStmts(node.elseStmts);
+  }
+
+  public void visit(WhileStmt node) throws MyPLException {
+    node.cond.accept(this);
+    visitStmts(node.stmts);
+  }
+
+  public void visit(ForStmt node) throws MyPLException {
+    node.start.accept(this);
+    node.end.accept(this);
+    visitStmts(node.stmts);
+  }
+
+  public void visit(ReturnStmt node) throws MyPLException {
+    if (node.expr != null)
+      node.expr.accept(this);
+  }
+
+  public void visit(DeleteStmt node) throws MyPLException {
+    // nothing to do here
+  }
+
+  public void visit(CallExpr node) throws MyPLException {
+    node.funName = renamed(node.funName);
+    for (Expr arg : node.args)
+      arg.accept(this);
+  }
+
+  public void visit(SimpleRValue node) throws MyPLException {
+    // nothing to do here
+  }
+
+  public void visit(NewRValue node) throws MyPLException {
+    node.typeName = renamed(node.typeName);
+  }
+
+  public void visit(IDRValue node) throws MyPLException {
+    // variables and fields are not in the module's namespace
+  }
+
+  public void visit(NegatedRValue node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+  public void visit(Expr node) throws MyPLException {
+    node.first.accept(this);
+    if (node.rest != null)
+      node.rest.accept(this);
+  }
+
+  public void visit(SimpleTerm node) throws MyPLException {
+    node.rvalue.accept(this);
+  }
+
+  public void visit(ComplexTerm node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+}
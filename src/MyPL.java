@@ -5,30 +5,127 @@
  * Desc: Driver program for HW-7
  */
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.List;
 
 public class MyPL {
 
+  // default optimization level (see compile)
+  public static final int DEFAULT_OPT_LEVEL = 1;
+
+  // highest supported optimization level
+  public static final int MAX_OPT_LEVEL = 3;
+
+  /**
+   * Generates VM code for a statically checked program, applying the
+   * optimizations of the given level (see PassManager.levelPasses).
+   * @param program the checked program (which may be rewritten)
+   * @param typeInfo the type information from the static checker
+   * @param optLevel the optimization level
+   * @return a VM holding the generated code
+   */
+  public static VM compile(Program program, TypeInfo typeInfo, int optLevel)
+    throws MyPLException
+  {
+    return new PassManager(optLevel).run(program, typeInfo);
+  }
+
   public static void main(String[] args) throws IOException {
     try {
 
+      // pull out the optimization flags (which may appear anywhere
+      // on the command line)
+      int optLevel = DEFAULT_OPT_LEVEL;
+      List<String> passes = null;
+      boolean passStats = false;
+      boolean tracing = false;
+      boolean traceStats = false;
+      String aotJar = null;
+      String emitFile = null;
+      boolean caching = true;
+      boolean incremental = false;
+      boolean lazyCodegen = false;
+      boolean lazyParse = false;
+      ArrayList<String> otherArgs = new ArrayList<>();
+      for (int argIndex = 0; argIndex < args.length; ++argIndex) {
+        String arg = args[argIndex];
+        if (arg.matches("-O[0-9]+")) {
+          optLevel = Math.min(Integer.parseInt(arg.substring(2)), MAX_OPT_LEVEL);
+        }
+        else if (arg.startsWith("--passes=")) {
+          passes = new ArrayList<>();
+          for (String name : arg.substring(9).split(","))
+            if (!name.isEmpty())
+              passes.add(name);
+          for (String name : passes) {
+            if (!PassManager.isPass(name)) {
+              System.err.println("ERROR: Unknown pass '" + name + "'");
+              displayUsageInfo();
+              System.exit(1);
+            }
+          }
+        }
+        else if (arg.equals("--pass-stats")) {
+          passStats = true;
+        }
+        else if (arg.equals("--trace")) {
+          tracing = true;
+        }
+        else if (arg.equals("--trace-stats")) {
+          tracing = true;
+          traceStats = true;
+        }
+        else if (arg.equals("--aot")) {
+          if (argIndex + 1 == args.length) {
+            displayUsageInfo();
+            System.exit(1);
+          }
+          aotJar = args[++argIndex];
+        }
+        else if (arg.equals("--emit")) {
+          if (argIndex + 1 == args.length) {
+            displayUsageInfo();
+            System.exit(1);
+          }
+          emitFile = args[++argIndex];
+        }
+        else if (arg.equals("--no-cache")) {
+          caching = false;
+        }
+        else if (arg.equals("--incremental")) {
+          incremental = true;
+        }
+        else if (arg.equals("--lazy-codegen")) {
+          lazyCodegen = true;
+        }
+        else if (arg.equals("--lazy-parse")) {
+          lazyParse = true;
+        }
+        else {
+          otherArgs.add(arg);
+        }
+      }
+      // an explicit pass list replaces the level's passes
+      PassManager passManager = passes != null ? new PassManager(passes) :
+        new PassManager(optLevel);
+      passManager.setStats(passStats);
+      passManager.setLazy(lazyCodegen);
+      args = otherArgs.toArray(new String[0]);
+
       boolean lexerMode = false;
       boolean parseMode = false;
       boolean printMode = false;
       boolean checkMode = false;
       boolean outIRMode = false;
+      boolean ssaMode = false;
       int argCount = args.length;
       InputStream input = System.in;
 
@@ -49,10 +146,12 @@ public class MyPL {
         checkMode = true;
       else if (argCount > 0 && args[0].equals("--ir"))
         outIRMode = true;
+      else if (argCount > 0 && args[0].equals("--ssa"))
+        ssaMode = true;
 
       // to check modes
       boolean specialMode = lexerMode || printMode || parseMode ||
-        checkMode || outIRMode;
+        checkMode || outIRMode || ssaMode;
 
       // check if incorrect args 
       if (argCount == 2 && !specialMode) {
@@ -60,40 +159,48 @@ public class MyPL {
         System.exit(1);
       }
 
+      // run a compiled program (skipping the front end)
+      if (argCount == 1 && !specialMode && CompiledFile.isCompiled(args[0])) {
+        run(CompiledFile.read(Paths.get(args[0])), tracing, traceStats);
+        return;
+      }
+
       // grab input file
       String inFile = null;
-      String mainFile = "";
       if (argCount == 2) {
         input = new FileInputStream(args[1]);
-        mainFile = args[1];
       }
       else if (argCount == 1 && !specialMode) {
         input = new FileInputStream(args[0]);
-        mainFile = args[0];
       }
-      // ------------------------------------------------------------
-      // Preprocess the input file
-      Scanner scanner = new Scanner(input);
-      // check for import statements
-      ArrayList<String> imports = new ArrayList<String>();
-      while (scanner.hasNextLine()) {
-        String line = scanner.nextLine();
-        if (line.startsWith("import")) {
-          imports.add(line);
+      // read the input fully (since the cache key is its hash)
+      byte[] source = input.readAllBytes();
+      ModuleLinker linker = new ModuleLinker(ModuleLinker.DEFAULT_DIR);
+      linker.setLazy(lazyParse);
+
+      // run a cached compile of the same sources (skipping the front
+      // end), or else note where to cache this compile
+      CompileCache cache = null;
+      String cacheKey = null;
+      if (caching && !specialMode && aotJar == null && !passStats) {
+        List<byte[]> sources = sources(source, linker);
+        if (sources != null) {
+          cache = CompileCache.defaultCache();
+          String config = "passes=" + String.join(",", passManager.passes()) +
+            (incremental ? "\nincremental" : "") + (lazyParse ? "\nlazy-parse" : "");
+          cacheKey = CompileCache.key(config, sources);
+          VM vm = cache.get(cacheKey);
+          if (vm != null) {
+            if (emitFile != null)
+              CompiledFile.write(vm, Paths.get(emitFile));
+            else
+              run(vm, tracing, traceStats);
+            return;
+          }
         }
       }
-      // reset scanner
-      scanner = new Scanner(input);
-      for (String line : imports) {
-        // grab the file name
-        String fileName = line.substring(7, line.length());
-        // add directory to file name
-        // merge the file
-        input = mergeTwoFiles(fileName, mainFile);
-      }
-      // ------------------------------------------------------------
       // create the lexer
-      Lexer lexer = new Lexer(input);
+      Lexer lexer = new Lexer(new ByteArrayInputStream(source));
 
       // run in lexer mode
       if (lexerMode) {
@@ -110,168 +217,135 @@ public class MyPL {
       }
       // run in print mode
       else if (printMode) {
-        ASTParser parser = new ASTParser(lexer);
-        Program program = parser.parse();
+        Program program = linker.link(new ASTParser(lexer).parse());
         PrintVisitor visitor = new PrintVisitor(System.out);
         program.accept(visitor);
       }
       // run in static checker mode
       else if (checkMode) {
-        ASTParser parser = new ASTParser(lexer);
-        Program program = parser.parse();
+        Program program = linker.link(new ASTParser(lexer).parse());
         TypeInfo typeInfo = new TypeInfo();
         StaticChecker checkVisitor = new StaticChecker(typeInfo);
         program.accept(checkVisitor);
       }
       // run in intermediate-representation mode
       else if (outIRMode) {
-        ASTParser parser = new ASTParser(lexer);
-        Program program = parser.parse();
+        Program program = linker.link(new ASTParser(lexer).parse());
         TypeInfo typeInfo = new TypeInfo();
         StaticChecker checkVisitor = new StaticChecker(typeInfo);
         program.accept(checkVisitor);
-        VM vm = new VM();
-        CodeGenerator genVisitor = new CodeGenerator(typeInfo, vm);
-        program.accept(genVisitor);
+        VM vm = passManager.run(program, typeInfo);
+        if (passStats)
+          System.err.print(passManager.report());
         System.out.println(vm);
       }
-      // run normally
-      else {
-        ASTParser parser = new ASTParser(lexer);
-        Program program = parser.parse();
+      // run in SSA mode
+      else if (ssaMode) {
+        Program program = linker.link(new ASTParser(lexer).parse());
         TypeInfo typeInfo = new TypeInfo();
         program.accept(new StaticChecker(typeInfo));
-        VM vm = new VM();
-        CodeGenerator genVisitor = new CodeGenerator(typeInfo, vm);
-        program.accept(genVisitor);
-        vm.run();
+        IRBuilder builder = new IRBuilder();
+        program.accept(builder);
+        for (IRFunction function : builder.functions())
+          System.out.println(function);
+      }
+      // compile ahead of time to a JAR
+      else if (aotJar != null) {
+        Program program = linker.link(new ASTParser(lexer).parse());
+        TypeInfo typeInfo = new TypeInfo();
+        program.accept(new StaticChecker(typeInfo));
+        new AOTCompiler(typeInfo).writeJar(program, Paths.get(aotJar));
+      }
+      // run normally
+      else {
+        Program program = new ASTParser(lexer).parse();
+        VM vm = null;
+        // compile the modules separately (keeping them in the cache)
+        if (incremental && cache != null)
+          vm = new ModuleCompiler(linker, cache, passManager.passes()).compile(program, source);
+        if (vm == null) {
+          program = linker.link(program);
+          TypeInfo typeInfo = new TypeInfo();
+          program.accept(new StaticChecker(typeInfo));
+          vm = passManager.run(program, typeInfo);
+        }
+        if (passStats)
+          System.err.print(passManager.report());
+        if (cache != null && !passManager.isLazy())
+          cache.put(cacheKey, vm);
+        if (emitFile != null)
+          CompiledFile.write(vm, Paths.get(emitFile));
+        else
+          run(vm, tracing, traceStats);
+        // writing the cache entry generates all the code, so a lazily
+        // generated program is cached after it runs
+        if (cache != null && passManager.isLazy())
+          cache.put(cacheKey, vm);
       }
-      // delete the merged file
-      File newFile = new File("examples/newFile.mypl");
-      
-      File newFile2 = new File("examples/newFile2.mypl");
-      newFile2.delete();
     }
     catch (MyPLException e) {
       System.err.println(e.getMessage());
       System.exit(1);
     }
-    catch (FileNotFoundException e) {
+    catch (FileNotFoundException | NoSuchFileException e) {
       int i = args.length == 1 ? 0 : 1;
       System.err.println("ERROR: Unable to open file '" + args[i] + "'");
       System.exit(1);
     }
   }
 
+  // run the program, printing trace statistics if asked
+  private static void run(VM vm, boolean tracing, boolean traceStats) throws MyPLException {
+    vm.setTracing(tracing);
+    vm.run();
+    if (traceStats)
+      System.err.printf("traces: %d, guard exits: %d, traced instructions: %d of %d%n",
+                        vm.traceCount(), vm.guardExitCount(), vm.tracedCount(),
+                        vm.dispatchCount());
+  }
+
+  // the sources a compile depends on: the script and each module it
+  // imports (or null if a module cannot be read, leaving the error to
+  // the linker)
+  private static List<byte[]> sources(byte[] source, ModuleLinker linker) {
+    List<byte[]> sources = new ArrayList<>();
+    sources.add(source);
+    try {
+      sources.addAll(linker.moduleSources(source));
+    }
+    catch (IOException e) {
+      return null;
+    }
+    return sources;
+  }
+
   private static void displayUsageInfo() {
-    System.out.println("Usage: ./mypl [flag] [script-file]");
+    System.out.println("Usage: ./mypl [-O<level>] [--passes=<list>] [--pass-stats] [--trace] [--trace-stats] [--aot <jar>] [--emit <file>] [--no-cache] [--incremental] [--lazy-codegen] [--lazy-parse] [flag] [script-file]");
     System.out.println("Options:");
     System.out.println("  --lex      Display token information.");
     System.out.println("  --parse    Check for valid syntax.");
     System.out.println("  --print    Pretty print the program.");
     System.out.println("  --check    Statically check program.");
     System.out.println("  --ir       Print intermediate code.");
-  }
-  
-  private static InputStream mergeTwoFiles(String fileToBeCopied, String filename) throws IOException, MyPLException {
-    try {
-      fileToBeCopied = "examples/" + fileToBeCopied + ".mypl";
-      File file = new File(fileToBeCopied);
-      File mainFile = new File(filename);
-      File newFile = new File("examples/newFile.mypl");
-      FileInputStream in = new FileInputStream(file);
-      
-      Lexer lexer = new Lexer(in);
-      ASTParser parser = new ASTParser(lexer);
-      Program program = parser.parse();
-      
-      file = renameFunctionsAndType(program, "myTestModule");
-      in = new FileInputStream(file);
-      FileInputStream in2 = new FileInputStream(mainFile);
-      FileOutputStream out = new FileOutputStream(newFile);
-      // copy the contents of the file to the new file
-      int c;
-      while ((c = in.read()) != -1) {
-        out.write(c);
-      }
-      while ((c = in2.read()) != -1) {
-        out.write(c);
-      }
-      in.close();
-      in2.close();
-      out.close();
-      return new FileInputStream(newFile);
-    }
-    catch (FileNotFoundException e) {
-      System.err.println("ERROR: Unable to open file '" + fileToBeCopied + "'");
-      System.exit(1);
-    }
-    return null;
+    System.out.println("  --ssa      Print SSA form.");
+    System.out.println("  -O<level>  Optimization level 0-" + MAX_OPT_LEVEL +
+                       " (default " + DEFAULT_OPT_LEVEL + ").");
+    System.out.println("  --passes=<list>  Run only the listed passes, e.g. fold,inline");
+    System.out.println("             (" + String.join(", ", PassManager.allPasses()) + ").");
+    System.out.println("  --pass-stats  Print each pass's time and code size.");
+    System.out.println("  --trace    Record and run traces of hot loops.");
+    System.out.println("  --trace-stats  Trace hot loops and print trace statistics.");
+    System.out.println("  --aot <jar>  Compile to a JAR that runs with java -jar.");
+    System.out.println("  --emit <file>  Write the compiled program to a " + CompiledFile.EXTENSION +
+                       " file (run with ./mypl <file>).");
+    System.out.println("  --no-cache  Compile without the compile cache (in $MYPL_CACHE_DIR");
+    System.out.println("             or ~/.cache/mypl).");
+    System.out.println("  --incremental  Compile imported modules separately, so only changed");
+    System.out.println("             modules (and those using a changed interface) recompile.");
+    System.out.println("  --lazy-codegen  Generate each function's code when first called");
+    System.out.println("             (at -O1 and below, or without inline).");
+    System.out.println("  --lazy-parse  Parse (and check) only the imported functions the");
+    System.out.println("             script uses.");
   }
 
-  private static File renameFunctionsAndType(Program checker, String moduleName) {
-    // open the file
-    try {
-      BufferedReader br = new BufferedReader(new FileReader("examples/myTestModule.mypl"));
-      BufferedWriter bw = new BufferedWriter(new FileWriter("examples/newFile2.mypl"));
-      String ln;
-      
-      while((ln = br.readLine()) != null)
-        {
-          if(ln.contains("type")) {
-            String[] split = ln.split(" ");
-            for(int i = 0; i < split.length; i++) {
-              for(int j = 0; j < checker.tdecls.size(); j++) {
-                if(split[i].equals(checker.tdecls.get(j).typeName.lexeme() )) {
-                  split[i] = moduleName + "@" + split[i] ;
-                }
-              }
-            }
-            String newLine = "";
-            for(int i = 0; i < split.length; i++) {
-              newLine = newLine + split[i] + " ";
-            }
-            bw.write(newLine);
-            bw.newLine();
-          }
-          else if(ln.contains("fun")) {
-            String[] split = ln.split(" ");
-            String remainder = "";
-          
-            for(int i = 0; i < split.length; i++) {
-              if(split[i].contains("(")) {
-                String str = split[i];
-                split[i] = split[i].substring( 0, split[i].indexOf("("));
-                remainder = str.substring(str.indexOf("("), str.length());
-              }
-              for(int j = 0; j < checker.fdecls.size(); j++) {
-                if(split[i].equals(checker.fdecls.get(j).funName.lexeme() )) {
-                  split[i] = moduleName + "@" + split[i];
-                  split[i] = split[i] + remainder;
-                }
-              }
-            }
-            String newLine = "";
-            for(int i = 0; i < split.length; i++) {
-              newLine = newLine + split[i] + " ";
-            }
-            bw.write(newLine);
-            bw.newLine();
-          }
-          else {
-            bw.write(ln);
-            bw.newLine();
-          }
-        }
-        br.close();
-        bw.close();
-        return new File("examples/newFile2.mypl");
-    }
-    catch (IOException e)
-    {
-        e.printStackTrace();
-    }
-    return null;
-  }
-  
 }
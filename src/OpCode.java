@@ -34,6 +34,8 @@ public enum OpCode {
   // jump
   JMP,          // jump to given instruction
   JMPF,         // pop x off stack, if x is false jump to instruction
+  TABLESWITCH,  // pop x, jump to dense switch table target for x
+  LOOKUPSWITCH, // pop x, jump to sparse switch table target for x
 
   // functions
   CALL,         // calls the function f
@@ -57,6 +59,19 @@ public enum OpCode {
   // special
   DUP,          // pop x, push x, push x
   SWAP,         // pop x, pop y, push x, push y
-  NOP           // has no effect (for jumping over code segments)
+  NOP,          // has no effect (for jumping over code segments)
+
+  // quickened (type-specialized) forms the VM rewrites ADD, CMPLT,
+  // and CMPEQ into while running, once it has seen their operand
+  // types (each falls back to the generic form if x and y are not of
+  // its type)
+  IADD,         // ADD of ints
+  DADD,         // ADD of doubles
+  SADD,         // ADD of strings
+  ICMPLT,       // CMPLT of ints
+  DCMPLT,       // CMPLT of doubles
+  ICMPEQ,       // CMPEQ of ints
+  DCMPEQ,       // CMPEQ of doubles
+  SCMPEQ        // CMPEQ of strings (and nil)
   ;
 }
@@ -0,0 +1,291 @@
+/*
+ * File: PassManager.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Runs an ordered list of optimization passes over a checked
+ *       program: AST passes first (in list order), then code
+ *       generation (with any code generator options in the list), then
+ *       bytecode passes (in list order). The list is either the one
+ *       for an optimization level or given by name. Optionally records
+ *       each pass's running time and the code size (in VM
+ *       instructions) after it, so the effect of each pass can be
+ *       seen. Measuring the size after an AST pass generates code for
+ *       the program, so it is only done when statistics are on.
+ *
+ *       Code can also be generated lazily, each function's code when
+ *       it is first called, so a run does not wait on code for
+ *       functions it never calls. The bytecode passes are then run
+ *       over each function's code once generated, which only works for
+ *       passes that rewrite one function at a time: inlining needs all
+ *       the code, so with inline in the list (at -O2 and up), or with
+ *       statistics on, code is generated up front.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+public class PassManager {
+
+  // passes over the checked AST
+  public static final List<String> AST_PASSES =
+    Arrays.asList("shake", "fold", "licm", "unroll");
+
+  // code generator options
+  public static final List<String> CODEGEN_PASSES =
+    Arrays.asList("switch", "sroa");
+
+  // passes over the generated bytecode
+  public static final List<String> BYTECODE_PASSES =
+    Arrays.asList("inline", "fle", "jumps");
+
+  // the passes to run
+  private List<String> passes;
+
+  // true if pass statistics are recorded
+  private boolean stats = false;
+
+  // true if code is generated lazily (where the passes allow)
+  private boolean lazy = false;
+
+  // functions compiled separately (declared only so calls to them
+  // check)
+  private Set<String> external = new HashSet<>();
+
+  // the statistics of the last run (one per pass, plus code
+  // generation)
+  private List<Stat> results = new ArrayList<>();
+
+  private static class Stat {
+    String name;
+    long nanos;
+    int size;
+    String note = "";
+
+    Stat(String name, long nanos, int size) {
+      this.name = name;
+      this.nanos = nanos;
+      this.size = size;
+    }
+  }
+
+
+  /**
+   * Creates a manager running the passes of the given optimization
+   * level.
+   */
+  public PassManager(int optLevel) {
+    this.passes = levelPasses(optLevel);
+  }
+
+  /**
+   * Creates a manager running the given passes.
+   * @throws IllegalArgumentException if a pass name is not known
+   */
+  public PassManager(List<String> passes) {
+    for (String name : passes)
+      if (!isPass(name))
+        throw new IllegalArgumentException("unknown pass '" + name + "'");
+    this.passes = new ArrayList<>(passes);
+  }
+
+  /**
+   * Returns the names of all passes.
+   */
+  public static List<String> allPasses() {
+    List<String> names = new ArrayList<>(AST_PASSES);
+    names.addAll(CODEGEN_PASSES);
+    names.addAll(BYTECODE_PASSES);
+    return names;
+  }
+
+  public static boolean isPass(String name) {
+    return allPasses().contains(name);
+  }
+
+  /**
+   * Returns the passes run at the given optimization level: -O0 runs
+   * none, -O1 removes unused functions and types, folds constants,
+   * lowers int dispatch chains to switches, and removes NOPs and jump
+   * chains, -O2 also hoists loop-invariant computations, replaces
+   * non-escaping records with local variables, inlines small
+   * functions, and removes repeated field loads, and -O3 also unrolls
+   * counted loops (with strength reduction).
+   */
+  public static List<String> levelPasses(int optLevel) {
+    List<String> names = new ArrayList<>();
+    // first, so later passes skip what it removes
+    if (optLevel >= 1)
+      names.addAll(Arrays.asList("shake", "fold", "switch"));
+    if (optLevel >= 2)
+      names.add("licm");
+    if (optLevel >= 3)
+      names.add("unroll");
+    if (optLevel >= 2)
+      names.addAll(Arrays.asList("sroa", "inline", "fle"));
+    // last, to clean up after the passes before it
+    if (optLevel >= 1)
+      names.add("jumps");
+    return names;
+  }
+
+  public List<String> passes() {
+    return passes;
+  }
+
+  /**
+   * Turns recording of pass statistics on or off.
+   */
+  public void setStats(boolean stats) {
+    this.stats = stats;
+  }
+
+  /**
+   * Turns lazy code generation on or off (off by default). It is
+   * only used if no pass needs all of the code (see isLazy).
+   */
+  public void setLazy(boolean lazy) {
+    this.lazy = lazy;
+  }
+
+  /**
+   * Returns true if the next run generates code lazily: lazy code
+   * generation is on, the passes do not include inline, and
+   * statistics are off.
+   */
+  public boolean isLazy() {
+    return lazy && !passes.contains("inline") && !stats;
+  }
+
+  /**
+   * Sets the functions whose code is compiled separately. The program
+   * only declares them so that calls to them check, so their frames
+   * are dropped after code generation (before a bytecode pass could
+   * inline them).
+   */
+  public void setExternal(Set<String> names) {
+    external = new HashSet<>(names);
+  }
+
+  /**
+   * Optimizes and generates code for the program.
+   * @param program the checked program (which may be rewritten)
+   * @param typeInfo the type information from the static checker
+   * @return a VM holding the generated code
+   */
+  public VM run(Program program, TypeInfo typeInfo) throws MyPLException {
+    results.clear();
+    if (stats && hasAstPasses())
+      results.add(new Stat("(input)", 0, Bytecode.size(generate(program, typeInfo))));
+    for (String name : passes) {
+      if (!AST_PASSES.contains(name))
+        continue;
+      long start = System.nanoTime();
+      Visitor pass = astPass(name);
+      program.accept(pass);
+      long nanos = System.nanoTime() - start;
+      if (stats) {
+        Stat stat = new Stat(name, nanos, Bytecode.size(generate(program, typeInfo)));
+        if (pass instanceof TreeShaker)
+          stat.note = ((TreeShaker)pass).report();
+        results.add(stat);
+      }
+    }
+    long start = System.nanoTime();
+    VM vm = generate(program, typeInfo);
+    if (stats)
+      results.add(new Stat("codegen", System.nanoTime() - start, Bytecode.size(vm)));
+    // the bytecode passes run as each frame is generated
+    if (isLazy())
+      return vm;
+    for (String name : passes) {
+      if (!BYTECODE_PASSES.contains(name))
+        continue;
+      start = System.nanoTime();
+      runBytecodePass(name, vm);
+      long nanos = System.nanoTime() - start;
+      if (stats)
+        results.add(new Stat(name, nanos, Bytecode.size(vm)));
+    }
+    return vm;
+  }
+
+  /**
+   * Returns a table of the last run's statistics: each pass's time
+   * and the code size after it, with the change from the step before.
+   */
+  public String report() {
+    String s = String.format("%-10s %10s %8s %8s%n", "pass", "ms", "instrs", "delta");
+    Integer prev = null;
+    for (Stat stat : results) {
+      String delta = prev == null ? "" : String.format("%+d", stat.size - prev);
+      s += String.format("%-10s %10.3f %8d %8s", stat.name, stat.nanos / 1e6, stat.size, delta);
+      s += stat.note.isEmpty() ? String.format("%n") : String.format("  (%s)%n", stat.note);
+      prev = stat.size;
+    }
+    return s;
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  private boolean hasAstPasses() {
+    for (String name : passes)
+      if (AST_PASSES.contains(name))
+        return true;
+    return false;
+  }
+
+  private VM generate(Program program, TypeInfo typeInfo) throws MyPLException {
+    VM vm = new VM();
+    CodeGenerator genVisitor = new CodeGenerator(typeInfo, vm);
+    genVisitor.setSwitchLowering(passes.contains("switch"));
+    genVisitor.setScalarReplacement(passes.contains("sroa"));
+    genVisitor.setLazy(isLazy(), this::runFramePasses);
+    program.accept(genVisitor);
+    if (external.isEmpty())
+      return vm;
+    VM compiled = new VM();
+    for (VMFrame frame : vm.frames())
+      if (!external.contains(frame.functionName()))
+        compiled.add(frame);
+    return compiled;
+  }
+
+  private static Visitor astPass(String name) {
+    if (name.equals("shake"))
+      return new TreeShaker();
+    if (name.equals("fold"))
+      return new ConstantFolder();
+    if (name.equals("licm"))
+      return new LoopInvariantMotion();
+    return new LoopUnroller();
+  }
+
+  // run the bytecode passes over one (lazily generated) frame, with
+  // passes of their own (since frames may be generated on different
+  // threads)
+  private void runFramePasses(VMFrame frame) {
+    for (String name : passes) {
+      if (name.equals("fle"))
+        new FieldLoadElimination().optimize(frame);
+      else if (name.equals("jumps"))
+        new JumpThreading().optimize(frame);
+    }
+  }
+
+  private static void runBytecodePass(String name, VM vm) {
+    if (name.equals("inline"))
+      new Inliner().optimize(vm);
+    else if (name.equals("fle"))
+      new FieldLoadElimination().optimize(vm);
+    else
+      new JumpThreading().optimize(vm);
+  }
+
+}
@@ -110,9 +110,10 @@ public class PrintVisitor implements Visitor {
 
   @Override
   public void visit(AssignStmt node) throws MyPLException {
-    for(Token left : node.lvalue) {
-      out.print(left.lexeme());
+    for (int i = 0; i < node.lvalue.size() - 1; ++i) {
+      out.print(node.lvalue.get(i).lexeme() + ".");
     }
+    out.print(node.lvalue.get(node.lvalue.size() - 1).lexeme());
     out.print(" = ");
     node.expr.accept(this);
   }
@@ -206,11 +207,11 @@ public class PrintVisitor implements Visitor {
   @Override
   public void visit(CallExpr node) throws MyPLException {
     out.print(node.funName.lexeme() + "(");
-    for (int i = 0; i < node.args.size() - 1; ++i) {
+    for (int i = 0; i < node.args.size(); ++i) {
+      if (i > 0)
+        out.print(", ");
       node.args.get(i).accept(this);
-      out.print(", ");
     }
-    node.args.get(node.args.size() - 1).accept(this);
     out.print(")");
   }
 
@@ -237,7 +238,7 @@ public class PrintVisitor implements Visitor {
   @Override
   public void visit(IDRValue node) throws MyPLException {
     for (int i = 0; i < node.path.size() - 1; ++i) {
-      out.print(node.path.get(i).lexeme());
+      out.print(node.path.get(i).lexeme() + ".");
     }
     out.print(node.path.get(node.path.size() - 1).lexeme());
   }
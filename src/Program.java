@@ -13,6 +13,7 @@ public class Program implements ASTNode {
 
   public List<FunDecl> fdecls = new ArrayList<>();
   public List<TypeDecl> tdecls = new ArrayList<>();
+  public List<Token> imports = new ArrayList<>();
 
   @Override
   public void accept(Visitor visitor) throws MyPLException {
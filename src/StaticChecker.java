@@ -32,16 +32,13 @@ public class StaticChecker implements Visitor {
     throw MyPLException.StaticError(s);
   }
 
-  // return all valid types
+  // true if the name is a valid type (without listing every type,
+  // since it is checked for each function and expression)
   // assumes user-defined types already added to symbol table
-  private List<String> getValidTypes() {
-    List<String> types = new ArrayList<>();
-    types.addAll(Arrays.asList("int", "double", "bool", "char", "string",
-                               "void"));
-    for (String type : typeInfo.types())
-      if (symbolTable.get(type).equals("type"))
-        types.add(type);
-    return types;
+  private boolean isValidType(String name) {
+    if (Arrays.asList("int", "double", "bool", "char", "string", "void").contains(name))
+      return true;
+    return typeInfo.types().contains(name) && "type".equals(symbolTable.get(name));
   }
 
   // return the build in function names
@@ -52,7 +49,7 @@ public class StaticChecker implements Visitor {
   
   // check if given token is a valid function signature return type
   private void checkReturnType(Token typeToken) throws MyPLException {
-    if (!getValidTypes().contains(typeToken.lexeme())) {
+    if (!isValidType(typeToken.lexeme())) {
       String msg = "'" + typeToken.lexeme() + "' is an invalid return type";
       error(msg, typeToken);
     }
@@ -62,7 +59,7 @@ public class StaticChecker implements Visitor {
   private void checkParamType(Token typeToken) throws MyPLException {
     if (typeToken.equals("void"))
       error("'void' is an invalid parameter type", typeToken);
-    else if (!getValidTypes().contains(typeToken.lexeme())) {
+    else if (!isValidType(typeToken.lexeme())) {
       String msg = "'" + typeToken.lexeme() + "' is an invalid return type";
       error(msg, typeToken);
     }
@@ -494,7 +491,7 @@ public class StaticChecker implements Visitor {
         String paramName = params.get(i);
         String paramType = typeInfo.get(node.funName.lexeme(), paramName);
         node.args.get(i).accept(this);
-        if (currType != paramType && !currType.equals("void")) {
+        if (!currType.equals(paramType) && !currType.equals("void")) {
           error(currType + " does not match the param type", getFirstToken(node.args.get(i)));
         }
       }
@@ -572,7 +569,7 @@ public class StaticChecker implements Visitor {
       node.rest.accept(this);
       // function instead of variable
       String rhs = currType;
-      if(lhsType == "void" && !getValidTypes().contains(currType))
+      if(lhsType == "void" && !isValidType(currType))
         error("nil cannot be used as an expression", getFirstToken(node.first));
       String lhs = lhsType;
       if (node.op.lexeme().equals("==") || node.op.lexeme().equals("!=")) {
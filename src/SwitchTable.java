@@ -0,0 +1,124 @@
+/*
+ * File: SwitchTable.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Operand for the TABLESWITCH and LOOKUPSWITCH instructions. A
+ *       table maps int keys to instruction addresses, with a default
+ *       address used for any other value (including nil and non-int
+ *       values).
+ */
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.function.IntUnaryOperator;
+
+
+public class SwitchTable {
+
+  // lowest key of a dense (TABLESWITCH) table
+  private int low = 0;
+
+  // jump addresses of a dense table, indexed by key - low
+  private int[] targets = null;
+
+  // jump addresses of a sparse (LOOKUPSWITCH) table
+  private Map<Integer,Integer> lookup = null;
+
+  // address to jump to if the key is not in the table
+  private int defaultTarget = -1;
+
+
+  private SwitchTable(int defaultTarget) {
+    this.defaultTarget = defaultTarget;
+  }
+
+  /**
+   * Creates a dense table covering every key in [low, low +
+   * targets.length). Keys without a case should map to the default
+   * address.
+   */
+  public static SwitchTable dense(int low, int[] targets, int defaultTarget) {
+    SwitchTable table = new SwitchTable(defaultTarget);
+    table.low = low;
+    table.targets = targets;
+    return table;
+  }
+
+  /**
+   * Creates a sparse table from the given key to address mapping.
+   */
+  public static SwitchTable sparse(Map<Integer,Integer> cases, int defaultTarget) {
+    SwitchTable table = new SwitchTable(defaultTarget);
+    table.lookup = new HashMap<>(cases);
+    return table;
+  }
+
+  /**
+   * Returns the address to jump to for the given (popped) value.
+   * @param key the value being switched on
+   */
+  public int target(Object key) {
+    if (!(key instanceof Integer))
+      return defaultTarget;
+    int k = (Integer)key;
+    if (targets != null) {
+      // widen before subtracting so extreme keys cannot wrap around
+      long index = (long)k - low;
+      if (index >= 0 && index < targets.length)
+        return targets[(int)index];
+      return defaultTarget;
+    }
+    Integer address = lookup.get(k);
+    return address != null ? address : defaultTarget;
+  }
+
+  /**
+   * Returns the key to address mapping (in key order) of the
+   * non-default cases.
+   */
+  public Map<Integer,Integer> cases() {
+    Map<Integer,Integer> cases = new TreeMap<>();
+    if (targets != null) {
+      for (int i = 0; i < targets.length; ++i)
+        if (targets[i] != defaultTarget)
+          cases.put(low + i, targets[i]);
+    }
+    else
+      cases.putAll(lookup);
+    return cases;
+  }
+
+  public int defaultTarget() {
+    return defaultTarget;
+  }
+
+  /**
+   * Returns a copy of the table with every address (including the
+   * default) mapped through the given function.
+   */
+  public SwitchTable remap(IntUnaryOperator map) {
+    SwitchTable table = new SwitchTable(map.applyAsInt(defaultTarget));
+    if (targets != null) {
+      table.low = low;
+      table.targets = new int[targets.length];
+      for (int i = 0; i < targets.length; ++i)
+        table.targets[i] = map.applyAsInt(targets[i]);
+    }
+    else {
+      table.lookup = new HashMap<>();
+      for (Map.Entry<Integer,Integer> e : lookup.entrySet())
+        table.lookup.put(e.getKey(), map.applyAsInt(e.getValue()));
+    }
+    return table;
+  }
+
+  @Override
+  public String toString() {
+    String s = "";
+    for (Map.Entry<Integer,Integer> e : cases().entrySet())
+      s += e.getKey() + " -> " + e.getValue() + ", ";
+    return "[" + s + "default -> " + defaultTarget + "]";
+  }
+
+}
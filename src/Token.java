@@ -13,6 +13,13 @@ public class Token {
   private int line;
   private int column;
 
+  // for a token read from a token buffer, the buffer and index its
+  // position is found from when first asked for (null once found, and
+  // cleared only after the position is set, so a thread seeing it
+  // cleared sees the position)
+  private volatile TokenBuffer buffer = null;
+  private int index;
+
   public Token(TokenType type, String lexeme, int line, int column) {
     this.type = type;
     this.lexeme = lexeme;
@@ -20,6 +27,14 @@ public class Token {
     this.column = column;
   }
 
+  // a token whose position is found from the buffer
+  Token(TokenType type, String lexeme, TokenBuffer buffer, int index) {
+    this.type = type;
+    this.lexeme = lexeme;
+    this.buffer = buffer;
+    this.index = index;
+  }
+
   public TokenType type() {
     return type;
   }
@@ -29,16 +44,32 @@ public class Token {
   }
 
   public int line() {
+    locate();
     return line;
   }
 
   public int column() {
+    locate();
     return column;
   }
 
   @Override
   public String toString() {
-    return type + " '" + lexeme + "' line " + line + " column " + column;
+    return type + " '" + lexeme + "' line " + line() + " column " + column();
+  }
+
+  // find the position of a token read from a buffer (once, even if
+  // asked for from several threads)
+  private void locate() {
+    if (buffer == null)
+      return;
+    synchronized (this) {
+      if (buffer != null) {
+        line = buffer.line(index);
+        column = buffer.column(index);
+        buffer = null;
+      }
+    }
   }
     
 }
@@ -0,0 +1,192 @@
+/*
+ * File: TokenBuffer.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: A compact token stream (see Lexer.tokenize), held as parallel
+ *       arrays instead of one Token object per token: each token's
+ *       type, the offset of its text in the source, and the length of
+ *       its text. Only identifiers and literals keep a lexeme string.
+ *       Identifiers are interned within the buffer, so each distinct
+ *       name is kept once. Each literal keeps its own string (as with
+ *       the lexer's tokens), since the VM compares strings by
+ *       reference. A keyword's or symbol's lexeme is its text, made
+ *       when asked for. Positions are not kept at all: a token's line
+ *       and column are found from its offset (with an index of where
+ *       each line starts, found once even with tokens located from
+ *       several threads) when an error message or debug output needs
+ *       them. The source is kept as a string (so a Latin-1 source
+ *       takes a byte per character).
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+public class TokenBuffer {
+
+  // the token types (for looking up types by ordinal)
+  private static final TokenType[] TYPES = TokenType.values();
+
+  // the source the tokens were read from
+  private String source;
+
+  // the tokens: type (ordinal), text offset and length, and lexeme
+  // (null for keywords and symbols)
+  private byte[] types = new byte[64];
+  private int[] starts = new int[64];
+  private int[] lengths = new int[64];
+  private String[] lexemes = new String[64];
+  private int size = 0;
+
+  // the distinct identifier lexemes (while filling the buffer)
+  private Map<String,String> pool = new HashMap<>();
+
+  // the offset each line starts at (found on first use, see
+  // lineIndex)
+  private volatile int[] lineStarts = null;
+
+
+  /**
+   * Creates an empty buffer over the source (filled by the lexer).
+   */
+  TokenBuffer(char[] source) {
+    this.source = new String(source);
+  }
+
+  /**
+   * Adds a token to the end of the buffer.
+   * @param type the token's type
+   * @param start the offset of the token's text in the source
+   * @param length the length of the token's text
+   * @param lexeme the token's lexeme (only kept for identifiers and
+   *               literals)
+   */
+  void add(TokenType type, int start, int length, String lexeme) {
+    if (size == types.length) {
+      int capacity = size * 2;
+      types = Arrays.copyOf(types, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+      lexemes = Arrays.copyOf(lexemes, capacity);
+    }
+    types[size] = (byte)type.ordinal();
+    starts[size] = start;
+    lengths[size] = length;
+    if (type == TokenType.ID) {
+      String pooled = pool.putIfAbsent(lexeme, lexeme);
+      lexemes[size] = pooled != null ? pooled : lexeme;
+    }
+    else if (hasLexeme(type))
+      lexemes[size] = lexeme;
+    ++size;
+  }
+
+  /**
+   * Ends filling the buffer, trimming its arrays to the tokens added.
+   */
+  void finish() {
+    types = Arrays.copyOf(types, size);
+    starts = Arrays.copyOf(starts, size);
+    lengths = Arrays.copyOf(lengths, size);
+    lexemes = Arrays.copyOf(lexemes, size);
+    pool = null;
+  }
+
+  /**
+   * Returns the number of tokens (including the final EOS).
+   */
+  public int size() {
+    return size;
+  }
+
+  public TokenType type(int index) {
+    return TYPES[types[index]];
+  }
+
+  /**
+   * Returns the token's lexeme (a keyword's or symbol's lexeme is
+   * interned, since the checker compares type names by reference).
+   */
+  public String lexeme(int index) {
+    if (lexemes[index] != null)
+      return lexemes[index];
+    if (type(index) == TokenType.EOS)
+      return "-1";
+    return source.substring(starts[index], starts[index] + lengths[index]).intern();
+  }
+
+  public int line(int index) {
+    return lineIndex(starts[index]) + 1;
+  }
+
+  public int column(int index) {
+    int line = lineIndex(starts[index]);
+    return starts[index] - lineStarts()[line] + 1;
+  }
+
+  /**
+   * Returns the token at the index, whose position is found when
+   * first asked for.
+   */
+  public Token token(int index) {
+    return new Token(type(index), lexeme(index), this, index);
+  }
+
+  /**
+   * Returns an EOS token at the position of the token at the index
+   * (ending a part of the buffer).
+   */
+  public Token endAt(int index) {
+    return new Token(TokenType.EOS, "-1", this, index);
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // true if the token type keeps its lexeme
+  private static boolean hasLexeme(TokenType type) {
+    switch (type) {
+    case ID:
+    case INT_VAL:
+    case DOUBLE_VAL:
+    case STRING_VAL:
+    case CHAR_VAL:
+    case BOOL_VAL:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  // the offset each line starts at, found on first use (tokens may be
+  // located from several threads, such as the module linker's: the
+  // table is found once, and published only once it is filled in)
+  private int[] lineStarts() {
+    int[] table = lineStarts;
+    if (table != null)
+      return table;
+    synchronized (this) {
+      if (lineStarts == null) {
+        int count = 1;
+        for (int i = source.indexOf('\n'); i >= 0; i = source.indexOf('\n', i + 1))
+          ++count;
+        int[] found = new int[count];
+        int line = 1;
+        for (int i = source.indexOf('\n'); i >= 0; i = source.indexOf('\n', i + 1))
+          found[line++] = i + 1;
+        lineStarts = found;
+      }
+      return lineStarts;
+    }
+  }
+
+  // the (0-based) line holding the offset
+  private int lineIndex(int offset) {
+    int i = Arrays.binarySearch(lineStarts(), offset);
+    return i >= 0 ? i : -i - 2;
+  }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * File: Trace.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: A trace recorded by the VM: the instructions one iteration of
+ *       a hot loop ran, in order, from the loop header back to it
+ *       (following the branches taken, and into and back out of the
+ *       functions called). Jumps and NOPs are left out, and each
+ *       conditional jump or switch becomes a guard that the recorded
+ *       way is taken again. The VM runs a trace as a straight-line
+ *       loop (a superblock) until a guard fails, and then goes back to
+ *       interpreting at the guarded instruction.
+ */
+
+import java.util.Arrays;
+
+
+public class Trace {
+
+  // kinds of trace operations
+  public static final int EXEC = 0;    // run the instruction as the interpreter does
+  public static final int PUSH = 1;    // push the operand
+  public static final int POP = 2;     // pop a value
+  public static final int LOAD = 3;    // push a variable's value
+  public static final int STORE = 4;   // pop a value into a variable
+  public static final int QUICK = 5;   // run a quickened instruction
+  public static final int TYPED = 6;   // run an instruction with verified operand types
+  public static final int BRANCH = 7;  // guard a JMPF jumps (or not) as recorded
+  public static final int SWITCH = 8;  // guard a switch jumps to the recorded target
+
+  // the operations: their kind, the address and instruction they came
+  // from, the operand types (for TYPED), and the recorded outcome (1
+  // if a BRANCH jumped, or the address a SWITCH jumped to)
+  int[] kinds = new int[16];
+  int[] pcs = new int[16];
+  VMInstr[] instrs = new VMInstr[16];
+  Verifier.Type[] types = new Verifier.Type[16];
+  int[] outcomes = new int[16];
+  private int size = 0;
+
+
+  /**
+   * Adds an operation to the end of the trace.
+   */
+  public void add(int kind, int pc, VMInstr instr, Verifier.Type type, int outcome) {
+    if (size == kinds.length) {
+      kinds = Arrays.copyOf(kinds, size * 2);
+      pcs = Arrays.copyOf(pcs, size * 2);
+      instrs = Arrays.copyOf(instrs, size * 2);
+      types = Arrays.copyOf(types, size * 2);
+      outcomes = Arrays.copyOf(outcomes, size * 2);
+    }
+    kinds[size] = kind;
+    pcs[size] = pc;
+    instrs[size] = instr;
+    types[size] = type;
+    outcomes[size] = outcome;
+    ++size;
+  }
+
+  /**
+   * Returns the number of operations in the trace.
+   */
+  public int size() {
+    return size;
+  }
+
+  public String toString() {
+    String s = "";
+    for (int i = 0; i < size; ++i) {
+      s += "  " + pcs[i] + ": " + instrs[i];
+      if (kinds[i] == BRANCH)
+        s += outcomes[i] == 1 ? "  [guard: jumps]" : "  [guard: falls through]";
+      else if (kinds[i] == SWITCH)
+        s += "  [guard: to " + outcomes[i] + "]";
+      s += "\n";
+    }
+    return s;
+  }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * File: TreeShaker.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Removes the functions and types a checked program never uses
+ *       (tree shaking), so code is not generated for the parts of an
+ *       imported module a script does not need. A function is used if
+ *       main calls it, directly or through other used functions. A
+ *       type is used if a used function or type names it (as a
+ *       parameter, return, variable, or field type, or in a new
+ *       expression). Field initializers run whenever a record is
+ *       created, so the functions and types they use are used too.
+ *       The VM only calls functions by name from the code, so nothing
+ *       removed can be called. Other functions and types can be kept
+ *       as roots too (as the module linker does for a program's own
+ *       declarations).
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class TreeShaker implements Visitor {
+
+  // the program's functions and types (by name)
+  private Map<String,FunDecl> funDecls = new HashMap<>();
+  private Map<String,TypeDecl> typeDecls = new HashMap<>();
+
+  // the functions and types found to be used, and those whose bodies
+  // (or fields) are still to be visited
+  private Set<String> usedFuns = new HashSet<>();
+  private Set<String> usedTypes = new HashSet<>();
+  private List<ASTNode> work = new ArrayList<>();
+
+  // the functions and types kept whether used or not
+  private Set<String> funRoots = new HashSet<>();
+  private Set<String> typeRoots = new HashSet<>();
+
+  // the numbers of functions and types before and after the last run
+  private int funCount = 0;
+  private int typeCount = 0;
+  private int keptFunCount = 0;
+  private int keptTypeCount = 0;
+
+
+  /**
+   * Creates a shaker keeping what main uses.
+   */
+  public TreeShaker() {
+    funRoots.add("main");
+  }
+
+  /**
+   * Creates a shaker keeping the given functions and types, and what
+   * they use.
+   */
+  public TreeShaker(Set<String> funRoots, Set<String> typeRoots) {
+    this.funRoots.addAll(funRoots);
+    this.typeRoots.addAll(typeRoots);
+  }
+
+  /**
+   * Returns the number of functions the last run removed.
+   */
+  public int removedFunctions() {
+    return funCount - keptFunCount;
+  }
+
+  /**
+   * Returns the number of types the last run removed.
+   */
+  public int removedTypes() {
+    return typeCount - keptTypeCount;
+  }
+
+  /**
+   * Returns a summary of what the last run removed.
+   */
+  public String report() {
+    return "removed " + removedFunctions() + " of " + funCount + " functions, " +
+      removedTypes() + " of " + typeCount + " types";
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // note a use of the named function
+  private void useFun(String name) {
+    FunDecl fdecl = funDecls.get(name);
+    if (fdecl != null && usedFuns.add(name))
+      work.add(fdecl);
+  }
+
+  // note a use of the named type (if it is user-defined)
+  private void useType(Token name) {
+    if (name != null)
+      useType(name.lexeme());
+  }
+
+  private void useType(String name) {
+    TypeDecl tdecl = typeDecls.get(name);
+    if (tdecl != null && usedTypes.add(name))
+      work.add(tdecl);
+  }
+
+  private void visitStmts(Iterable<Stmt> stmts) throws MyPLException {
+    for (Stmt stmt : stmts)
+      stmt.accept(this);
+  }
+
+
+  //----------------------------------------------------------------------
+  // VISITOR FUNCTIONS
+  //----------------------------------------------------------------------
+
+  public void visit(Program node) throws MyPLException {
+    funDecls.clear();
+    typeDecls.clear();
+    usedFuns.clear();
+    usedTypes.clear();
+    for (FunDecl fdecl : node.fdecls)
+      funDecls.put(fdecl.funName.lexeme(), fdecl);
+    for (TypeDecl tdecl : node.tdecls)
+      typeDecls.put(tdecl.typeName.lexeme(), tdecl);
+    for (String name : funRoots)
+      useFun(name);
+    for (String name : typeRoots)
+      useType(name);
+    while (!work.isEmpty())
+      work.remove(work.size() - 1).accept(this);
+    // keep the used declarations in their order
+    List<FunDecl> fdecls = new ArrayList<>();
+    for (FunDecl fdecl : node.fdecls)
+      if (usedFuns.contains(fdecl.funName.lexeme()))
+        fdecls.add(fdecl);
+    List<TypeDecl> tdecls = new ArrayList<>();
+    for (TypeDecl tdecl : node.tdecls)
+      if (usedTypes.contains(tdecl.typeName.lexeme()))
+        tdecls.add(tdecl);
+    funCount = node.fdecls.size();
+    typeCount = node.tdecls.size();
+    keptFunCount = fdecls.size();
+    keptTypeCount = tdecls.size();
+    node.fdecls = fdecls;
+    node.tdecls = tdecls;
+  }
+
+  public void visit(TypeDecl node) throws MyPLException {
+    for (VarDeclStmt vdecl : node.vdecls)
+      vdecl.accept(this);
+  }
+
+  public void visit(FunDecl node) throws MyPLException {
+    useType(node.returnType);
+    for (FunParam param : node.params)
+      useType(param.paramType);
+    visitStmts(node.stmts);
+  }
+
+  public void visit(VarDeclStmt node) throws MyPLException {
+    useType(node.typeName);
+    node.expr.accept(this);
+  }
+
+  public void visit(AssignStmt node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+  public void visit(CondStmt node) throws MyPLException {
+    node.ifPart.cond.accept(this);
+    visitStmts(node.ifPart.stmts);
+    for (BasicIf elif : node.elifs) {
+      elif.cond.accept(this);
+      visitStmts(elif.stmts);
+    }
+    if (node.elseStmts != null)
+      visitStmts(node.elseStmts);
+  }
+
+  public void visit(WhileStmt node) throws MyPLException {
+    node.cond.accept(this);
+    visitStmts(node.stmts);
+  }
+
+  public void visit(ForStmt node) throws MyPLException {
+    node.start.accept(this);
+    node.end.accept(this);
+    visitStmts(node.stmts);
+  }
+
+  public void visit(ReturnStmt node) throws MyPLException {
+    if (node.expr != null)
+      node.expr.accept(this);
+  }
+
+  public void visit(DeleteStmt node) throws MyPLException {
+    // nothing to do here
+  }
+
+  public void visit(CallExpr node) throws MyPLException {
+    useFun(node.funName.lexeme());
+    for (Expr arg : node.args)
+      arg.accept(this);
+  }
+
+  public void visit(SimpleRValue node) throws MyPLException {
+    // nothing to do here
+  }
+
+  public void visit(NewRValue node) throws MyPLException {
+    useType(node.typeName);
+  }
+
+  public void visit(IDRValue node) throws MyPLException {
+    // nothing to do here
+  }
+
+  public void visit(NegatedRValue node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+  public void visit(Expr node) throws MyPLException {
+    node.first.accept(this);
+    if (node.rest != null)
+      node.rest.accept(this);
+  }
+
+  public void visit(SimpleTerm node) throws MyPLException {
+    node.rvalue.accept(this);
+  }
+
+  public void visit(ComplexTerm node) throws MyPLException {
+    node.expr.accept(this);
+  }
+
+}
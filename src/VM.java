@@ -15,7 +15,9 @@ import java.util.Collection;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.Deque;
 import java.util.ArrayDeque;
 import java.util.Scanner;
@@ -62,9 +64,66 @@ class VM {
   // the frames for the program (one frame per function)
   private Map<String,VMFrame> frames = new HashMap<>();
 
+  // the frames of the current run, with their own copy of the
+  // instructions (which calls share and the VM quickens as it runs)
+  private Map<String,VMFrame> loaded = new HashMap<>();
+
+  // verifies the frames of the current run
+  private Verifier verifier = null;
+
   // the VM call stack
   private Deque<VMFrame> frameStack = new ArrayDeque<>();
 
+  // number of instructions executed by the last run
+  private long dispatchCount = 0;
+
+  // number of heap objects allocated by the last run
+  private long allocCount = 0;
+
+  // true if frames are verified before running (so verified frames
+  // can run without run-time checks)
+  private boolean verify = true;
+
+  // true if generic ADD, CMPLT, and CMPEQ instructions are quickened
+  private boolean quickening = true;
+
+  // generic instructions that fell back from their quickened form
+  // (which are not quickened again)
+  private Set<VMInstr> unstable = new HashSet<>();
+
+  // number of instructions quickened, and of quickened instructions
+  // put back, by the last run
+  private long quickenCount = 0;
+  private long dequickenCount = 0;
+
+  // number of jumps back to a loop header before a trace of the loop
+  // is recorded
+  public static final int HOT_LOOP = 50;
+
+  // longest trace recorded (in instructions), and the deepest calls a
+  // trace may follow
+  public static final int MAX_TRACE_LENGTH = 1000;
+  public static final int MAX_TRACE_DEPTH = 4;
+
+  // true if hot loops are traced
+  private boolean tracing = false;
+
+  // true while running a trace (which does not quicken instructions)
+  private boolean inTrace = false;
+
+  // the trace being recorded (null if none), the frame and header
+  // address of its loop, and the depth of the calls it is in
+  private Trace recording = null;
+  private VMFrame recordFrame = null;
+  private int recordHeader = 0;
+  private int recordDepth = 0;
+
+  // number of traces recorded, of guard failures leaving a trace, and
+  // of instructions run in traces, by the last run
+  private long traceCount = 0;
+  private long guardExitCount = 0;
+  private long tracedCount = 0;
+
   
   /**
    * For representing "nil" as a value
@@ -80,6 +139,24 @@ class VM {
     frames.put(frame.functionName(), frame);
   }
 
+  /**
+   * Returns the VM's known frames (for the optimization passes), with
+   * their instructions decoded.
+   */
+  public Collection<VMFrame> frames() {
+    for (VMFrame f : frames.values())
+      f.decode();
+    return frames.values();
+  }
+
+  /**
+   * Returns the frame of the given function (or null if no such frame).
+   * @param functionName the name of the frame's function
+   */
+  public VMFrame frame(String functionName) {
+    return frames.get(functionName);
+  }
+
   /**
    * Turn on/off debugging, which prints out the state of the VM prior
    * to each instruction. 
@@ -89,6 +166,90 @@ class VM {
     DEBUG = debug;
   }
 
+  /**
+   * Turn on/off verification of the frames before running. Frames
+   * that pass run without the VM's run-time stack and type checks.
+   * @param verify set to false to always run checked (by default true)
+   */
+  public void setVerification(boolean verify) {
+    this.verify = verify;
+  }
+
+  /**
+   * Turn on/off quickening: rewriting a generic ADD, CMPLT, or CMPEQ
+   * instruction, once run, into a form specialized to the operand
+   * types it saw. A quickened instruction whose operands later have
+   * other types is put back (and stays generic).
+   * @param quickening set to false to never quicken (by default true)
+   */
+  public void setQuickening(boolean quickening) {
+    this.quickening = quickening;
+  }
+
+  /**
+   * Returns the number of instructions quickened by the last run.
+   */
+  public long quickenCount() {
+    return quickenCount;
+  }
+
+  /**
+   * Returns the number of quickened instructions put back to their
+   * generic form by the last run.
+   */
+  public long dequickenCount() {
+    return dequickenCount;
+  }
+
+  /**
+   * Turn on/off tracing: once a loop is hot (jumped back to HOT_LOOP
+   * times), the instructions of its next iteration are recorded into a
+   * trace, which then runs in place of the loop until one of its
+   * guards fails.
+   * @param tracing set to true to trace hot loops (by default false)
+   */
+  public void setTracing(boolean tracing) {
+    this.tracing = tracing;
+  }
+
+  /**
+   * Returns the number of traces recorded by the last run.
+   */
+  public long traceCount() {
+    return traceCount;
+  }
+
+  /**
+   * Returns the number of times the last run left a trace because a
+   * guard failed.
+   */
+  public long guardExitCount() {
+    return guardExitCount;
+  }
+
+  /**
+   * Returns the number of instructions the last run ran in traces.
+   */
+  public long tracedCount() {
+    return tracedCount;
+  }
+
+  /**
+   * Returns the number of instructions dispatched by the last call to
+   * run (useful for comparing generated code).
+   */
+  public long dispatchCount() {
+    return dispatchCount;
+  }
+
+  /**
+   * Returns the number of heap objects allocated by the last call to
+   * run.
+   */
+  public long allocCount() {
+    return allocCount;
+  }
+
   /**
    * Run the virtual machine
    */
@@ -97,18 +258,39 @@ class VM {
     // grab the main stack frame
     if (!frames.containsKey("main"))
       throw MyPLException.VMError("No 'main' function");
-    VMFrame frame = frames.get("main").instantiate();
+    // frames are loaded as they are first called
+    loaded.clear();
+    verifier = new Verifier(this);
+    VMFrame frame = load("main").instantiate();
     frameStack.push(frame);
+    dispatchCount = 0;
+    allocCount = 0;
+    unstable.clear();
+    quickenCount = 0;
+    dequickenCount = 0;
+    recording = null;
+    traceCount = 0;
+    guardExitCount = 0;
+    tracedCount = 0;
     
     // run loop (keep going until we run out of frames or
     // instructions) note that we assume each function returns a
     // value, and so the second check below should never occur (but is
     // useful for testing, etc).
     while (frame != null && frame.pc < frame.instructions.size()) {
+      // a verified frame runs unchecked up to the next instruction
+      // that needs the checked path below (such as a call)
+      if (frame.verified && !DEBUG && recording == null) {
+        runVerified(frame);
+        if (frame.pc >= frame.instructions.size())
+          break;
+      }
+
       // get next instruction
       VMInstr instr = frame.instructions.get(frame.pc);
       // increment instruction pointer
       ++frame.pc;
+      ++dispatchCount;
 
       // For debugging: to turn on the following, call setDebug(true)
       // on the VM.
@@ -121,537 +303,576 @@ class VM {
         System.out.println("\t HEAP ........: " + heap);
       }
 
-      
-      //------------------------------------------------------------
-      // Consts/Vars
-      //------------------------------------------------------------
+      VMFrame current = frame;
+      int pc = frame.pc - 1;
+      frame = execute(frame, instr);
+      if (recording != null)
+        record(current, pc, frame);
+      // a jump back to a loop header
+      else if (tracing && !DEBUG && instr.opcode() == OpCode.JMP && frame.pc <= pc)
+        frame = loopBack(frame);
+    }
+  }
+
+
+  /**
+   * Runs the instruction (just fetched from the frame), returning the
+   * frame to continue with (the called frame for a CALL, the calling
+   * frame for a VRET, and otherwise the same frame).
+   */
+  private VMFrame execute(VMFrame frame, VMInstr instr) throws MyPLException {
+    // a quickened instruction runs its specialized form while the
+    // operand types match, and otherwise is put back and run below
+    if (instr.generic() != null) {
+      if (runQuick(frame.operandStack, instr.opcode()))
+        return frame;
+      instr = dequicken(frame, instr);
+    }
+    
+    //------------------------------------------------------------
+    // Consts/Vars
+    //------------------------------------------------------------
 
-      if (instr.opcode() == OpCode.PUSH) {
-        frame.operandStack.push(instr.operand());
+    if (instr.opcode() == OpCode.PUSH) {
+      frame.operandStack.push(instr.operand());
+    }
+    
+    else if (instr.opcode() == OpCode.POP) {
+      frame.operandStack.pop();
+    }
+    
+    else if (instr.opcode() == OpCode.LOAD) {
+      frame.operandStack.push(frame.variables.get((int)instr.operand()));
+    }
+    
+    else if (instr.opcode() == OpCode.STORE) {
+      int address = (int)instr.operand();
+      // grow the variable store up to the address (slots are not
+      // necessarily first stored in address order)
+      while (address >= frame.variables.size()) {
+        frame.variables.add(null);
       }
+      frame.variables.set(address, frame.operandStack.pop());
+    }
+    
+    //------------------------------------------------------------
+    // Ops
+    //------------------------------------------------------------
       
-      else if (instr.opcode() == OpCode.POP) {
-        frame.operandStack.pop();
+    else if (instr.opcode() == OpCode.ADD) {
+      // TODO
+      Object op1 = frame.operandStack.pop();
+      Object op2 = frame.operandStack.pop();
+      quicken(frame, instr, op1, op2);
+      // ensure that the top two values are of type double
+      if (op1 instanceof Double && op2 instanceof Double) {
+        frame.operandStack.push((double)op1 + (double)op2);
       }
-      
-      else if (instr.opcode() == OpCode.LOAD) {
-        frame.operandStack.push(frame.variables.get((int)instr.operand()));
+      else if(op1 instanceof Integer && op2 instanceof Integer) {
+        frame.operandStack.push((int)op1 + (int)op2);
       }
+      else if(op1 instanceof String && op2 instanceof String) {
+        frame.operandStack.push((String)op2 + (String)op1);
+      } // string char add
+      else if(op1 instanceof Character && op2 instanceof Character) {
+        frame.operandStack.push((char)op1 + (char)op2);
+      } // string char add
       
-      else if (instr.opcode() == OpCode.STORE) {
-        if ((int)instr.operand() >= frame.variables.size()) {
-          frame.variables.add(frame.operandStack.pop());
+      else {
+        throw MyPLException.VMError("Invalid operands for ADD");
+      }        
+    }
+
+    else if (instr.opcode() == OpCode.SUB) {
+      // TODO
+      // pop the top two values off the stack
+      Object op1 = frame.operandStack.pop();
+      Object op2 = frame.operandStack.pop();
+      // push the difference of the two values back onto the stack
+      // ensure that the top two values are of type double
+      if (op1 instanceof Double && op2 instanceof Double) {
+        double s1 = (double)op1;
+        double s2 = (double)op2;
+        if(s1 < s2) {
+          frame.operandStack.push((s1 - s2)*-1);
         } else {
-          frame.variables.set((int)instr.operand(), frame.operandStack.pop());
+          frame.operandStack.push(s1 - s2);
         }
       }
-      
-      //------------------------------------------------------------
-      // Ops
-      //------------------------------------------------------------
-        
-      else if (instr.opcode() == OpCode.ADD) {
-        // TODO
-        Object op1 = frame.operandStack.pop();
-        Object op2 = frame.operandStack.pop();
-        // ensure that the top two values are of type double
-        if (op1 instanceof Double && op2 instanceof Double) {
-          frame.operandStack.push((double)op1 + (double)op2);
-        }
-        else if(op1 instanceof Integer && op2 instanceof Integer) {
-          frame.operandStack.push((int)op1 + (int)op2);
-        }
-        else if(op1 instanceof String && op2 instanceof String) {
-          frame.operandStack.push((String)op2 + (String)op1);
-        } // string char add
-        else if(op1 instanceof Character && op2 instanceof Character) {
-          frame.operandStack.push((char)op1 + (char)op2);
-        } // string char add
-        
-        else {
-          throw MyPLException.VMError("Invalid operands for ADD");
-        }        
-      }
-
-      else if (instr.opcode() == OpCode.SUB) {
-        // TODO
-        // pop the top two values off the stack
-        Object op1 = frame.operandStack.pop();
-        Object op2 = frame.operandStack.pop();
-        // push the difference of the two values back onto the stack
-        // ensure that the top two values are of type double
-        if (op1 instanceof Double && op2 instanceof Double) {
-          double s1 = (double)op1;
-          double s2 = (double)op2;
-          if(s1 < s2) {
-            frame.operandStack.push((s1 - s2)*-1);
-          } else {
-            frame.operandStack.push(s1 - s2);
-          }
-        }
-        else if(op1 instanceof Integer && op2 instanceof Integer) {
-          int s1 = (int)op1;
-          int s2 = (int)op2;
-          if(s1 < s2) {
-            frame.operandStack.push((s1 - s2)*-1);
-          } else {
-            frame.operandStack.push(s1 - s2);
-          }
+      else if(op1 instanceof Integer && op2 instanceof Integer) {
+        int s1 = (int)op1;
+        int s2 = (int)op2;
+        if(s1 < s2) {
+          frame.operandStack.push((s1 - s2)*-1);
+        } else {
+          frame.operandStack.push(s1 - s2);
         }
-        else {
-          throw MyPLException.VMError("Operands must be of type int or double");
-        }  
       }
+      else {
+        throw MyPLException.VMError("Operands must be of type int or double");
+      }  
+    }
 
-      else if (instr.opcode() == OpCode.MUL) {
-        // TODO
-        // ensure that there are at least 2 values on the stack
-        if (frame.operandStack.size() < 2) {
-          throw MyPLException.VMError("Not enough operands on the stack");
-        }
-        Object op1 = frame.operandStack.pop();
-        Object op2 = frame.operandStack.pop();
-        // ensure that the top two values are of type double
-        if (op1 instanceof Double && op2 instanceof Double) {
-          frame.operandStack.push((Double)op1 * (Double)op2);
-        }
-        else if(op1 instanceof Integer && op2 instanceof Integer) {
-          frame.operandStack.push((Integer)op1 * (Integer)op2);
-        }
-        else {
-          throw MyPLException.VMError("Operands must be of type int or double");
-        }        
+    else if (instr.opcode() == OpCode.MUL) {
+      // TODO
+      // ensure that there are at least 2 values on the stack
+      if (frame.operandStack.size() < 2) {
+        throw MyPLException.VMError("Not enough operands on the stack");
       }
-
-      else if (instr.opcode() == OpCode.DIV) {
-        // TODO
-        // ensure that there are at least 2 values on the stack
-        if (frame.operandStack.size() < 2) {
-          throw MyPLException.VMError("Not enough operands on the stack");
-        }
-        Object op1 = frame.operandStack.pop();
-        Object op2 = frame.operandStack.pop();
-        // ensure that the top two values are of type double
-        if (op1 instanceof Double && op2 instanceof Double) {
-          frame.operandStack.push((Double)op2 / (Double)op1);
-        }
-        else if(op1 instanceof Integer && op2 instanceof Integer) {
-          frame.operandStack.push((Integer)op2 / (Integer)op1);
-        }
-        else {
-          throw MyPLException.VMError("Operands must be of type int or double");
-        } 
+      Object op1 = frame.operandStack.pop();
+      Object op2 = frame.operandStack.pop();
+      // ensure that the top two values are of type double
+      if (op1 instanceof Double && op2 instanceof Double) {
+        frame.operandStack.push((Double)op1 * (Double)op2);
       }
-
-      else if (instr.opcode() == OpCode.MOD) {
-        // TODO
-        // ensure that there are at least 2 values on the stack
-        if (frame.operandStack.size() < 2) {
-          throw MyPLException.VMError("Not enough operands on the stack");
-        }
-        Object op1 = frame.operandStack.pop();
-        Object op2 = frame.operandStack.pop();
-        // ensure that the top two values are of type int
-        if(op1 instanceof Integer && op2 instanceof Integer) {
-          frame.operandStack.push((Integer)op2 % (Integer)op1);
-        }
-        else {
-          throw MyPLException.VMError("Operands must be of type int or double");
-        } 
+      else if(op1 instanceof Integer && op2 instanceof Integer) {
+        frame.operandStack.push((Integer)op1 * (Integer)op2);
       }
+      else {
+        throw MyPLException.VMError("Operands must be of type int or double");
+      }        
+    }
 
-      else if (instr.opcode() == OpCode.AND) {
-        // TODO
-        if (frame.operandStack.size() < 2) {
-          throw MyPLException.VMError("Not enough operands on the stack");
-        }
-        Object op1 = frame.operandStack.pop();
-        Object op2 = frame.operandStack.pop();
-
-        if(op1 instanceof Boolean && op2 instanceof Boolean) {
-          frame.operandStack.push((Boolean)op1 & (Boolean)op2);
-        }
-        else {
-          throw MyPLException.VMError("Operands must be of type boolean");
-        }
+    else if (instr.opcode() == OpCode.DIV) {
+      // TODO
+      // ensure that there are at least 2 values on the stack
+      if (frame.operandStack.size() < 2) {
+        throw MyPLException.VMError("Not enough operands on the stack");
       }
+      Object op1 = frame.operandStack.pop();
+      Object op2 = frame.operandStack.pop();
+      // ensure that the top two values are of type double
+      if (op1 instanceof Double && op2 instanceof Double) {
+        frame.operandStack.push((Double)op2 / (Double)op1);
+      }
+      else if(op1 instanceof Integer && op2 instanceof Integer) {
+        frame.operandStack.push((Integer)op2 / (Integer)op1);
+      }
+      else {
+        throw MyPLException.VMError("Operands must be of type int or double");
+      } 
+    }
 
-      else if (instr.opcode() == OpCode.OR) {
-        // TODO
-        if (frame.operandStack.size() < 2) {
-          throw MyPLException.VMError("Not enough operands on the stack");
-        }
-        Object op1 = frame.operandStack.pop();
-        Object op2 = frame.operandStack.pop();
+    else if (instr.opcode() == OpCode.MOD) {
+      // TODO
+      // ensure that there are at least 2 values on the stack
+      if (frame.operandStack.size() < 2) {
+        throw MyPLException.VMError("Not enough operands on the stack");
+      }
+      Object op1 = frame.operandStack.pop();
+      Object op2 = frame.operandStack.pop();
+      // ensure that the top two values are of type int
+      if(op1 instanceof Integer && op2 instanceof Integer) {
+        frame.operandStack.push((Integer)op2 % (Integer)op1);
+      }
+      else {
+        throw MyPLException.VMError("Operands must be of type int or double");
+      } 
+    }
 
-        if(op1 instanceof Boolean && op2 instanceof Boolean) {
-          frame.operandStack.push((Boolean)op1 | (Boolean)op2);
-        }
-        else {
-          throw MyPLException.VMError("Operands must be of type boolean");
-        }
+    else if (instr.opcode() == OpCode.AND) {
+      // TODO
+      if (frame.operandStack.size() < 2) {
+        throw MyPLException.VMError("Not enough operands on the stack");
+      }
+      Object op1 = frame.operandStack.pop();
+      Object op2 = frame.operandStack.pop();
 
+      if(op1 instanceof Boolean && op2 instanceof Boolean) {
+        frame.operandStack.push((Boolean)op1 & (Boolean)op2);
+      }
+      else {
+        throw MyPLException.VMError("Operands must be of type boolean");
       }
+    }
 
-      else if (instr.opcode() == OpCode.NOT) {
-        Object operand = frame.operandStack.pop();
-        ensureNotNil(frame, operand);
-        frame.operandStack.push(!(boolean)operand);
+    else if (instr.opcode() == OpCode.OR) {
+      // TODO
+      if (frame.operandStack.size() < 2) {
+        throw MyPLException.VMError("Not enough operands on the stack");
       }
+      Object op1 = frame.operandStack.pop();
+      Object op2 = frame.operandStack.pop();
 
-      else if (instr.opcode() == OpCode.CMPLT) {
-        // TODO 1 > 2
-        Object op1 = frame.operandStack.pop();
-        Object op2 = frame.operandStack.pop();
-        if(op1 instanceof Double && op2 instanceof Double) {
-          frame.operandStack.push((double)op1 > (double)op2);
-        }
-        else if(op1 instanceof Integer && op2 instanceof Integer) {
-          frame.operandStack.push((int)op1 > (int)op2);
-          
-        }
-        else if(op1 instanceof String && op2 instanceof String) {
-          String s1 = (String)op1;
-          String s2 = (String)op2;
-          frame.operandStack.push(s1.compareTo(s2) > 0);
-        }
-        else {
-          throw MyPLException.VMError("Operands must be of type int or double");
-        }
+      if(op1 instanceof Boolean && op2 instanceof Boolean) {
+        frame.operandStack.push((Boolean)op1 | (Boolean)op2);
+      }
+      else {
+        throw MyPLException.VMError("Operands must be of type boolean");
       }
 
-      else if (instr.opcode() == OpCode.CMPLE) {
-        // TODO
-        Object op1 = frame.operandStack.pop();
-        Object op2 = frame.operandStack.pop();
-        if(op1 instanceof Double && op2 instanceof Double) {
-          frame.operandStack.push((double)op1 >= (double)op2);
-        }
-        else if(op1 instanceof Integer && op2 instanceof Integer) {
-          frame.operandStack.push((int)op1 >= (int)op2);
-        }
-        else if(op1 instanceof String && op2 instanceof String) {
-          if(((String)op1).compareTo((String)op2) >= 0) {
-            frame.operandStack.push(true);
-          }
-          else {
-            frame.operandStack.push(false);
-          }
-        }
-        else {
-          throw MyPLException.VMError("Operands must be of type int or double");
-        }
+    }
+
+    else if (instr.opcode() == OpCode.NOT) {
+      Object operand = frame.operandStack.pop();
+      ensureNotNil(frame, operand);
+      frame.operandStack.push(!(boolean)operand);
+    }
+
+    else if (instr.opcode() == OpCode.CMPLT) {
+      // TODO 1 > 2
+      Object op1 = frame.operandStack.pop();
+      Object op2 = frame.operandStack.pop();
+      quicken(frame, instr, op1, op2);
+      if(op1 instanceof Double && op2 instanceof Double) {
+        frame.operandStack.push((double)op1 > (double)op2);
+      }
+      else if(op1 instanceof Integer && op2 instanceof Integer) {
+        frame.operandStack.push((int)op1 > (int)op2);
         
       }
+      else if(op1 instanceof String && op2 instanceof String) {
+        String s1 = (String)op1;
+        String s2 = (String)op2;
+        frame.operandStack.push(s1.compareTo(s2) > 0);
+      }
+      else {
+        throw MyPLException.VMError("Operands must be of type int or double");
+      }
+    }
 
-      else if (instr.opcode() == OpCode.CMPGT) {
-        // TODO
-        Object op1 = frame.operandStack.pop();
-        Object op2 = frame.operandStack.pop();
-        if(op1 instanceof Double && op2 instanceof Double) {
-          frame.operandStack.push((double)op1 < (double)op2);
-        }
-        else if(op1 instanceof Integer && op2 instanceof Integer) {
-          frame.operandStack.push((int)op1 < (int)op2);
-        }
-        else if(op1 instanceof String && op2 instanceof String) {
-          if(((String)op1).compareTo((String)op2) < 0) {
-            frame.operandStack.push(true);
-          }
-          else {
-            frame.operandStack.push(false);
-          }
+    else if (instr.opcode() == OpCode.CMPLE) {
+      // TODO
+      Object op1 = frame.operandStack.pop();
+      Object op2 = frame.operandStack.pop();
+      if(op1 instanceof Double && op2 instanceof Double) {
+        frame.operandStack.push((double)op1 >= (double)op2);
+      }
+      else if(op1 instanceof Integer && op2 instanceof Integer) {
+        frame.operandStack.push((int)op1 >= (int)op2);
+      }
+      else if(op1 instanceof String && op2 instanceof String) {
+        if(((String)op1).compareTo((String)op2) >= 0) {
+          frame.operandStack.push(true);
         }
         else {
-          throw MyPLException.VMError("Operands must be of type int or double");
+          frame.operandStack.push(false);
         }
-        
       }
+      else {
+        throw MyPLException.VMError("Operands must be of type int or double");
+      }
+      
+    }
 
-      else if (instr.opcode() == OpCode.CMPGE) {
-        // TODO
-        Object op1 = frame.operandStack.pop();
-        Object op2 = frame.operandStack.pop();
-
-        if(op1 instanceof Double && op2 instanceof Double) {
-          frame.operandStack.push((double)op1 <= (double)op2);
-        }
-        else if(op1 instanceof Integer && op2 instanceof Integer) {
-          frame.operandStack.push((int)op1 <= (int)op2);
-        }
-        else if(op1 instanceof String && op2 instanceof String) {
-          if(((String)op1).compareTo((String)op2) <= 0) {
-            frame.operandStack.push(true);
-          }
-          else {
-            frame.operandStack.push(false);
-          }
+    else if (instr.opcode() == OpCode.CMPGT) {
+      // TODO
+      Object op1 = frame.operandStack.pop();
+      Object op2 = frame.operandStack.pop();
+      if(op1 instanceof Double && op2 instanceof Double) {
+        frame.operandStack.push((double)op1 < (double)op2);
+      }
+      else if(op1 instanceof Integer && op2 instanceof Integer) {
+        frame.operandStack.push((int)op1 < (int)op2);
+      }
+      else if(op1 instanceof String && op2 instanceof String) {
+        if(((String)op1).compareTo((String)op2) < 0) {
+          frame.operandStack.push(true);
         }
         else {
-          throw MyPLException.VMError("Operands must be of type int or double");
+          frame.operandStack.push(false);
         }
-        
-
       }
+      else {
+        throw MyPLException.VMError("Operands must be of type int or double");
+      }
+      
+    }
 
-      else if (instr.opcode() == OpCode.CMPEQ) {
-        // TODO
-        Object op1 = frame.operandStack.pop();
-        Object op2 = frame.operandStack.pop();
-        if(op1 instanceof Double && op2 instanceof Double) {
-          frame.operandStack.push((double)op1 == ((double)op2));
-        }
-        else if(op1 instanceof Integer && op2 instanceof Integer) {
-          frame.operandStack.push((int)op1 == (int)op2);
-        }
-        else if(op1 instanceof String && op2 instanceof String) {
-          frame.operandStack.push((String)op1 == (String)op2);
-        }
-        // check for null objects
-        else if(op1 == null && op2 == null) {
+    else if (instr.opcode() == OpCode.CMPGE) {
+      // TODO
+      Object op1 = frame.operandStack.pop();
+      Object op2 = frame.operandStack.pop();
+
+      if(op1 instanceof Double && op2 instanceof Double) {
+        frame.operandStack.push((double)op1 <= (double)op2);
+      }
+      else if(op1 instanceof Integer && op2 instanceof Integer) {
+        frame.operandStack.push((int)op1 <= (int)op2);
+      }
+      else if(op1 instanceof String && op2 instanceof String) {
+        if(((String)op1).compareTo((String)op2) <= 0) {
           frame.operandStack.push(true);
         }
         else {
           frame.operandStack.push(false);
         }
-        
       }
+      else {
+        throw MyPLException.VMError("Operands must be of type int or double");
+      }
+      
 
-      else if (instr.opcode() == OpCode.CMPNE) {
-        // TODO
-        Object op1 = frame.operandStack.pop();
-        Object op2 = frame.operandStack.pop();
-        if(op1 instanceof Double && op2 instanceof Double) {
-          double d1 = (double)op1;
-          double d2 = (double)op2;
-          if(d1 == d2) {
-            frame.operandStack.push(false);
-          }
-          else {
-            frame.operandStack.push(true);
-          }
-        }
-        else if(op1 instanceof Integer && op2 instanceof Integer) {
-          frame.operandStack.push((int)op1 != (int)op2);
-        }
-        else if(op1 instanceof String && op2 instanceof String) {
-          frame.operandStack.push((String)op1 != (String)op2);
-        }
-        // check for null objects
-        else if(op1 == null && op2 == null) {
+    }
+
+    else if (instr.opcode() == OpCode.CMPEQ) {
+      // TODO
+      Object op1 = frame.operandStack.pop();
+      Object op2 = frame.operandStack.pop();
+      quicken(frame, instr, op1, op2);
+      if(op1 instanceof Double && op2 instanceof Double) {
+        frame.operandStack.push((double)op1 == ((double)op2));
+      }
+      else if(op1 instanceof Integer && op2 instanceof Integer) {
+        frame.operandStack.push((int)op1 == (int)op2);
+      }
+      else if(op1 instanceof String && op2 instanceof String) {
+        frame.operandStack.push((String)op1 == (String)op2);
+      }
+      // check for null objects
+      else if(op1 == null && op2 == null) {
+        frame.operandStack.push(true);
+      }
+      else {
+        frame.operandStack.push(false);
+      }
+      
+    }
+
+    else if (instr.opcode() == OpCode.CMPNE) {
+      // TODO
+      Object op1 = frame.operandStack.pop();
+      Object op2 = frame.operandStack.pop();
+      if(op1 instanceof Double && op2 instanceof Double) {
+        double d1 = (double)op1;
+        double d2 = (double)op2;
+        if(d1 == d2) {
           frame.operandStack.push(false);
         }
         else {
           frame.operandStack.push(true);
         }
       }
+      else if(op1 instanceof Integer && op2 instanceof Integer) {
+        frame.operandStack.push((int)op1 != (int)op2);
+      }
+      else if(op1 instanceof String && op2 instanceof String) {
+        frame.operandStack.push((String)op1 != (String)op2);
+      }
+      // check for null objects
+      else if(op1 == null && op2 == null) {
+        frame.operandStack.push(false);
+      }
+      else {
+        frame.operandStack.push(true);
+      }
+    }
 
-      else if (instr.opcode() == OpCode.NEG) {
-        // TODO
-        Object op1 = frame.operandStack.pop();
-        if(op1 instanceof Double) {
-          frame.operandStack.push(-1 * (Double)op1);
-        }
-        else if(op1 instanceof Integer) {
-          frame.operandStack.push(-1 * (Integer)op1);
-        }
-        else {
-          throw MyPLException.VMError("Operand must be of type int or double");
-        }
+    else if (instr.opcode() == OpCode.NEG) {
+      // TODO
+      Object op1 = frame.operandStack.pop();
+      if(op1 instanceof Double) {
+        frame.operandStack.push(-1 * (Double)op1);
+      }
+      else if(op1 instanceof Integer) {
+        frame.operandStack.push(-1 * (Integer)op1);
+      }
+      else {
+        throw MyPLException.VMError("Operand must be of type int or double");
       }
+    }
 
+    
+    //------------------------------------------------------------
+    // Jumps
+    //------------------------------------------------------------
       
-      //------------------------------------------------------------
-      // Jumps
-      //------------------------------------------------------------
-        
-      else if (instr.opcode() == OpCode.JMP) {
-        frame.pc = (int)instr.operand();
-      }
+    else if (instr.opcode() == OpCode.JMP) {
+      frame.pc = (int)instr.operand();
+    }
 
-      else if (instr.opcode() == OpCode.JMPF) {
-        // TODO
-        Object op1 = frame.operandStack.pop();
-        if(op1 instanceof Boolean) {
-          if((Boolean)op1 == false) {
-            frame.pc = (int)instr.operand();
-          }
-        }
-        else {
-          throw MyPLException.VMError("Operand must be of type boolean");
+    else if (instr.opcode() == OpCode.JMPF) {
+      // TODO
+      Object op1 = frame.operandStack.pop();
+      if(op1 instanceof Boolean) {
+        if((Boolean)op1 == false) {
+          frame.pc = (int)instr.operand();
         }
       }
-        
-      //------------------------------------------------------------
-      // Functions
-      //------------------------------------------------------------
-
-      else if (instr.opcode() == OpCode.CALL) {
-        String funName = (String)instr.operand();
-        VMFrame new_frame = frames.get(funName).instantiate();
-        frameStack.push(new_frame);
-        for(int i = 0; i < new_frame.argCount(); i++) {
-          new_frame.operandStack.push(frame.operandStack.pop());
-        }
-        frame = new_frame;
+      else {
+        throw MyPLException.VMError("Operand must be of type boolean");
+      }
     }
-        
-      else if (instr.opcode() == OpCode.VRET) {
-        // TODO:
-        Object ret = frame.operandStack.pop();
-        frameStack.pop();        
-        frame = frameStack.peek();
-        if (frame != null) {
-          frame.operandStack.push(ret);
-        }
+
+    else if (instr.opcode() == OpCode.TABLESWITCH ||
+             instr.opcode() == OpCode.LOOKUPSWITCH) {
+      SwitchTable table = (SwitchTable)instr.operand();
+      frame.pc = table.target(frame.operandStack.pop());
+    }
+      
+    //------------------------------------------------------------
+    // Functions
+    //------------------------------------------------------------
+
+    else if (instr.opcode() == OpCode.CALL) {
+      String funName = (String)instr.operand();
+      VMFrame new_frame = load(funName).instantiate();
+      frameStack.push(new_frame);
+      for(int i = 0; i < new_frame.argCount(); i++) {
+        new_frame.operandStack.push(frame.operandStack.pop());
       }
-        
-      //------------------------------------------------------------
-      // Built-ins
-      //------------------------------------------------------------
-        else if (instr.opcode() == OpCode.WRITE) {
-        System.out.print(frame.operandStack.pop());
+      frame = new_frame;
+  }
+      
+    else if (instr.opcode() == OpCode.VRET) {
+      // TODO:
+      Object ret = frame.operandStack.pop();
+      frameStack.pop();        
+      frame = frameStack.peek();
+      if (frame != null) {
+        frame.operandStack.push(ret);
       }
+    }
+      
+    //------------------------------------------------------------
+    // Built-ins
+    //------------------------------------------------------------
+      else if (instr.opcode() == OpCode.WRITE) {
+      System.out.print(frame.operandStack.pop());
+    }
 
-      else if (instr.opcode() == OpCode.READ) {
-        Scanner s = new Scanner(System.in);
-        frame.operandStack.push(s.nextLine());
-      }
+    else if (instr.opcode() == OpCode.READ) {
+      Scanner s = new Scanner(System.in);
+      frame.operandStack.push(s.nextLine());
+    }
 
-      else if (instr.opcode() == OpCode.LEN) {
-        frame.operandStack.push(((String)(frame.operandStack.pop())).length());
-      }
+    else if (instr.opcode() == OpCode.LEN) {
+      frame.operandStack.push(((String)(frame.operandStack.pop())).length());
+    }
 
-      else if (instr.opcode() == OpCode.GETCHR) {
-        String op_string = (String)frame.operandStack.pop();
-        Integer op_index = (Integer)frame.operandStack.pop();
-        if (op_index >= op_string.length() || op_index < 0) {
-          error("index out of range", frame);
-        }
-        frame.operandStack.push(op_string.charAt(op_index));
+    else if (instr.opcode() == OpCode.GETCHR) {
+      String op_string = (String)frame.operandStack.pop();
+      Integer op_index = (Integer)frame.operandStack.pop();
+      if (op_index >= op_string.length() || op_index < 0) {
+        error("index out of range", frame);
       }
+      frame.operandStack.push(op_string.charAt(op_index));
+    }
 
-      else if (instr.opcode() == OpCode.TOINT) {
-        Object op = frame.operandStack.pop();
-        if (op instanceof String) {
-          try {
-            frame.operandStack.push(Integer.parseInt((String)op));
-          }
-          catch(Exception e) {
-            error("error converting string to int", frame);
-          }
+    else if (instr.opcode() == OpCode.TOINT) {
+      Object op = frame.operandStack.pop();
+      if (op instanceof String) {
+        try {
+          frame.operandStack.push(Integer.parseInt((String)op));
         }
-        else {
-          frame.operandStack.push((int)((double)op));
+        catch(Exception e) {
+          error("error converting string to int", frame);
         }
       }
-
-      else if (instr.opcode() == OpCode.TODBL) {
-        Object op = frame.operandStack.pop();
-        if (op instanceof String)
-          try {
-            frame.operandStack.push(Double.parseDouble((String)op));
-          }
-          catch(Exception e) {
-            error("error converting string to double", frame);
-          }
-        else {
-          frame.operandStack.push((double)((int)op));
-        }
+      else {
+        frame.operandStack.push((int)((double)op));
       }
+    }
 
-      else if (instr.opcode() == OpCode.TOSTR) {
-        Object op = frame.operandStack.pop();
-        if (op instanceof Integer) {
-          frame.operandStack.push(Integer.toString((Integer)op));
-        } else {
-          frame.operandStack.push(Double.toString((Double)op));
-        }
-      }
-      //------------------------------------------------------------
-      // Heap related
-      //------------------------------------------------------------
-
-      else if (instr.opcode() == OpCode.ALLOC) {      
-        // TODO
-        List<String> op = (List<String>)instr.operand();
-        int oid = objectId++;
-        Map<String, Object> heapObj = new HashMap<>();
-        for(String field : op) {
-          heapObj.put(field, null);
+    else if (instr.opcode() == OpCode.TODBL) {
+      Object op = frame.operandStack.pop();
+      if (op instanceof String)
+        try {
+          frame.operandStack.push(Double.parseDouble((String)op));
         }
-        heap.put(oid, heapObj);
-        frame.operandStack.push(oid);
-      }
-
-      else if (instr.opcode() == OpCode.FREE) {
-        // pop the oid to 
-        Object oid = frame.operandStack.pop();
-        ensureNotNil(frame, oid);
-        // remove the object with oid from the heap
-        heap.remove((int)oid);
-      }
-      else if (instr.opcode() == OpCode.SETFLD) {
-        String op_string = (String)instr.operand();
-        Object op0 = frame.operandStack.pop();
-        Object id = frame.operandStack.pop();
-        Integer location = -1;
-        if (id instanceof Integer) {
-          location = (Integer)id;
-        } else {
-          error("cant", frame);
+        catch(Exception e) {
+          error("error converting string to double", frame);
         }
-        Map<String, Object> obj = heap.get(location);
-        obj.put(op_string, op0);
-        heap.put(location, obj);
+      else {
+        frame.operandStack.push((double)((int)op));
       }
+    }
 
-      else if (instr.opcode() == OpCode.GETFLD) {
-        Object id = frame.operandStack.pop();
-        int location = -1;
-        if (id instanceof Integer) {
-          location = (int)id;
-        } else {
-          error("cant do nil", frame);
-        }
-        ensureNotNil(frame, location);
-        Map<String, Object> obj = heap.get(location);
-        Object value = obj.get((String)instr.operand());
-        frame.operandStack.push(value);
-        if(obj.get((String)instr.operand()) == null) {
-          throw MyPLException.VMError("field does not exist");
-        }
+    else if (instr.opcode() == OpCode.TOSTR) {
+      Object op = frame.operandStack.pop();
+      if (op instanceof Integer) {
+        frame.operandStack.push(Integer.toString((Integer)op));
+      } else {
+        frame.operandStack.push(Double.toString((Double)op));
       }
+    }
+    //------------------------------------------------------------
+    // Heap related
+    //------------------------------------------------------------
 
-      //------------------------------------------------------------
-      // Special instructions
-      //------------------------------------------------------------
-        
-      else if (instr.opcode() == OpCode.DUP) {
-        Object op = frame.operandStack.pop();
-        frame.operandStack.push(op);
-        frame.operandStack.push(op);
+    else if (instr.opcode() == OpCode.ALLOC) {      
+      // TODO
+      List<String> op = (List<String>)instr.operand();
+      int oid = objectId++;
+      Map<String, Object> heapObj = new HashMap<>();
+      for(String field : op) {
+        heapObj.put(field, null);
       }
+      heap.put(oid, heapObj);
+      frame.operandStack.push(oid);
+      ++allocCount;
+    }
 
-      else if (instr.opcode() == OpCode.SWAP) {
-        Object op0 = frame.operandStack.pop();
-        Object op1 = frame.operandStack.pop();
-        frame.operandStack.push(op0);
-        frame.operandStack.push(op1);
+    else if (instr.opcode() == OpCode.FREE) {
+      // pop the oid to 
+      Object oid = frame.operandStack.pop();
+      ensureNotNil(frame, oid);
+      // remove the object with oid from the heap
+      heap.remove((int)oid);
+    }
+    else if (instr.opcode() == OpCode.SETFLD) {
+      String op_string = (String)instr.operand();
+      Object op0 = frame.operandStack.pop();
+      Object id = frame.operandStack.pop();
+      Integer location = -1;
+      if (id instanceof Integer) {
+        location = (Integer)id;
+      } else {
+        error("cant", frame);
       }
+      Map<String, Object> obj = heap.get(location);
+      obj.put(op_string, op0);
+      heap.put(location, obj);
+    }
 
-      else if (instr.opcode() == OpCode.NOP) {
-        // do nothing
+    else if (instr.opcode() == OpCode.GETFLD) {
+      Object id = frame.operandStack.pop();
+      int location = -1;
+      if (id instanceof Integer) {
+        location = (int)id;
+      } else {
+        error("cant do nil", frame);
+      }
+      ensureNotNil(frame, location);
+      Map<String, Object> obj = heap.get(location);
+      Object value = obj.get((String)instr.operand());
+      frame.operandStack.push(value);
+      if(obj.get((String)instr.operand()) == null) {
+        throw MyPLException.VMError("field does not exist");
       }
     }
+
+    //------------------------------------------------------------
+    // Special instructions
+    //------------------------------------------------------------
+      
+    else if (instr.opcode() == OpCode.DUP) {
+      Object op = frame.operandStack.pop();
+      frame.operandStack.push(op);
+      frame.operandStack.push(op);
+    }
+
+    else if (instr.opcode() == OpCode.SWAP) {
+      Object op0 = frame.operandStack.pop();
+      Object op1 = frame.operandStack.pop();
+      frame.operandStack.push(op0);
+      frame.operandStack.push(op1);
+    }
+
+    else if (instr.opcode() == OpCode.NOP) {
+      // do nothing
+    }
+    return frame;
   }
 
+
   
   // to print the lists of instructions for each VM Frame
   @Override
   public String toString() {
     String s = "";
     for (Map.Entry<String,VMFrame> e : frames.entrySet()) {
+      e.getValue().decode();
       String funName = e.getKey();
       s += "Frame '" + funName + "'\n";
       List<VMInstr> instructions = e.getValue().instructions;      
@@ -669,6 +890,404 @@ class VM {
   // HELPER FUNCTIONS
   //----------------------------------------------------------------------
 
+  // Returns the current run's frame for the function, loading it on
+  // its first call: its instructions are decoded (if read from a
+  // compiled file, reporting damaged code as an error), verified as they are now (passes may have changed
+  // them), and copied, so rewriting them while running leaves the
+  // frame as generated.
+  private VMFrame load(String funName) throws MyPLException {
+    VMFrame copy = loaded.get(funName);
+    if (copy != null)
+      return copy;
+    VMFrame f = frames.get(funName);
+    if (f == null)
+      throw MyPLException.VMError("No '" + funName + "' function");
+    try {
+      f.decode();
+    }
+    catch (IllegalStateException e) {
+      // code that cannot be decoded (see CompiledFile.read)
+      if (e.getCause() instanceof MyPLException)
+        throw (MyPLException)e.getCause();
+      throw e;
+    }
+    if (verify)
+      verifier.verify(f);
+    else
+      f.verified = false;
+    copy = f.instantiate();
+    copy.instructions = new ArrayList<>(f.instructions);
+    copy.loopCounts = tracing ? new int[f.instructions.size()] : null;
+    copy.traces = tracing ? new Trace[f.instructions.size()] : null;
+    loaded.put(funName, copy);
+    return copy;
+  }
+
+  // Runs the instructions of a verified frame from its pc until one
+  // that is left to the checked path (calls, built-ins, heap
+  // instructions, and operands whose type is not known), leaving the
+  // pc at that instruction. The verifier has proven there are enough
+  // operands for each instruction and that typed operands have the
+  // recorded type, so no checks are needed.
+  private void runVerified(VMFrame frame) {
+    List<VMInstr> code = frame.instructions;
+    Verifier.Type[] types = frame.types;
+    Deque<Object> stack = frame.operandStack;
+    List<Object> variables = frame.variables;
+    int pc = frame.pc;
+    long count = 0;
+    while (pc < code.size()) {
+      VMInstr instr = code.get(pc);
+      switch (instr.opcode()) {
+        case PUSH:
+          stack.push(instr.operand());
+          break;
+        case POP:
+          stack.pop();
+          break;
+        case LOAD:
+          stack.push(variables.get((int)instr.operand()));
+          break;
+        case STORE:
+          variables.set((int)instr.operand(), stack.pop());
+          break;
+        case JMP:
+          // (a jump back to a loop header is left to the checked path
+          // when tracing)
+          if (tracing && (int)instr.operand() <= pc) {
+            frame.pc = pc;
+            dispatchCount += count;
+            return;
+          }
+          pc = (int)instr.operand() - 1;
+          break;
+        case JMPF:
+          if (types[pc] != Verifier.Type.BOOL) {
+            frame.pc = pc;
+            dispatchCount += count;
+            return;
+          }
+          if (!(boolean)stack.pop())
+            pc = (int)instr.operand() - 1;
+          break;
+        case NOP:
+          break;
+        case DUP:
+          stack.push(stack.peek());
+          break;
+        case SWAP: {
+          Object x = stack.pop();
+          Object y = stack.pop();
+          stack.push(x);
+          stack.push(y);
+          break;
+        }
+        case IADD: case DADD: case SADD: case ICMPLT: case DCMPLT:
+        case ICMPEQ: case DCMPEQ: case SCMPEQ:
+          if (!runQuick(stack, instr.opcode())) {
+            frame.pc = pc;
+            dispatchCount += count;
+            return;
+          }
+          break;
+        default:
+          if (!runTyped(stack, instr.opcode(), types[pc])) {
+            frame.pc = pc;
+            dispatchCount += count;
+            return;
+          }
+      }
+      ++pc;
+      ++count;
+    }
+    frame.pc = pc;
+    dispatchCount += count;
+  }
+
+  // Called after the frame jumped back to the loop header at its pc:
+  // runs the loop's trace if it has one, and otherwise counts the jump
+  // and starts recording a trace once the loop is hot. Returns the
+  // frame to continue with.
+  private VMFrame loopBack(VMFrame frame) throws MyPLException {
+    int header = frame.pc;
+    if (frame.traces[header] != null)
+      return runTrace(frame.traces[header], frame);
+    if (++frame.loopCounts[header] == HOT_LOOP) {
+      recording = new Trace();
+      recordFrame = frame;
+      recordHeader = header;
+      recordDepth = 0;
+    }
+    return frame;
+  }
+
+  // Adds the instruction just run (at the pc of the given frame, which
+  // left the after frame to continue with) to the trace being
+  // recorded, and finishes the trace once back at the loop header. A
+  // trace that gets too long, calls too deep, or returns from the
+  // loop's function is dropped (and the loop is not traced again).
+  private void record(VMFrame frame, int pc, VMFrame after) {
+    // the instruction as it is now (it may have been quickened, or put
+    // back, by running it)
+    VMInstr instr = frame.instructions.get(pc);
+    OpCode op = instr.opcode();
+    if (op == OpCode.CALL)
+      ++recordDepth;
+    else if (op == OpCode.VRET)
+      --recordDepth;
+    if (recordDepth < 0 || recordDepth > MAX_TRACE_DEPTH ||
+        recording.size() >= MAX_TRACE_LENGTH) {
+      recordFrame.loopCounts[recordHeader] = Integer.MIN_VALUE;
+      recording = null;
+      return;
+    }
+    Verifier.Type type = frame.verified ? frame.types[pc] : Verifier.Type.ANY;
+    if (op == OpCode.JMPF)
+      recording.add(Trace.BRANCH, pc, instr, null, frame.pc == pc + 1 ? 0 : 1);
+    else if (Bytecode.isSwitch(instr))
+      recording.add(Trace.SWITCH, pc, instr, null, frame.pc);
+    else if (instr.generic() != null)
+      recording.add(Trace.QUICK, pc, instr, null, 0);
+    else if (op == OpCode.PUSH)
+      recording.add(Trace.PUSH, pc, instr, null, 0);
+    else if (op == OpCode.POP)
+      recording.add(Trace.POP, pc, instr, null, 0);
+    else if (op == OpCode.LOAD)
+      recording.add(Trace.LOAD, pc, instr, null, 0);
+    else if (op == OpCode.STORE)
+      recording.add(Trace.STORE, pc, instr, null, 0);
+    else if (type == Verifier.Type.INT || type == Verifier.Type.DOUBLE ||
+             type == Verifier.Type.BOOL)
+      recording.add(Trace.TYPED, pc, instr, type, 0);
+    else if (op != OpCode.JMP && op != OpCode.NOP)
+      recording.add(Trace.EXEC, pc, instr, null, 0);
+    if (recordDepth == 0 && after == recordFrame && after.pc == recordHeader) {
+      recordFrame.traces[recordHeader] = recording;
+      ++traceCount;
+      recording = null;
+    }
+  }
+
+  // Runs the trace, starting at its loop header in the given frame,
+  // until a guard fails. The frame stack is kept as the interpreter
+  // would (calls in the trace push frames, returns pop them), so the
+  // interpreter can pick up at the failed guard's instruction in the
+  // frame returned.
+  private VMFrame runTrace(Trace trace, VMFrame frame) throws MyPLException {
+    VMFrame current = frame;
+    int i = 0;
+    inTrace = true;
+    try {
+      while (true) {
+        int pc = trace.pcs[i];
+        VMInstr instr = trace.instrs[i];
+        Deque<Object> stack = current.operandStack;
+        current.pc = pc + 1;
+        switch (trace.kinds[i]) {
+          case Trace.PUSH:
+            stack.push(instr.operand());
+            break;
+          case Trace.POP:
+            stack.pop();
+            break;
+          case Trace.LOAD:
+            stack.push(current.variables.get((int)instr.operand()));
+            break;
+          case Trace.STORE: {
+            int address = (int)instr.operand();
+            while (address >= current.variables.size())
+              current.variables.add(null);
+            current.variables.set(address, stack.pop());
+            break;
+          }
+          case Trace.QUICK:
+            if (!runQuick(stack, instr.opcode()))
+              current = execute(current, instr.generic());
+            break;
+          case Trace.TYPED:
+            if (!runTyped(stack, instr.opcode(), trace.types[i]))
+              current = execute(current, instr);
+            break;
+          case Trace.BRANCH: {
+            Object cond = stack.peek();
+            if (!(cond instanceof Boolean) || ((Boolean)cond ? 0 : 1) != trace.outcomes[i])
+              return guardExit(current, pc);
+            stack.pop();
+            break;
+          }
+          case Trace.SWITCH: {
+            SwitchTable table = (SwitchTable)instr.operand();
+            if (table.target(stack.peek()) != trace.outcomes[i])
+              return guardExit(current, pc);
+            stack.pop();
+            break;
+          }
+          default:
+            current = execute(current, instr);
+        }
+        ++dispatchCount;
+        ++tracedCount;
+        if (++i == trace.size())
+          i = 0;
+      }
+    }
+    finally {
+      inTrace = false;
+    }
+  }
+
+  // leave a trace at the guarded instruction (which the interpreter
+  // runs next)
+  private VMFrame guardExit(VMFrame frame, int pc) {
+    frame.pc = pc;
+    ++guardExitCount;
+    return frame;
+  }
+
+  // Rewrites the generic ADD, CMPLT, or CMPEQ instruction just run
+  // (with operands x and y) into its quickened form for their types,
+  // unless it has fallen back from a quickened form before or there
+  // is no such form.
+  private void quicken(VMFrame frame, VMInstr instr, Object x, Object y) {
+    if (!quickening || inTrace || unstable.contains(instr))
+      return;
+    OpCode op = instr.opcode();
+    OpCode quick = null;
+    if (x instanceof Integer && y instanceof Integer)
+      quick = op == OpCode.ADD ? OpCode.IADD : op == OpCode.CMPLT ? OpCode.ICMPLT : OpCode.ICMPEQ;
+    else if (x instanceof Double && y instanceof Double)
+      quick = op == OpCode.ADD ? OpCode.DADD : op == OpCode.CMPLT ? OpCode.DCMPLT : OpCode.DCMPEQ;
+    else if (x instanceof String && y instanceof String && op != OpCode.CMPLT)
+      quick = op == OpCode.ADD ? OpCode.SADD : OpCode.SCMPEQ;
+    if (quick == null)
+      return;
+    frame.instructions.set(frame.pc - 1, instr.quicken(quick));
+    ++quickenCount;
+  }
+
+  // puts the generic form of the quickened instruction just fetched
+  // back (for good), returning it
+  private VMInstr dequicken(VMFrame frame, VMInstr instr) {
+    VMInstr generic = instr.generic();
+    frame.instructions.set(frame.pc - 1, generic);
+    unstable.add(generic);
+    ++dequickenCount;
+    return generic;
+  }
+
+  // Runs a quickened instruction with operands x (on top) and y if
+  // both have the instruction's type, returning false (with the stack
+  // unchanged) if not.
+  private boolean runQuick(Deque<Object> stack, OpCode op) {
+    Object x = stack.pop();
+    Object y = stack.pop();
+    boolean match = false;
+    if (op == OpCode.IADD || op == OpCode.ICMPLT || op == OpCode.ICMPEQ)
+      match = x instanceof Integer && y instanceof Integer;
+    else if (op == OpCode.DADD || op == OpCode.DCMPLT || op == OpCode.DCMPEQ)
+      match = x instanceof Double && y instanceof Double;
+    else
+      match = x instanceof String && y instanceof String;
+    if (!match) {
+      stack.push(y);
+      stack.push(x);
+      return false;
+    }
+    switch (op) {
+      case IADD: stack.push((int)y + (int)x); break;
+      case DADD: stack.push((double)x + (double)y); break;
+      case SADD: stack.push((String)y + (String)x); break;
+      case ICMPLT: stack.push((int)y < (int)x); break;
+      case DCMPLT: stack.push((double)y < (double)x); break;
+      case ICMPEQ: stack.push((int)x == (int)y); break;
+      case DCMPEQ: stack.push((double)x == (double)y); break;
+      default: stack.push(x == y); break;
+    }
+    return true;
+  }
+
+  // an instruction (of a verified frame) whose operands have the given
+  // type, returning false if it is left to the checked path
+  private boolean runTyped(Deque<Object> stack, OpCode op, Verifier.Type type) {
+    if (type == Verifier.Type.INT)
+      return runInt(stack, op);
+    if (type == Verifier.Type.DOUBLE)
+      return runDouble(stack, op);
+    if (type != Verifier.Type.BOOL)
+      return false;
+    switch (op) {
+      case NOT:
+        stack.push(!(boolean)stack.pop());
+        return true;
+      case AND:
+        stack.push((boolean)stack.pop() & (boolean)stack.pop());
+        return true;
+      case OR:
+        stack.push((boolean)stack.pop() | (boolean)stack.pop());
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  // an instruction (of a verified frame) with int operands x (on top)
+  // and y
+  private boolean runInt(Deque<Object> stack, OpCode op) {
+    if (op == OpCode.NEG) {
+      stack.push(-1 * (int)stack.pop());
+      return true;
+    }
+    int x = (int)stack.pop();
+    int y = (int)stack.pop();
+    switch (op) {
+      case ADD: stack.push(y + x); break;
+      case SUB: stack.push(x < y ? y - x : x - y); break;
+      case MUL: stack.push(y * x); break;
+      case DIV: stack.push(y / x); break;
+      case MOD: stack.push(y % x); break;
+      case CMPLT: stack.push(y < x); break;
+      case CMPLE: stack.push(y <= x); break;
+      case CMPGT: stack.push(y > x); break;
+      case CMPGE: stack.push(y >= x); break;
+      case CMPEQ: stack.push(y == x); break;
+      case CMPNE: stack.push(y != x); break;
+      default:
+        // not a typed instruction: put the operands back
+        stack.push(y);
+        stack.push(x);
+        return false;
+    }
+    return true;
+  }
+
+  // an instruction (of a verified frame) with double operands x (on
+  // top) and y
+  private boolean runDouble(Deque<Object> stack, OpCode op) {
+    if (op == OpCode.NEG) {
+      stack.push(-1 * (double)stack.pop());
+      return true;
+    }
+    double x = (double)stack.pop();
+    double y = (double)stack.pop();
+    switch (op) {
+      case ADD: stack.push(x + y); break;
+      case SUB: stack.push(x < y ? (x - y) * -1 : x - y); break;
+      case MUL: stack.push(x * y); break;
+      case DIV: stack.push(y / x); break;
+      case CMPLT: stack.push(y < x); break;
+      case CMPLE: stack.push(y <= x); break;
+      case CMPGT: stack.push(y > x); break;
+      case CMPGE: stack.push(y >= x); break;
+      case CMPEQ: stack.push(x == y); break;
+      case CMPNE: stack.push(x != y); break;
+      default:
+        stack.push(y);
+        stack.push(x);
+        return false;
+    }
+    return true;
+  }
+
   // error
   private void error(String m, VMFrame f) throws MyPLException {
     int pc = f.pc - 1;
@@ -10,6 +10,7 @@ import java.util.ArrayList;
 import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.List;
+import java.util.function.Supplier;
 
 
 
@@ -39,6 +40,29 @@ public class VMFrame {
   // the program counter (pc) for an active stack frame
   public int pc = 0;
 
+  // set by the Verifier if the frame's stack depths and operand types
+  // were proven safe (the VM then runs it without its run-time checks)
+  public boolean verified = false;
+
+  // the deepest the operand stack gets and the number of variables
+  // (if verified)
+  public int maxStack = 0;
+  public int maxLocals = 0;
+
+  // the type of each instruction's operands (if verified)
+  public Verifier.Type[] types = null;
+
+  // for tracing (set by the VM and shared by the frame's calls): the
+  // number of times each loop header was jumped back to, and the trace
+  // recorded for each header
+  public int[] loopCounts = null;
+  public Trace[] traces = null;
+
+  // for a frame read from a compiled file or generated lazily,
+  // decodes (or generates) its instructions (null once decoded, see
+  // decode)
+  private volatile Supplier<List<VMInstr>> decoder = null;
+
 
   // basic constructor
   public VMFrame(String functionName, int argCount) {
@@ -55,6 +79,33 @@ public class VMFrame {
   public int argCount() {
     return argCount;
   }
+
+  /**
+   * Sets the frame's instructions to be decoded (by the given
+   * function) when first needed, instead of up front.
+   */
+  public void setDecoder(Supplier<List<VMInstr>> decoder) {
+    this.decoder = decoder;
+  }
+
+  /**
+   * Decodes the frame's instructions if they have not been yet (see
+   * setDecoder). Safe to call from several threads: the instructions
+   * are decoded once, and a thread seeing the decoder cleared sees
+   * the decoded instructions. If the decoder throws (an
+   * IllegalStateException wrapping the error, for damaged code), the
+   * frame is left undecoded.
+   */
+  public void decode() {
+    if (decoder == null)
+      return;
+    synchronized (this) {
+      if (decoder != null) {
+        instructions = decoder.get();
+        decoder = null;
+      }
+    }
+  }
   
   /**
    * Creates a new frame based on the current frame (for the purpose
@@ -67,8 +118,22 @@ public class VMFrame {
    */
   public VMFrame instantiate() {
     VMFrame newFrame = new VMFrame(functionName, argCount);
-    for (VMInstr instr : instructions) 
-      newFrame.instructions.add(instr);
+    // share the instructions (so an instruction the VM quickens while
+    // running one call stays quick for the next)
+    newFrame.instructions = instructions;
+    newFrame.loopCounts = loopCounts;
+    newFrame.traces = traces;
+    if (verified) {
+      // size the stack and variables up front (so STORE need not grow
+      // the variables)
+      newFrame.verified = true;
+      newFrame.maxStack = maxStack;
+      newFrame.maxLocals = maxLocals;
+      newFrame.types = types;
+      newFrame.operandStack = new ArrayDeque<>(maxStack);
+      for (int i = 0; i < maxLocals; ++i)
+        newFrame.variables.add(null);
+    }
     return newFrame;
   }
   
@@ -15,6 +15,9 @@ public class VMInstr {
   private OpCode opcode = null;
   private Object operand = null;
   private String comment = null;
+
+  // for a quickened instruction, the generic instruction it replaced
+  private VMInstr generic = null;
   
   
   public VMInstr(OpCode opcode) {
@@ -46,6 +49,26 @@ public class VMInstr {
   public String comment() {
     return comment;
   }
+
+  /**
+   * Returns a quickened (type-specialized) form of the instruction
+   * that remembers the instruction, so the VM can put it back.
+   * @param quickOpcode the opcode of the quickened form
+   */
+  public VMInstr quicken(OpCode quickOpcode) {
+    VMInstr quick = new VMInstr(quickOpcode, operand);
+    quick.comment = comment;
+    quick.generic = this;
+    return quick;
+  }
+
+  /**
+   * Returns the generic instruction a quickened instruction replaced
+   * (or null if the instruction is not quickened).
+   */
+  public VMInstr generic() {
+    return generic;
+  }
   
   public String toString() {
     String str = opcode.toString();
@@ -150,6 +173,14 @@ public class VMInstr {
     return new VMInstr(OpCode.JMPF, address);
   }
 
+  public static VMInstr TABLESWITCH(SwitchTable table) {
+    return new VMInstr(OpCode.TABLESWITCH, table);
+  }
+
+  public static VMInstr LOOKUPSWITCH(SwitchTable table) {
+    return new VMInstr(OpCode.LOOKUPSWITCH, table);
+  }
+
   public static VMInstr CALL(String funName) {
     return new VMInstr(OpCode.CALL, funName);    
   }
@@ -0,0 +1,110 @@
+/*
+ * File: VectorCharScanner.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: A CharScanner comparing as many characters at a time as the
+ *       machine's preferred vector holds (16 chars with 256-bit
+ *       vectors, 32 with 512-bit ones), using the incubating Vector
+ *       API. Each scan loads a vector of characters, compares every
+ *       lane at once, and stops at the first lane that ends the run.
+ *       Most runs are short (a space between tokens, a line's
+ *       indentation), where loading a vector costs more than it saves,
+ *       so the first few characters are checked one at a time, as are
+ *       the characters past the last full vector. Compiling and using
+ *       it needs the jdk.incubator.vector module (--add-modules
+ *       jdk.incubator.vector), so it is built only for the lexer
+ *       benchmark; without it, CharScanner.best falls back to the
+ *       scalar scanner.
+ */
+
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+
+public class VectorCharScanner extends CharScanner {
+
+  private static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+
+  // the number of characters checked before scanning by vector
+  private static final int SCALAR_PREFIX = 8;
+
+  @Override
+  public String name() {
+    return "vector" + SPECIES.length();
+  }
+
+  @Override
+  public int skipWhitespace(char[] s, int from) {
+    int i = from;
+    for (int prefix = prefixEnd(s, from); i < prefix; ++i)
+      if (!isWhitespace(s[i]))
+        return i;
+    for (int bound = vectorBound(s, i); i < bound; i += SPECIES.length()) {
+      ShortVector v = ShortVector.fromCharArray(SPECIES, s, i);
+      // ' ', '\t' to '\r', and 0x1c to 0x1f (chars past 0x7fff are
+      // negative as shorts, and so not in either range)
+      VectorMask<Short> space = v.eq((short)' ')
+        .or(v.compare(VectorOperators.GE, (short)'\t').and(v.compare(VectorOperators.LE, (short)'\r')))
+        .or(v.compare(VectorOperators.GE, (short)0x1c).and(v.compare(VectorOperators.LE, (short)0x1f)));
+      if (!space.allTrue())
+        return i + space.not().firstTrue();
+    }
+    return super.skipWhitespace(s, i);
+  }
+
+  @Override
+  public int indexOf(char[] s, int from, char c) {
+    int i = from;
+    for (int prefix = prefixEnd(s, from); i < prefix; ++i)
+      if (s[i] == c)
+        return i;
+    for (int bound = vectorBound(s, i); i < bound; i += SPECIES.length()) {
+      VectorMask<Short> found = ShortVector.fromCharArray(SPECIES, s, i).eq((short)c);
+      if (found.anyTrue())
+        return i + found.firstTrue();
+    }
+    return super.indexOf(s, i, c);
+  }
+
+  @Override
+  public int indexOf(char[] s, int from, char a, char b) {
+    int i = from;
+    for (int prefix = prefixEnd(s, from); i < prefix; ++i)
+      if (s[i] == a || s[i] == b)
+        return i;
+    for (int bound = vectorBound(s, i); i < bound; i += SPECIES.length()) {
+      ShortVector v = ShortVector.fromCharArray(SPECIES, s, i);
+      VectorMask<Short> found = v.eq((short)a).or(v.eq((short)b));
+      if (found.anyTrue())
+        return i + found.firstTrue();
+    }
+    return super.indexOf(s, i, a, b);
+  }
+
+  @Override
+  public int count(char[] s, int from, int to, char c) {
+    int n = 0;
+    int i = from;
+    for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length())
+      n += ShortVector.fromCharArray(SPECIES, s, i).eq((short)c).trueCount();
+    return n + super.count(s, i, to, c);
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // the end of the characters checked one at a time from the index
+  private static int prefixEnd(char[] s, int from) {
+    return Math.min(s.length, from + SCALAR_PREFIX);
+  }
+
+  // the index the full vectors from the index end at
+  private static int vectorBound(char[] s, int from) {
+    return from + SPECIES.loopBound(s.length - from);
+  }
+
+}
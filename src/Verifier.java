@@ -0,0 +1,395 @@
+/*
+ * File: Verifier.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Load-time bytecode verifier (in the spirit of the JVM's). Each
+ *       frame is abstractly interpreted: starting with the call's
+ *       arguments on the operand stack, the verifier follows every
+ *       path through the frame's instructions, tracking the type of
+ *       each stack entry and variable, and joining the states where
+ *       paths meet until nothing changes. A frame is verified if at
+ *       every reachable instruction the stack holds enough operands
+ *       (with the same depth along every path), no operand has a type
+ *       the instruction rejects, every LOAD reads a variable stored on
+ *       all paths to it, every jump lands in the frame, and every CALL
+ *       names a known function. A verified frame records its largest
+ *       stack depth and variable count, and the type of each
+ *       instruction's operands, so the VM can run it without its
+ *       run-time checks. Frames that fail (such as hand-built frames
+ *       that are meant to fail at run time) are left to the checked
+ *       path.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class Verifier {
+
+  /**
+   * The operand types the verifier tracks. ANY is a value whose type
+   * is not known (such as a call's result or a value that differs
+   * between paths).
+   */
+  public enum Type {
+    INT, DOUBLE, BOOL, STRING, CHAR, NIL, ANY
+  }
+
+  // the VM whose frames are verified
+  private VM vm;
+
+  // why each frame that failed verification failed (by function name)
+  private Map<String,String> failures = new HashMap<>();
+
+  // the frame being verified, and its state (stack and variable types)
+  // on entry to each instruction (null if not yet reached)
+  private List<VMInstr> code;
+  private State[] states;
+  private int maxStack;
+  private int maxLocals;
+
+  private static class State {
+    List<Type> stack;
+    Type[] locals;
+
+    State(List<Type> stack, Type[] locals) {
+      this.stack = stack;
+      this.locals = locals;
+    }
+
+    State copy() {
+      return new State(new ArrayList<>(stack), Arrays.copyOf(locals, locals.length));
+    }
+  }
+
+  // thrown (and caught) when a frame cannot be verified
+  private static class VerificationFailure extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    VerificationFailure(String message) {
+      super(message);
+    }
+  }
+
+
+  public Verifier(VM vm) {
+    this.vm = vm;
+  }
+
+  /**
+   * Verifies each frame of the VM, marking the frames that pass.
+   * @return the number of frames verified
+   */
+  public int verify() {
+    int count = 0;
+    failures.clear();
+    for (VMFrame frame : vm.frames())
+      if (verify(frame))
+        ++count;
+    return count;
+  }
+
+  /**
+   * Verifies the given frame, marking it (and recording its stack
+   * depth, variable count, and operand types) if it passes.
+   * @return true if the frame was verified
+   */
+  public boolean verify(VMFrame frame) {
+    frame.decode();
+    frame.verified = false;
+    try {
+      Type[] types = interpret(frame);
+      frame.types = types;
+      frame.maxStack = maxStack;
+      frame.maxLocals = maxLocals;
+      frame.verified = true;
+    }
+    catch (VerificationFailure e) {
+      failures.put(frame.functionName(), e.getMessage());
+    }
+    return frame.verified;
+  }
+
+  /**
+   * Returns the reason each frame failed the last verification (by
+   * function name).
+   */
+  public Map<String,String> failures() {
+    return failures;
+  }
+
+
+  //----------------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //----------------------------------------------------------------------
+
+  // interpret the frame to a fixed point, returning the type of each
+  // instruction's operands
+  private Type[] interpret(VMFrame frame) throws VerificationFailure {
+    code = frame.instructions;
+    states = new State[code.size() + 1];
+    maxLocals = Bytecode.localCount(code);
+    maxStack = frame.argCount();
+    List<Type> args = new ArrayList<>();
+    for (int i = 0; i < frame.argCount(); ++i)
+      args.add(Type.ANY);
+    Type[] locals = new Type[maxLocals];
+    List<Integer> work = new ArrayList<>();
+    merge(0, new State(args, locals), work);
+    while (!work.isEmpty()) {
+      int pc = work.remove(work.size() - 1);
+      if (pc == code.size())
+        continue;
+      State state = states[pc].copy();
+      VMInstr instr = code.get(pc);
+      step(pc, instr, state);
+      maxStack = Math.max(maxStack, state.stack.size());
+      for (int target : Bytecode.targets(instr))
+        merge(target, state, work);
+      if (!Bytecode.endsBlock(instr))
+        merge(pc + 1, state, work);
+    }
+    Type[] types = new Type[code.size()];
+    for (int pc = 0; pc < code.size(); ++pc)
+      if (states[pc] != null)
+        types[pc] = operandType(code.get(pc), states[pc].stack);
+    return types;
+  }
+
+  // join the state into the state on entry to the address, queueing
+  // the address if its state changed
+  private void merge(int addr, State state, List<Integer> work) throws VerificationFailure {
+    if (addr < 0 || addr > code.size())
+      throw new VerificationFailure("jump to " + addr + " is outside the frame");
+    State old = states[addr];
+    if (old == null) {
+      states[addr] = state.copy();
+      work.add(addr);
+      return;
+    }
+    if (old.stack.size() != state.stack.size())
+      throw new VerificationFailure("stack depth " + state.stack.size() + " differs from " +
+                            old.stack.size() + " at " + addr);
+    boolean changed = false;
+    for (int i = 0; i < old.stack.size(); ++i) {
+      Type type = join(old.stack.get(i), state.stack.get(i));
+      if (type != old.stack.get(i)) {
+        old.stack.set(i, type);
+        changed = true;
+      }
+    }
+    // a variable not stored along one of the paths is not stored
+    for (int i = 0; i < old.locals.length; ++i) {
+      Type type = join(old.locals[i], state.locals[i]);
+      if (type != old.locals[i]) {
+        old.locals[i] = type;
+        changed = true;
+      }
+    }
+    if (changed)
+      work.add(addr);
+  }
+
+  // the type of a value that has one of the given types (null, for a
+  // variable that is not set, joined with anything is null)
+  private static Type join(Type t1, Type t2) {
+    if (t1 == null || t2 == null)
+      return null;
+    return t1 == t2 ? t1 : Type.ANY;
+  }
+
+  // the type of a constant
+  private static Type typeOf(Object value) {
+    if (value instanceof Integer)
+      return Type.INT;
+    if (value instanceof Double)
+      return Type.DOUBLE;
+    if (value instanceof Boolean)
+      return Type.BOOL;
+    if (value == VM.NIL_OBJ)
+      return Type.NIL;
+    if (value instanceof String)
+      return Type.STRING;
+    if (value instanceof Character)
+      return Type.CHAR;
+    return Type.ANY;
+  }
+
+  // the type shared by the instruction's operands (ANY if they differ
+  // or the instruction has none)
+  private static Type operandType(VMInstr instr, List<Type> stack) {
+    int count = operandCount(instr.opcode());
+    if (count == 0 || stack.size() < count)
+      return Type.ANY;
+    Type type = stack.get(stack.size() - 1);
+    for (int i = 2; i <= count; ++i)
+      type = join(type, stack.get(stack.size() - i));
+    return type;
+  }
+
+  // the number of operands of the typed instructions
+  private static int operandCount(OpCode op) {
+    switch (op) {
+      case ADD: case SUB: case MUL: case DIV: case MOD: case AND: case OR:
+      case CMPLT: case CMPLE: case CMPGT: case CMPGE: case CMPEQ: case CMPNE:
+        return 2;
+      case NOT: case NEG: case JMPF:
+        return 1;
+      default:
+        return 0;
+    }
+  }
+
+  private Type pop(int pc, State state) throws VerificationFailure {
+    if (state.stack.isEmpty())
+      throw new VerificationFailure("stack underflow at " + pc + ": " + code.get(pc));
+    return state.stack.remove(state.stack.size() - 1);
+  }
+
+  // pop an operand, checking it is one of the given types (or unknown)
+  private Type pop(int pc, State state, Type... allowed) throws VerificationFailure {
+    Type type = pop(pc, state);
+    if (type != Type.ANY && !Arrays.asList(allowed).contains(type))
+      throw new VerificationFailure(type + " operand at " + pc + ": " + code.get(pc));
+    return type;
+  }
+
+  // pop two operands of one of the given types, returning their type
+  // (ANY unless both are known)
+  private Type popPair(int pc, State state, Type... allowed) throws VerificationFailure {
+    Type x = pop(pc, state, allowed);
+    Type y = pop(pc, state, allowed);
+    if (x != Type.ANY && y != Type.ANY && x != y)
+      throw new VerificationFailure(y + " and " + x + " operands at " + pc + ": " + code.get(pc));
+    return join(x, y);
+  }
+
+  // apply the instruction to the state
+  private void step(int pc, VMInstr instr, State state) throws VerificationFailure {
+    List<Type> stack = state.stack;
+    Type type = null;
+    switch (instr.opcode()) {
+      case PUSH:
+        stack.add(typeOf(instr.operand()));
+        break;
+      case POP: case WRITE: case FREE:
+        pop(pc, state);
+        break;
+      case LOAD: {
+        int addr = (int)instr.operand();
+        if (addr < 0 || state.locals[addr] == null)
+          throw new VerificationFailure("variable " + addr + " may not be set at " + pc);
+        stack.add(state.locals[addr]);
+        break;
+      }
+      case STORE: {
+        int addr = (int)instr.operand();
+        if (addr < 0)
+          throw new VerificationFailure("bad variable at " + pc);
+        state.locals[addr] = pop(pc, state);
+        break;
+      }
+      case ADD:
+        type = popPair(pc, state, Type.INT, Type.DOUBLE, Type.STRING, Type.CHAR, Type.NIL);
+        stack.add(type == Type.INT || type == Type.DOUBLE || type == Type.STRING ? type : Type.ANY);
+        break;
+      case SUB: case MUL: case DIV:
+        stack.add(popPair(pc, state, Type.INT, Type.DOUBLE));
+        break;
+      case MOD:
+        stack.add(popPair(pc, state, Type.INT));
+        break;
+      case AND: case OR:
+        popPair(pc, state, Type.BOOL);
+        stack.add(Type.BOOL);
+        break;
+      case NOT:
+        pop(pc, state, Type.BOOL);
+        stack.add(Type.BOOL);
+        break;
+      case CMPLT: case CMPLE: case CMPGT: case CMPGE:
+        popPair(pc, state, Type.INT, Type.DOUBLE, Type.STRING);
+        stack.add(Type.BOOL);
+        break;
+      case CMPEQ: case CMPNE:
+        pop(pc, state);
+        pop(pc, state);
+        stack.add(Type.BOOL);
+        break;
+      case NEG:
+        stack.add(pop(pc, state, Type.INT, Type.DOUBLE));
+        break;
+      case JMPF:
+        pop(pc, state, Type.BOOL);
+        break;
+      case TABLESWITCH: case LOOKUPSWITCH:
+        pop(pc, state);
+        break;
+      case CALL: {
+        VMFrame callee = vm.frame((String)instr.operand());
+        if (callee == null)
+          throw new VerificationFailure("call to unknown function at " + pc + ": " + instr);
+        for (int i = 0; i < callee.argCount(); ++i)
+          pop(pc, state);
+        stack.add(Type.ANY);
+        break;
+      }
+      case VRET:
+        pop(pc, state);
+        break;
+      case READ:
+        stack.add(Type.STRING);
+        break;
+      case LEN:
+        pop(pc, state, Type.STRING);
+        stack.add(Type.INT);
+        break;
+      case GETCHR:
+        pop(pc, state, Type.STRING);
+        pop(pc, state, Type.INT);
+        stack.add(Type.CHAR);
+        break;
+      case TOINT:
+        pop(pc, state, Type.STRING, Type.DOUBLE);
+        stack.add(Type.INT);
+        break;
+      case TODBL:
+        pop(pc, state, Type.STRING, Type.INT);
+        stack.add(Type.DOUBLE);
+        break;
+      case TOSTR:
+        pop(pc, state, Type.INT, Type.DOUBLE);
+        stack.add(Type.STRING);
+        break;
+      case ALLOC:
+        stack.add(Type.ANY);
+        break;
+      case SETFLD:
+        pop(pc, state);
+        pop(pc, state);
+        break;
+      case GETFLD:
+        pop(pc, state);
+        stack.add(Type.ANY);
+        break;
+      case DUP:
+        type = pop(pc, state);
+        stack.add(type);
+        stack.add(type);
+        break;
+      case SWAP: {
+        Type x = pop(pc, state);
+        Type y = pop(pc, state);
+        stack.add(x);
+        stack.add(y);
+        break;
+      }
+      default:
+        break;
+    }
+  }
+
+}
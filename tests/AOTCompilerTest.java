@@ -0,0 +1,238 @@
+/*
+ * File: AOTCompilerTest.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Unit tests for ahead-of-time compilation. A compiled program
+ *       should print what it prints in the VM, run on its own from
+ *       its JAR, and report run-time errors as the VM does.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+
+public class AOTCompilerTest {
+
+  private PrintStream stdout = System.out;
+  private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+  @Before
+  public void changeSystemOut() {
+    // redirect System.out to output
+    System.setOut(new PrintStream(output));
+  }
+
+  @After
+  public void restoreSystemOut() {
+    // reset System.out to standard out
+    System.setOut(stdout);
+  }
+
+  //------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //------------------------------------------------------------
+
+  // loads classes from compiled class files
+  private static class Loader extends ClassLoader {
+    Map<String,byte[]> classes;
+
+    Loader(Map<String,byte[]> classes) {
+      super(AOTCompilerTest.class.getClassLoader());
+      this.classes = classes;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      byte[] bytes = classes.get(name);
+      if (bytes == null)
+        throw new ClassNotFoundException(name);
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+
+  private static Program buildProgram(String s, TypeInfo typeInfo) throws Exception {
+    InputStream in = new ByteArrayInputStream(s.getBytes("UTF-8"));
+    ASTParser parser = new ASTParser(new Lexer(in));
+    Program program = parser.parse();
+    program.accept(new StaticChecker(typeInfo));
+    return program;
+  }
+
+  // compile the program ahead of time and run it
+  private static void runCompiled(String s) throws Exception {
+    TypeInfo typeInfo = new TypeInfo();
+    Program program = buildProgram(s, typeInfo);
+    Map<String,byte[]> classes = new AOTCompiler(typeInfo).compile(program);
+    Class<?> main = new Loader(classes).loadClass(AOTCompiler.MAIN_CLASS);
+    try {
+      main.getMethod("run").invoke(null);
+    } catch(InvocationTargetException ex) {
+      throw (Exception)ex.getCause();
+    }
+  }
+
+  // run the program in the VM
+  private static void runVM(String s) throws Exception {
+    TypeInfo typeInfo = new TypeInfo();
+    Program program = buildProgram(s, typeInfo);
+    MyPL.compile(program, typeInfo, MyPL.DEFAULT_OPT_LEVEL).run();
+  }
+
+  private static String buildString(String... args) {
+    String str = "";
+    for (String s : args)
+      str += s + "\n";
+    return str;
+  }
+
+
+  //------------------------------------------------------------
+  // Compiled programs
+  //------------------------------------------------------------
+
+  @Test
+  public void compiledProgramMatchesVM() throws Exception {
+    String s = buildString
+      ("type Node {",
+       "  var int val = 0",
+       "  var Node next = nil",
+       "}",
+       "fun Node push(Node list, int v) {",
+       "  var n = new Node",
+       "  n.val = v",
+       "  n.next = list",
+       "  return n",
+       "}",
+       "fun int fib(int n) {",
+       "  if n < 2 {",
+       "    return n",
+       "  }",
+       "  return fib(n - 1) + fib(n - 2)",
+       "}",
+       "fun void main() {",
+       "  var Node list = nil",
+       "  for i from 1 upto 5 {",
+       "    list = push(list, fib(i * 3))",
+       "  }",
+       "  var s = \"\"",
+       "  while list != nil {",
+       "    s = s + itos(list.val) + \" \"",
+       "    list = list.next",
+       "  }",
+       "  print(s)",
+       "  print(get(1, \"abc\"))",
+       "  print(3 - 5)",
+       "  print(neg 2.5 * 2.0)",
+       "  print(dtos(stod(\"7\") / 2.0) + \" \" + itos(dtoi(stod(\"3.75\"))))",
+       "  print(not (true and false) or false)",
+       "}");
+    runCompiled(s);
+    String compiled = output.toString();
+    output.reset();
+    runVM(s);
+    assertEquals(output.toString(), compiled);
+    assertEquals("610 144 34 8 2 b2-5.03.5 3true", compiled);
+  }
+
+  @Test
+  public void literalsCompareAsInVM() throws Exception {
+    // strings compare by reference: equal literals are different
+    // strings, and a literal is the same string each time it runs
+    String s = buildString
+      ("fun void main() {",
+       "  var a = \"ab\"",
+       "  var b = \"ab\"",
+       "  print(a == b)",
+       "  var x = \"\"",
+       "  var y = \"\"",
+       "  for i from 1 upto 2 {",
+       "    y = x",
+       "    x = \"c\"",
+       "  }",
+       "  print(x == y)",
+       "}");
+    runCompiled(s);
+    String compiled = output.toString();
+    output.reset();
+    runVM(s);
+    assertEquals(output.toString(), compiled);
+    assertEquals("falsetrue", compiled);
+  }
+
+  @Test
+  public void jarRunsStandalone() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var total = 0",
+       "  for i from 1 upto 100 {",
+       "    total = total + i",
+       "  }",
+       "  print(total)",
+       "}");
+    TypeInfo typeInfo = new TypeInfo();
+    Program program = buildProgram(s, typeInfo);
+    Path jar = Files.createTempFile("aot", ".jar");
+    try {
+      new AOTCompiler(typeInfo).writeJar(program, jar);
+      String java = System.getProperty("java.home") + File.separator + "bin" +
+        File.separator + "java";
+      Process process = new ProcessBuilder(java, "-jar", jar.toString()).start();
+      String out = new String(process.getInputStream().readAllBytes(), "UTF-8");
+      assertEquals(0, process.waitFor());
+      assertEquals("5050", out);
+    }
+    finally {
+      Files.deleteIfExists(jar);
+    }
+  }
+
+
+  //------------------------------------------------------------
+  // Errors
+  //------------------------------------------------------------
+
+  @Test
+  public void runTimeErrorReported() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  print(get(3, \"abc\"))",
+       "}");
+    try {
+      runCompiled(s);
+      fail("error not detected");
+    } catch(RuntimeException ex) {
+      assertEquals("VM_ERROR: index out of range", AOTRuntime.message(ex));
+    }
+  }
+
+  @Test
+  public void nilPrimitiveNotCompiled() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var x = 1",
+       "  x = nil",
+       "}");
+    try {
+      runCompiled(s);
+      fail("error not detected");
+    } catch(MyPLException ex) {
+      assertTrue(ex.getMessage().contains("nil int"));
+    }
+  }
+
+}
@@ -183,4 +183,57 @@ public class ASTParserTest {
     assertEquals(1, f.stmts.size());
   }
 
+  @Test
+  public void lazyBodyParsedWhenVisited() throws Exception {
+    String s = buildString
+      ("fun int f(int x) {",
+       "  if x > 0 {",
+       "    return x",
+       "  }",
+       "  return 0",
+       "}",
+       "fun void main() {}"
+       );
+    ASTParser parser = buildParser(s);
+    parser.setLazyBodies(true);
+    Program p = parser.parse();
+    assertEquals(2, p.fdecls.size());
+    FunDecl f = p.fdecls.get(0);
+    assertEquals("f", f.funName.lexeme());
+    assertEquals(1, f.params.size());
+    assertEquals(0, f.stmts.size());
+    f.accept(new TreeShaker());
+    assertEquals(null, f.bodyParser());
+    assertEquals(2, f.stmts.size());
+    assertEquals("main", p.fdecls.get(1).funName.lexeme());
+  }
+
+  @Test
+  public void lazyBodyErrorReportedWhenParsed() throws Exception {
+    String s = buildString
+      ("fun void f() {",
+       "  x = = 1",
+       "}",
+       "fun void main() {}"
+       );
+    ASTParser parser = buildParser(s);
+    parser.setLazyBodies(true);
+    Program p = parser.parse();
+    try {
+      p.fdecls.get(0).parseBody();
+      fail("error not detected");
+    } catch(MyPLException ex) {
+      assertEquals(true, ex.getMessage().contains("line 2"));
+    }
+    // an unclosed body is found by the pre-scan
+    parser = buildParser("fun void main() { if x { }");
+    parser.setLazyBodies(true);
+    try {
+      parser.parse();
+      fail("error not detected");
+    } catch(MyPLException ex) {
+      assertEquals(true, ex.getMessage().startsWith("PARSE_ERROR:"));
+    }
+  }
+
 }
@@ -8,6 +8,8 @@
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Test;
 import org.junit.Ignore;
@@ -701,6 +703,132 @@ public class CodeGeneratorTest {
     assertEquals("0 1 2 3 0", output.toString());
   }
   
+   @Test
+  public void elifOnlyRunsFirstTrueBranch() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var x = 7",
+       "  if x < 3 {",
+       "    print('a')",
+       "  }",
+       "  elif x < 9 {",
+       "    print('b')",
+       "  }",
+       "  elif x < 10 {",
+       "    print('c')",
+       "  }",
+       "  else {",
+       "    print('d')",
+       "  }",
+       "  if x > 8 {",
+       "    print('a')",
+       "  }",
+       "  elif x > 9 {",
+       "    print('b')",
+       "  }",
+       "  else {",
+       "    print('c')",
+       "  }",
+       "}");
+    VM vm = buildVM(s);
+    vm.run();
+    assertEquals("bc", output.toString());
+  }
+
+   @Test
+  public void denseIntSwitch() throws Exception {
+    String s = buildString
+      ("fun string name(int c) {",
+       "  if c == 1 {",
+       "    return \"one\"",
+       "  }",
+       "  elif c == 2 {",
+       "    return \"two\"",
+       "  }",
+       "  elif 3 == c {",
+       "    return \"three\"",
+       "  }",
+       "  elif c == 5 {",
+       "    return \"five\"",
+       "  }",
+       "  else {",
+       "    return \"other\"",
+       "  }",
+       "}",
+       "fun void main() {",
+       "  for i from 0 upto 6 {",
+       "    print(name(i))",
+       "    print(' ')",
+       "  }",
+       "}");
+    VM vm = buildVM(s);
+    assertTrue(vm.toString().contains("TABLESWITCH"));
+    vm.run();
+    assertEquals("other one two three other five other ", output.toString());
+  }
+
+   @Test
+  public void sparseIntSwitchWithoutElse() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var i = 0",
+       "  while i <= 1000 {",
+       "    if i == 1 {",
+       "      print('a')",
+       "    }",
+       "    elif i == 100 {",
+       "      print('b')",
+       "    }",
+       "    elif i == 1000 {",
+       "      print('c')",
+       "    }",
+       "    i = i + 1",
+       "  }",
+       "  var int n = nil",
+       "  if n == 1 {",
+       "    print('x')",
+       "  }",
+       "  elif n == 2 {",
+       "    print('y')",
+       "  }",
+       "  elif n == 3 {",
+       "    print('z')",
+       "  }",
+       "}");
+    VM vm = buildVM(s);
+    assertTrue(vm.toString().contains("LOOKUPSWITCH"));
+    vm.run();
+    assertEquals("abc", output.toString());
+  }
+
+   @Test
+  public void switchLoweringDisabled() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var x = 2",
+       "  if x == 1 {",
+       "    print('a')",
+       "  }",
+       "  elif x == 2 {",
+       "    print('b')",
+       "  }",
+       "  elif x == 3 {",
+       "    print('c')",
+       "  }",
+       "}");
+    InputStream in = new ByteArrayInputStream(s.getBytes("UTF-8"));
+    Program program = new ASTParser(new Lexer(in)).parse();
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    VM vm = new VM();
+    CodeGenerator genVisitor = new CodeGenerator(typeInfo, vm);
+    genVisitor.setSwitchLowering(false);
+    program.accept(genVisitor);
+    assertFalse(vm.toString().contains("SWITCH"));
+    vm.run();
+    assertEquals("b", output.toString());
+  }
+  
   //------------------------------------------------------------
   // Recursive Functions
   //------------------------------------------------------------
@@ -0,0 +1,219 @@
+/*
+ * File: CompileCacheTest.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Unit tests for the compile cache. A cached program should run
+ *       the same, a changed source or pass list should miss, and the
+ *       least recently used entries should go once the cache is full.
+ *       A damaged entry should be a miss, and be deleted.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+
+public class CompileCacheTest {
+
+  private PrintStream stdout = System.out;
+  private ByteArrayOutputStream output = new ByteArrayOutputStream();
+  private Path dir = null;
+
+  @Before
+  public void changeSystemOut() throws Exception {
+    // redirect System.out to output
+    System.setOut(new PrintStream(output));
+    dir = Files.createTempDirectory("cache");
+  }
+
+  @After
+  public void restoreSystemOut() throws Exception {
+    // reset System.out to standard out
+    System.setOut(stdout);
+    try (Stream<Path> paths = Files.walk(dir)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  //------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //------------------------------------------------------------
+
+  private static VM buildVM(String s) throws Exception {
+    InputStream in = new ByteArrayInputStream(s.getBytes("UTF-8"));
+    ASTParser parser = new ASTParser(new Lexer(in));
+    Program program = parser.parse();
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    return MyPL.compile(program, typeInfo, MyPL.DEFAULT_OPT_LEVEL);
+  }
+
+  private static String key(String config, String... sources) throws Exception {
+    List<byte[]> bytes = new ArrayList<>();
+    for (String source : sources)
+      bytes.add(source.getBytes("UTF-8"));
+    return CompileCache.key(config, bytes);
+  }
+
+  // a program printing the given value
+  private static String printing(int value) {
+    return "fun void main() { print(" + value + ") }";
+  }
+
+
+  //------------------------------------------------------------
+  // Hits and misses
+  //------------------------------------------------------------
+
+  @Test
+  public void cachedProgramRunsTheSame() throws Exception {
+    CompileCache cache = new CompileCache(dir, CompileCache.DEFAULT_MAX_SIZE);
+    String s = "fun int twice(int x) { return x * 2 }\n" +
+      "fun void main() { print(twice(21)) }";
+    String key = key("passes=fold", s);
+    assertNull(cache.get(key));
+    cache.put(key, buildVM(s));
+    VM vm = cache.get(key);
+    assertNotNull(vm);
+    vm.run();
+    assertEquals("42", output.toString());
+  }
+
+  @Test
+  public void keyDependsOnSourcesAndConfig() throws Exception {
+    String key = key("passes=fold", "fun void main() {}", "type T {}");
+    assertEquals(64, key.length());
+    assertEquals(key, key("passes=fold", "fun void main() {}", "type T {}"));
+    assertTrue(!key.equals(key("passes=fold", "fun void main() { }", "type T {}")));
+    assertTrue(!key.equals(key("passes=fold", "fun void main() {}", "type U {}")));
+    assertTrue(!key.equals(key("passes=", "fun void main() {}", "type T {}")));
+    // the same bytes split between sources differently
+    assertTrue(!key.equals(key("passes=fold", "fun void main() {}type", " T {}")));
+  }
+
+  @Test
+  public void corruptEntryIsAMiss() throws Exception {
+    CompileCache cache = new CompileCache(dir, CompileCache.DEFAULT_MAX_SIZE);
+    String key = key("", printing(1));
+    cache.put(key, buildVM(printing(1)));
+    Path entry = cache.entries().get(0);
+    byte[] bytes = Files.readAllBytes(entry);
+    Files.write(entry, Arrays.copyOf(bytes, bytes.length / 2));
+    assertNull(cache.get(key));
+    // the next compile replaces it
+    cache.put(key, buildVM(printing(1)));
+    assertNotNull(cache.get(key));
+  }
+
+  @Test
+  public void damagedCodeIsAMissAndDeleted() throws Exception {
+    CompileCache cache = new CompileCache(dir, CompileCache.DEFAULT_MAX_SIZE);
+    String key = key("", printing(1));
+    cache.put(key, buildVM(printing(1)));
+    Path entry = cache.entries().get(0);
+    // a damaged operand in main (only decoded when main is called)
+    byte[] bytes = Files.readAllBytes(entry);
+    bytes[bytes.length - 1] ^= 1;
+    Files.write(entry, bytes);
+    assertNull(cache.get(key));
+    assertTrue(!Files.exists(entry));
+    cache.put(key, buildVM(printing(1)));
+    VM vm = cache.get(key);
+    assertNotNull(vm);
+    vm.run();
+    assertEquals("1", output.toString());
+  }
+
+  @Test
+  public void keyDependsOnCompiler() throws Exception {
+    assertEquals(64, CompileCache.implementation().length());
+    assertEquals(CompileCache.implementation(), CompileCache.implementation());
+  }
+
+  @Test
+  public void moduleEntryKeepsItsSummary() throws Exception {
+    CompileCache cache = new CompileCache(dir, CompileCache.DEFAULT_MAX_SIZE);
+    String key = key("module m", printing(1));
+    assertNull(cache.summary(key));
+    cache.putModule(key, buildVM(printing(1)), "fun int m@f() {\n}\n");
+    assertEquals("fun int m@f() {\n}\n", cache.summary(key));
+    assertNotNull(cache.get(key));
+    // evicted along with its code
+    cache = new CompileCache(dir, 0);
+    cache.put(key("", printing(2)), buildVM(printing(2)));
+    assertNull(cache.summary(key));
+    try (Stream<Path> paths = Files.list(dir)) {
+      assertEquals(0, paths.count());
+    }
+  }
+
+
+  //------------------------------------------------------------
+  // Eviction and concurrency
+  //------------------------------------------------------------
+
+  @Test
+  public void leastRecentlyUsedEvicted() throws Exception {
+    CompileCache cache = new CompileCache(dir, CompileCache.DEFAULT_MAX_SIZE);
+    String[] keys = new String[3];
+    for (int i = 0; i < 3; ++i) {
+      keys[i] = key("", printing(i));
+      cache.put(keys[i], buildVM(printing(i)));
+    }
+    // entries used in the order 1, 0, 2 (times set explicitly, since a
+    // file system may keep them to the second)
+    long now = System.currentTimeMillis();
+    Files.setLastModifiedTime(dir.resolve(keys[1] + CompiledFile.EXTENSION), FileTime.fromMillis(now - 3000));
+    Files.setLastModifiedTime(dir.resolve(keys[0] + CompiledFile.EXTENSION), FileTime.fromMillis(now - 2000));
+    Files.setLastModifiedTime(dir.resolve(keys[2] + CompiledFile.EXTENSION), FileTime.fromMillis(now - 1000));
+    long size = Files.size(cache.entries().get(0));
+    // room for three entries: adding a fourth evicts entry 1
+    cache = new CompileCache(dir, 3 * size + size / 2);
+    String key = key("", printing(3));
+    cache.put(key, buildVM(printing(3)));
+    assertEquals(3, cache.entries().size());
+    assertNull(cache.get(keys[1]));
+    assertNotNull(cache.get(keys[0]));
+    assertNotNull(cache.get(key));
+  }
+
+  @Test
+  public void concurrentPutsLeaveOneEntry() throws Exception {
+    CompileCache cache = new CompileCache(dir, CompileCache.DEFAULT_MAX_SIZE);
+    String s = printing(7);
+    String key = key("", s);
+    VM vm = buildVM(s);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; ++i)
+      threads.add(new Thread(() -> cache.put(key, vm)));
+    for (Thread thread : threads)
+      thread.start();
+    for (Thread thread : threads)
+      thread.join();
+    assertEquals(1, cache.entries().size());
+    try (Stream<Path> paths = Files.list(dir)) {
+      assertEquals(1, paths.count());
+    }
+    cache.get(key).run();
+    assertEquals("7", output.toString());
+  }
+
+}
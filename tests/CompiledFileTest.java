@@ -0,0 +1,242 @@
+/*
+ * File: CompiledFileTest.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Unit tests for compiled (.myplc) files. A program read back
+ *       from its file should have the same code and print the same,
+ *       and its functions should only be decoded once called. Damaged
+ *       code should be reported when called, or when read if checked.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+
+public class CompiledFileTest {
+
+  private PrintStream stdout = System.out;
+  private ByteArrayOutputStream output = new ByteArrayOutputStream();
+  private Path file = null;
+
+  @Before
+  public void changeSystemOut() throws Exception {
+    // redirect System.out to output
+    System.setOut(new PrintStream(output));
+    file = Files.createTempFile("test", CompiledFile.EXTENSION);
+  }
+
+  @After
+  public void restoreSystemOut() throws Exception {
+    // reset System.out to standard out
+    System.setOut(stdout);
+    Files.deleteIfExists(file);
+  }
+
+  //------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //------------------------------------------------------------
+
+  private static VM buildVM(String s, int optLevel) throws Exception {
+    InputStream in = new ByteArrayInputStream(s.getBytes("UTF-8"));
+    ASTParser parser = new ASTParser(new Lexer(in));
+    Program program = parser.parse();
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    return MyPL.compile(program, typeInfo, optLevel);
+  }
+
+  // the frame's instructions without their comments
+  private static String code(VMFrame frame) {
+    String s = "";
+    for (VMInstr instr : frame.instructions)
+      s += instr.opcode() + " " + instr.operand() + "\n";
+    return s;
+  }
+
+  // the file's bytes with their checksum (the header's last four
+  // bytes, over the rest of the file) set to match
+  private static byte[] withChecksum(byte[] bytes) {
+    CRC32 checksum = new CRC32();
+    checksum.update(bytes, 14, bytes.length - 14);
+    ByteBuffer.wrap(bytes).putInt(10, (int)checksum.getValue());
+    return bytes;
+  }
+
+  private static String buildString(String... args) {
+    String str = "";
+    for (String s : args)
+      str += s + "\n";
+    return str;
+  }
+
+
+  //------------------------------------------------------------
+  // Round trips
+  //------------------------------------------------------------
+
+  @Test
+  public void programReadBackRunsTheSame() throws Exception {
+    String s = buildString
+      ("type Point {",
+       "  var int x = 0",
+       "  var double y = 0.5",
+       "  var string name = nil",
+       "}",
+       "fun string label(int n) {",
+       "  if n == 1 {",
+       "    return \"one\"",
+       "  }",
+       "  elif n == 2 {",
+       "    return \"two\"",
+       "  }",
+       "  elif n == 100 {",
+       "    return \"hundred\"",
+       "  }",
+       "  return \"many\"",
+       "}",
+       "fun void main() {",
+       "  var p = new Point",
+       "  p.x = 2",
+       "  p.name = label(p.x)",
+       "  print(p.name + \" \" + label(100) + \" \" + dtos(p.y * 3.0) + \" \")",
+       "  print(\"a\" == \"a\")",
+       "}");
+    for (int level = 0; level <= MyPL.MAX_OPT_LEVEL; ++level) {
+      VM vm = buildVM(s, level);
+      CompiledFile.write(vm, file);
+      VM loaded = CompiledFile.read(file);
+      assertEquals(vm.frames().size(), loaded.frames().size());
+      for (VMFrame frame : vm.frames())
+        assertEquals(code(frame), code(loaded.frame(frame.functionName())));
+      vm.run();
+      String expected = output.toString();
+      output.reset();
+      loaded.run();
+      assertEquals(expected, output.toString());
+      assertEquals("two hundred 1.5 false", expected);
+      output.reset();
+    }
+  }
+
+  @Test
+  public void functionsDecodedWhenCalled() throws Exception {
+    String s = buildString
+      ("fun int used(int x) {",
+       "  return x * 2",
+       "}",
+       "fun int unused(int x) {",
+       "  return x * 3",
+       "}",
+       "fun void main() {",
+       "  print(used(4))",
+       "}");
+    CompiledFile.write(buildVM(s, 0), file);
+    VM vm = CompiledFile.read(file);
+    assertTrue(vm.frame("main").instructions.isEmpty());
+    assertTrue(vm.frame("used").instructions.isEmpty());
+    assertEquals(1, vm.frame("unused").argCount());
+    vm.run();
+    assertEquals("8", output.toString());
+    assertTrue(!vm.frame("used").instructions.isEmpty());
+    assertTrue(vm.frame("unused").instructions.isEmpty());
+    // the frames are decoded for passes and printing
+    assertEquals(3, vm.frames().size());
+    assertTrue(!vm.frame("unused").instructions.isEmpty());
+  }
+
+
+  //------------------------------------------------------------
+  // Bad files
+  //------------------------------------------------------------
+
+  @Test
+  public void corruptFileNotRead() throws Exception {
+    Files.write(file, "fun void main() {}".getBytes("UTF-8"));
+    try {
+      CompiledFile.read(file);
+      fail("error not detected");
+    } catch(MyPLException ex) {
+      assertTrue(ex.getMessage().contains("not a compiled MyPL program"));
+    }
+    CompiledFile.write(buildVM("fun void main() { print(1) }", 0), file);
+    byte[] bytes = Files.readAllBytes(file);
+    Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+    try {
+      CompiledFile.read(file);
+      fail("error not detected");
+    } catch(MyPLException ex) {
+      assertTrue(ex.getMessage().contains("truncated"));
+    }
+  }
+
+  @Test
+  public void corruptCodeNotRead() throws Exception {
+    CompiledFile.write(buildVM("fun void main() { print(1) }", 0), file);
+    byte[] bytes = Files.readAllBytes(file);
+    // the file ends with the last instruction's opcode and operand
+    // (damaged with a matching checksum, and without one)
+    byte[] badOpcode = bytes.clone();
+    badOpcode[bytes.length - 2] = (byte)0xEE;
+    byte[] badOperand = bytes.clone();
+    badOperand[bytes.length - 1] = (byte)0x7F;
+    byte[] badChecksum = bytes.clone();
+    badChecksum[bytes.length - 1] ^= 1;
+    for (byte[] corrupt : Arrays.asList(withChecksum(badOpcode), withChecksum(badOperand),
+                                        badChecksum)) {
+      Files.write(file, corrupt);
+      // when main is called
+      VM vm = CompiledFile.read(file);
+      try {
+        vm.run();
+        fail("error not detected");
+      } catch(MyPLException ex) {
+        assertTrue(ex.getMessage().contains("file is corrupt"));
+      }
+      // when the file is read
+      try {
+        CompiledFile.read(file, true);
+        fail("error not detected");
+      } catch(MyPLException ex) {
+        assertTrue(ex.getMessage().contains("file is corrupt"));
+      }
+    }
+  }
+
+  @Test
+  public void checkedReadFindsDamagedConstants() throws Exception {
+    CompiledFile.write(buildVM("fun void main() { print(1) }", 0), file);
+    byte[] bytes = Files.readAllBytes(file);
+    // the int constant 1 (tag 1, then a u4) becomes 2, which only the
+    // checksum shows
+    int i = 14;
+    while (!(bytes[i] == 1 && bytes[i + 1] == 0 && bytes[i + 2] == 0 &&
+             bytes[i + 3] == 0 && bytes[i + 4] == 1))
+      ++i;
+    bytes[i + 4] = 2;
+    Files.write(file, bytes);
+    CompiledFile.read(file).run();
+    assertEquals("2", output.toString());
+    try {
+      CompiledFile.read(file, true);
+      fail("error not detected");
+    } catch(MyPLException ex) {
+      assertTrue(ex.getMessage().contains("file is corrupt"));
+    }
+  }
+
+}
@@ -0,0 +1,425 @@
+/*
+ * File: IRTest.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Unit tests for the SSA intermediate representation. Each test
+ *       checks the built control-flow graph is in SSA form (every use
+ *       of a value is dominated by its definition), and that the
+ *       lowered program produces the expected output when run by the
+ *       VM.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+
+public class IRTest {
+
+  private PrintStream stdout = System.out;
+  private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+  @Before
+  public void changeSystemOut() {
+    // redirect System.out to output
+    System.setOut(new PrintStream(output));
+  }
+
+  @After
+  public void restoreSystemOut() {
+    // reset System.out to standard out
+    System.setOut(stdout);
+  }
+
+  //------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //------------------------------------------------------------
+
+  private static List<IRFunction> buildIR(String s) throws Exception {
+    InputStream in = new ByteArrayInputStream(s.getBytes("UTF-8"));
+    ASTParser parser = new ASTParser(new Lexer(in));
+    Program program = parser.parse();
+    program.accept(new StaticChecker(new TypeInfo()));
+    IRBuilder builder = new IRBuilder();
+    program.accept(builder);
+    for (IRFunction function : builder.functions())
+      checkSSA(function);
+    return builder.functions();
+  }
+
+  private static VM buildVM(String s) throws Exception {
+    VM vm = new VM();
+    new IRLowering(vm).lower(buildIR(s));
+    return vm;
+  }
+
+  private static IRFunction function(List<IRFunction> functions, String name) {
+    for (IRFunction function : functions)
+      if (function.name().equals(name))
+        return function;
+    return null;
+  }
+
+  private static int countPhis(IRFunction function) {
+    int count = 0;
+    for (BasicBlock block : function.blocks())
+      count += block.phis().size();
+    return count;
+  }
+
+  // check each block is terminated, each phi has one argument per
+  // predecessor, and each value is defined before its uses
+  private static void checkSSA(IRFunction function) {
+    DominatorTree tree = new DominatorTree(function);
+    for (BasicBlock block : function.blocks()) {
+      assertTrue(block.terminator() != null);
+      for (IRInstr phi : block.phis()) {
+        assertEquals(block.preds().size(), phi.args().size());
+        for (int i = 0; i < phi.args().size(); ++i)
+          checkDef(tree, phi.args().get(i), block.preds().get(i), null);
+      }
+      for (IRInstr instr : block.instrs())
+        for (IRInstr arg : instr.args())
+          checkDef(tree, arg, block, instr);
+    }
+  }
+
+  // check the value is available at the use in the block (or at the
+  // end of the block if use is null)
+  private static void checkDef(DominatorTree tree, IRInstr value, BasicBlock block, IRInstr use) {
+    if (value.op() == IROp.CONST)
+      return;
+    BasicBlock def = value.block();
+    assertTrue(tree.dominates(def, block));
+    if (def == block && use != null && value.op() != IROp.PHI) {
+      List<IRInstr> instrs = block.instrs();
+      assertTrue(instrs.indexOf(value) < instrs.indexOf(use));
+    }
+  }
+
+  private static String buildString(String... args) {
+    String str = "";
+    for (String s : args)
+      str += s + "\n";
+    return str;
+  }
+
+
+  //------------------------------------------------------------
+  // SSA construction
+  //------------------------------------------------------------
+
+  @Test
+  public void straightLineCode() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var x = 3",
+       "  x = x + 4",
+       "  var y = x * 2",
+       "  x = y - x",
+       "  print(x)",
+       "}");
+    IRFunction main = function(buildIR(s), "main");
+    assertEquals(1, main.blocks().size());
+    assertEquals(0, countPhis(main));
+    VM vm = buildVM(s);
+    vm.run();
+    assertEquals("7", output.toString());
+  }
+
+  @Test
+  public void ifElseJoinsWithPhi() throws Exception {
+    String s = buildString
+      ("fun int pick(int n) {",
+       "  var x = 0",
+       "  if n < 10 {",
+       "    x = 1",
+       "  }",
+       "  else {",
+       "    x = 2",
+       "  }",
+       "  return x",
+       "}",
+       "fun void main() {",
+       "  print(pick(3))",
+       "  print(pick(30))",
+       "}");
+    IRFunction pick = function(buildIR(s), "pick");
+    assertEquals(1, countPhis(pick));
+    assertTrue(pick.toString().contains("phi [b"));
+    VM vm = buildVM(s);
+    vm.run();
+    assertEquals("12", output.toString());
+  }
+
+  @Test
+  public void unchangedVariableNeedsNoPhi() throws Exception {
+    String s = buildString
+      ("fun int f(int n) {",
+       "  var x = 5",
+       "  var y = 0",
+       "  if n > 0 {",
+       "    y = x",
+       "  }",
+       "  elif n < 0 {",
+       "    y = neg x",
+       "  }",
+       "  while y < 100 {",
+       "    y = y + x",
+       "  }",
+       "  return x + y",
+       "}",
+       "fun void main() {",
+       "  print(f(1))",
+       "  print(' ')",
+       "  print(f(0))",
+       "}");
+    IRFunction f = function(buildIR(s), "f");
+    // a phi for y after the if and in the loop header, but none for x
+    assertEquals(2, countPhis(f));
+    VM vm = buildVM(s);
+    vm.run();
+    assertEquals("105 105", output.toString());
+  }
+
+  @Test
+  public void loopPhisInHeader() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var sum = 0",
+       "  for i from 1 upto 10 {",
+       "    sum = sum + i",
+       "  }",
+       "  var j = 0",
+       "  while j < 3 {",
+       "    j = j + 1",
+       "    sum = sum + j",
+       "  }",
+       "  print(sum)",
+       "}");
+    IRFunction main = function(buildIR(s), "main");
+    // i and sum in the first header, j and sum in the second
+    assertEquals(4, countPhis(main));
+    VM vm = buildVM(s);
+    vm.run();
+    assertEquals("61", output.toString());
+  }
+
+  @Test
+  public void nestedLoopsAndEarlyReturn() throws Exception {
+    String s = buildString
+      ("fun int find(int target) {",
+       "  for i from 0 upto 9 {",
+       "    for j from 0 upto 9 {",
+       "      if ((i * 10) + j) == target {",
+       "        return i + j",
+       "      }",
+       "    }",
+       "  }",
+       "  return neg 1",
+       "}",
+       "fun void main() {",
+       "  print(find(57))",
+       "  print(' ')",
+       "  print(find(100))",
+       "}");
+    VM vm = buildVM(s);
+    vm.run();
+    assertEquals("12 -1", output.toString());
+  }
+
+  @Test
+  public void codeAfterReturnIsRemoved() throws Exception {
+    String s = buildString
+      ("fun int f() {",
+       "  return 1",
+       "  print(\"unreachable\")",
+       "}",
+       "fun void main() {",
+       "  print(f())",
+       "}");
+    IRFunction f = function(buildIR(s), "f");
+    assertEquals(1, f.blocks().size());
+    assertFalse(f.toString().contains("write"));
+    VM vm = buildVM(s);
+    vm.run();
+    assertEquals("1", output.toString());
+  }
+
+  @Test
+  public void shadowedVariablesAreDistinct() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var x = 1",
+       "  if true {",
+       "    var x = 2",
+       "    x = x + 1",
+       "    print(x)",
+       "  }",
+       "  print(x)",
+       "}");
+    VM vm = buildVM(s);
+    vm.run();
+    assertEquals("31", output.toString());
+  }
+
+
+  //------------------------------------------------------------
+  // Dominator trees
+  //------------------------------------------------------------
+
+  @Test
+  public void diamondDominators() throws Exception {
+    String s = buildString
+      ("fun int f(int n) {",
+       "  var x = 0",
+       "  if n > 0 {",
+       "    x = 1",
+       "  }",
+       "  else {",
+       "    x = 2",
+       "  }",
+       "  return x",
+       "}",
+       "fun void main() {",
+       "}");
+    IRFunction f = function(buildIR(s), "f");
+    DominatorTree tree = new DominatorTree(f);
+    BasicBlock entry = f.entry();
+    List<BasicBlock> succs = entry.succs();
+    BasicBlock join = succs.get(0).succs().get(0);
+    assertNull(tree.idom(entry));
+    assertEquals(entry, tree.idom(succs.get(0)));
+    assertEquals(entry, tree.idom(join));
+    assertTrue(tree.dominates(entry, join));
+    assertFalse(tree.dominates(succs.get(0), join));
+    // each branch's dominance ends at the join (where x gets a phi)
+    assertTrue(tree.frontier(succs.get(0)).contains(join));
+    assertTrue(tree.frontier(entry).isEmpty());
+    assertEquals(entry, tree.preorder().get(0));
+    assertEquals(f.blocks().size(), tree.preorder().size());
+  }
+
+  @Test
+  public void loopHeaderInOwnFrontier() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var i = 0",
+       "  while i < 3 {",
+       "    i = i + 1",
+       "  }",
+       "}");
+    IRFunction main = function(buildIR(s), "main");
+    DominatorTree tree = new DominatorTree(main);
+    BasicBlock header = main.entry().succs().get(0);
+    BasicBlock body = header.succs().get(0);
+    assertEquals(header, tree.idom(body));
+    assertTrue(tree.frontier(body).contains(header));
+    assertTrue(tree.frontier(header).contains(header));
+  }
+
+
+  //------------------------------------------------------------
+  // Lowering
+  //------------------------------------------------------------
+
+  @Test
+  public void swapInLoopUsesOldValues() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var a = 1",
+       "  var b = 2",
+       "  var i = 0",
+       "  while i < 3 {",
+       "    var t = a",
+       "    a = b",
+       "    b = t",
+       "    i = i + 1",
+       "  }",
+       "  print(a)",
+       "  print(b)",
+       "}");
+    VM vm = buildVM(s);
+    vm.run();
+    assertEquals("21", output.toString());
+  }
+
+  @Test
+  public void recordsCallsAndBuiltins() throws Exception {
+    String s = buildString
+      ("type Node {",
+       "  var int val = 0",
+       "  var Node next = nil",
+       "}",
+       "fun int total(Node n) {",
+       "  var sum = 0",
+       "  while n != nil {",
+       "    sum = sum + n.val",
+       "    n = n.next",
+       "  }",
+       "  return sum",
+       "}",
+       "fun void main() {",
+       "  var Node head = nil",
+       "  for i from 1 upto 4 {",
+       "    var node = new Node",
+       "    node.val = i * i",
+       "    node.next = head",
+       "    head = node",
+       "  }",
+       "  head.next.val = 0",
+       "  print(itos(total(head)) + \" \" + itos(length(\"abc\")))",
+       "  print(' ')",
+       "  print(get(1, \"xyz\"))",
+       "}");
+    VM vm = buildVM(s);
+    vm.run();
+    assertEquals("21 3 y", output.toString());
+  }
+
+  @Test
+  public void recursiveFunction() throws Exception {
+    String s = buildString
+      ("fun int fib(int n) {",
+       "  if n < 2 {",
+       "    return n",
+       "  }",
+       "  return fib(n - 1) + fib(n - 2)",
+       "}",
+       "fun void main() {",
+       "  print(fib(15))",
+       "}");
+    VM vm = buildVM(s);
+    vm.run();
+    assertEquals("610", output.toString());
+  }
+
+  @Test
+  public void unusedCallResultIsPopped() throws Exception {
+    String s = buildString
+      ("fun int f(int x) {",
+       "  return x",
+       "}",
+       "fun void main() {",
+       "  for i from 1 upto 3 {",
+       "    f(i)",
+       "  }",
+       "}");
+    VM vm = buildVM(s);
+    String code = vm.toString();
+    assertTrue(code.indexOf("POP") > code.indexOf("CALL"));
+    vm.run();
+  }
+
+}
@@ -13,6 +13,9 @@ import org.junit.Test;
 import java.beans.Transient;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
 
 
 public class LexerTest {
@@ -226,7 +229,127 @@ public class LexerTest {
     t = lexer.nextToken();
     assertEquals(TokenType.EOS, t.type());
   }
-  
+
+  @Test
+  public void checkKeywordLookalikes() throws Exception {
+    String s = "iff news nil0 imports truer fals downtown elif";
+    InputStream in = new ByteArrayInputStream(s.getBytes("UTF-8"));
+    Lexer lexer = new Lexer(in);
+    for (int i = 0; i < 7; ++i)
+      assertEquals(TokenType.ID, lexer.nextToken().type());
+    assertEquals(TokenType.ELIF, lexer.nextToken().type());
+    assertEquals(TokenType.EOS, lexer.nextToken().type());
+  }
+
+  @Test
+  public void checkTokenBuffer() throws Exception {
+    String s = "fun int f(int x) {\n  return x + 12 # comment\n}\nvar s = \"x\"";
+    TokenBuffer buffer = new Lexer(new ByteArrayInputStream(s.getBytes("UTF-8"))).tokenize();
+    Lexer lexer = new Lexer(new ByteArrayInputStream(s.getBytes("UTF-8")));
+    for (int i = 0; i < buffer.size(); ++i) {
+      Token t = lexer.nextToken();
+      assertEquals(t.type(), buffer.type(i));
+      assertEquals(t.lexeme(), buffer.lexeme(i));
+      assertEquals(t.line(), buffer.line(i));
+      assertEquals(t.column(), buffer.column(i));
+    }
+    assertEquals(TokenType.EOS, buffer.type(buffer.size() - 1));
+    // a repeated identifier keeps one lexeme
+    assertEquals(true, buffer.lexeme(5) == buffer.lexeme(9));
+    Token t = buffer.token(9);
+    assertEquals("x", t.lexeme());
+    assertEquals(2, t.line());
+    assertEquals(10, t.column());
+  }
+
+  @Test
+  public void checkTokenBufferLocatedFromThreads() throws Exception {
+    String s = "";
+    for (int i = 0; i < 500; ++i)
+      s += "var x" + i + " = " + i + "\n";
+    TokenBuffer expected = new Lexer(new ByteArrayInputStream(s.getBytes("UTF-8"))).tokenize();
+    TokenBuffer buffer = new Lexer(new ByteArrayInputStream(s.getBytes("UTF-8"))).tokenize();
+    List<Token> tokens = new ArrayList<>();
+    for (int i = 0; i < buffer.size(); ++i)
+      tokens.add(buffer.token(i));
+    // each thread finds every token's position (with the line table
+    // and the tokens' positions found while the others look)
+    List<String> errors = new Vector<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int n = 0; n < 8; ++n)
+      threads.add(new Thread(() -> {
+        for (int i = 0; i < tokens.size(); ++i)
+          if (tokens.get(i).line() != expected.line(i) ||
+              tokens.get(i).column() != expected.column(i))
+            errors.add(tokens.get(i).toString());
+      }));
+    for (Thread thread : threads)
+      thread.start();
+    for (Thread thread : threads)
+      thread.join();
+    assertEquals(0, errors.size());
+  }
+
+  @Test
+  public void checkCommentAtEndOfInput() throws Exception {
+    String s = "x # no newline after this";
+    InputStream in = new ByteArrayInputStream(s.getBytes("UTF-8"));
+    Lexer lexer = new Lexer(in);
+    assertEquals(TokenType.ID, lexer.nextToken().type());
+    assertEquals(TokenType.EOS, lexer.nextToken().type());
+  }
+
+  @Test
+  public void checkLongWhitespaceCommentAndString() throws Exception {
+    String pad = " ".repeat(40);
+    String text = "a comment longer than a vector of characters";
+    String s = pad + "x\n\n\n" + pad + "\t\ty # " + text + "\n" +
+      "\"" + text + "\"" + pad + "w";
+    InputStream in = new ByteArrayInputStream(s.getBytes("UTF-8"));
+    Lexer lexer = new Lexer(in);
+    Token t = lexer.nextToken();
+    assertEquals("x", t.lexeme());
+    assertEquals(1, t.line());
+    assertEquals(41, t.column());
+    t = lexer.nextToken();
+    assertEquals("y", t.lexeme());
+    assertEquals(4, t.line());
+    assertEquals(43, t.column());
+    t = lexer.nextToken();
+    assertEquals(TokenType.STRING_VAL, t.type());
+    assertEquals(text, t.lexeme());
+    assertEquals(5, t.line());
+    assertEquals(1, t.column());
+    t = lexer.nextToken();
+    assertEquals("w", t.lexeme());
+    assertEquals(5, t.line());
+    assertEquals(87, t.column());
+    assertEquals(TokenType.EOS, lexer.nextToken().type());
+  }
+
+  @Test
+  public void checkScannersAgree() throws Exception {
+    // the best scanner (vector if the JVM has the module) finds the
+    // same ends as the scalar one, in and past full vectors
+    CharScanner scalar = new CharScanner();
+    CharScanner best = CharScanner.best();
+    String[] inputs = {"", " ", "x", " \t\n\r\u000b\u000c\u001c\u001f x",
+                       " ".repeat(100) + "\u00a0" + " ".repeat(7),
+                       "\n".repeat(70) + "*/ \"'" + "a".repeat(45) + "\"",
+                       "\u2003 \uffff" + " ".repeat(33) + "'" + "\n".repeat(33)};
+    for (String input : inputs) {
+      char[] chars = input.toCharArray();
+      for (int i = 0; i <= chars.length; ++i) {
+        assertEquals(scalar.skipWhitespace(chars, i), best.skipWhitespace(chars, i));
+        assertEquals(scalar.indexOf(chars, i, '\n'), best.indexOf(chars, i, '\n'));
+        assertEquals(scalar.indexOf(chars, i, '*'), best.indexOf(chars, i, '*'));
+        assertEquals(scalar.indexOf(chars, i, '"', '\''), best.indexOf(chars, i, '"', '\''));
+        assertEquals(scalar.count(chars, i, chars.length, '\n'),
+                     best.count(chars, i, chars.length, '\n'));
+      }
+    }
+  }
+
 
   //------------------------------------------------------------
   // Negative Test Cases
@@ -11,14 +11,43 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Ignore;
 import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 
 public class ModuleTest {
 
+  private PrintStream stdout = System.out;
+  private ByteArrayOutputStream output = new ByteArrayOutputStream();
+  private Path dir = null;
+
+  @Before
+  public void changeSystemOut() throws Exception {
+    // redirect System.out to output
+    System.setOut(new PrintStream(output));
+    dir = Files.createTempDirectory("modules");
+  }
+
+  @After
+  public void restoreSystemOut() throws Exception {
+    // reset System.out to standard out
+    System.setOut(stdout);
+    try (Stream<Path> paths = Files.walk(dir)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
   //------------------------------------------------------------
   // HELPER FUNCTIONS
   //------------------------------------------------------------
@@ -35,6 +64,19 @@ public class ModuleTest {
     return checker;
   }
 
+  // write a module to the module directory
+  private void writeModule(String name, String... lines) throws Exception {
+    Files.write(dir.resolve(name + ".mypl"), buildString(lines).getBytes("UTF-8"));
+  }
+
+  // link, check, and run the program with modules from the directory
+  private void linkAndRun(String s) throws Exception {
+    Program program = new ModuleLinker(dir).link(buildParser(s).parse());
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    MyPL.compile(program, typeInfo, MyPL.DEFAULT_OPT_LEVEL).run();
+  }
+
   private static String buildString(String... args) {
     String str = "";
     for (String s : args)
@@ -122,5 +164,314 @@ public class ModuleTest {
       }
   }
 
+  //------------------------------------------------------------
+  // LINKING
+  //------------------------------------------------------------
+
+  @Test
+  public void linkedModuleRuns() throws Exception {
+    writeModule("shapes",
+                "type Box {",
+                "  var int size = 0",
+                "}",
+                "fun Box make(int n) {",
+                "  var b = new Box",
+                "  b.size = n",
+                "  return b",
+                "}",
+                "fun int area(Box b) {",
+                "  return b.size * b.size",
+                "}",
+                "fun int twice(int n) {",
+                "  return area(make(n)) * 2",
+                "}");
+    String s = buildString
+      ("import shapes",
+       "fun int twice(int n) {",
+       "  return n + n",
+       "}",
+       "fun void main() {",
+       "  var shapes@Box b = shapes@make(3)",
+       "  print(shapes@area(b))",
+       "  print(\" \")",
+       "  print(shapes@twice(3))",
+       "  print(\" \")",
+       "  print(twice(3))",
+       "}");
+    linkAndRun(s);
+    assertEquals("9 18 6", output.toString());
+  }
+
+  @Test
+  public void modulesImportedThroughModules() throws Exception {
+    writeModule("base",
+                "fun string name() {",
+                "  return \"base\"",
+                "}");
+    writeModule("middle",
+                "import base",
+                "fun string name() {",
+                "  return \"middle of \" + base@name()",
+                "}");
+    String s = buildString
+      ("import middle",
+       "import base",
+       "fun void main() {",
+       "  print(middle@name() + \", \" + base@name())",
+       "}");
+    Program program = new ModuleLinker(dir).link(buildParser(s).parse());
+    // each module linked once, before the modules importing it
+    assertEquals(3, program.fdecls.size());
+    assertEquals("base@name", program.fdecls.get(0).funName.lexeme());
+    assertEquals("middle@name", program.fdecls.get(1).funName.lexeme());
+    linkAndRun(s);
+    assertEquals("middle of base, base", output.toString());
+  }
+
+  @Test
+  public void moduleSourcesFoundWithoutParsing() throws Exception {
+    writeModule("base", "fun void f() {}");
+    writeModule("middle", "import base", "fun void g() {}");
+    byte[] main = buildString("import middle", "fun void main() {}").getBytes("UTF-8");
+    List<byte[]> sources = new ModuleLinker(dir).moduleSources(main);
+    assertEquals(2, sources.size());
+    assertEquals(buildString("import base", "fun void g() {}"), new String(sources.get(0), "UTF-8"));
+    assertEquals(buildString("fun void f() {}"), new String(sources.get(1), "UTF-8"));
+  }
+
+  @Test
+  public void missingModule() throws Exception {
+    String s = buildString
+      ("import nowhere",
+       "fun void main() {}");
+    try {
+      new ModuleLinker(dir).link(buildParser(s).parse());
+      fail("error not detected");
+    } catch(MyPLException ex) {
+      assertTrue(ex.getMessage().startsWith("STATIC_ERROR: module 'nowhere' not found"));
+    }
+  }
+
+  @Test
+  public void manyModulesLinkedInImportOrder() throws Exception {
+    // a diamond of modules: each top module imports both bottom ones
+    writeModule("bottom0", "fun int value() {", "  return 1", "}");
+    writeModule("bottom1", "fun int value() {", "  return 2", "}");
+    String main = "";
+    String sum = "0";
+    for (int i = 0; i < 8; ++i) {
+      writeModule("top" + i,
+                  "import bottom" + (i % 2),
+                  "import bottom" + ((i + 1) % 2),
+                  "fun int value() {",
+                  "  return bottom0@value() + bottom1@value() * " + i,
+                  "}");
+      main += "import top" + i + "\n";
+      sum = "top" + i + "@value() + " + sum;
+    }
+    String s = main + buildString("fun void main() {", "  print(" + sum + ")", "}");
+    Program program = new ModuleLinker(dir, new ForkJoinPool(4))
+      .link(buildParser(s).parse());
+    List<String> names = new ArrayList<>();
+    for (FunDecl fdecl : program.fdecls)
+      names.add(fdecl.funName.lexeme());
+    assertEquals("[bottom0@value, bottom1@value, top0@value, top1@value, top2@value, " +
+                 "top3@value, top4@value, top5@value, top6@value, top7@value, main]",
+                 names.toString());
+    linkAndRun(s);
+    assertEquals("64", output.toString());
+  }
+
+  @Test
+  public void importCycle() throws Exception {
+    writeModule("a", "import b", "fun void f() {}");
+    writeModule("b", "import c", "fun void f() {}");
+    writeModule("c", "import a", "fun void f() {}");
+    String s = buildString
+      ("import a",
+       "fun void main() {}");
+    try {
+      new ModuleLinker(dir).link(buildParser(s).parse());
+      fail("error not detected");
+    } catch(MyPLException ex) {
+      assertTrue(ex.getMessage().startsWith("STATIC_ERROR: import cycle a -> b -> c -> a"));
+    }
+  }
+
+  @Test
+  public void firstFailingImportReported() throws Exception {
+    writeModule("good", "import missing1", "fun void f() {}");
+    writeModule("bad", "fun void f( {}");
+    String s = buildString
+      ("import good",
+       "import bad",
+       "fun void main() {}");
+    try {
+      new ModuleLinker(dir).link(buildParser(s).parse());
+      fail("error not detected");
+    } catch(MyPLException ex) {
+      assertTrue(ex.getMessage().startsWith("STATIC_ERROR: module 'missing1' not found"));
+    }
+  }
+
+  //------------------------------------------------------------
+  // SEPARATE COMPILATION
+  //------------------------------------------------------------
+
+  // compile the program with its modules compiled separately
+  private VM compileSeparately(ModuleCompiler compiler, String s) throws Exception {
+    byte[] source = s.getBytes("UTF-8");
+    return compiler.compile(buildParser(s).parse(), source);
+  }
+
+  @Test
+  public void separatelyCompiledModulesRunTheSame() throws Exception {
+    writeModule("shapes",
+                "type Box {",
+                "  var int size = 2 * 2",
+                "}",
+                "fun int area(Box b) {",
+                "  return b.size * b.size",
+                "}");
+    writeModule("util",
+                "import shapes",
+                "fun shapes@Box big() {",
+                "  var b = new shapes@Box",
+                "  b.size = 10",
+                "  return b",
+                "}",
+                "fun int twice(int n) {",
+                "  return n + n",
+                "}");
+    String s = buildString
+      ("import util",
+       "import shapes",
+       "fun void main() {",
+       "  var b = new shapes@Box",
+       "  print(b.size)",
+       "  print(\" \")",
+       "  print(util@twice(shapes@area(util@big())))",
+       "}");
+    CompileCache cache = new CompileCache(dir.resolve("cache"), CompileCache.DEFAULT_MAX_SIZE);
+    for (int level = 0; level <= MyPL.MAX_OPT_LEVEL; ++level) {
+      ModuleCompiler compiler = new ModuleCompiler(new ModuleLinker(dir), cache,
+                                                   PassManager.levelPasses(level));
+      compileSeparately(compiler, s).run();
+      assertEquals("4 200", output.toString());
+      output.reset();
+    }
+  }
+
+  @Test
+  public void onlyChangedModulesRecompiled() throws Exception {
+    writeModule("base", "fun int value() {", "  return 1", "}");
+    writeModule("middle", "import base", "fun int value() {", "  return base@value() + 10", "}");
+    writeModule("other", "fun int value() {", "  return 100", "}");
+    String s = buildString
+      ("import middle",
+       "import other",
+       "fun void main() {",
+       "  print(middle@value() + other@value())",
+       "}");
+    CompileCache cache = new CompileCache(dir.resolve("cache"), CompileCache.DEFAULT_MAX_SIZE);
+    ModuleCompiler compiler = new ModuleCompiler(new ModuleLinker(dir), cache,
+                                                 PassManager.levelPasses(2));
+    compileSeparately(compiler, s).run();
+    assertEquals(3, compiler.compiledCount());
+    // a changed body recompiles only its module
+    writeModule("base", "fun int value() {", "  return 2", "}");
+    compiler = new ModuleCompiler(new ModuleLinker(dir), cache, PassManager.levelPasses(2));
+    compileSeparately(compiler, s).run();
+    assertEquals(1, compiler.compiledCount());
+    assertEquals(2, compiler.cachedCount());
+    // a changed interface also recompiles the modules importing it
+    writeModule("base", "fun int value(int n) {", "  return n", "}");
+    writeModule("middle", "import base", "fun int value() {", "  return base@value(3) + 10", "}");
+    compiler = new ModuleCompiler(new ModuleLinker(dir), cache, PassManager.levelPasses(2));
+    compileSeparately(compiler, s).run();
+    assertEquals(2, compiler.compiledCount());
+    assertEquals(1, compiler.cachedCount());
+    assertEquals("111112113", output.toString());
+  }
+
+  @Test
+  public void moduleSummary() throws Exception {
+    writeModule("shapes",
+                "type Box {",
+                "  var int size = area(nil)",
+                "}",
+                "fun int area(Box b) {",
+                "  return b.size * b.size",
+                "}");
+    Module module = new ModuleLinker(dir).load(new Token(TokenType.ID, "shapes", 1, 1));
+    assertEquals(buildString("type shapes@Box {",
+                             "  var int size = shapes@area(nil)",
+                             "}",
+                             "fun int shapes@area(shapes@Box b) {",
+                             "}"),
+                 ModuleCompiler.summary(module.program));
+  }
+
+  @Test
+  public void lazyLinkParsesOnlyUsedFunctions() throws Exception {
+    writeModule("util",
+                "fun int twice(int x) {",
+                "  return helper(x) + helper(x)",
+                "}",
+                "fun int helper(int x) {",
+                "  return x",
+                "}",
+                "fun void broken() {",
+                "  x = = 1",
+                "}");
+    String s = buildString
+      ("import util",
+       "fun void main() {",
+       "  print(util@twice(21))",
+       "}");
+    ModuleLinker linker = new ModuleLinker(dir);
+    linker.setLazy(true);
+    Program program = linker.link(buildParser(s).parse());
+    // the broken function is dropped unparsed
+    assertEquals(3, program.fdecls.size());
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    MyPL.compile(program, typeInfo, MyPL.DEFAULT_OPT_LEVEL).run();
+    assertEquals("42", output.toString());
+    // and found by an eager link
+    try {
+      linkAndRun(s);
+      fail("error not detected");
+    } catch(MyPLException ex) {
+      assertTrue(ex.getMessage().startsWith("PARSE_ERROR:"));
+    }
+  }
+
+  @Test
+  public void lazyLinkKeepsLiteralIdentity() throws Exception {
+    // string values are compared by reference, so equal literals must
+    // stay separate strings when parsed from a token buffer
+    writeModule("seq",
+                "fun bool same() {",
+                "  var a = \"ab\"",
+                "  var b = \"ab\"",
+                "  return a == b",
+                "}");
+    String s = buildString
+      ("import seq",
+       "fun void main() {",
+       "  print(seq@same())",
+       "}");
+    linkAndRun(s);
+    String eager = output.toString();
+    output.reset();
+    ModuleLinker linker = new ModuleLinker(dir);
+    linker.setLazy(true);
+    Program program = linker.link(buildParser(s).parse());
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    MyPL.compile(program, typeInfo, MyPL.DEFAULT_OPT_LEVEL).run();
+    assertEquals(eager, output.toString());
+  }
 
-}
\ No newline at end of file
+}
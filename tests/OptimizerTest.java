@@ -0,0 +1,1232 @@
+/*
+ * File: OptimizerTest.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Unit tests for the MyPL optimization passes. Each test checks
+ *       both the generated code and that the optimized program still
+ *       produces the same output when run by the VM.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+
+public class OptimizerTest {
+
+  private PrintStream stdout = System.out;
+  private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+  @Before
+  public void changeSystemOut() {
+    // redirect System.out to output
+    System.setOut(new PrintStream(output));
+  }
+
+  @After
+  public void restoreSystemOut() {
+    // reset System.out to standard out
+    System.setOut(stdout);
+  }
+
+  //------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //------------------------------------------------------------
+
+  private static Program buildProgram(String s, TypeInfo typeInfo) throws Exception {
+    InputStream in = new ByteArrayInputStream(s.getBytes("UTF-8"));
+    ASTParser parser = new ASTParser(new Lexer(in));
+    Program program = parser.parse();
+    program.accept(new StaticChecker(typeInfo));
+    return program;
+  }
+
+  private static VM buildPassVM(String s, String... passes) throws Exception {
+    return buildPassVM(s, null, passes);
+  }
+
+  // run the given AST pass (if any) before the named passes
+  private static VM buildPassVM(String s, Visitor astPass, String... passes) throws Exception {
+    TypeInfo typeInfo = new TypeInfo();
+    Program program = buildProgram(s, typeInfo);
+    if (astPass != null)
+      program.accept(astPass);
+    return new PassManager(Arrays.asList(passes)).run(program, typeInfo);
+  }
+
+  private static int countOps(VM vm, OpCode opcode) {
+    int count = 0;
+    for (VMFrame frame : vm.frames())
+      for (VMInstr instr : frame.instructions)
+        if (instr.opcode() == opcode)
+          ++count;
+    return count;
+  }
+
+  private static int countCalls(VM vm, String funName) {
+    int count = 0;
+    for (VMFrame frame : vm.frames())
+      for (VMInstr instr : frame.instructions)
+        if (instr.opcode() == OpCode.CALL && instr.operand().equals(funName))
+          ++count;
+    return count;
+  }
+
+  private static String buildString(String... args) {
+    String str = "";
+    for (String s : args)
+      str += s + "\n";
+    return str;
+  }
+
+
+  //------------------------------------------------------------
+  // Constant folding and propagation
+  //------------------------------------------------------------
+
+  @Test
+  public void foldIntArithmetic() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var secs = 60 * (60 * 24)",
+       "  var x = (10 / 3) + (10 % 3)",
+       "  print(secs)",
+       "  print(' ')",
+       "  print(x)",
+       "}");
+    VM vm = buildPassVM(s, "fold");
+    assertTrue(vm.toString().contains("PUSH 86400"));
+    assertFalse(vm.toString().contains("MUL"));
+    assertFalse(vm.toString().contains("DIV"));
+    vm.run();
+    assertEquals("86400 4", output.toString());
+  }
+
+  @Test
+  public void foldDoubleAndNegation() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var x = 2.5 * 2.0",
+       "  var y = neg (3 * 4)",
+       "  print(x)",
+       "  print(' ')",
+       "  print(y)",
+       "}");
+    VM vm = buildPassVM(s, "fold");
+    assertFalse(vm.toString().contains("NEG"));
+    vm.run();
+    assertEquals("5.0 -12", output.toString());
+  }
+
+  @Test
+  public void noFoldOfStringConcatenation() throws Exception {
+    // each run of a concatenation builds a new string (== compares
+    // references), so folding it to one literal would change the output
+    String s = buildString
+      ("fun string ab() {",
+       "  return \"a\" + \"b\"",
+       "}",
+       "fun void main() {",
+       "  var prev = \"\"",
+       "  for i from 0 upto 2 {",
+       "    var s = \"a\" + \"b\" + 'c'",
+       "    print(s == prev)",
+       "    prev = s",
+       "  }",
+       "  print(ab() == ab())",
+       "}");
+    VM vm = buildPassVM(s, "fold");
+    assertTrue(vm.toString().contains("ADD"));
+    vm.run();
+    String folded = output.toString();
+    output.reset();
+    buildPassVM(s).run();
+    assertEquals(output.toString(), folded);
+    assertEquals("falsefalsefalsefalse", folded);
+  }
+
+  @Test
+  public void foldComparisonsAndBoolOps() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  print(3 < 4)",
+       "  print(not (2.0 >= 3.5))",
+       "  print(true and (1 == 2))",
+       "  print(false or (1 != 2))",
+       "}");
+    VM vm = buildPassVM(s, "fold");
+    assertFalse(vm.toString().contains("CMP"));
+    assertFalse(vm.toString().contains("NOT"));
+    vm.run();
+    assertEquals("truetruefalsetrue", output.toString());
+  }
+
+  @Test
+  public void subtractionKeepsVMSemantics() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  print(5 - 3)",
+       "  print(' ')",
+       "  print(3 - 5)",
+       "}");
+    VM vm = buildPassVM(s, "fold");
+    // only the subtraction that does not depend on SUB's operand
+    // order is folded
+    assertTrue(vm.toString().contains("PUSH 2"));
+    assertTrue(vm.toString().contains("SUB"));
+    vm.run();
+    assertEquals("2 2", output.toString());
+  }
+
+  @Test
+  public void propagateSingleDefinitionConstants() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var k = 10",
+       "  var j = 1",
+       "  j = 2",
+       "  print(k * 3)",
+       "  print(' ')",
+       "  print(j * 3)",
+       "}");
+    VM vm = buildPassVM(s, "fold");
+    assertTrue(vm.toString().contains("PUSH 30"));
+    // j has two definitions, so its product is computed at run time
+    assertTrue(vm.toString().contains("MUL"));
+    vm.run();
+    assertEquals("30 6", output.toString());
+  }
+
+  @Test
+  public void noPropagationOfParamsOrLoopVars() throws Exception {
+    String s = buildString
+      ("fun int f(int x) {",
+       "  return x + 1",
+       "}",
+       "fun void main() {",
+       "  var total = 0",
+       "  for i from 1 upto 3 {",
+       "    total = total + i",
+       "  }",
+       "  print(total)",
+       "  print(f(4))",
+       "}");
+    VM vm = buildPassVM(s, "fold");
+    vm.run();
+    assertEquals("65", output.toString());
+  }
+
+  @Test
+  public void pruneStaticallyKnownBranches() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var debug = false",
+       "  if debug {",
+       "    print('a')",
+       "  }",
+       "  elif 2 > 1 {",
+       "    print('b')",
+       "  }",
+       "  else {",
+       "    print('c')",
+       "  }",
+       "  while debug {",
+       "    print('d')",
+       "  }",
+       "}");
+    VM vm = buildPassVM(s, "fold");
+    assertFalse(vm.toString().contains("JMP"));
+    vm.run();
+    assertEquals("b", output.toString());
+  }
+
+  @Test
+  public void pruneKeepsUnknownBranches() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var x = stoi(\"3\")",
+       "  if 1 > 2 {",
+       "    print('a')",
+       "  }",
+       "  elif x > 2 {",
+       "    print('b')",
+       "  }",
+       "  elif true {",
+       "    print('c')",
+       "  }",
+       "  else {",
+       "    print('d')",
+       "  }",
+       "}");
+    VM vm = buildPassVM(s, "fold");
+    vm.run();
+    assertEquals("b", output.toString());
+  }
+
+
+  //------------------------------------------------------------
+  // Function inlining
+  //------------------------------------------------------------
+
+  @Test
+  public void inlineSmallFunctions() throws Exception {
+    String s = buildString
+      ("fun int add(int a, int b) {",
+       "  return a + b",
+       "}",
+       "fun int twice(int x) {",
+       "  return add(x, x)",
+       "}",
+       "fun void main() {",
+       "  var y = 5",
+       "  print(twice(add(y, 1)))",
+       "  print(' ')",
+       "  print(y)",
+       "}");
+    Inliner inliner = new Inliner();
+    VM vm = buildPassVM(s);
+    inliner.optimize(vm);
+    assertEquals(0, countCalls(vm, "add"));
+    assertEquals(0, countCalls(vm, "twice"));
+    assertEquals(3, inliner.inlineCount());
+    vm.run();
+    assertEquals("12 5", output.toString());
+  }
+
+  @Test
+  public void inlineMultipleReturnsInLoop() throws Exception {
+    String s = buildString
+      ("fun int clamp(int x, int hi) {",
+       "  if x > hi {",
+       "    return hi",
+       "  }",
+       "  return x",
+       "}",
+       "fun void main() {",
+       "  var total = 0",
+       "  for i from 1 upto 5 {",
+       "    total = total + clamp(i, 3)",
+       "  }",
+       "  print(total)",
+       "}");
+    VM vm = buildPassVM(s, "inline");
+    assertEquals(0, countCalls(vm, "clamp"));
+    vm.run();
+    assertEquals("12", output.toString());
+  }
+
+  @Test
+  public void recursiveFunctionsNotInlined() throws Exception {
+    String s = buildString
+      ("fun int fac(int n) {",
+       "  if n <= 1 {",
+       "    return 1",
+       "  }",
+       "  return n * fac(n - 1)",
+       "}",
+       "fun bool isEven(int n) {",
+       "  if n == 0 {",
+       "    return true",
+       "  }",
+       "  return isOdd(n - 1)",
+       "}",
+       "fun bool isOdd(int n) {",
+       "  if n == 0 {",
+       "    return false",
+       "  }",
+       "  return isEven(n - 1)",
+       "}",
+       "fun void main() {",
+       "  print(fac(5))",
+       "  print(isEven(4))",
+       "}");
+    VM vm = buildPassVM(s, "inline");
+    assertEquals(2, countCalls(vm, "fac"));
+    assertEquals(2, countCalls(vm, "isEven"));
+    assertEquals(1, countCalls(vm, "isOdd"));
+    vm.run();
+    assertEquals("120true", output.toString());
+  }
+
+  @Test
+  public void inlineRespectsSizeLimit() throws Exception {
+    String s = buildString
+      ("fun int inc(int x) {",
+       "  return x + 1",
+       "}",
+       "fun int poly(int x) {",
+       "  var y = (x * x) + (3 * x)",
+       "  return (y * y) + 1",
+       "}",
+       "fun void main() {",
+       "  print(inc(1))",
+       "  print(poly(1))",
+       "}");
+    VM vm = buildPassVM(s);
+    new Inliner(6, 100).optimize(vm);
+    assertEquals(0, countCalls(vm, "inc"));
+    assertEquals(1, countCalls(vm, "poly"));
+    vm.run();
+    assertEquals("217", output.toString());
+  }
+
+
+  //------------------------------------------------------------
+  // Escape analysis and scalar replacement
+  //------------------------------------------------------------
+
+  @Test
+  public void scalarReplaceLocalRecords() throws Exception {
+    String s = buildString
+      ("type Point {",
+       "  var int x = 1",
+       "  var int y = 2",
+       "}",
+       "fun void main() {",
+       "  var total = 0",
+       "  for i from 1 upto 3 {",
+       "    var p = new Point",
+       "    p.x = p.x + i",
+       "    total = total + (p.x * p.y)",
+       "  }",
+       "  print(total)",
+       "}");
+    VM vm = buildPassVM(s, "sroa");
+    assertEquals(0, countOps(vm, OpCode.ALLOC));
+    assertEquals(0, countOps(vm, OpCode.GETFLD));
+    assertEquals(0, countOps(vm, OpCode.SETFLD));
+    vm.run();
+    assertEquals("18", output.toString());
+    assertEquals(0, vm.allocCount());
+  }
+
+  @Test
+  public void escapingRecordsAreAllocated() throws Exception {
+    String s = buildString
+      ("type Node {",
+       "  var int val = 0",
+       "  var Node next = nil",
+       "}",
+       "fun Node make() {",
+       "  var n = new Node",
+       "  return n",
+       "}",
+       "fun void main() {",
+       "  var a = new Node",
+       "  a.val = 1",
+       "  print(a != nil)",
+       "  var b = new Node",
+       "  var c = new Node",
+       "  c.next = b",
+       "  var d = new Node",
+       "  var e = d",
+       "  var f = new Node",
+       "  delete f",
+       "  var m = make()",
+       "  print(m.val)",
+       "}");
+    VM vm = buildPassVM(s, "sroa");
+    // a is compared, n returned, b stored in a field, d copied, and
+    // f deleted, so only c is replaced
+    assertEquals(5, countOps(vm, OpCode.ALLOC));
+    vm.run();
+    assertEquals("true0", output.toString());
+    assertEquals(5, vm.allocCount());
+  }
+
+  @Test
+  public void scalarReplaceKeepsNestedRecords() throws Exception {
+    String s = buildString
+      ("type Point {",
+       "  var int x = 0",
+       "}",
+       "type Line {",
+       "  var Point start = nil",
+       "  var int len = 5",
+       "}",
+       "fun void main() {",
+       "  var l = new Line",
+       "  l.start = new Point",
+       "  l.start.x = 3",
+       "  print(l.start.x + l.len)",
+       "}");
+    VM vm = buildPassVM(s, "sroa");
+    // only the Point escapes into (the replaced) line's field
+    assertEquals(1, countOps(vm, OpCode.ALLOC));
+    vm.run();
+    assertEquals("8", output.toString());
+    assertEquals(1, vm.allocCount());
+  }
+
+
+  //------------------------------------------------------------
+  // Loop-invariant code motion
+  //------------------------------------------------------------
+
+  @Test
+  public void hoistInvariantLengthAndArithmetic() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var s = \"abcdef\"",
+       "  var k = 3",
+       "  var total = 0",
+       "  var i = 0",
+       "  while i < length(s) {",
+       "    total = total + (k * k) + i",
+       "    i = i + 1",
+       "  }",
+       "  print(total)",
+       "}");
+    VM before = buildPassVM(s);
+    before.run();
+    VM after = buildPassVM(s, "licm");
+    after.run();
+    assertEquals("6969", output.toString());
+    // one LEN and one MUL per loop (instead of per iteration)
+    assertEquals(1, countOps(after, OpCode.LEN));
+    assertEquals(1, countOps(after, OpCode.MUL));
+    assertTrue(after.dispatchCount() < before.dispatchCount());
+  }
+
+  @Test
+  public void hoistFieldLoadsOnlyWithoutFieldWrites() throws Exception {
+    String s = buildString
+      ("type Config {",
+       "  var int limit = 4",
+       "}",
+       "fun void main() {",
+       "  var c = new Config",
+       "  var d = new Config",
+       "  var e = d",
+       "  var total = 0",
+       "  for i from 1 upto c.limit {",
+       "    total = total + c.limit",
+       "  }",
+       "  for i from 1 upto 3 {",
+       "    total = total + c.limit",
+       "    d.limit = 5",
+       "  }",
+       "  print(total)",
+       "}");
+    LoopInvariantMotion licm = new LoopInvariantMotion();
+    TypeInfo typeInfo = new TypeInfo();
+    Program program = buildProgram(s, typeInfo);
+    program.accept(licm);
+    VM vm = new VM();
+    program.accept(new CodeGenerator(typeInfo, vm));
+    vm.run();
+    assertEquals("28", output.toString());
+    // only the first loop's bound and body loads are hoisted
+    assertEquals(2, licm.hoistCount());
+  }
+
+  @Test
+  public void noHoistFromZeroTripLoopsOrBranches() throws Exception {
+    String s = buildString
+      ("type Node {",
+       "  var int val = 0",
+       "}",
+       "fun void main() {",
+       "  var Node p = nil",
+       "  var x = 0",
+       "  while x < 0 {",
+       "    x = p.val",
+       "  }",
+       "  for i from 3 upto 1 {",
+       "    x = p.val",
+       "  }",
+       "  for i from 1 upto 2 {",
+       "    if p != nil {",
+       "      x = p.val + 1",
+       "    }",
+       "    x = x + 1",
+       "  }",
+       "  print(x)",
+       "}");
+    VM vm = buildPassVM(s, "licm");
+    vm.run();
+    assertEquals("2", output.toString());
+  }
+
+  @Test
+  public void noHoistOfModifiedOrImpureExpressions() throws Exception {
+    String s = buildString
+      ("fun int next(int n) {",
+       "  return n + 1",
+       "}",
+       "fun void main() {",
+       "  var a = 2",
+       "  var b = 0",
+       "  var i = 0",
+       "  while i < 3 {",
+       "    b = b + (a * 2) + next(i)",
+       "    a = a + 1",
+       "    i = next(i)",
+       "  }",
+       "  print(b)",
+       "}");
+    VM before = buildPassVM(s);
+    before.run();
+    VM after = buildPassVM(s, "licm");
+    after.run();
+    assertEquals("2424", output.toString());
+    assertEquals(before.dispatchCount(), after.dispatchCount());
+  }
+
+
+  //------------------------------------------------------------
+  // Redundant field-load elimination
+  //------------------------------------------------------------
+
+  @Test
+  public void reuseRepeatedPathLoads() throws Exception {
+    String s = buildString
+      ("type Node {",
+       "  var int val = 0",
+       "  var Node next = nil",
+       "}",
+       "fun void main() {",
+       "  var a = new Node",
+       "  a.next = new Node",
+       "  a.next.next = new Node",
+       "  a.next.next.val = 3",
+       "  a.next.val = 2",
+       "  var x = (a.next.next.val * a.next.next.val) + a.next.next.val + a.next.val",
+       "  print(x)",
+       "}");
+    FieldLoadElimination fle = new FieldLoadElimination();
+    VM vm = buildPassVM(s);
+    fle.optimize(vm);
+    // a.next.next.val is loaded once (a.next.val alone does not save
+    // enough GETFLDs to keep a.next)
+    assertEquals(6, fle.eliminatedCount());
+    vm.run();
+    assertEquals("14", output.toString());
+  }
+
+  @Test
+  public void fieldWritesCallsAndStoresInvalidateLoads() throws Exception {
+    String s = buildString
+      ("type Node {",
+       "  var int val = 0",
+       "  var Node next = nil",
+       "}",
+       "fun void bump(Node n) {",
+       "  n.val = n.val + 1",
+       "}",
+       "fun void main() {",
+       "  var a = new Node",
+       "  a.next = new Node",
+       "  var x = a.next.val + a.next.val",
+       "  a.next.val = 5",
+       "  x = x + a.next.val + a.next.val",
+       "  bump(a.next)",
+       "  x = x + a.next.val + a.next.val",
+       "  a = new Node",
+       "  a.next = new Node",
+       "  print(x + a.next.val + a.next.val)",
+       "}");
+    FieldLoadElimination fle = new FieldLoadElimination();
+    VM vm = buildPassVM(s);
+    fle.optimize(vm);
+    vm.run();
+    assertEquals("22", output.toString());
+    // nothing is reused across the SETFLD, CALL, or STORE a
+    assertEquals(8, fle.eliminatedCount());
+  }
+
+  @Test
+  public void noReuseAcrossBasicBlocks() throws Exception {
+    String s = buildString
+      ("type Node {",
+       "  var int val = 0",
+       "  var Node next = nil",
+       "}",
+       "fun void main() {",
+       "  var a = new Node",
+       "  a.next = new Node",
+       "  var x = a.next.val",
+       "  while x < 3 {",
+       "    x = x + a.next.val + 1",
+       "    a.val = a.val + 1",
+       "  }",
+       "  print(x)",
+       "}");
+    FieldLoadElimination fle = new FieldLoadElimination();
+    VM vm = buildPassVM(s);
+    fle.optimize(vm);
+    vm.run();
+    assertEquals("3", output.toString());
+    assertEquals(0, fle.eliminatedCount());
+  }
+
+
+  //------------------------------------------------------------
+  // Loop unrolling and strength reduction
+  //------------------------------------------------------------
+
+  @Test
+  public void unrollWithRemainder() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var n = 10",
+       "  var sum = 0",
+       "  for i from 1 upto n {",
+       "    sum = sum + i",
+       "  }",
+       "  print(sum)",
+       "  for i from 3 upto 1 {",
+       "    print(i)",
+       "  }",
+       "  for i from 5 upto 7 {",
+       "    print(i)",
+       "  }",
+       "}");
+    LoopUnroller unroller = new LoopUnroller(4);
+    VM vm = buildPassVM(s, unroller);
+    vm.run();
+    assertEquals("55567", output.toString());
+    assertEquals(3, unroller.unrollCount());
+    VM plain = buildPassVM(s, new LoopUnroller(1));
+    plain.run();
+    assertTrue(vm.dispatchCount() < plain.dispatchCount());
+  }
+
+  @Test
+  public void strengthReduceRepeatedProducts() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var sum = 0",
+       "  for i from 2 upto 9 {",
+       "    var a = (i * 4) + 1",
+       "    sum = sum + a + (4 * i) + (i * 4) + (i * 3)",
+       "  }",
+       "  print(sum)",
+       "}");
+    LoopUnroller unroller = new LoopUnroller();
+    VM vm = buildPassVM(s, unroller);
+    vm.run();
+    assertEquals("668", output.toString());
+    // i * 3 is used once, so only the three i * 4 products are reduced
+    assertEquals(3, unroller.reducedCount());
+  }
+
+  @Test
+  public void noUnrollOfIneligibleLoops() throws Exception {
+    String s = buildString
+      ("fun int f(int n) {",
+       "  for i from 1 upto n {",
+       "    if i == 3 {",
+       "      return i",
+       "    }",
+       "  }",
+       "  return 0",
+       "}",
+       "fun void main() {",
+       "  var n = 4",
+       "  for i from 1 upto n {",
+       "    n = 2",
+       "    print(i)",
+       "  }",
+       "  for i from 1 upto n + 1 {",
+       "    print(i)",
+       "  }",
+       "  for i from 1 upto 2 {",
+       "    for j from 1 upto 2 {",
+       "      print(j)",
+       "    }",
+       "  }",
+       "  print(f(5))",
+       "}");
+    LoopUnroller unroller = new LoopUnroller();
+    VM vm = buildPassVM(s, unroller);
+    vm.run();
+    assertEquals("1212312123", output.toString());
+    // only the innermost j loop
+    assertEquals(1, unroller.unrollCount());
+  }
+
+
+
+  //------------------------------------------------------------
+  // Pass manager
+  //------------------------------------------------------------
+
+  @Test
+  public void levelPassLists() throws Exception {
+    assertTrue(PassManager.levelPasses(0).isEmpty());
+    assertEquals(Arrays.asList("shake", "fold", "switch", "jumps"), PassManager.levelPasses(1));
+    assertTrue(PassManager.levelPasses(2).contains("inline"));
+    assertFalse(PassManager.levelPasses(2).contains("unroll"));
+    // loops are unrolled after invariants are hoisted out of them
+    List<String> o3 = PassManager.levelPasses(3);
+    assertTrue(o3.indexOf("licm") < o3.indexOf("unroll"));
+    for (String name : o3)
+      assertTrue(PassManager.isPass(name));
+  }
+
+  @Test
+  public void selectedPassesOnly() throws Exception {
+    String s = buildString
+      ("fun int sq(int x) {",
+       "  return x * x",
+       "}",
+       "fun void main() {",
+       "  print(sq(2 * 3))",
+       "}");
+    TypeInfo typeInfo = new TypeInfo();
+    Program program = buildProgram(s, typeInfo);
+    VM vm = new PassManager(Arrays.asList("inline")).run(program, typeInfo);
+    assertEquals(0, countCalls(vm, "sq"));
+    // not folded
+    assertEquals(3, countOps(vm, OpCode.MUL));
+    vm.run();
+    assertEquals("36", output.toString());
+  }
+
+  @Test
+  public void unknownPassRejected() throws Exception {
+    try {
+      new PassManager(Arrays.asList("fold", "vectorize"));
+      fail("error not detected");
+    } catch(IllegalArgumentException ex) {
+      assertTrue(ex.getMessage().contains("vectorize"));
+    }
+  }
+
+  @Test
+  public void passStatsReport() throws Exception {
+    String s = buildString
+      ("fun int sq(int x) {",
+       "  return x * x",
+       "}",
+       "fun void main() {",
+       "  var x = 2 * (3 + 4)",
+       "  print(sq(x))",
+       "}");
+    TypeInfo typeInfo = new TypeInfo();
+    Program program = buildProgram(s, typeInfo);
+    PassManager manager = new PassManager(2);
+    manager.setStats(true);
+    VM vm = manager.run(program, typeInfo);
+    String report = manager.report();
+    for (String name : manager.passes())
+      if (!PassManager.CODEGEN_PASSES.contains(name))
+        assertTrue(report.contains(name));
+    assertTrue(report.contains("codegen"));
+    // folding replaces three PUSHes, ADD, and MUL with one PUSH
+    assertTrue(report.contains("fold") && report.contains("-4"));
+    vm.run();
+    assertEquals("196", output.toString());
+  }
+
+  @Test
+  public void lazyCodegenOnFirstCall() throws Exception {
+    String s = buildString
+      ("fun int sq(int x) {",
+       "  return x * x",
+       "}",
+       "fun void fail(string msg) {",
+       "  print(msg)",
+       "}",
+       "fun void main() {",
+       "  var x = sq(3)",
+       "  if x < 0 {",
+       "    fail(\"negative\")",
+       "  }",
+       "  print(x)",
+       "}");
+    TypeInfo typeInfo = new TypeInfo();
+    Program program = buildProgram(s, typeInfo);
+    PassManager manager = new PassManager(1);
+    manager.setLazy(true);
+    assertTrue(manager.isLazy());
+    VM vm = manager.run(program, typeInfo);
+    // stubs until called
+    for (String name : Arrays.asList("main", "sq", "fail"))
+      assertTrue(vm.frame(name).instructions.isEmpty());
+    vm.run();
+    assertEquals("9", output.toString());
+    assertFalse(vm.frame("sq").instructions.isEmpty());
+    assertTrue(vm.frame("fail").instructions.isEmpty());
+    // the same code as generated up front
+    program = buildProgram(s, typeInfo = new TypeInfo());
+    VM eager = new PassManager(1).run(program, typeInfo);
+    assertEquals(eager.toString(), vm.toString());
+    // inlining needs all the code
+    manager = new PassManager(2);
+    manager.setLazy(true);
+    assertFalse(manager.isLazy());
+  }
+
+  @Test
+  public void lazyFrameGeneratedOnce() throws Exception {
+    String s = buildString
+      ("fun int sq(int x) {",
+       "  return x * x",
+       "}",
+       "fun void main() {",
+       "  print(sq(3))",
+       "}");
+    TypeInfo typeInfo = new TypeInfo();
+    Program program = buildProgram(s, typeInfo);
+    PassManager manager = new PassManager(0);
+    manager.setLazy(true);
+    VMFrame frame = manager.run(program, typeInfo).frame("sq");
+    List<List<VMInstr>> seen = new Vector<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; ++i)
+      threads.add(new Thread(() -> {
+        frame.decode();
+        seen.add(frame.instructions);
+      }));
+    for (Thread thread : threads)
+      thread.start();
+    for (Thread thread : threads)
+      thread.join();
+    assertEquals(8, seen.size());
+    for (List<VMInstr> instructions : seen) {
+      assertTrue(instructions == seen.get(0));
+      assertFalse(instructions.isEmpty());
+    }
+  }
+
+
+
+  //------------------------------------------------------------
+  // Jump threading and NOP elimination
+  //------------------------------------------------------------
+
+  @Test
+  public void loopNopsRemoved() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var sum = 0",
+       "  for i from 1 upto 10 {",
+       "    var j = 0",
+       "    while j < i {",
+       "      if (j % 2) == 0 {",
+       "        sum = sum + j",
+       "      }",
+       "      j = j + 1",
+       "    }",
+       "  }",
+       "  print(sum)",
+       "}");
+    VM plain = buildPassVM(s);
+    plain.run();
+    VM vm = buildPassVM(s, "jumps");
+    assertTrue(countOps(plain, OpCode.NOP) > 0);
+    assertEquals(0, countOps(vm, OpCode.NOP));
+    vm.run();
+    // both runs print the sum
+    assertEquals("8080", output.toString());
+    assertTrue(vm.dispatchCount() < plain.dispatchCount());
+  }
+
+  @Test
+  public void jumpChainsThreaded() throws Exception {
+    String s = buildString
+      ("fun int f(int x) {",
+       "  var r = 0",
+       "  while x > 0 {",
+       "    if x > 5 {",
+       "      r = r + 2",
+       "    }",
+       "    elif x > 2 {",
+       "      r = r + 1",
+       "    }",
+       "    x = x - 1",
+       "  }",
+       "  return r",
+       "}",
+       "fun void main() {",
+       "  print(f(8))",
+       "}");
+    JumpThreading threading = new JumpThreading();
+    VM vm = buildPassVM(s);
+    threading.optimize(vm);
+    assertTrue(threading.threadedCount() > 0);
+    for (VMFrame frame : vm.frames()) {
+      List<VMInstr> code = frame.instructions;
+      for (int i = 0; i < code.size(); ++i) {
+        VMInstr instr = code.get(i);
+        if (instr.opcode() != OpCode.JMP && instr.opcode() != OpCode.JMPF)
+          continue;
+        int target = (int)instr.operand();
+        // no jumps to jumps, and no jumps to the next instruction
+        assertFalse(code.get(target).opcode() == OpCode.JMP);
+        assertFalse(target == i + 1);
+      }
+    }
+    vm.run();
+    assertEquals("9", output.toString());
+  }
+
+  @Test
+  public void codeAfterReturnRemoved() throws Exception {
+    String s = buildString
+      ("fun int sign(int x) {",
+       "  if x > 0 {",
+       "    return 1",
+       "  }",
+       "  else {",
+       "    return 0",
+       "  }",
+       "}",
+       "fun void main() {",
+       "  print(sign(5))",
+       "  print(sign(0))",
+       "}");
+    VM vm = buildPassVM(s, "jumps");
+    VMFrame sign = vm.frame("sign");
+    int vrets = 0;
+    for (VMInstr instr : sign.instructions)
+      if (instr.opcode() == OpCode.VRET)
+        ++vrets;
+    // the nil return after the if statement is unreachable
+    assertEquals(2, vrets);
+    assertEquals(OpCode.VRET, sign.instructions.get(sign.instructions.size() - 1).opcode());
+    vm.run();
+    assertEquals("10", output.toString());
+  }
+
+  @Test
+  public void switchTargetsThreaded() throws Exception {
+    String s = buildString
+      ("fun string name(int d) {",
+       "  var s = \"\"",
+       "  if d == 0 {",
+       "    s = \"zero\"",
+       "  }",
+       "  elif d == 1 {",
+       "    s = \"one\"",
+       "  }",
+       "  elif d == 2 {",
+       "    s = \"two\"",
+       "  }",
+       "  else {",
+       "    s = \"many\"",
+       "  }",
+       "  return s",
+       "}",
+       "fun void main() {",
+       "  for i from 0 upto 3 {",
+       "    print(name(i))",
+       "  }",
+       "}");
+    VM vm = buildPassVM(s, "switch", "jumps");
+    assertEquals(1, countOps(vm, OpCode.TABLESWITCH));
+    assertEquals(0, countOps(vm, OpCode.NOP));
+    vm.run();
+    assertEquals("zeroonetwomany", output.toString());
+  }
+
+
+  //------------------------------------------------------------
+  // Quickening
+  //------------------------------------------------------------
+
+  @Test
+  public void quickenedInstructionsStayQuick() throws Exception {
+    String s = buildString
+      ("fun int sum(int n, int step) {",
+       "  var total = 0",
+       "  var i = 0",
+       "  while i < n {",
+       "    total = total + step",
+       "    i = i + 1",
+       "  }",
+       "  return total",
+       "}",
+       "fun void main() {",
+       "  print(sum(10, 3))",
+       "  print(sum(5, 2))",
+       "}");
+    VM vm = buildPassVM(s);
+    String code = vm.toString();
+    vm.run();
+    assertEquals("3010", output.toString());
+    assertTrue(vm.quickenCount() > 0);
+    assertEquals(0, vm.dequickenCount());
+    // the frames are left as generated
+    assertEquals(code, vm.toString());
+    vm.setQuickening(false);
+    vm.run();
+    assertEquals(0, vm.quickenCount());
+    assertEquals("30103010", output.toString());
+  }
+
+  @Test
+  public void quickenedInstructionFallsBack() throws Exception {
+    String s = buildString
+      ("type Node {",
+       "  var int val = 0",
+       "}",
+       "fun bool isNil(Node n) {",
+       "  return n == nil",
+       "}",
+       "fun void main() {",
+       "  var Node n = nil",
+       "  for i from 1 upto 3 {",
+       "    if isNil(n) {",
+       "      print(\"nil \")",
+       "      n = new Node",
+       "    }",
+       "    else {",
+       "      print(\"node \")",
+       "    }",
+       "  }",
+       "}");
+    VM vm = buildPassVM(s);
+    vm.run();
+    assertEquals("nil node node ", output.toString());
+    // nil == nil is quickened as a string compare, which falls back
+    // (for good) once n is a node
+    assertEquals(1, vm.dequickenCount());
+  }
+
+
+  //------------------------------------------------------------
+  // Tracing
+  //------------------------------------------------------------
+
+  @Test
+  public void hotLoopRunsAsTrace() throws Exception {
+    String s = buildString
+      ("fun int twice(int x) {",
+       "  return x * 2",
+       "}",
+       "fun void main() {",
+       "  var total = 0",
+       "  for i from 1 upto 200 {",
+       "    total = total + twice(i)",
+       "  }",
+       "  print(total)",
+       "}");
+    VM vm = buildPassVM(s);
+    vm.run();
+    assertEquals(0, vm.traceCount());
+    vm.setTracing(true);
+    vm.run();
+    assertEquals("4020040200", output.toString());
+    // the trace follows the call, so once formed the loop runs in it
+    // until the loop test fails at the end
+    assertEquals(1, vm.traceCount());
+    assertEquals(1, vm.guardExitCount());
+    assertTrue(vm.tracedCount() > vm.dispatchCount() / 2);
+  }
+
+  @Test
+  public void failedGuardExitsTrace() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var evens = 0",
+       "  var odds = 0",
+       "  for i from 1 upto 200 {",
+       "    if (i % 2) == 0 {",
+       "      evens = evens + 1",
+       "    }",
+       "    else {",
+       "      odds = odds + 1",
+       "    }",
+       "  }",
+       "  print(itos(evens) + \" \" + itos(odds))",
+       "}");
+    VM vm = buildPassVM(s);
+    vm.setTracing(true);
+    vm.run();
+    assertEquals("100 100", output.toString());
+    assertTrue(vm.traceCount() >= 1);
+    assertTrue(vm.guardExitCount() > 0);
+  }
+
+
+  //------------------------------------------------------------
+  // Tree shaking
+  //------------------------------------------------------------
+
+  @Test
+  public void unusedFunctionsAndTypesRemoved() throws Exception {
+    String s = buildString
+      ("type Inner {",
+       "  var int n = start()",
+       "}",
+       "type Outer {",
+       "  var Inner inner = nil",
+       "}",
+       "type Unused {",
+       "  var int m = 0",
+       "}",
+       "fun int start() {",
+       "  return 5",
+       "}",
+       "fun int used(int x) {",
+       "  return x + 1",
+       "}",
+       "fun int even(int x) {",
+       "  if x == 0 {",
+       "    return 1",
+       "  }",
+       "  return odd(x - 1)",
+       "}",
+       "fun int odd(int x) {",
+       "  if x == 0 {",
+       "    return 0",
+       "  }",
+       "  return even(x - 1)",
+       "}",
+       "fun void main() {",
+       "  var o = new Outer",
+       "  o.inner = new Inner",
+       "  print(used(o.inner.n))",
+       "}");
+    TypeInfo typeInfo = new TypeInfo();
+    Program program = buildProgram(s, typeInfo);
+    TreeShaker shaker = new TreeShaker();
+    program.accept(shaker);
+    assertEquals(2, shaker.removedFunctions());
+    assertEquals(1, shaker.removedTypes());
+    assertEquals("removed 2 of 5 functions, 1 of 3 types", shaker.report());
+    VM vm = new VM();
+    program.accept(new CodeGenerator(typeInfo, vm));
+    assertEquals(3, vm.frames().size());
+    assertEquals(null, vm.frame("even"));
+    assertEquals(null, vm.frame("odd"));
+    vm.run();
+    assertEquals("6", output.toString());
+  }
+
+  @Test
+  public void shakeReportedInPassStats() throws Exception {
+    String s = buildString
+      ("fun int unused(int x) {",
+       "  return x * 2",
+       "}",
+       "fun void main() {",
+       "  print(1)",
+       "}");
+    TypeInfo typeInfo = new TypeInfo();
+    Program program = buildProgram(s, typeInfo);
+    PassManager manager = new PassManager(1);
+    manager.setStats(true);
+    VM vm = manager.run(program, typeInfo);
+    assertTrue(manager.report().contains("(removed 1 of 2 functions, 0 of 0 types)"));
+    assertEquals(null, vm.frame("unused"));
+  }
+
+}
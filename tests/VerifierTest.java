@@ -0,0 +1,215 @@
+/*
+ * File: VerifierTest.java
+ * Date: Spring 2022
+ * Auth: Ahmad Moltafet
+ * Desc: Unit tests for the bytecode verifier. Generated code should
+ *       verify (and run the same unchecked as checked), while
+ *       hand-built frames with stack or type errors should fail
+ *       verification and still be caught by the VM's run-time checks.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+
+public class VerifierTest {
+
+  private PrintStream stdout = System.out;
+  private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+  @Before
+  public void changeSystemOut() {
+    // redirect System.out to output
+    System.setOut(new PrintStream(output));
+  }
+
+  @After
+  public void restoreSystemOut() {
+    // reset System.out to standard out
+    System.setOut(stdout);
+  }
+
+  //------------------------------------------------------------
+  // HELPER FUNCTIONS
+  //------------------------------------------------------------
+
+  private static VM buildVM(String s, int optLevel) throws Exception {
+    InputStream in = new ByteArrayInputStream(s.getBytes("UTF-8"));
+    ASTParser parser = new ASTParser(new Lexer(in));
+    Program program = parser.parse();
+    TypeInfo typeInfo = new TypeInfo();
+    program.accept(new StaticChecker(typeInfo));
+    return MyPL.compile(program, typeInfo, optLevel);
+  }
+
+  // a VM with a main frame holding the given instructions
+  private static VM buildVM(VMInstr... instrs) {
+    VMFrame main = new VMFrame("main", 0);
+    for (VMInstr instr : instrs)
+      main.instructions.add(instr);
+    VM vm = new VM();
+    vm.add(main);
+    return vm;
+  }
+
+  private static String buildString(String... args) {
+    String str = "";
+    for (String s : args)
+      str += s + "\n";
+    return str;
+  }
+
+
+  //------------------------------------------------------------
+  // Generated code
+  //------------------------------------------------------------
+
+  @Test
+  public void generatedCodeVerifies() throws Exception {
+    String s = buildString
+      ("type Point {",
+       "  var int x = 0",
+       "  var double y = 0.0",
+       "}",
+       "fun int sum(int n) {",
+       "  var total = 0",
+       "  for i from 1 upto n {",
+       "    if (i % 2) == 0 {",
+       "      total = total + i",
+       "    }",
+       "  }",
+       "  return total",
+       "}",
+       "fun void main() {",
+       "  var p = new Point",
+       "  p.x = sum(10)",
+       "  p.y = 1.5 * 2.0",
+       "  print(itos(p.x) + \" \" + dtos(p.y))",
+       "}");
+    for (int level = 0; level <= MyPL.MAX_OPT_LEVEL; ++level) {
+      VM vm = buildVM(s, level);
+      Verifier verifier = new Verifier(vm);
+      assertEquals(vm.frames().size(), verifier.verify());
+      assertTrue(verifier.failures().isEmpty());
+      vm.run();
+      vm.setVerification(false);
+      vm.run();
+    }
+    assertEquals("30 3.030 3.030 3.030 3.030 3.030 3.030 3.030 3.0", output.toString());
+  }
+
+  @Test
+  public void callStatementsKeepStackBalanced() throws Exception {
+    String s = buildString
+      ("fun int f(int x) {",
+       "  return x",
+       "}",
+       "fun void main() {",
+       "  var i = 0",
+       "  while i < 3 {",
+       "    f(i)",
+       "    i = i + 1",
+       "  }",
+       "  print(i)",
+       "}");
+    VM vm = buildVM(s, 0);
+    assertTrue(new Verifier(vm).verify(vm.frame("main")));
+    vm.run();
+    assertEquals("3", output.toString());
+  }
+
+  @Test
+  public void operandTypesAndStackDepth() throws Exception {
+    String s = buildString
+      ("fun void main() {",
+       "  var x = 1 + 2",
+       "  var y = 1.5 * 2.0",
+       "  var s = \"a\" + \"b\"",
+       "  print(s)",
+       "}");
+    VM vm = buildVM(s, 0);
+    VMFrame main = vm.frame("main");
+    assertTrue(new Verifier(vm).verify(main));
+    assertEquals(2, main.maxStack);
+    assertEquals(3, main.maxLocals);
+    int adds = 0;
+    for (int pc = 0; pc < main.instructions.size(); ++pc) {
+      OpCode op = main.instructions.get(pc).opcode();
+      if (op == OpCode.ADD && adds++ == 0)
+        assertEquals(Verifier.Type.INT, main.types[pc]);
+      else if (op == OpCode.ADD)
+        assertEquals(Verifier.Type.STRING, main.types[pc]);
+      else if (op == OpCode.MUL)
+        assertEquals(Verifier.Type.DOUBLE, main.types[pc]);
+    }
+    assertEquals(2, adds);
+  }
+
+
+  //------------------------------------------------------------
+  // Hand-built frames
+  //------------------------------------------------------------
+
+  @Test
+  public void stackUnderflowNotVerified() throws Exception {
+    VM vm = buildVM(VMInstr.PUSH(2), VMInstr.MUL(), VMInstr.WRITE());
+    Verifier verifier = new Verifier(vm);
+    assertEquals(0, verifier.verify());
+    assertTrue(verifier.failures().get("main").contains("underflow"));
+    try {
+      vm.run();
+      fail("error not detected");
+    } catch(MyPLException ex) {
+      assertTrue(ex.getMessage().contains("Not enough operands"));
+    }
+  }
+
+  @Test
+  public void operandTypeErrorNotVerified() throws Exception {
+    VM vm = buildVM(VMInstr.PUSH(true), VMInstr.PUSH(1), VMInstr.MUL(), VMInstr.WRITE());
+    assertFalse(new Verifier(vm).verify(vm.frame("main")));
+    try {
+      vm.run();
+      fail("error not detected");
+    } catch(MyPLException ex) {
+      assertTrue(ex.getMessage().contains("Operands must be"));
+    }
+  }
+
+  @Test
+  public void stackGrowingLoopNotVerified() throws Exception {
+    // pushes a value each time around the loop
+    VM vm = buildVM(VMInstr.PUSH(true), VMInstr.JMPF(4), VMInstr.PUSH(1),
+                    VMInstr.JMP(0), VMInstr.NOP());
+    Verifier verifier = new Verifier(vm);
+    assertEquals(0, verifier.verify());
+    assertTrue(verifier.failures().get("main").contains("stack depth"));
+  }
+
+  @Test
+  public void unsetVariableNotVerified() throws Exception {
+    VM vm = buildVM(VMInstr.PUSH(false), VMInstr.JMPF(4), VMInstr.PUSH(1),
+                    VMInstr.STORE(0), VMInstr.LOAD(0), VMInstr.WRITE());
+    assertFalse(new Verifier(vm).verify(vm.frame("main")));
+  }
+
+  @Test
+  public void badJumpAndCallNotVerified() throws Exception {
+    VM vm = buildVM(VMInstr.JMP(7));
+    assertFalse(new Verifier(vm).verify(vm.frame("main")));
+    vm = buildVM(VMInstr.CALL("f"), VMInstr.WRITE());
+    assertFalse(new Verifier(vm).verify(vm.frame("main")));
+  }
+
+}